@@ -2,6 +2,7 @@ package com.doug.projects.transitdelayservice.config;
 
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.aop.interceptor.AsyncUncaughtExceptionHandler;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.scheduling.annotation.AsyncConfigurer;
 import org.springframework.scheduling.annotation.EnableAsync;
@@ -14,6 +15,37 @@ import java.util.concurrent.Executor;
 @EnableAsync
 @Slf4j
 public class AsyncConfiguration implements AsyncConfigurer {
+    /**
+     * Rechecks feeds whose poll failed or was outdated, which may sleep, re-poll or reload static data
+     */
+    public static final String FEED_RECHECK_EXECUTOR = "feedRecheckExecutor";
+
+    /**
+     * Recomputes feeds' default graphs and maps, apart from other async work since each can replay weeks of delays
+     */
+    public static final String DEFAULT_RESPONSE_EXECUTOR = "defaultResponseExecutor";
+
+    @Bean(FEED_RECHECK_EXECUTOR)
+    public ThreadPoolTaskExecutor feedRecheckExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(2);
+        executor.setMaxPoolSize(2);
+        //at most one recheck per feed is queued
+        executor.setQueueCapacity(100);
+        executor.setThreadNamePrefix("FeedRecheck-");
+        return executor;
+    }
+
+    @Bean(DEFAULT_RESPONSE_EXECUTOR)
+    public ThreadPoolTaskExecutor defaultResponseExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(2);
+        executor.setMaxPoolSize(2);
+        //at most one refresh per feed is queued
+        executor.setQueueCapacity(100);
+        executor.setThreadNamePrefix("DefaultResponse-");
+        return executor;
+    }
 
     @Override
     public Executor getAsyncExecutor() {
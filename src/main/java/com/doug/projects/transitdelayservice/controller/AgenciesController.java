@@ -1,8 +1,12 @@
 package com.doug.projects.transitdelayservice.controller;
 
+import com.doug.projects.transitdelayservice.entity.FeedDownloadTiming;
+import com.doug.projects.transitdelayservice.entity.IngestStageStats;
 import com.doug.projects.transitdelayservice.entity.Status;
 import com.doug.projects.transitdelayservice.entity.jpa.AgencyFeedDto;
 import com.doug.projects.transitdelayservice.service.AgencyFeedService;
+import com.doug.projects.transitdelayservice.service.FeedHttpClient;
+import com.doug.projects.transitdelayservice.service.RealtimeIngestPipeline;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import lombok.RequiredArgsConstructor;
@@ -12,11 +16,14 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RestController;
 
 import java.util.List;
+import java.util.Map;
 
 @RestController
 @RequiredArgsConstructor
 public class AgenciesController {
     private final AgencyFeedService agencyFeedService;
+    private final FeedHttpClient feedHttpClient;
+    private final RealtimeIngestPipeline realtimeIngestPipeline;
 
     @GetMapping("/v1/agencies/all")
     @ApiResponses(value = {@ApiResponse(responseCode = "200", description = "OK")})
@@ -30,6 +37,18 @@ public class AgenciesController {
         return ResponseEntity.ok(agencyFeedService.getAgencyFeedsByStatus(Status.ACTIVE));
     }
 
+    @GetMapping("/v1/agencies/downloadTimings")
+    @ApiResponses(value = {@ApiResponse(responseCode = "200", description = "OK")})
+    public ResponseEntity<Map<String, FeedDownloadTiming>> getDownloadTimings() {
+        return ResponseEntity.ok(feedHttpClient.getTimings());
+    }
+
+    @GetMapping("/v1/agencies/ingestStats")
+    @ApiResponses(value = {@ApiResponse(responseCode = "200", description = "OK")})
+    public ResponseEntity<List<IngestStageStats>> getIngestStats() {
+        return ResponseEntity.ok(realtimeIngestPipeline.getStats());
+    }
+
     @GetMapping("/v1/agencies/{feedId}")
     @ApiResponses(value = {@ApiResponse(responseCode = "200", description = "OK")})
     public ResponseEntity<AgencyFeedDto> getActiveAgencies(@PathVariable String feedId) {
@@ -1,7 +1,9 @@
 package com.doug.projects.transitdelayservice.controller;
 
 import com.doug.projects.transitdelayservice.entity.GraphOptions;
+import com.doug.projects.transitdelayservice.entity.GraphType;
 import com.doug.projects.transitdelayservice.entity.LineGraphDataResponse;
+import com.doug.projects.transitdelayservice.service.DefaultResponseService;
 import com.doug.projects.transitdelayservice.service.GetDelayService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -9,15 +11,23 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import static org.springframework.http.HttpStatus.NOT_FOUND;
+import static org.springframework.http.MediaType.APPLICATION_JSON;
 
 @RequiredArgsConstructor
 @RestController
 @Slf4j
 public class DelayByRouteController {
     private final GetDelayService getDelayService;
+    private final DefaultResponseService defaultResponseService;
     @Value("${metro.feedId}")
     private String metroMadisonFeedId;
 
@@ -26,19 +36,51 @@ public class DelayByRouteController {
         return ResponseEntity.ok(getDelayService.getAverageDelay(metroMadisonFeedId, graphOptions));
     }
 
+    /**
+     * Gets a graph of the feed. The default graphs (every route, over the last week) are served precomputed.
+     */
     @GetMapping("/v1/graph/{type}/{feedId}")
-    public ResponseEntity<LineGraphDataResponse> getDelayByFeed(@PathVariable String feedId,
-                                                                @PathVariable String type,
-                                                                GraphOptions graphOptions) {
+    public ResponseEntity<?> getDelayByFeed(@PathVariable String feedId,
+                                            @PathVariable String type,
+                                            GraphOptions graphOptions) {
+        var precomputed = defaultResponseService.getGraph(feedId, type, graphOptions);
+        if (precomputed.isPresent()) {
+            return ResponseEntity.ok().contentType(APPLICATION_JSON).body(precomputed.get());
+        }
         return switch (type) {
             case "average" -> ResponseEntity.ok(getDelayService.getAverageDelay(feedId, graphOptions));
             case "max" -> ResponseEntity.ok(getDelayService.getMaxDelayFor(feedId, graphOptions));
             case "percent" -> ResponseEntity.ok(getDelayService.getPercentOnTimeFor(feedId, graphOptions));
             case "median" -> ResponseEntity.ok(getDelayService.getMedianDelay(feedId, graphOptions));
+            case "p50" -> ResponseEntity.ok(getDelayService.getDelayPercentile(feedId, graphOptions, 0.5));
+            case "p90" -> ResponseEntity.ok(getDelayService.getDelayPercentile(feedId, graphOptions, 0.9));
+            case "p95" -> ResponseEntity.ok(getDelayService.getDelayPercentile(feedId, graphOptions, 0.95));
             default -> new ResponseEntity<>(NOT_FOUND);
         };
     }
 
+    /**
+     * Gets several graph types of the same feed, routes and range in one response, keyed by type
+     * (<code>?types=average,max,median,percent</code>). The graphs share one read of the delays.
+     */
+    @GetMapping("/v1/graphs/{feedId}")
+    public ResponseEntity<Map<String, LineGraphDataResponse>> getDelayGraphsByFeed(@PathVariable String feedId,
+                                                                                   @RequestParam List<String> types,
+                                                                                   GraphOptions graphOptions) {
+        List<GraphType> graphTypes = new ArrayList<>(types.size());
+        for (String type : types) {
+            try {
+                graphTypes.add(GraphType.valueOf(type.toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                return new ResponseEntity<>(NOT_FOUND);
+            }
+        }
+        Map<String, LineGraphDataResponse> graphs = new LinkedHashMap<>();
+        getDelayService.getDelayGraphs(feedId, graphOptions, graphTypes)
+                .forEach((type, graph) -> graphs.put(type.name().toLowerCase(), graph));
+        return ResponseEntity.ok(graphs);
+    }
+
     @GetMapping("/v1/max/allLines")
     public ResponseEntity<LineGraphDataResponse> getAverageDelayByAllLines(GraphOptions graphOptions) {
         return ResponseEntity.ok(getDelayService.getMaxDelayFor(metroMadisonFeedId, graphOptions));
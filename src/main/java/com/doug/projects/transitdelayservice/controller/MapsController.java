@@ -2,22 +2,38 @@ package com.doug.projects.transitdelayservice.controller;
 
 import com.doug.projects.transitdelayservice.entity.GtfsShape;
 import com.doug.projects.transitdelayservice.entity.MapOptions;
+import com.doug.projects.transitdelayservice.entity.transit.ShapeIndexStats;
+import com.doug.projects.transitdelayservice.service.DefaultResponseService;
 import com.doug.projects.transitdelayservice.service.MapperService;
+import com.doug.projects.transitdelayservice.service.ShapeIndexService;
 import lombok.RequiredArgsConstructor;
-import org.geojson.FeatureCollection;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.util.Map;
+
+import static org.springframework.http.MediaType.APPLICATION_JSON;
+
 @RestController
 @RequiredArgsConstructor
 public class MapsController {
     private final MapperService mapperService;
+    private final DefaultResponseService defaultResponseService;
+    private final ShapeIndexService shapeIndexService;
 
+    /**
+     * Gets the delay of each segment of the routes. The default map (every route, every day and hour) is served
+     * precomputed.
+     */
     @GetMapping("/v1/map/{feedId}/delayLines")
-    public ResponseEntity<FeatureCollection> getDelayLines(@PathVariable String feedId,
-                                                           MapOptions mapOptions) {
+    public ResponseEntity<?> getDelayLines(@PathVariable String feedId,
+                                           MapOptions mapOptions) {
+        var precomputed = defaultResponseService.getMap(feedId, mapOptions);
+        if (precomputed.isPresent()) {
+            return ResponseEntity.ok().contentType(APPLICATION_JSON).body(precomputed.get());
+        }
         return ResponseEntity.ok(mapperService.getDelayLines(feedId, mapOptions));
     }
 
@@ -25,4 +41,12 @@ public class MapsController {
     public ResponseEntity<GtfsShape> getRandomRoute(@PathVariable String feedId) {
         return ResponseEntity.ok(mapperService.getRandomGtfsShape(feedId));
     }
+
+    /**
+     * Gets the size of the shape index of each loaded feed
+     */
+    @GetMapping("/v1/map/shapeIndexStats")
+    public ResponseEntity<Map<String, ShapeIndexStats>> getShapeIndexStats() {
+        return ResponseEntity.ok(shapeIndexService.getStats());
+    }
 }
@@ -16,4 +16,9 @@ public class AgencyRealtimeAnalysisResponse {
     @NotNull
     private Status feedStatus;
     private AgencyFeedDto feed;
+    /**
+     * The version of the realtime feed this response was read from, null if nothing new was downloaded
+     */
+    @Nullable
+    private RealtimeFeedVersion feedVersion;
 }
@@ -0,0 +1,13 @@
+package com.doug.projects.transitdelayservice.entity;
+
+/**
+ * How long the last download of a feed took.
+ *
+ * @param url            the url downloaded
+ * @param statusCode     the http status of the response, or -1 if no response was received
+ * @param queuedMillis   time spent waiting for a free connection to the host
+ * @param downloadMillis time from sending the request until the body was fully read
+ * @param finishedAt     epoch seconds when the download finished
+ */
+public record FeedDownloadTiming(String url, int statusCode, long queuedMillis, long downloadMillis, long finishedAt) {
+}
@@ -3,5 +3,9 @@ package com.doug.projects.transitdelayservice.entity;
 public enum GraphType {
     MAX,
     PERCENT,
-    AVERAGE //legacy, to support old UI
+    AVERAGE, //legacy, to support old UI
+    MEDIAN,
+    P50,
+    P90,
+    P95
 }
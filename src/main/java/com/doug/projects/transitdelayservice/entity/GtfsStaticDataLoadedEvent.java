@@ -0,0 +1,10 @@
+package com.doug.projects.transitdelayservice.entity;
+
+/**
+ * Published once all gtfs static data for an agency has been written to the db.
+ * In-memory views of the static data listen for this to rebuild themselves.
+ *
+ * @param agencyId the agency (feed) whose static data was reloaded
+ */
+public record GtfsStaticDataLoadedEvent(String agencyId) {
+}
@@ -0,0 +1,25 @@
+package com.doug.projects.transitdelayservice.entity;
+
+/**
+ * Point in time stats of one stage of the realtime ingest pipeline, used to size its workers and queue.
+ *
+ * @param stage               the name of the stage
+ * @param workers             number of threads working the stage
+ * @param queueDepth          feeds waiting for a worker
+ * @param queueCapacity       max feeds waiting before upstream stages block
+ * @param processed           feeds processed since startup
+ * @param coalesced           queued snapshots replaced by a newer snapshot of the same feed before being processed
+ * @param failed              feeds which failed in this stage
+ * @param avgProcessingMillis mean time a worker spent on one feed
+ * @param processedPerMinute  mean throughput since startup
+ */
+public record IngestStageStats(String stage,
+                               int workers,
+                               int queueDepth,
+                               int queueCapacity,
+                               long processed,
+                               long coalesced,
+                               long failed,
+                               double avgProcessingMillis,
+                               double processedPerMinute) {
+}
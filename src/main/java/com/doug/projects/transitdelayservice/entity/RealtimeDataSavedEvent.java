@@ -0,0 +1,11 @@
+package com.doug.projects.transitdelayservice.entity;
+
+/**
+ * Published once a realtime poll of an agency has been written to the db.
+ * Cached views of the delays listen for this to drop what the poll made stale.
+ *
+ * @param agencyId  the agency (feed) polled
+ * @param timestamp the timestamp of the poll
+ */
+public record RealtimeDataSavedEvent(String agencyId, long timestamp) {
+}
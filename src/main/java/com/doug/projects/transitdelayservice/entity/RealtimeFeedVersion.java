@@ -0,0 +1,11 @@
+package com.doug.projects.transitdelayservice.entity;
+
+/**
+ * Identifies the version of a realtime feed we downloaded, so the next poll can skip it if it has not changed.
+ *
+ * @param etag            the ETag header of the response, may be null
+ * @param lastModified    the Last-Modified header of the response, may be null
+ * @param headerTimestamp the FeedHeader.timestamp of the FeedMessage
+ */
+public record RealtimeFeedVersion(String etag, String lastModified, long headerTimestamp) {
+}
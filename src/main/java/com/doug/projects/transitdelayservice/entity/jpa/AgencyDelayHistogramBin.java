@@ -0,0 +1,51 @@
+package com.doug.projects.transitdelayservice.entity.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.EmbeddedId;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Table;
+import lombok.*;
+import org.hibernate.proxy.HibernateProxy;
+
+import java.util.Objects;
+
+/**
+ * One bin of the delay histogram of a rollup bucket. Bins are stored as rows, so buckets from any poll or node are
+ * merged by adding up counts. Only kept for {@link #GRANULARITIES_SECONDS}, to bound the number of rows.
+ */
+@Entity
+@Table(name = "gtfs_delay_rollup_histogram", schema = "MPT")
+@Getter
+@Setter
+@ToString
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class AgencyDelayHistogramBin {
+    /**
+     * Bucket lengths which histograms are kept for, from finest to coarsest
+     */
+    public static final int[] GRANULARITIES_SECONDS = {60 * 60, 24 * 60 * 60};
+
+    @EmbeddedId
+    private AgencyDelayHistogramBinId id;
+
+    @Column(name = "sample_count", nullable = false)
+    private Long sampleCount;
+
+    @Override
+    public final boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null) return false;
+        Class<?> oEffectiveClass = o instanceof HibernateProxy ? ((HibernateProxy) o).getHibernateLazyInitializer().getPersistentClass() : o.getClass();
+        Class<?> thisEffectiveClass = this instanceof HibernateProxy ? ((HibernateProxy) this).getHibernateLazyInitializer().getPersistentClass() : this.getClass();
+        if (thisEffectiveClass != oEffectiveClass) return false;
+        AgencyDelayHistogramBin bin = (AgencyDelayHistogramBin) o;
+        return getId() != null && Objects.equals(getId(), bin.getId());
+    }
+
+    @Override
+    public final int hashCode() {
+        return Objects.hash(id);
+    }
+}
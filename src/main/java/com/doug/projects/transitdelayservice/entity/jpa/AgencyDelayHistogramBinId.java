@@ -0,0 +1,34 @@
+package com.doug.projects.transitdelayservice.entity.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Embeddable;
+import lombok.*;
+
+import java.io.Serializable;
+
+@Getter
+@Setter
+@Embeddable
+@NoArgsConstructor
+@AllArgsConstructor
+@EqualsAndHashCode
+@Builder
+public class AgencyDelayHistogramBinId implements Serializable {
+    @Column(name = "agency_id")
+    private String agencyId;
+
+    @Column(name = "route_name")
+    private String routeName;
+
+    @Column(name = "granularity_seconds")
+    private Integer granularitySeconds;
+
+    @Column(name = "bucket_start")
+    private Long bucketStart;
+
+    /**
+     * The {@link com.doug.projects.transitdelayservice.util.DelayHistogram} bin
+     */
+    @Column(name = "bin")
+    private Integer bin;
+}
@@ -0,0 +1,68 @@
+package com.doug.projects.transitdelayservice.entity.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.EmbeddedId;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Table;
+import lombok.*;
+import org.hibernate.proxy.HibernateProxy;
+
+import java.util.Objects;
+
+/**
+ * The delays of a route's bus states over a bucket of time, summed up at ingest so graphs don't need to read every
+ * trip delay row. Each poll adds its bus states to the 5 minute, hourly and daily bucket it falls in.
+ */
+@Entity
+@Table(name = "gtfs_delay_rollup", schema = "MPT")
+@Getter
+@Setter
+@ToString
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class AgencyDelayRollup {
+    /**
+     * Bucket lengths which are rolled up, from finest to coarsest
+     */
+    public static final int[] GRANULARITIES_SECONDS = {5 * 60, 60 * 60, 24 * 60 * 60};
+    /**
+     * The window counted as on time, in minutes. Matches the default percent on time graph
+     */
+    public static final int ON_TIME_LOWER_MINUTES = -5;
+    public static final int ON_TIME_UPPER_MINUTES = 5;
+
+    @EmbeddedId
+    private AgencyDelayRollupId id;
+
+    @Column(name = "sample_count", nullable = false)
+    private Long sampleCount;
+
+    @Column(name = "delay_sum_seconds", nullable = false)
+    private Long delaySumSeconds;
+
+    @Column(name = "min_delay_seconds", nullable = false)
+    private Integer minDelaySeconds;
+
+    @Column(name = "max_delay_seconds", nullable = false)
+    private Integer maxDelaySeconds;
+
+    @Column(name = "on_time_count", nullable = false)
+    private Long onTimeCount;
+
+    @Override
+    public final boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null) return false;
+        Class<?> oEffectiveClass = o instanceof HibernateProxy ? ((HibernateProxy) o).getHibernateLazyInitializer().getPersistentClass() : o.getClass();
+        Class<?> thisEffectiveClass = this instanceof HibernateProxy ? ((HibernateProxy) this).getHibernateLazyInitializer().getPersistentClass() : this.getClass();
+        if (thisEffectiveClass != oEffectiveClass) return false;
+        AgencyDelayRollup rollup = (AgencyDelayRollup) o;
+        return getId() != null && Objects.equals(getId(), rollup.getId());
+    }
+
+    @Override
+    public final int hashCode() {
+        return Objects.hash(id);
+    }
+}
@@ -0,0 +1,34 @@
+package com.doug.projects.transitdelayservice.entity.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Embeddable;
+import lombok.*;
+
+import java.io.Serializable;
+
+@Getter
+@Setter
+@Embeddable
+@NoArgsConstructor
+@AllArgsConstructor
+@EqualsAndHashCode
+@Builder
+public class AgencyDelayRollupId implements Serializable {
+    @Column(name = "agency_id")
+    private String agencyId;
+
+    @Column(name = "route_name")
+    private String routeName;
+
+    /**
+     * The length of the bucket, one of {@link AgencyDelayRollup#GRANULARITIES_SECONDS}
+     */
+    @Column(name = "granularity_seconds")
+    private Integer granularitySeconds;
+
+    /**
+     * The start of the bucket, a multiple of granularitySeconds since the epoch
+     */
+    @Column(name = "bucket_start")
+    private Long bucketStart;
+}
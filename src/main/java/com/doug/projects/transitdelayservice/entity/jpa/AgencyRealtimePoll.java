@@ -0,0 +1,42 @@
+package com.doug.projects.transitdelayservice.entity.jpa;
+
+import jakarta.persistence.EmbeddedId;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Table;
+import lombok.*;
+import org.hibernate.proxy.HibernateProxy;
+
+import java.util.Objects;
+
+/**
+ * A realtime poll written in delta mode. Delta mode rows are only written when a trip changes, so these are the
+ * timestamps at which unchanged trips are expanded back out when reading.
+ */
+@Entity
+@Table(name = "gtfs_realtime_poll", schema = "MPT")
+@Getter
+@Setter
+@ToString
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class AgencyRealtimePoll {
+    @EmbeddedId
+    private AgencyRealtimePollId id;
+
+    @Override
+    public final boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null) return false;
+        Class<?> oEffectiveClass = o instanceof HibernateProxy ? ((HibernateProxy) o).getHibernateLazyInitializer().getPersistentClass() : o.getClass();
+        Class<?> thisEffectiveClass = this instanceof HibernateProxy ? ((HibernateProxy) this).getHibernateLazyInitializer().getPersistentClass() : this.getClass();
+        if (thisEffectiveClass != oEffectiveClass) return false;
+        AgencyRealtimePoll poll = (AgencyRealtimePoll) o;
+        return getId() != null && Objects.equals(getId(), poll.getId());
+    }
+
+    @Override
+    public final int hashCode() {
+        return Objects.hash(id);
+    }
+}
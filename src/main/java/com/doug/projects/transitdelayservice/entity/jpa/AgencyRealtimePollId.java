@@ -0,0 +1,22 @@
+package com.doug.projects.transitdelayservice.entity.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Embeddable;
+import lombok.*;
+
+import java.io.Serializable;
+
+@Getter
+@Setter
+@Embeddable
+@NoArgsConstructor
+@AllArgsConstructor
+@EqualsAndHashCode
+@Builder
+public class AgencyRealtimePollId implements Serializable {
+    @Column(name = "agency_id")
+    private String agencyId;
+
+    @Column(name = "timestamp")
+    private Long timestamp;
+}
@@ -0,0 +1,59 @@
+package com.doug.projects.transitdelayservice.entity.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.EmbeddedId;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Table;
+import lombok.*;
+import org.hibernate.proxy.HibernateProxy;
+
+import java.util.Objects;
+
+/**
+ * The delays interpolated along a segment between two consecutive stops over an hour, summed up at ingest so the
+ * delay map doesn't need to replay every trip delay row. Each time a bus moves on to a later stop, the segments it
+ * passed are added to the hour of the poll it was seen there.
+ */
+@Entity
+@Table(name = "gtfs_segment_delay_rollup", schema = "MPT")
+@Getter
+@Setter
+@ToString
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class AgencySegmentDelayRollup {
+    @EmbeddedId
+    private AgencySegmentDelayRollupId id;
+
+    /**
+     * The stop sequences of the segment on its shape's trips, for slicing the shape
+     */
+    @Column(name = "from_stop_seq", nullable = false)
+    private Integer fromStopSequence;
+
+    @Column(name = "to_stop_seq", nullable = false)
+    private Integer toStopSequence;
+
+    @Column(name = "sample_count", nullable = false)
+    private Long sampleCount;
+
+    @Column(name = "delay_sum_seconds", nullable = false)
+    private Double delaySumSeconds;
+
+    @Override
+    public final boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null) return false;
+        Class<?> oEffectiveClass = o instanceof HibernateProxy ? ((HibernateProxy) o).getHibernateLazyInitializer().getPersistentClass() : o.getClass();
+        Class<?> thisEffectiveClass = this instanceof HibernateProxy ? ((HibernateProxy) this).getHibernateLazyInitializer().getPersistentClass() : this.getClass();
+        if (thisEffectiveClass != oEffectiveClass) return false;
+        AgencySegmentDelayRollup rollup = (AgencySegmentDelayRollup) o;
+        return getId() != null && Objects.equals(getId(), rollup.getId());
+    }
+
+    @Override
+    public final int hashCode() {
+        return Objects.hash(id);
+    }
+}
@@ -0,0 +1,53 @@
+package com.doug.projects.transitdelayservice.entity.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Embeddable;
+import lombok.*;
+
+import java.io.Serializable;
+
+@Getter
+@Setter
+@Embeddable
+@NoArgsConstructor
+@AllArgsConstructor
+@EqualsAndHashCode
+@Builder
+public class AgencySegmentDelayRollupId implements Serializable {
+    @Column(name = "agency_id")
+    private String agencyId;
+
+    @Column(name = "route_name")
+    private String routeName;
+
+    @Column(name = "from_stop_id")
+    private String fromStopId;
+
+    @Column(name = "to_stop_id")
+    private String toStopId;
+
+    /**
+     * The shape of the trips which drove the segment, or empty if they have none
+     */
+    @Column(name = "shape_id")
+    private String shapeId;
+
+    /**
+     * The start of the hour, in seconds since the epoch
+     */
+    @Column(name = "bucket_start")
+    private Long bucketStart;
+
+    /**
+     * The hour of the week the bucket starts at in the agency's timezone, from 0 (Monday 00:00) to 167
+     */
+    @Column(name = "hour_of_week")
+    private Integer hourOfWeek;
+
+    /**
+     * The hour of the week of the bus's previous poll, which the segments were driven since. The delay map only
+     * counts them when both hours are selected, as it only pairs polls which both are when it replays delays
+     */
+    @Column(name = "previous_hour_of_week")
+    private Integer previousHourOfWeek;
+}
@@ -30,6 +30,11 @@ import java.util.Objects;
 @NoArgsConstructor
 @AllArgsConstructor
 public class AgencyTripDelay {
+    /**
+     * The lastSeenTimestamp of a delta mode row whose trip is still unchanged. Reads extend it to every later poll,
+     * up to maxSpanSeconds after its timestamp.
+     */
+    public static final long OPEN_LAST_SEEN_TIMESTAMP = Long.MAX_VALUE;
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     private Long id;
@@ -61,6 +66,12 @@ public class AgencyTripDelay {
     @ToString.Exclude
     private AgencyTrip trip;
     private Integer delaySeconds;
+    /**
+     * In delta mode, the last poll timestamp at which the trip still had this stop and delay, or
+     * {@link #OPEN_LAST_SEEN_TIMESTAMP} while the trip still has them. Null if the row only applies to its own timestamp.
+     */
+    @Column(name = "last_seen_timestamp")
+    private Long lastSeenTimestamp;
 
     @Override
     public final boolean equals(Object o) {
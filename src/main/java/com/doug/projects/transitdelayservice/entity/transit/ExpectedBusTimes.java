@@ -1,63 +1,173 @@
 package com.doug.projects.transitdelayservice.entity.transit;
 
 import lombok.Getter;
-import lombok.Setter;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Optional;
 
 /**
  * Maps departures and arrivals to their respective scheduled times.
+ * <p>
+ * This is the resident schedule of a whole feed: each trip holds its stop sequences, arrival and departure seconds as
+ * int arrays sorted by stop sequence, so lookups are a binary search and never box or allocate.
+ * Instances are immutable once built, use {@link Builder} to create one.
  */
 public class ExpectedBusTimes {
-    private final Map<String, Map<Integer, Integer>> departureMap = new HashMap<>();
-    private final Map<String, Map<Integer, Integer>> arrivalMap = new HashMap<>();
+    /**
+     * Returned by the primitive lookups when the trip or stop sequence is not in the schedule.
+     */
+    public static final int NO_TIME = Integer.MIN_VALUE;
+
+    private final Map<String, TripSchedule> tripSchedules;
     @Getter
-    @Setter
-    private String timezone;
+    private final String timezone;
 
-    public void putDeparture(String tripId, Integer stopSequence, Integer time) {
-        if (departureMap.containsKey(tripId)) {
-            departureMap.get(tripId).put(stopSequence, time);
-        } else {
-            Map<Integer, Integer> newMap = new HashMap<>();
-            newMap.put(stopSequence, time);
-            departureMap.put(tripId, newMap);
-        }
+    private ExpectedBusTimes(Map<String, TripSchedule> tripSchedules, String timezone) {
+        this.tripSchedules = tripSchedules;
+        this.timezone = timezone;
     }
 
-    public void putArrival(String tripId, Integer stopSequence, Integer time) {
-        if (arrivalMap.containsKey(tripId)) {
-            arrivalMap.get(tripId).put(stopSequence, time);
-        } else {
-            Map<Integer, Integer> newMap = new HashMap<>();
-            newMap.put(stopSequence, time);
-            arrivalMap.put(tripId, newMap);
-        }
+    /**
+     * @return the scheduled departure in seconds since midnight of the service day, or {@link #NO_TIME}
+     */
+    public int getDepartureSecs(String tripId, int stopSequence) {
+        TripSchedule schedule = tripSchedules.get(tripId);
+        return schedule == null ? NO_TIME : schedule.departureAt(stopSequence);
+    }
+
+    /**
+     * @return the scheduled arrival in seconds since midnight of the service day, or {@link #NO_TIME}
+     */
+    public int getArrivalSecs(String tripId, int stopSequence) {
+        TripSchedule schedule = tripSchedules.get(tripId);
+        return schedule == null ? NO_TIME : schedule.arrivalAt(stopSequence);
+    }
+
+    public boolean containsStop(String tripId, int stopSequence) {
+        TripSchedule schedule = tripSchedules.get(tripId);
+        return schedule != null && schedule.indexOf(stopSequence) >= 0;
+    }
+
+    public int getTripCount() {
+        return tripSchedules.size();
     }
 
-    public Optional<Integer> getDepartureTime(String tripId, Integer stopSequence) {
-        var stopMap = departureMap.get(tripId);
-        if (stopMap == null) {
-            return Optional.empty();
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    private record TripSchedule(int[] stopSequences, int[] arrivalSecs, int[] departureSecs) {
+        int indexOf(int stopSequence) {
+            return Arrays.binarySearch(stopSequences, stopSequence);
+        }
+
+        int arrivalAt(int stopSequence) {
+            int index = indexOf(stopSequence);
+            return index < 0 ? NO_TIME : arrivalSecs[index];
         }
-        var departureTime = stopMap.get(stopSequence);
-        if (departureTime == null) {
-            return Optional.empty();
+
+        int departureAt(int stopSequence) {
+            int index = indexOf(stopSequence);
+            return index < 0 ? NO_TIME : departureSecs[index];
         }
-        return Optional.of(departureTime);
     }
 
-    public Optional<Integer> getArrivalTime(String tripId, Integer stopSequence) {
-        var stopMap = arrivalMap.get(tripId);
-        if (stopMap == null) {
-            return Optional.empty();
+    /**
+     * Collects stop times one at a time. Stop times are expected grouped by trip, and ordered by stop sequence within
+     * a trip (as they are in stop_times.txt and when read ordered from the db); anything else is sorted on build.
+     */
+    public static class Builder {
+        private final Map<String, TripSchedule> tripSchedules = new HashMap<>();
+        private String timezone;
+        private String currentTripId;
+        private int size;
+        private int[] stopSequences = new int[64];
+        private int[] arrivalSecs = new int[64];
+        private int[] departureSecs = new int[64];
+
+        public Builder timezone(String timezone) {
+            this.timezone = timezone;
+            return this;
+        }
+
+        /**
+         * Adds a stop time. Null times are stored as {@link #NO_TIME}.
+         */
+        public Builder add(String tripId, int stopSequence, Integer arrivalSecs, Integer departureSecs) {
+            if (currentTripId != null && !currentTripId.equals(tripId)) {
+                finishTrip();
+            }
+            currentTripId = tripId;
+            if (size == stopSequences.length) {
+                stopSequences = Arrays.copyOf(stopSequences, size * 2);
+                this.arrivalSecs = Arrays.copyOf(this.arrivalSecs, size * 2);
+                this.departureSecs = Arrays.copyOf(this.departureSecs, size * 2);
+            }
+            stopSequences[size] = stopSequence;
+            this.arrivalSecs[size] = arrivalSecs == null ? NO_TIME : arrivalSecs;
+            this.departureSecs[size] = departureSecs == null ? NO_TIME : departureSecs;
+            size++;
+            return this;
+        }
+
+        public ExpectedBusTimes build() {
+            if (currentTripId != null) {
+                finishTrip();
+            }
+            return new ExpectedBusTimes(tripSchedules, timezone);
+        }
+
+        private void finishTrip() {
+            int[] sequences = Arrays.copyOf(stopSequences, size);
+            int[] arrivals = Arrays.copyOf(arrivalSecs, size);
+            int[] departures = Arrays.copyOf(departureSecs, size);
+            TripSchedule existing = tripSchedules.get(currentTripId);
+            if (existing != null || !isSorted(sequences)) {
+                //trip was not contiguous, or not in stop sequence order. Merge and sort it, which is the rare path
+                tripSchedules.put(currentTripId, mergeSorted(existing, sequences, arrivals, departures));
+            } else {
+                tripSchedules.put(currentTripId, new TripSchedule(sequences, arrivals, departures));
+            }
+            size = 0;
         }
-        var departureTime = stopMap.get(stopSequence);
-        if (departureTime == null) {
-            return Optional.empty();
+
+        private static boolean isSorted(int[] values) {
+            for (int i = 1; i < values.length; i++) {
+                if (values[i - 1] > values[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static TripSchedule mergeSorted(TripSchedule existing, int[] sequences, int[] arrivals, int[] departures) {
+            int existingSize = existing == null ? 0 : existing.stopSequences().length;
+            int total = existingSize + sequences.length;
+            long[] keyed = new long[total];
+            int[] allArrivals = new int[total];
+            int[] allDepartures = new int[total];
+            for (int i = 0; i < existingSize; i++) {
+                keyed[i] = ((long) existing.stopSequences()[i] << 32) | i;
+                allArrivals[i] = existing.arrivalSecs()[i];
+                allDepartures[i] = existing.departureSecs()[i];
+            }
+            for (int i = 0; i < sequences.length; i++) {
+                keyed[existingSize + i] = ((long) sequences[i] << 32) | (existingSize + i);
+                allArrivals[existingSize + i] = arrivals[i];
+                allDepartures[existingSize + i] = departures[i];
+            }
+            Arrays.sort(keyed);
+            int[] sortedSequences = new int[total];
+            int[] sortedArrivals = new int[total];
+            int[] sortedDepartures = new int[total];
+            for (int i = 0; i < total; i++) {
+                int source = (int) keyed[i];
+                sortedSequences[i] = (int) (keyed[i] >> 32);
+                sortedArrivals[i] = allArrivals[source];
+                sortedDepartures[i] = allDepartures[source];
+            }
+            return new TripSchedule(sortedSequences, sortedArrivals, sortedDepartures);
         }
-        return Optional.of(departureTime);
     }
 }
@@ -0,0 +1,70 @@
+package com.doug.projects.transitdelayservice.entity.transit;
+
+import org.geojson.LngLatAlt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The points of a shape, in sequence order, packed into arrays of latitudes and longitudes. One instance per shape is
+ * shared by every trip which follows it, see {@link ShapeIndex}. Immutable.
+ */
+public final class ShapeCoordinates {
+    /**
+     * Bytes per point: a latitude and a longitude
+     */
+    static final int BYTES_PER_POINT = 2 * Double.BYTES;
+    private final double[] lats;
+    private final double[] lons;
+
+    ShapeCoordinates(double[] lats, double[] lons) {
+        this.lats = lats;
+        this.lons = lons;
+    }
+
+    public int size() {
+        return lats.length;
+    }
+
+    public double getLat(int i) {
+        return lats[i];
+    }
+
+    public double getLon(int i) {
+        return lons[i];
+    }
+
+    double[] lats() {
+        return lats;
+    }
+
+    double[] lons() {
+        return lons;
+    }
+
+    public List<LngLatAlt> toLngLatAlts() {
+        return toLngLatAlts(0, size());
+    }
+
+    /**
+     * @return new points from fromIndex, inclusive, to toIndex, exclusive
+     */
+    public List<LngLatAlt> toLngLatAlts(int fromIndex, int toIndex) {
+        List<LngLatAlt> points = new ArrayList<>(toIndex - fromIndex);
+        for (int i = fromIndex; i < toIndex; i++) {
+            points.add(new LngLatAlt(lons[i], lats[i]));
+        }
+        return points;
+    }
+
+    /**
+     * @return the points as [lat, lon] pairs
+     */
+    public List<List<Double>> toLatLonPairs() {
+        List<List<Double>> points = new ArrayList<>(size());
+        for (int i = 0; i < size(); i++) {
+            points.add(List.of(lats[i], lons[i]));
+        }
+        return points;
+    }
+}
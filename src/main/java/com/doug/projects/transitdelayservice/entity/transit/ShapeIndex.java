@@ -0,0 +1,288 @@
+package com.doug.projects.transitdelayservice.entity.transit;
+
+import org.geojson.LngLatAlt;
+
+import java.util.*;
+
+/**
+ * Linear referencing of a feed's shapes, for slicing a shape between two stops.
+ * <p>
+ * Each shape holds its points with the cumulative distance along it, and the offset along it of each stop sequence
+ * of the trips which follow it. Stops are projected once, when built. Slicing is then two binary searches over the
+ * cumulative distances and a sublist, rather than a nearest point scan of the whole shape per stop.
+ * The points themselves are held once per shape as {@link ShapeCoordinates}, shared by all trips following the shape.
+ * A stop which is not passed within {@link Builder#MAX_STOP_GAP_KM} along the shape of the stop before it, or is never
+ * within {@link Builder#MAX_STOP_DISTANCE_KM} of it, is left unindexed, so callers fall back to dividing the shape.
+ * Instances are immutable once built, use {@link Builder} to create one.
+ */
+public class ShapeIndex {
+    private final Map<String, IndexedShape> shapes;
+    private final List<String> shapeIds;
+
+    public ShapeIndex() {
+        this(Map.of());
+    }
+
+    private ShapeIndex(Map<String, IndexedShape> shapes) {
+        this.shapes = shapes;
+        this.shapeIds = List.copyOf(shapes.keySet());
+    }
+
+    /**
+     * @return the points of shapeId from the stop at fromStopSequence to the one at toStopSequence, or empty if the
+     * shape or either stop is not indexed
+     */
+    public Optional<List<LngLatAlt>> slice(String shapeId, int fromStopSequence, int toStopSequence) {
+        IndexedShape shape = shapeId == null ? null : shapes.get(shapeId);
+        if (shape == null) {
+            return Optional.empty();
+        }
+        int from = Arrays.binarySearch(shape.stopSequences(), fromStopSequence);
+        int to = Arrays.binarySearch(shape.stopSequences(), toStopSequence);
+        if (from < 0 || to < 0) {
+            return Optional.empty();
+        }
+        double fromOffset = Math.min(shape.stopOffsetsKm()[from], shape.stopOffsetsKm()[to]);
+        double toOffset = Math.max(shape.stopOffsetsKm()[from], shape.stopOffsetsKm()[to]);
+        int fromIndex = lowerBound(shape.cumulativeKm(), fromOffset);
+        int toIndex = upperBound(shape.cumulativeKm(), toOffset) - 1;
+        return Optional.of(shape.coordinates().toLngLatAlts(fromIndex, toIndex + 1));
+    }
+
+    /**
+     * @return the points of shapeId, if indexed
+     */
+    public Optional<ShapeCoordinates> getCoordinates(String shapeId) {
+        IndexedShape shape = shapeId == null ? null : shapes.get(shapeId);
+        return shape == null ? Optional.empty() : Optional.of(shape.coordinates());
+    }
+
+    /**
+     * @return the distance along shapeId of the stop at stopSequence, in kilometers, if indexed
+     */
+    public OptionalDouble getStopOffsetKm(String shapeId, int stopSequence) {
+        IndexedShape shape = shapeId == null ? null : shapes.get(shapeId);
+        int index = shape == null ? -1 : Arrays.binarySearch(shape.stopSequences(), stopSequence);
+        return index < 0 ? OptionalDouble.empty() : OptionalDouble.of(shape.stopOffsetsKm()[index]);
+    }
+
+    public int getShapeCount() {
+        return shapes.size();
+    }
+
+    /**
+     * @return the ids of all indexed shapes
+     */
+    public List<String> getShapeIds() {
+        return shapeIds;
+    }
+
+    /**
+     * Estimates the memory held by the index, counting its arrays but not object headers or map entries.
+     */
+    public ShapeIndexStats getStats() {
+        long points = 0;
+        long bytes = 0;
+        for (IndexedShape shape : shapes.values()) {
+            int size = shape.coordinates().size();
+            points += size;
+            bytes += (long) size * (ShapeCoordinates.BYTES_PER_POINT + Double.BYTES) +
+                    (long) shape.stopSequences().length * (Integer.BYTES + Double.BYTES);
+        }
+        return new ShapeIndexStats(shapes.size(), points, bytes);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return the first index whose value is at least key
+     */
+    private static int lowerBound(double[] values, double key) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the first index whose value is greater than key
+     */
+    private static int upperBound(double[] values, double key) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] <= key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Haversine distance, which does not account for height.
+     *
+     * @return the distance between the two points, in kilometers
+     */
+    static double haversineKm(double lat1, double lon1, double lat2, double lon2) {
+        final double R = 6371; // Earth radius in kilometers
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) +
+                Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) *
+                        Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+        return R * c;
+    }
+
+    /**
+     * @param coordinates    the shape's points, in sequence order
+     * @param cumulativeKm   the distance along the shape to each point
+     * @param stopSequences  the stop sequences of the trips following the shape, sorted
+     * @param stopOffsetsKm  the distance along the shape to each stop, by index into stopSequences
+     */
+    private record IndexedShape(ShapeCoordinates coordinates, double[] cumulativeKm, int[] stopSequences,
+                                double[] stopOffsetsKm) {
+    }
+
+    /**
+     * Collects shape points and stops, each expected grouped by shape and in sequence order (as read ordered from the
+     * db). Stops are projected onto their shape on build.
+     */
+    public static class Builder {
+        /**
+         * How far along the shape a stop is searched for, from the stop before it
+         */
+        static final double MAX_STOP_GAP_KM = 5;
+        /**
+         * How far from the shape a stop may be, and still be matched to it
+         */
+        static final double MAX_STOP_DISTANCE_KM = 0.15;
+        private static final double KM_PER_DEGREE = 111.195;
+        private static final double MAX_STOP_DISTANCE_SQUARED =
+                Math.pow(MAX_STOP_DISTANCE_KM / KM_PER_DEGREE, 2);
+        private final Map<String, PointsBuilder> pointsByShape = new HashMap<>();
+        private final Map<String, Map<Integer, StopPoint>> stopsByShape = new HashMap<>();
+        /**
+         * Stop sequences of a shape which belong to different stops on different trips, and so can't be indexed
+         */
+        private final Map<String, Set<Integer>> ambiguousByShape = new HashMap<>();
+
+        public Builder addShapePoint(String shapeId, double lat, double lon) {
+            pointsByShape.computeIfAbsent(shapeId, k -> new PointsBuilder()).add(lat, lon);
+            return this;
+        }
+
+        public Builder addStop(String shapeId, int stopSequence, String stopId, double lat, double lon) {
+            var stops = stopsByShape.computeIfAbsent(shapeId, k -> new TreeMap<>());
+            StopPoint existing = stops.putIfAbsent(stopSequence, new StopPoint(stopId, lat, lon));
+            if (existing != null && !existing.stopId().equals(stopId)) {
+                ambiguousByShape.computeIfAbsent(shapeId, k -> new HashSet<>()).add(stopSequence);
+            }
+            return this;
+        }
+
+        public ShapeIndex build() {
+            Map<String, IndexedShape> shapes = new HashMap<>();
+            pointsByShape.forEach((shapeId, points) -> {
+                if (points.size == 0) {
+                    return;
+                }
+                var stops = new TreeMap<>(stopsByShape.getOrDefault(shapeId, Map.of()));
+                stops.keySet().removeAll(ambiguousByShape.getOrDefault(shapeId, Set.of()));
+                shapes.put(shapeId, index(points.build(), stops));
+            });
+            return new ShapeIndex(shapes);
+        }
+
+        private static IndexedShape index(ShapeCoordinates coordinates, SortedMap<Integer, StopPoint> stops) {
+            int size = coordinates.size();
+            double[] lats = coordinates.lats();
+            double[] lons = coordinates.lons();
+            double[] cumulativeKm = new double[size];
+            for (int i = 1; i < size; i++) {
+                cumulativeKm[i] = cumulativeKm[i - 1] + haversineKm(lats[i - 1], lons[i - 1], lats[i], lons[i]);
+            }
+            int[] stopSequences = new int[stops.size()];
+            double[] stopOffsetsKm = new double[stops.size()];
+            //a shape spans a few kilometers, so distances are compared on a plane scaled to the shape's latitude
+            double lonScale = Math.cos(Math.toRadians(lats[0]));
+            int previous = 0;
+            int i = 0;
+            for (var stop : stops.entrySet()) {
+                //stops run along the shape in sequence order, so each is matched at or after the one before it
+                int closest = closestPointFrom(previous, lats, lons, cumulativeKm, stop.getValue(), lonScale);
+                if (closest < 0) {
+                    continue;
+                }
+                previous = closest;
+                stopSequences[i] = stop.getKey();
+                stopOffsetsKm[i] = cumulativeKm[previous];
+                i++;
+            }
+            return new IndexedShape(coordinates, cumulativeKm, Arrays.copyOf(stopSequences, i),
+                    Arrays.copyOf(stopOffsetsKm, i));
+        }
+
+        /**
+         * Only the first pass of the shape by stop is considered, so a loop or out and back shape which passes the
+         * stop again later, maybe closer, does not pull it (and every stop after it) onto the wrong leg.
+         *
+         * @return the index of the point closest to stop, at or after start and within MAX_STOP_GAP_KM along the shape
+         * of it, during the first pass within MAX_STOP_DISTANCE_KM of stop. The lowest index of equally close points,
+         * or -1 if no point is close enough
+         */
+        private static int closestPointFrom(int start, double[] lats, double[] lons, double[] cumulativeKm,
+                                            StopPoint stop, double lonScale) {
+            double minDistance = Double.MAX_VALUE;
+            int closest = -1;
+            double maxKm = cumulativeKm[start] + MAX_STOP_GAP_KM;
+            for (int i = start; i < lats.length && cumulativeKm[i] <= maxKm; i++) {
+                double dLat = lats[i] - stop.lat();
+                double dLon = (lons[i] - stop.lon()) * lonScale;
+                double distance = dLat * dLat + dLon * dLon;
+                if (distance < minDistance) {
+                    minDistance = distance;
+                    closest = i;
+                } else if (minDistance <= MAX_STOP_DISTANCE_SQUARED && distance > MAX_STOP_DISTANCE_SQUARED) {
+                    break;
+                }
+            }
+            return minDistance <= MAX_STOP_DISTANCE_SQUARED ? closest : -1;
+        }
+
+        private record StopPoint(String stopId, double lat, double lon) {
+        }
+
+        private static class PointsBuilder {
+            private double[] lats = new double[64];
+            private double[] lons = new double[64];
+            private int size;
+
+            void add(double lat, double lon) {
+                if (size == lats.length) {
+                    lats = Arrays.copyOf(lats, size * 2);
+                    lons = Arrays.copyOf(lons, size * 2);
+                }
+                lats[size] = lat;
+                lons[size] = lon;
+                size++;
+            }
+
+            ShapeCoordinates build() {
+                return new ShapeCoordinates(Arrays.copyOf(lats, size), Arrays.copyOf(lons, size));
+            }
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package com.doug.projects.transitdelayservice.entity.transit;
+
+/**
+ * The size of a {@link ShapeIndex}
+ *
+ * @param estimatedBytes the memory held by the index's arrays
+ */
+public record ShapeIndexStats(int shapeCount, long pointCount, long estimatedBytes) {
+}
@@ -9,7 +9,10 @@ import java.util.List;
 @Data
 @Builder
 public class ShapeProperties {
-    private List<LngLatAlt> shapeId;
+    /**
+     * the segment's line, sliced out of the shape of its trip
+     */
+    private List<LngLatAlt> coordinates;
     private Double delay;
     private Integer count;
     private LngLatAlt fromStop;
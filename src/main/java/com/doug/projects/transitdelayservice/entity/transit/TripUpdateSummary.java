@@ -0,0 +1,85 @@
+package com.doug.projects.transitdelayservice.entity.transit;
+
+import com.google.transit.realtime.GtfsRealtime;
+import lombok.Getter;
+
+import static com.google.transit.realtime.GtfsRealtime.TripDescriptor.ScheduleRelationship.SCHEDULED;
+
+/**
+ * Everything we need from a TripUpdate, read in one walk over its StopTimeUpdates.
+ * <p>
+ * Meant to be reused: call {@link #read} once per TripUpdate, which overwrites the previous values, so that a whole
+ * feed can be analyzed without allocating per trip.
+ */
+@Getter
+public class TripUpdateSummary {
+    private String tripId;
+    /**
+     * Whether the trip is SCHEDULED, has a tripId, and has a SCHEDULED StopTimeUpdate
+     */
+    private boolean valid;
+    /**
+     * The first StopTimeUpdate with a SCHEDULED relationship, null if there is none
+     */
+    private GtfsRealtime.TripUpdate.StopTimeUpdate firstScheduled;
+    /**
+     * The delay sent in the feed, preferring the trip's delay, then the first departure delay, then the first arrival
+     * delay of any StopTimeUpdate. Only meaningful if {@link #hasFeedDelay}.
+     */
+    private int feedDelay;
+    private boolean hasFeedDelay;
+
+    /**
+     * Reads tripUpdate into this summary.
+     *
+     * @return {@link #isValid()}
+     */
+    public boolean read(GtfsRealtime.TripUpdate tripUpdate) {
+        GtfsRealtime.TripDescriptor trip = tripUpdate.getTrip();
+        tripId = trip.getTripId();
+        firstScheduled = null;
+        boolean hasDepartureDelay = false;
+        boolean hasArrivalDelay = false;
+        int departureDelay = 0;
+        int arrivalDelay = 0;
+        int count = tripUpdate.getStopTimeUpdateCount();
+        for (int i = 0; i < count; i++) {
+            GtfsRealtime.TripUpdate.StopTimeUpdate stopTimeUpdate = tripUpdate.getStopTimeUpdate(i);
+            if (firstScheduled == null && stopTimeUpdate.getScheduleRelationship() ==
+                    GtfsRealtime.TripUpdate.StopTimeUpdate.ScheduleRelationship.SCHEDULED) {
+                firstScheduled = stopTimeUpdate;
+            }
+            if (!hasDepartureDelay && stopTimeUpdate.getDeparture().hasDelay()) {
+                hasDepartureDelay = true;
+                departureDelay = stopTimeUpdate.getDeparture().getDelay();
+            }
+            if (!hasArrivalDelay && stopTimeUpdate.getArrival().hasDelay()) {
+                hasArrivalDelay = true;
+                arrivalDelay = stopTimeUpdate.getArrival().getDelay();
+            }
+        }
+        if (tripUpdate.hasDelay()) {
+            hasFeedDelay = true;
+            feedDelay = tripUpdate.getDelay();
+        } else {
+            hasFeedDelay = hasDepartureDelay || hasArrivalDelay;
+            feedDelay = hasDepartureDelay ? departureDelay : arrivalDelay;
+        }
+        valid = trip.getScheduleRelationship() == SCHEDULED && firstScheduled != null && trip.hasTripId();
+        return valid;
+    }
+
+    /**
+     * @return the stop sequence of {@link #getFirstScheduled()}
+     */
+    public int getStopSequence() {
+        return firstScheduled == null ? 0 : firstScheduled.getStopSequence();
+    }
+
+    /**
+     * @return the stopId of {@link #getFirstScheduled()}
+     */
+    public String getStopId() {
+        return firstScheduled == null ? null : firstScheduled.getStopId();
+    }
+}
@@ -0,0 +1,173 @@
+package com.doug.projects.transitdelayservice.repository;
+
+import com.doug.projects.transitdelayservice.entity.jpa.AgencyDelayHistogramBin;
+import com.doug.projects.transitdelayservice.entity.jpa.AgencyDelayRollup;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyTripDelayRepository;
+import com.doug.projects.transitdelayservice.util.DelayHistogram;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Types;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Adds each poll's persisted bus states to the delay rollups, with one upsert per (route, granularity, bucket), and
+ * to the delay histograms, with one upsert per histogram bin.
+ * <p>
+ * On PostgreSQL this is an <code>INSERT ... ON CONFLICT DO UPDATE</code>, elsewhere (H2) a <code>MERGE ... USING</code>.
+ */
+@Repository
+@Slf4j
+public class AgencyDelayRollupWriter {
+    private static final int ON_TIME_LOWER_SECONDS = AgencyDelayRollup.ON_TIME_LOWER_MINUTES * 60;
+    private static final int ON_TIME_UPPER_SECONDS = AgencyDelayRollup.ON_TIME_UPPER_MINUTES * 60;
+    private static final int[] TYPES = {Types.VARCHAR, Types.VARCHAR, Types.INTEGER, Types.BIGINT, Types.BIGINT,
+            Types.BIGINT, Types.INTEGER, Types.INTEGER, Types.BIGINT};
+    private static final String POSTGRES_UPSERT = """
+            INSERT INTO MPT.gtfs_delay_rollup (agency_id, route_name, granularity_seconds, bucket_start, sample_count, \
+            delay_sum_seconds, min_delay_seconds, max_delay_seconds, on_time_count) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?) \
+            ON CONFLICT (agency_id, route_name, granularity_seconds, bucket_start) DO UPDATE SET \
+            sample_count = gtfs_delay_rollup.sample_count + EXCLUDED.sample_count, \
+            delay_sum_seconds = gtfs_delay_rollup.delay_sum_seconds + EXCLUDED.delay_sum_seconds, \
+            min_delay_seconds = LEAST(gtfs_delay_rollup.min_delay_seconds, EXCLUDED.min_delay_seconds), \
+            max_delay_seconds = GREATEST(gtfs_delay_rollup.max_delay_seconds, EXCLUDED.max_delay_seconds), \
+            on_time_count = gtfs_delay_rollup.on_time_count + EXCLUDED.on_time_count""";
+    private static final String MERGE_UPSERT = """
+            MERGE INTO MPT.gtfs_delay_rollup r USING (VALUES (CAST(? AS VARCHAR), CAST(? AS VARCHAR), CAST(? AS INTEGER), \
+            CAST(? AS BIGINT), CAST(? AS BIGINT), CAST(? AS BIGINT), CAST(? AS INTEGER), CAST(? AS INTEGER), CAST(? AS BIGINT))) \
+            AS v(agency_id, route_name, granularity_seconds, bucket_start, sample_count, delay_sum_seconds, \
+            min_delay_seconds, max_delay_seconds, on_time_count) \
+            ON r.agency_id = v.agency_id AND r.route_name = v.route_name \
+            AND r.granularity_seconds = v.granularity_seconds AND r.bucket_start = v.bucket_start \
+            WHEN MATCHED THEN UPDATE SET \
+            sample_count = r.sample_count + v.sample_count, \
+            delay_sum_seconds = r.delay_sum_seconds + v.delay_sum_seconds, \
+            min_delay_seconds = LEAST(r.min_delay_seconds, v.min_delay_seconds), \
+            max_delay_seconds = GREATEST(r.max_delay_seconds, v.max_delay_seconds), \
+            on_time_count = r.on_time_count + v.on_time_count \
+            WHEN NOT MATCHED THEN INSERT (agency_id, route_name, granularity_seconds, bucket_start, sample_count, \
+            delay_sum_seconds, min_delay_seconds, max_delay_seconds, on_time_count) \
+            VALUES (v.agency_id, v.route_name, v.granularity_seconds, v.bucket_start, v.sample_count, \
+            v.delay_sum_seconds, v.min_delay_seconds, v.max_delay_seconds, v.on_time_count)""";
+    private static final int[] HISTOGRAM_TYPES = {Types.VARCHAR, Types.VARCHAR, Types.INTEGER, Types.BIGINT,
+            Types.INTEGER, Types.BIGINT};
+    private static final String POSTGRES_HISTOGRAM_UPSERT = """
+            INSERT INTO MPT.gtfs_delay_rollup_histogram (agency_id, route_name, granularity_seconds, bucket_start, bin, \
+            sample_count) VALUES (?, ?, ?, ?, ?, ?) \
+            ON CONFLICT (agency_id, route_name, granularity_seconds, bucket_start, bin) DO UPDATE SET \
+            sample_count = gtfs_delay_rollup_histogram.sample_count + EXCLUDED.sample_count""";
+    private static final String MERGE_HISTOGRAM_UPSERT = """
+            MERGE INTO MPT.gtfs_delay_rollup_histogram h USING (VALUES (CAST(? AS VARCHAR), CAST(? AS VARCHAR), \
+            CAST(? AS INTEGER), CAST(? AS BIGINT), CAST(? AS INTEGER), CAST(? AS BIGINT))) \
+            AS v(agency_id, route_name, granularity_seconds, bucket_start, bin, sample_count) \
+            ON h.agency_id = v.agency_id AND h.route_name = v.route_name \
+            AND h.granularity_seconds = v.granularity_seconds AND h.bucket_start = v.bucket_start AND h.bin = v.bin \
+            WHEN MATCHED THEN UPDATE SET sample_count = h.sample_count + v.sample_count \
+            WHEN NOT MATCHED THEN INSERT (agency_id, route_name, granularity_seconds, bucket_start, bin, sample_count) \
+            VALUES (v.agency_id, v.route_name, v.granularity_seconds, v.bucket_start, v.bin, v.sample_count)""";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final AgencyTripDelayRepository agencyTripDelayRepository;
+    /**
+     * The latest poll rolled up for each feed, so a poll which is persisted twice isn't counted twice
+     */
+    private final Map<String, Long> lastRolledUpByFeed = new ConcurrentHashMap<>();
+    private volatile Boolean postgres;
+
+    public AgencyDelayRollupWriter(JdbcTemplate jdbcTemplate, AgencyTripDelayRepository agencyTripDelayRepository) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.agencyTripDelayRepository = agencyTripDelayRepository;
+    }
+
+    /**
+     * Claims the poll at timestamp for rolling up. Must be called before the poll's trip delays are written.
+     *
+     * @return false if this poll (or a later one) of the feed was already claimed, and should not be rolled up again
+     */
+    public boolean claim(String agencyId, long timestamp) {
+        var claimed = new boolean[1];
+        lastRolledUpByFeed.compute(agencyId, (k, last) -> {
+            if (last == null) {
+                //first poll since startup, compare against what was persisted before
+                last = agencyTripDelayRepository.findMaxTimestampByAgencyId(agencyId);
+            }
+            claimed[0] = last == null || timestamp > last;
+            return claimed[0] ? timestamp : last;
+        });
+        return claimed[0];
+    }
+
+    /**
+     * Adds the delays to the rollups (and histograms) of their route and bucket. Null delays are skipped, as graphs do.
+     */
+    public void write(String agencyId, List<RouteDelay> delays) {
+        Map<RollupKey, long[]> rollups = new HashMap<>();
+        Map<HistogramBinKey, long[]> histogramBins = new HashMap<>();
+        for (RouteDelay delay : delays) {
+            if (delay.delaySeconds() == null || delay.routeName() == null) {
+                continue;
+            }
+            int delaySeconds = delay.delaySeconds();
+            for (int granularity : AgencyDelayRollup.GRANULARITIES_SECONDS) {
+                long bucketStart = Math.floorDiv(delay.timestamp(), granularity) * granularity;
+                long[] rollup = rollups.computeIfAbsent(new RollupKey(delay.routeName(), granularity, bucketStart),
+                        k -> new long[]{0, 0, Integer.MAX_VALUE, Integer.MIN_VALUE, 0});
+                rollup[0]++;
+                rollup[1] += delaySeconds;
+                rollup[2] = Math.min(rollup[2], delaySeconds);
+                rollup[3] = Math.max(rollup[3], delaySeconds);
+                if (delaySeconds >= ON_TIME_LOWER_SECONDS && delaySeconds <= ON_TIME_UPPER_SECONDS) {
+                    rollup[4]++;
+                }
+            }
+            int bin = DelayHistogram.binOf(delaySeconds);
+            for (int granularity : AgencyDelayHistogramBin.GRANULARITIES_SECONDS) {
+                long bucketStart = Math.floorDiv(delay.timestamp(), granularity) * granularity;
+                histogramBins.computeIfAbsent(new HistogramBinKey(delay.routeName(), granularity, bucketStart, bin),
+                        k -> new long[1])[0]++;
+            }
+        }
+        if (rollups.isEmpty()) {
+            return;
+        }
+        List<Object[]> args = new ArrayList<>(rollups.size());
+        rollups.forEach((key, rollup) -> args.add(new Object[]{agencyId, key.routeName(), key.granularitySeconds(),
+                key.bucketStart(), rollup[0], rollup[1], (int) rollup[2], (int) rollup[3], rollup[4]}));
+        try {
+            jdbcTemplate.batchUpdate(isPostgres() ? POSTGRES_UPSERT : MERGE_UPSERT, args, TYPES);
+        } catch (Exception e) {
+            log.error("Failed to write {} delay rollups for feed {}", args.size(), agencyId, e);
+        }
+        List<Object[]> binArgs = new ArrayList<>(histogramBins.size());
+        histogramBins.forEach((key, count) -> binArgs.add(new Object[]{agencyId, key.routeName(),
+                key.granularitySeconds(), key.bucketStart(), key.bin(), count[0]}));
+        try {
+            jdbcTemplate.batchUpdate(isPostgres() ? POSTGRES_HISTOGRAM_UPSERT : MERGE_HISTOGRAM_UPSERT, binArgs, HISTOGRAM_TYPES);
+        } catch (Exception e) {
+            log.error("Failed to write {} delay histogram bins for feed {}", binArgs.size(), agencyId, e);
+        }
+    }
+
+    private boolean isPostgres() {
+        if (postgres == null) {
+            postgres = jdbcTemplate.execute((ConnectionCallback<Boolean>) connection ->
+                    "PostgreSQL".equalsIgnoreCase(connection.getMetaData().getDatabaseProductName()));
+        }
+        return Boolean.TRUE.equals(postgres);
+    }
+
+    /**
+     * A delay as persisted. The trip and stop are only kept by {@link RecentDelayStore}
+     */
+    public record RouteDelay(String routeName, long timestamp, Integer delaySeconds, String tripId, String stopId) {
+    }
+
+    private record RollupKey(String routeName, int granularitySeconds, long bucketStart) {
+    }
+
+    private record HistogramBinKey(String routeName, int granularitySeconds, long bucketStart, int bin) {
+    }
+}
@@ -2,30 +2,60 @@ package com.doug.projects.transitdelayservice.repository;
 
 import com.doug.projects.transitdelayservice.entity.AgencyRouteTimestamp;
 import com.doug.projects.transitdelayservice.entity.BusState;
+import com.doug.projects.transitdelayservice.entity.jpa.AgencyRealtimePoll;
+import com.doug.projects.transitdelayservice.entity.jpa.AgencyRealtimePollId;
 import com.doug.projects.transitdelayservice.entity.jpa.AgencyStopId;
 import com.doug.projects.transitdelayservice.entity.jpa.AgencyTripDelay;
+import com.doug.projects.transitdelayservice.repository.AgencyDelayRollupWriter.RouteDelay;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyRealtimePollRepository;
 import com.doug.projects.transitdelayservice.repository.jpa.AgencyStopRepository;
 import com.doug.projects.transitdelayservice.repository.jpa.AgencyTripDelayDto;
 import com.doug.projects.transitdelayservice.repository.jpa.AgencyTripDelayRepository;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Repository
 @Slf4j
 @RequiredArgsConstructor
 public class AgencyRouteTimestampRepository {
+    private static final int UPDATE_CHUNK_SIZE = 1000;
 
     private final AgencyStopRepository agencyStopRepository;
     private final AgencyTripDelayRepository agencyTripDelayRepository;
+    private final AgencyTripDelayBulkWriter agencyTripDelayBulkWriter;
+    private final AgencyRealtimePollRepository agencyRealtimePollRepository;
+    private final AgencyDelayRollupWriter agencyDelayRollupWriter;
+    private final RecentDelayStore recentDelayStore;
+    private final SegmentDelayRollupWriter segmentDelayRollupWriter;
+    /**
+     * The state of each trip's open row, by feed. Only used in delta mode
+     */
+    private final Map<String, FeedBusStates> lastKnownStatesByFeed = new ConcurrentHashMap<>();
+    @Value("${realtime.deltaMode.enabled}")
+    private boolean deltaMode;
+    @Value("${realtime.deltaMode.delayToleranceSeconds}")
+    private int delayToleranceSeconds;
+    @Value("${realtime.deltaMode.maxSpanSeconds}")
+    private long maxSpanSeconds;
 
     /**
-     * Writes all items in data to table synchronously.
+     * Writes all items in data to table synchronously, in bulk. Rows which were already written are skipped.
+     * <p>
+     * In delta mode, a trip whose stop is the same and whose delay is within the tolerance of its last written row is
+     * not written at all. Its row stays open, and reads extend it to this poll.
+     * <p>
+     * The rows written (or extended) are then added to the delay rollups, the segment delay rollups and the
+     * {@link RecentDelayStore}, unless this poll was already rolled up.
      *
      * @param data the data to save
      * @param agencyId
@@ -48,54 +78,335 @@ public class AgencyRouteTimestampRepository {
             log.error("Failed to pull stopIds {}", missingStopIds);
         }
 
-        var entities = data.stream()
-                .flatMap(rt ->
-                        rt.getBusStatesCopyList().stream()
-                                .filter(busState -> dbStopIds.contains(busState.getClosestStopId()))
-                                .map(busState ->
-                                        AgencyTripDelay.builder()
-                                                .tripId(busState.getTripId())
-                                                .agencyId(agencyId)
-                                                .stopId(busState.getClosestStopId())
-                                                .timestamp(rt.getTimestamp())
-                                                .delaySeconds(busState.getDelay())
-                                                .build()
-
-                                )
-                ).toList();
-        for (AgencyTripDelay entity : entities) {
+        if (data.isEmpty()) {
+            return;
+        }
+        boolean rollUp = agencyDelayRollupWriter.claim(agencyId, data.get(0).getTimestamp());
+        List<RouteDelay> persisted = new ArrayList<>();
+        if (!deltaMode || !saveDelta(data, agencyId, dbStopIds, persisted)) {
+            saveFull(data, agencyId, dbStopIds, persisted);
+        }
+        if (rollUp) {
+            agencyDelayRollupWriter.write(agencyId, persisted);
+            segmentDelayRollupWriter.write(agencyId, persisted);
+            recentDelayStore.add(agencyId, persisted);
+        }
+    }
+
+    private void saveFull(List<AgencyRouteTimestamp> data, String agencyId, Set<String> dbStopIds, List<RouteDelay> persisted) {
+        List<AgencyTripDelay> entities = new ArrayList<>();
+        List<String> routeNames = new ArrayList<>();
+        for (AgencyRouteTimestamp rt : data) {
+            for (BusState busState : rt.getBusStatesCopyList()) {
+                if (dbStopIds.contains(busState.getClosestStopId())) {
+                    entities.add(toEntity(busState, agencyId, rt.getTimestamp(), null));
+                    routeNames.add(rt.getRouteName());
+                }
+            }
+        }
+        var failed = agencyTripDelayBulkWriter.insertIgnoringDuplicates(entities);
+        for (int i = 0; i < entities.size(); i++) {
+            if (!failed.get(i)) {
+                var row = entities.get(i);
+                persisted.add(new RouteDelay(routeNames.get(i), row.getTimestamp(), row.getDelaySeconds(), row.getTripId(), row.getStopId()));
+            }
+        }
+        log.info("Saving {} tripDelays", entities.size() - failed.cardinality());
+    }
+
+    private static AgencyTripDelay toEntity(BusState busState, String agencyId, long timestamp, Long lastSeenTimestamp) {
+        return AgencyTripDelay.builder()
+                .tripId(busState.getTripId())
+                .agencyId(agencyId)
+                .stopId(busState.getClosestStopId())
+                .timestamp(timestamp)
+                .delaySeconds(busState.getDelay())
+                .lastSeenTimestamp(lastSeenTimestamp)
+                .build();
+    }
+
+    /**
+     * Only writes trips whose state changed: their previous row is closed at the last poll it was seen at, and a new
+     * open row is inserted. Unchanged trips are not written at all, their open rows extend to this poll once it is
+     * recorded in gtfs_realtime_poll. Rows of trips which left the feed are closed too.
+     *
+     * @param persisted collects the delays of this poll's trips which were written or extended, as reads will see them
+     * @return false if data is older than the last snapshot written for agencyId, and must be written in full
+     */
+    private boolean saveDelta(List<AgencyRouteTimestamp> data, String agencyId, Set<String> dbStopIds,
+                              List<RouteDelay> persisted) {
+        FeedBusStates states = lastKnownStatesByFeed.computeIfAbsent(agencyId, k -> new FeedBusStates());
+        //snapshots of the same feed may be persisted concurrently, and each depends on the one before it
+        synchronized (states) {
+            long timestamp = data.get(0).getTimestamp();
+            if (timestamp <= states.lastPollTimestamp) {
+                log.error("Feed {} snapshot {} is older than {}, writing it in full", agencyId, timestamp, states.lastPollTimestamp);
+                return false;
+            }
+            if (states.lastPollTimestamp == 0) {
+                closeOrphanedRows(agencyId);
+            }
+            Map<String, LastKnownState> nextStates = new HashMap<>();
+            List<String> closedTripIds = new ArrayList<>();
+            List<AgencyTripDelay> changed = new ArrayList<>();
+            List<String> changedRouteNames = new ArrayList<>();
+            int unchanged = 0;
+            for (AgencyRouteTimestamp rt : data) {
+                for (BusState busState : rt.getBusStatesCopyList()) {
+                    if (!dbStopIds.contains(busState.getClosestStopId())) {
+                        continue;
+                    }
+                    LastKnownState previous = states.byTripId.get(busState.getTripId());
+                    if (isUnchanged(previous, busState, timestamp)) {
+                        //reads see the delay of the open row, not the one in this poll
+                        persisted.add(new RouteDelay(rt.getRouteName(), timestamp, previous.delaySeconds(),
+                                busState.getTripId(), previous.stopId()));
+                        nextStates.put(busState.getTripId(), previous);
+                        unchanged++;
+                    } else {
+                        changed.add(toEntity(busState, agencyId, timestamp, AgencyTripDelay.OPEN_LAST_SEEN_TIMESTAMP));
+                        changedRouteNames.add(rt.getRouteName());
+                    }
+                }
+            }
+            for (String tripId : states.byTripId.keySet()) {
+                if (!nextStates.containsKey(tripId)) {
+                    closedTripIds.add(tripId);
+                }
+            }
+            Set<String> notClosed = closeRows(agencyId, closedTripIds, states.lastPollTimestamp);
+            List<AgencyTripDelay> inserted = new ArrayList<>(changed.size());
+            List<String> insertedRouteNames = new ArrayList<>(changed.size());
+            for (int i = 0; i < changed.size(); i++) {
+                var row = changed.get(i);
+                LastKnownState previous = states.byTripId.get(row.getTripId());
+                if (previous != null && notClosed.contains(row.getTripId())) {
+                    //the previous row is still open, so keep reading the trip from it rather than from two rows
+                    persisted.add(new RouteDelay(changedRouteNames.get(i), timestamp, previous.delaySeconds(),
+                            row.getTripId(), previous.stopId()));
+                    nextStates.put(row.getTripId(), previous);
+                    unchanged++;
+                } else {
+                    inserted.add(row);
+                    insertedRouteNames.add(changedRouteNames.get(i));
+                }
+            }
+            var failed = agencyTripDelayBulkWriter.insertIgnoringDuplicates(inserted);
+            for (int i = 0; i < inserted.size(); i++) {
+                if (!failed.get(i)) {
+                    var row = inserted.get(i);
+                    nextStates.put(row.getTripId(), new LastKnownState(timestamp, row.getStopId(), row.getDelaySeconds()));
+                    persisted.add(new RouteDelay(insertedRouteNames.get(i), timestamp, row.getDelaySeconds(), row.getTripId(), row.getStopId()));
+                }
+            }
+            //recorded last, so open rows are only extended to this poll once the changed trips' rows are closed
+            agencyRealtimePollRepository.save(new AgencyRealtimePoll(new AgencyRealtimePollId(agencyId, timestamp)));
+            states.byTripId = nextStates;
+            states.lastPollTimestamp = timestamp;
+            log.info("Saving {} tripDelays, {} unchanged, {} closed", inserted.size() - failed.cardinality(), unchanged,
+                    closedTripIds.size() - notClosed.size());
+            return true;
+        }
+    }
+
+    /**
+     * Closes the open rows of tripIds at lastSeenTimestamp, in chunks.
+     *
+     * @return the tripIds whose rows could not be closed
+     */
+    private Set<String> closeRows(String agencyId, List<String> tripIds, long lastSeenTimestamp) {
+        Set<String> notClosed = new HashSet<>();
+        for (int i = 0; i < tripIds.size(); i += UPDATE_CHUNK_SIZE) {
+            var chunk = tripIds.subList(i, Math.min(i + UPDATE_CHUNK_SIZE, tripIds.size()));
             try {
-                agencyTripDelayRepository.save(entity);
+                agencyTripDelayRepository.closeOpenRows(agencyId, chunk, lastSeenTimestamp - maxSpanSeconds, lastSeenTimestamp);
             } catch (Exception e) {
-                log.error("Failed to save w/ e", e);
+                log.error("Failed to close {} open tripDelay rows of feed {}", chunk.size(), agencyId, e);
+                notClosed.addAll(chunk);
             }
         }
-        log.info("Saving {} tripDelays", entities.size());
+        return notClosed;
+    }
+
+    /**
+     * Closes rows left open by a previous run, whose trips' states were not kept, at the last poll that run recorded.
+     */
+    private void closeOrphanedRows(String agencyId) {
+        Long lastPoll = agencyRealtimePollRepository.findMaxTimestampByAgencyId(agencyId);
+        if (lastPoll != null) {
+            int closed = agencyTripDelayRepository.closeAllOpenRows(agencyId, lastPoll);
+            log.info("Closed {} tripDelay rows of feed {} left open at {}", closed, agencyId, lastPoll);
+        }
+    }
+
+    /**
+     * A trip is unchanged if its row was seen last poll (previous is not null) with the same stop and a delay within tolerance, and the row
+     * has not yet spanned maxSpanSeconds. The span limit bounds how far back a read has to look for open rows.
+     */
+    private boolean isUnchanged(LastKnownState previous, BusState busState, long timestamp) {
+        return previous != null &&
+                Objects.equals(previous.stopId(), busState.getClosestStopId()) &&
+                previous.delaySeconds() != null && busState.getDelay() != null &&
+                Math.abs(previous.delaySeconds() - busState.getDelay()) <= delayToleranceSeconds &&
+                timestamp - previous.rowTimestamp() < maxSpanSeconds;
     }
 
     public List<AgencyRouteTimestamp> getRouteTimestampsBy(long startTime, long endTime, List<String> routeNames, String feedId) {
+        if (recentDelayStore.covers(feedId, startTime)) {
+            return getRecentRouteTimestampsBy(startTime, endTime, routeNames, feedId);
+        }
+        var delays = agencyTripDelayRepository.findDelayRecordsForRoutesAndTimeRange(feedId, routeNames,
+                startTime - maxSpanSeconds, startTime, endTime);
+        long[] pollTimestamps = delays.stream().anyMatch(AgencyRouteTimestampRepository::spansPolls) ?
+                agencyRealtimePollRepository.findTimestampsByAgencyIdAndTimestampBetween(feedId, startTime, endTime)
+                        .stream()
+                        .mapToLong(Long::longValue)
+                        .toArray() :
+                new long[0];
 
-        var delayByRouteName = agencyTripDelayRepository.findDelayRecordsForRoutesAndTimeRange(feedId, routeNames, startTime, endTime)
-                .stream()
-                .collect(Collectors.groupingBy(AgencyTripDelayDto::routeName,
-                        Collectors.groupingBy(AgencyTripDelayDto::timestamp)));
+        Map<String, Map<Long, List<BusState>>> delayByRouteName = new HashMap<>();
+        for (AgencyTripDelayDto delay : delays) {
+            var busState = BusState.builder()
+                    .delay(delay.delaySeconds())
+                    .closestStopId(delay.stopId())
+                    .tripId(delay.tripId())
+                    .build();
+            var byTimestamp = delayByRouteName.computeIfAbsent(delay.routeName(), k -> new HashMap<>());
+            if (delay.timestamp() >= startTime) {
+                byTimestamp.computeIfAbsent(delay.timestamp(), k -> new ArrayList<>()).add(busState);
+            }
+            if (spansPolls(delay)) {
+                //expand the row out to every poll it was still seen at
+                int i = Arrays.binarySearch(pollTimestamps, delay.timestamp() + 1);
+                for (i = i < 0 ? -i - 1 : i; i < pollTimestamps.length && isSeenAt(delay, pollTimestamps[i]); i++) {
+                    byTimestamp.computeIfAbsent(pollTimestamps[i], k -> new ArrayList<>()).add(busState);
+                }
+            }
+        }
         List<AgencyRouteTimestamp> routeTimestamps = new ArrayList<>();
         delayByRouteName.forEach((name, map) -> {
-            map.forEach((timestamp, delays) -> {
+            map.forEach((timestamp, busStates) -> {
                 var routeTimestamp = new AgencyRouteTimestamp();
                 routeTimestamp.setTimestamp(timestamp);
                 routeTimestamp.setAgencyRoute(feedId, name);
-                var busStates = delays.stream()
-                        .map(delay -> BusState.builder()
-                                .delay(delay.delaySeconds())
-                                .closestStopId(delay.stopId())
-                                .tripId(delay.tripId())
-                                .build())
-                        .toList();
                 routeTimestamp.setBusStates(busStates);
                 routeTimestamps.add(routeTimestamp);
             });
         });
         return routeTimestamps;
     }
+
+    private List<AgencyRouteTimestamp> getRecentRouteTimestampsBy(long startTime, long endTime, List<String> routeNames, String feedId) {
+        Map<String, Map<Long, List<BusState>>> delayByRouteName = new HashMap<>();
+        recentDelayStore.forEach(feedId, startTime, endTime, routeNames, (routeName, timestamp, delaySeconds, tripId, stopId) ->
+                delayByRouteName.computeIfAbsent(routeName, k -> new HashMap<>())
+                        .computeIfAbsent(timestamp, k -> new ArrayList<>())
+                        .add(BusState.builder()
+                                .delay(delaySeconds)
+                                .closestStopId(stopId)
+                                .tripId(tripId)
+                                .build()));
+        List<AgencyRouteTimestamp> routeTimestamps = new ArrayList<>();
+        delayByRouteName.forEach((name, map) -> map.forEach((timestamp, busStates) -> {
+            var routeTimestamp = new AgencyRouteTimestamp();
+            routeTimestamp.setTimestamp(timestamp);
+            routeTimestamp.setAgencyRoute(feedId, name);
+            routeTimestamp.setBusStates(busStates);
+            routeTimestamps.add(routeTimestamp);
+        }));
+        return routeTimestamps;
+    }
+
+    /**
+     * @return true if reads of feedId from startTime on are served from the {@link RecentDelayStore}, not the db
+     */
+    public boolean isServedFromMemory(String feedId, long startTime) {
+        return recentDelayStore.covers(feedId, startTime);
+    }
+
+    /**
+     * Streams each delay between startTime and endTime to consumer, without holding the rows in memory. Delta mode
+     * rows are passed once for each poll they were seen at, as {@link #getRouteTimestampsBy} expands them.
+     */
+    @Transactional(readOnly = true)
+    public void streamDelaysBy(long startTime, long endTime, List<String> routeNames, String feedId, DelayConsumer consumer) {
+        if (recentDelayStore.covers(feedId, startTime)) {
+            recentDelayStore.forEach(feedId, startTime, endTime, routeNames, (routeName, timestamp, delaySeconds, tripId, stopId) ->
+                    consumer.accept(routeName, timestamp, delaySeconds));
+            return;
+        }
+        try (Stream<AgencyTripDelayDto> delays = agencyTripDelayRepository.streamDelayRecordsForRoutesAndTimeRange(feedId,
+                routeNames, startTime - maxSpanSeconds, startTime, endTime)) {
+            expand(delays, startTime, endTime, feedId, (delay, timestamp) ->
+                    consumer.accept(delay.routeName(), timestamp, delay.delaySeconds()));
+        }
+    }
+
+    /**
+     * Fills in feedId's window of the {@link RecentDelayStore} from the db, expanding delta mode rows as reads do.
+     */
+    @Transactional(readOnly = true)
+    public void loadRecentDelays(String feedId) {
+        var load = recentDelayStore.startLoad(feedId);
+        long startTime = load.getStartTime();
+        long endTime = Instant.now().getEpochSecond();
+        try (Stream<AgencyTripDelayDto> delays = agencyTripDelayRepository.streamDelayRecordsForTimeRange(feedId,
+                startTime - maxSpanSeconds, startTime, endTime)) {
+            expand(delays, startTime, endTime, feedId, (delay, timestamp) ->
+                    load.add(delay.routeName(), timestamp, delay.delaySeconds(), delay.tripId(), delay.stopId()));
+        }
+        load.finish();
+    }
+
+    /**
+     * Passes each row to consumer at its timestamp if it is at or after startTime, then at each later poll it was seen at
+     */
+    private void expand(Stream<AgencyTripDelayDto> delays, long startTime, long endTime, String feedId,
+                        BiConsumer<AgencyTripDelayDto, Long> consumer) {
+        long[][] pollTimestamps = new long[1][];
+        delays.forEach(delay -> {
+            if (delay.timestamp() >= startTime) {
+                consumer.accept(delay, delay.timestamp());
+            }
+            if (!spansPolls(delay)) {
+                return;
+            }
+            if (pollTimestamps[0] == null) {
+                pollTimestamps[0] = agencyRealtimePollRepository.findTimestampsByAgencyIdAndTimestampBetween(feedId, startTime, endTime)
+                        .stream()
+                        .mapToLong(Long::longValue)
+                        .toArray();
+            }
+            long[] polls = pollTimestamps[0];
+            int i = Arrays.binarySearch(polls, delay.timestamp() + 1);
+            for (i = i < 0 ? -i - 1 : i; i < polls.length && isSeenAt(delay, polls[i]); i++) {
+                consumer.accept(delay, polls[i]);
+            }
+        });
+    }
+
+    private static boolean spansPolls(AgencyTripDelayDto delay) {
+        return delay.lastSeenTimestamp() != null && delay.lastSeenTimestamp() > delay.timestamp();
+    }
+
+    /**
+     * @return true if a row spanning polls was still seen at pollTimestamp. Open rows extend to every poll within
+     * maxSpanSeconds of their timestamp
+     */
+    private boolean isSeenAt(AgencyTripDelayDto delay, long pollTimestamp) {
+        return pollTimestamp <= delay.lastSeenTimestamp() && pollTimestamp - delay.timestamp() < maxSpanSeconds;
+    }
+
+    @FunctionalInterface
+    public interface DelayConsumer {
+        void accept(String routeName, long timestamp, Integer delaySeconds);
+    }
+
+    private record LastKnownState(long rowTimestamp, String stopId, Integer delaySeconds) {
+    }
+
+    private static class FeedBusStates {
+        private Map<String, LastKnownState> byTripId = new HashMap<>();
+        private long lastPollTimestamp;
+    }
 }
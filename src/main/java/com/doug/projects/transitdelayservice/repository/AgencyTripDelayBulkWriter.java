@@ -0,0 +1,138 @@
+package com.doug.projects.transitdelayservice.repository;
+
+import com.doug.projects.transitdelayservice.entity.jpa.AgencyTripDelay;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Writes AgencyTripDelay rows with one round trip per chunk, rather than one insert per entity. Hibernate
+ * can't batch those inserts, since the id is generated by the db.
+ * <p>
+ * On PostgreSQL this is a multi-row <code>INSERT ... ON CONFLICT DO NOTHING RETURNING</code> against the
+ * trip/agency/timestamp unique key, elsewhere (H2) a JDBC batch of insert-only <code>MERGE ... WHEN NOT MATCHED</code>
+ * on the same columns. Either way, a row which already exists is left as it is and reported as not written.
+ */
+@Repository
+@Slf4j
+public class AgencyTripDelayBulkWriter {
+    private static final String COLUMNS = "(trip_id, agency_id, timestamp, stop_id, delay_seconds, last_seen_timestamp)";
+    private static final String ROW_PLACEHOLDER = "(?, ?, ?, ?, ?, ?)";
+    private static final String H2_INSERT = """
+            MERGE INTO MPT.gtfs_trip_delay t
+            USING (VALUES (CAST(? AS VARCHAR), CAST(? AS VARCHAR), CAST(? AS BIGINT), CAST(? AS VARCHAR), CAST(? AS INTEGER),
+                CAST(? AS BIGINT))) AS s (trip_id, agency_id, timestamp, stop_id, delay_seconds, last_seen_timestamp)
+            ON t.trip_id = s.trip_id AND t.agency_id = s.agency_id AND t.timestamp = s.timestamp
+            WHEN NOT MATCHED THEN INSERT (trip_id, agency_id, timestamp, stop_id, delay_seconds, last_seen_timestamp)
+            VALUES (s.trip_id, s.agency_id, s.timestamp, s.stop_id, s.delay_seconds, s.last_seen_timestamp)""";
+    private static final int[] TYPES = {Types.VARCHAR, Types.VARCHAR, Types.BIGINT, Types.VARCHAR, Types.INTEGER, Types.BIGINT};
+    /**
+     * Rows per statement. Keeps the bind parameter count well under PostgreSQL's limit of 65535
+     */
+    private static final int CHUNK_SIZE = 1000;
+
+    private final JdbcTemplate jdbcTemplate;
+    private volatile Boolean postgres;
+
+    public AgencyTripDelayBulkWriter(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Inserts delays, skipping any which already exist. If a chunk fails (e.g. a trip missing from the static data
+     * breaks a foreign key), its rows are retried one at a time so the rest of the chunk is still written.
+     *
+     * @return the indexes of delays which were not written, because they failed or already existed
+     */
+    public BitSet insertIgnoringDuplicates(List<AgencyTripDelay> delays) {
+        BitSet notWritten = new BitSet();
+        for (int start = 0; start < delays.size(); start += CHUNK_SIZE) {
+            var chunk = delays.subList(start, Math.min(start + CHUNK_SIZE, delays.size()));
+            try {
+                BitSet skipped = insert(chunk);
+                for (int i = skipped.nextSetBit(0); i >= 0; i = skipped.nextSetBit(i + 1)) {
+                    notWritten.set(start + i);
+                }
+            } catch (Exception e) {
+                log.error("Failed to bulk write {} tripDelays, writing them one at a time", chunk.size(), e);
+                for (int i = 0; i < chunk.size(); i++) {
+                    try {
+                        if (!insert(Collections.singletonList(chunk.get(i))).isEmpty()) {
+                            notWritten.set(start + i);
+                        }
+                    } catch (Exception rowException) {
+                        log.error("Failed to save {} w/ e", chunk.get(i), rowException);
+                        notWritten.set(start + i);
+                    }
+                }
+            }
+        }
+        int skipped = notWritten.cardinality();
+        if (skipped > 0) {
+            log.info("Skipped {} of {} tripDelays which failed or were already written", skipped, delays.size());
+        }
+        return notWritten;
+    }
+
+    /**
+     * @return the indexes of rows which already existed, and were skipped
+     */
+    private BitSet insert(List<AgencyTripDelay> rows) {
+        BitSet skipped = new BitSet();
+        if (!isPostgres()) {
+            int[] counts = jdbcTemplate.batchUpdate(H2_INSERT, rows.stream().map(AgencyTripDelayBulkWriter::toArgs).toList(), TYPES);
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] == 0) {
+                    skipped.set(i);
+                }
+            }
+            return skipped;
+        }
+        String values = String.join(", ", Collections.nCopies(rows.size(), ROW_PLACEHOLDER));
+        List<Object> args = new ArrayList<>(rows.size() * TYPES.length);
+        int[] types = new int[rows.size() * TYPES.length];
+        for (int i = 0; i < rows.size(); i++) {
+            args.addAll(Arrays.asList(toArgs(rows.get(i))));
+            System.arraycopy(TYPES, 0, types, i * TYPES.length, TYPES.length);
+        }
+        Set<RowKey> inserted = new HashSet<>(jdbcTemplate.query("INSERT INTO MPT.gtfs_trip_delay " + COLUMNS + " VALUES " + values +
+                        " ON CONFLICT (trip_id, agency_id, timestamp) DO NOTHING RETURNING trip_id, agency_id, timestamp",
+                args.toArray(), types, (rs, rowNum) -> new RowKey(rs.getString(1), rs.getString(2), rs.getLong(3))));
+        for (int i = 0; i < rows.size(); i++) {
+            //a key repeated within the chunk is only inserted once, so only its first row counts as written
+            if (!inserted.remove(RowKey.of(rows.get(i)))) {
+                skipped.set(i);
+            }
+        }
+        return skipped;
+    }
+
+    private static Object[] toArgs(AgencyTripDelay row) {
+        return new Object[]{row.getTripId(), row.getAgencyId(), row.getTimestamp(), row.getStopId(),
+                row.getDelaySeconds(), row.getLastSeenTimestamp()};
+    }
+
+    private record RowKey(String tripId, String agencyId, long timestamp) {
+        static RowKey of(AgencyTripDelay row) {
+            return new RowKey(row.getTripId(), row.getAgencyId(), row.getTimestamp());
+        }
+    }
+
+    private boolean isPostgres() {
+        if (postgres == null) {
+            postgres = jdbcTemplate.execute((ConnectionCallback<Boolean>) connection ->
+                    "PostgreSQL".equalsIgnoreCase(connection.getMetaData().getDatabaseProductName()));
+        }
+        return Boolean.TRUE.equals(postgres);
+    }
+}
@@ -0,0 +1,129 @@
+package com.doug.projects.transitdelayservice.repository;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+import java.util.StringJoiner;
+
+/**
+ * Aggregates trip delays into graph buckets in PostgreSQL, so only one value per route and bucket is read rather than
+ * every trip delay row. Delta mode rows are expanded over the polls they were seen at, as
+ * {@link AgencyRouteTimestampRepository#getRouteTimestampsBy} does.
+ */
+@Repository
+@Slf4j
+public class DelayAggregationRepository {
+    private static final String AGGREGATE_QUERY = """
+            WITH samples AS (
+                SELECT r.route_name, d.timestamp AS ts, d.delay_seconds
+                FROM MPT.gtfs_trip_delay d
+                JOIN MPT.gtfs_trip t ON t.trip_id = d.trip_id AND t.agency_id = d.agency_id
+                JOIN MPT.gtfs_route r ON r.route_id = t.route_id AND r.agency_id = t.agency_id
+                WHERE d.agency_id = :agencyId
+                AND r.route_name IN (:routeNames)
+                AND d.timestamp >= :startTime AND d.timestamp < :endTime
+                AND d.last_seen_timestamp IS NULL
+                AND d.delay_seconds IS NOT NULL
+                UNION ALL
+                SELECT r.route_name, p.timestamp AS ts, d.delay_seconds
+                FROM MPT.gtfs_trip_delay d
+                JOIN MPT.gtfs_trip t ON t.trip_id = d.trip_id AND t.agency_id = d.agency_id
+                JOIN MPT.gtfs_route r ON r.route_id = t.route_id AND r.agency_id = t.agency_id
+                JOIN MPT.gtfs_realtime_poll p ON p.agency_id = d.agency_id
+                    AND p.timestamp BETWEEN d.timestamp AND d.last_seen_timestamp
+                    AND p.timestamp < d.timestamp + :maxSpanSeconds
+                    AND p.timestamp >= :startTime AND p.timestamp < :endTime
+                WHERE d.agency_id = :agencyId
+                AND r.route_name IN (:routeNames)
+                AND d.timestamp >= :lookbackStartTime AND d.timestamp < :endTime
+                AND d.last_seen_timestamp >= :startTime
+                AND d.delay_seconds IS NOT NULL
+            )
+            SELECT route_name, (ts - :startTime) / :bucketSize AS bucket, %s
+            FROM samples
+            GROUP BY route_name, bucket""";
+
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+    @Value("${realtime.deltaMode.maxSpanSeconds}")
+    private long maxSpanSeconds;
+    private volatile Boolean postgres;
+
+    public DelayAggregationRepository(NamedParameterJdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Returns true if aggregates can be computed by the db. Otherwise, (H2) delays need to be read and aggregated.
+     */
+    public boolean isSupported() {
+        if (postgres == null) {
+            postgres = jdbcTemplate.getJdbcTemplate().execute((ConnectionCallback<Boolean>) connection ->
+                    "PostgreSQL".equalsIgnoreCase(connection.getMetaData().getDatabaseProductName()));
+        }
+        return Boolean.TRUE.equals(postgres);
+    }
+
+    /**
+     * Aggregates the delays of each route in each bucket, from startTime to startTime + bucketCount * bucketSize.
+     * Buckets without delays are not returned. Every aggregate is computed in the same scan of the delays.
+     *
+     * @return the values of each route and bucket, in the order of aggregates
+     * @param lowerOnTimeMinutes the lower bound for {@link Aggregate#PERCENT_WITHIN}, ignored otherwise
+     * @param upperOnTimeMinutes the upper bound for {@link Aggregate#PERCENT_WITHIN}, ignored otherwise
+     */
+    public List<RouteBucketValues> aggregate(String agencyId,
+                                             List<String> routeNames,
+                                             long startTime,
+                                             long bucketSize,
+                                             int bucketCount,
+                                             List<Aggregate> aggregates,
+                                             int lowerOnTimeMinutes,
+                                             int upperOnTimeMinutes) {
+        var params = new MapSqlParameterSource()
+                .addValue("agencyId", agencyId)
+                .addValue("routeNames", routeNames)
+                .addValue("startTime", startTime)
+                .addValue("endTime", startTime + bucketCount * bucketSize)
+                .addValue("lookbackStartTime", startTime - maxSpanSeconds)
+                .addValue("maxSpanSeconds", maxSpanSeconds)
+                .addValue("bucketSize", bucketSize)
+                .addValue("lowerSeconds", lowerOnTimeMinutes * 60)
+                .addValue("upperSeconds", upperOnTimeMinutes * 60);
+        var columns = new StringJoiner(", ");
+        for (int i = 0; i < aggregates.size(); i++) {
+            columns.add(aggregates.get(i).getSql() + " AS value" + i);
+        }
+        return jdbcTemplate.query(AGGREGATE_QUERY.formatted(columns), params, (rs, rowNum) -> {
+            double[] values = new double[aggregates.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = rs.getDouble("value" + i);
+            }
+            return new RouteBucketValues(rs.getString("route_name"), rs.getInt("bucket"), values);
+        });
+    }
+
+    public enum Aggregate {
+        AVERAGE("avg(delay_seconds) / 60.0"),
+        MAX("max(delay_seconds) / 60.0"),
+        MEDIAN("percentile_cont(0.5) WITHIN GROUP (ORDER BY delay_seconds) / 60.0"),
+        PERCENT_WITHIN("count(*) FILTER (WHERE delay_seconds BETWEEN :lowerSeconds AND :upperSeconds) * 100.0 / count(*)");
+
+        private final String sql;
+
+        Aggregate(String sql) {
+            this.sql = sql;
+        }
+
+        String getSql() {
+            return sql;
+        }
+    }
+
+    public record RouteBucketValues(String routeName, int bucket, double[] values) {
+    }
+}
@@ -1,19 +1,30 @@
 package com.doug.projects.transitdelayservice.repository;
 
-import com.doug.projects.transitdelayservice.entity.jpa.AgencyRoute;
+import com.doug.projects.transitdelayservice.entity.GtfsStaticDataLoadedEvent;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyRouteMetadataDto;
 import com.doug.projects.transitdelayservice.repository.jpa.AgencyRouteRepository;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Repository
 @Slf4j
 public class GtfsStaticService {
 
     private final AgencyRouteRepository agencyRouteRepository;
+    /**
+     * Each feed's route colors and sort orders, loaded the first time a graph of the feed is made and replaced whenever
+     * its static data is reloaded.
+     */
+    private final Map<String, RouteMetadata> routeMetadataByFeed = new ConcurrentHashMap<>();
 
     public GtfsStaticService(AgencyRouteRepository agencyRouteRepository) {
         this.agencyRouteRepository = agencyRouteRepository;
@@ -32,14 +43,65 @@ public class GtfsStaticService {
     }
 
     public Map<String, String> getRouteNameToColorMap(String agencyId) {
-        return agencyRouteRepository.findAllByAgency_Id(agencyId).stream()
-                .filter(route -> route != null && route.getRouteName() != null && route.getRouteColor() != null)
-                .collect(Collectors.toMap(AgencyRoute::getRouteName, AgencyRoute::getRouteColor, (first, second) -> second));
+        return getRouteMetadata(agencyId).colorByName();
     }
 
     public Map<String, Integer> getRouteNameToSortOrderMap(String agencyId) {
-        return agencyRouteRepository.findAllByAgency_Id(agencyId).stream()
-                .filter(route -> route != null && route.getRouteName() != null && route.getRouteSortOrder() != null)
-                .collect(Collectors.toMap(AgencyRoute::getRouteName, AgencyRoute::getRouteSortOrder, (first, second) -> second));
+        return getRouteMetadata(agencyId).sortOrderByName();
+    }
+
+    /**
+     * Reloads the feed's route colors and sort orders once its routes are committed. Graphs made before the reload
+     * finishes keep the previous colors, and if it fails they stay until the next static load.
+     */
+    @Async
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT, fallbackExecution = true)
+    public void onStaticDataLoaded(GtfsStaticDataLoadedEvent event) {
+        reload(event.agencyId());
+    }
+
+    /**
+     * Replaces the route colors and sort orders of agencyId with those in the db.
+     */
+    public void reload(String agencyId) {
+        routeMetadataByFeed.put(agencyId, load(agencyId));
+    }
+
+    private RouteMetadata getRouteMetadata(String agencyId) {
+        RouteMetadata metadata = routeMetadataByFeed.get(agencyId);
+        if (metadata == null) {
+            metadata = load(agencyId);
+            //a feed without routes may not have loaded its static data yet, so look again next time
+            if (!metadata.isEmpty()) {
+                RouteMetadata existing = routeMetadataByFeed.putIfAbsent(agencyId, metadata);
+                if (existing != null) {
+                    metadata = existing;
+                }
+            }
+        }
+        return metadata;
+    }
+
+    private RouteMetadata load(String agencyId) {
+        Map<String, String> colorByName = new HashMap<>();
+        Map<String, Integer> sortOrderByName = new HashMap<>();
+        for (AgencyRouteMetadataDto route : agencyRouteRepository.findAllRouteMetadataByAgencyId(agencyId)) {
+            if (route.routeName() == null) {
+                continue;
+            }
+            if (route.routeColor() != null) {
+                colorByName.put(route.routeName(), route.routeColor());
+            }
+            if (route.routeSortOrder() != null) {
+                sortOrderByName.put(route.routeName(), route.routeSortOrder());
+            }
+        }
+        return new RouteMetadata(Collections.unmodifiableMap(colorByName), Collections.unmodifiableMap(sortOrderByName));
+    }
+
+    private record RouteMetadata(Map<String, String> colorByName, Map<String, Integer> sortOrderByName) {
+        boolean isEmpty() {
+            return colorByName.isEmpty() && sortOrderByName.isEmpty();
+        }
     }
 }
@@ -0,0 +1,353 @@
+package com.doug.projects.transitdelayservice.repository;
+
+import com.doug.projects.transitdelayservice.repository.AgencyDelayRollupWriter.RouteDelay;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Repository;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Holds each feed's delays from the last few days in memory, so reads of the recent window don't go to the db.
+ * <p>
+ * Delays are kept in columnar chunks: timestamps as offsets from the chunk's first, delays as shorts, and route, trip
+ * and stop ids as codes into dictionaries. Routes are coded per feed, while trips and stops are coded per chunk, so
+ * the ids of trips from earlier static data are dropped with the chunks that hold them. Delta mode rows are held once
+ * per poll they were seen at, as reads expand them.
+ * <p>
+ * Ingest adds each poll after writing it, and {@link AgencyRouteTimestampRepository#loadRecentDelays} fills in the
+ * window from the db at startup. A feed is only read from here once its window starts before the requested range.
+ */
+@Repository
+@Slf4j
+public class RecentDelayStore {
+    static final int CHUNK_CAPACITY = 4096;
+    /**
+     * A chunk starts this long before its first delay, so the delta mode rows expanded ahead of the ones after them
+     * still fit
+     */
+    private static final int CHUNK_BASE_SLACK_SECONDS = 16384;
+    /**
+     * Stands in for a null delay
+     */
+    private static final short NULL_DELAY = Short.MIN_VALUE;
+    /**
+     * Stands in for a delay which doesn't fit in a short, kept in the chunk's wideDelays instead
+     */
+    private static final short WIDE_DELAY = Short.MAX_VALUE;
+
+    private final Map<String, FeedWindow> windowsByFeed = new ConcurrentHashMap<>();
+    @Value("${realtime.recentWindow.enabled}")
+    private boolean enabled;
+    @Value("${realtime.recentWindow.days}")
+    private int windowDays;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return true if every delay of feedId from startTime on is held here
+     */
+    public boolean covers(String feedId, long startTime) {
+        if (!enabled) {
+            return false;
+        }
+        FeedWindow window = windowsByFeed.get(feedId);
+        return window != null && startTime >= window.coveredFrom;
+    }
+
+    /**
+     * Adds a poll's delays, as written by ingest. The feed is covered from its first poll on, until it is loaded.
+     */
+    public void add(String feedId, List<RouteDelay> delays) {
+        if (!enabled || delays.isEmpty()) {
+            return;
+        }
+        FeedWindow window = windowsByFeed.computeIfAbsent(feedId, k -> new FeedWindow());
+        synchronized (window) {
+            long first = Long.MAX_VALUE;
+            for (RouteDelay delay : delays) {
+                window.ingestChunk = window.append(window.ingestChunk, delay.routeName(), delay.timestamp(),
+                        delay.delaySeconds(), delay.tripId(), delay.stopId());
+                first = Math.min(first, delay.timestamp());
+                window.latestTimestamp = Math.max(window.latestTimestamp, delay.timestamp());
+            }
+            if (window.firstIngested == Long.MAX_VALUE) {
+                window.firstIngested = first;
+            }
+            window.coveredFrom = Math.min(window.coveredFrom, first);
+            evict(window);
+        }
+    }
+
+    /**
+     * Starts filling in feedId's window from the db. Delays at or after the feed's first ingested poll are skipped by
+     * the load, since ingest already added them.
+     */
+    public Load startLoad(String feedId) {
+        FeedWindow window = windowsByFeed.computeIfAbsent(feedId, k -> new FeedWindow());
+        long startTime = Instant.now().getEpochSecond() - windowSeconds();
+        return new Load(feedId, window, startTime);
+    }
+
+    /**
+     * Passes each delay of feedId between startTime and endTime, on one of routeNames, to consumer. Callers check
+     * {@link #covers} first.
+     */
+    public void forEach(String feedId, long startTime, long endTime, Collection<String> routeNames, DelayConsumer consumer) {
+        FeedWindow window = windowsByFeed.get(feedId);
+        if (window == null || routeNames.isEmpty()) {
+            return;
+        }
+        BitSet routeCodes = new BitSet();
+        for (String routeName : routeNames) {
+            int code = window.routes.find(routeName);
+            if (code >= 0) {
+                routeCodes.set(code);
+            }
+        }
+        if (routeCodes.isEmpty()) {
+            return;
+        }
+        for (Chunk chunk : window.chunks) {
+            //size first, so the arrays and bounds read after it are at least as new
+            int size = chunk.size;
+            if (size == 0 || chunk.maxTimestamp < startTime || chunk.baseTimestamp > endTime) {
+                continue;
+            }
+            long fromOffset = startTime - chunk.baseTimestamp;
+            long toOffset = endTime - chunk.baseTimestamp;
+            for (int i = 0; i < size; i++) {
+                int offset = chunk.timestampOffsets[i];
+                if (offset < fromOffset || offset > toOffset || !routeCodes.get(chunk.routeCodes[i])) {
+                    continue;
+                }
+                consumer.accept(window.routes.valueOf(chunk.routeCodes[i]), chunk.baseTimestamp + offset,
+                        chunk.delayAt(i), chunk.trips.valueOf(chunk.tripCodes[i]), chunk.stops.valueOf(chunk.stopCodes[i]));
+            }
+        }
+    }
+
+    /**
+     * @return the number of delays held for feedId
+     */
+    public long size(String feedId) {
+        FeedWindow window = windowsByFeed.get(feedId);
+        return window == null ? 0 : window.chunks.stream().mapToLong(chunk -> chunk.size).sum();
+    }
+
+    /**
+     * @return the number of trip ids held for feedId, counting each once per chunk it is in
+     */
+    int tripIdCount(String feedId) {
+        FeedWindow window = windowsByFeed.get(feedId);
+        return window == null ? 0 : window.chunks.stream().mapToInt(chunk -> chunk.trips.size()).sum();
+    }
+
+    private long windowSeconds() {
+        return windowDays * 86400L;
+    }
+
+    /**
+     * Drops chunks which ended before the window, and moves the start of coverage up to it
+     */
+    private void evict(FeedWindow window) {
+        long cutoff = window.latestTimestamp - windowSeconds();
+        window.chunks.removeIf(chunk -> chunk != window.ingestChunk && chunk != window.loadChunk &&
+                chunk.maxTimestamp < cutoff);
+        if (window.coveredFrom != Long.MAX_VALUE) {
+            window.coveredFrom = Math.max(window.coveredFrom, cutoff);
+        }
+    }
+
+    @FunctionalInterface
+    public interface DelayConsumer {
+        void accept(String routeName, long timestamp, Integer delaySeconds, String tripId, String stopId);
+    }
+
+    /**
+     * Adds a feed's delays read from the db, then marks the feed covered from startTime once finished
+     */
+    public class Load {
+        private final String feedId;
+        private final FeedWindow window;
+        private final long startTime;
+        private long count;
+
+        private Load(String feedId, FeedWindow window, long startTime) {
+            this.feedId = feedId;
+            this.window = window;
+            this.startTime = startTime;
+        }
+
+        public long getStartTime() {
+            return startTime;
+        }
+
+        public void add(String routeName, long timestamp, Integer delaySeconds, String tripId, String stopId) {
+            synchronized (window) {
+                if (timestamp < startTime || timestamp >= window.firstIngested) {
+                    return;
+                }
+                window.loadChunk = window.append(window.loadChunk, routeName, timestamp, delaySeconds, tripId, stopId);
+                window.latestTimestamp = Math.max(window.latestTimestamp, timestamp);
+                count++;
+            }
+        }
+
+        public void finish() {
+            synchronized (window) {
+                if (window.loadChunk != null) {
+                    window.loadChunk.seal();
+                }
+                window.loadChunk = null;
+                window.coveredFrom = Math.min(window.coveredFrom, startTime);
+                evict(window);
+            }
+            log.info("Loaded {} recent delays of feed {}", count, feedId);
+        }
+    }
+
+    private static class FeedWindow {
+        private final Dictionary routes = new Dictionary();
+        private final List<Chunk> chunks = new CopyOnWriteArrayList<>();
+        private Chunk ingestChunk;
+        private Chunk loadChunk;
+        private long latestTimestamp;
+        private volatile long firstIngested = Long.MAX_VALUE;
+        private volatile long coveredFrom = Long.MAX_VALUE;
+
+        /**
+         * Appends to chunk, or to a new chunk if it is full or timestamp is out of its range
+         *
+         * @return the chunk appended to
+         */
+        private Chunk append(Chunk chunk, String routeName, long timestamp, Integer delaySeconds, String tripId, String stopId) {
+            if (chunk == null || !chunk.fits(timestamp)) {
+                if (chunk != null) {
+                    chunk.seal();
+                }
+                chunk = new Chunk(timestamp - CHUNK_BASE_SLACK_SECONDS);
+                chunks.add(chunk);
+            }
+            chunk.append(timestamp, delaySeconds, routes.codeOf(routeName), chunk.trips.codeOf(tripId),
+                    chunk.stops.codeOf(stopId));
+            return chunk;
+        }
+    }
+
+    /**
+     * Delays of one feed, appended under the feed's lock. Readers see the first size delays.
+     */
+    private static class Chunk {
+        private final long baseTimestamp;
+        private final char[] timestampOffsets = new char[CHUNK_CAPACITY];
+        private final short[] delays = new short[CHUNK_CAPACITY];
+        private final int[] routeCodes = new int[CHUNK_CAPACITY];
+        private final int[] tripCodes = new int[CHUNK_CAPACITY];
+        private final int[] stopCodes = new int[CHUNK_CAPACITY];
+        private final Map<Integer, Integer> wideDelays = new ConcurrentHashMap<>();
+        private final Dictionary trips = new Dictionary();
+        private final Dictionary stops = new Dictionary();
+        private volatile long maxTimestamp;
+        private volatile int size;
+
+        private Chunk(long baseTimestamp) {
+            this.baseTimestamp = baseTimestamp;
+            this.maxTimestamp = baseTimestamp;
+        }
+
+        private boolean fits(long timestamp) {
+            return size < CHUNK_CAPACITY && timestamp >= baseTimestamp && timestamp - baseTimestamp <= Character.MAX_VALUE;
+        }
+
+        private void append(long timestamp, Integer delaySeconds, int routeCode, int tripCode, int stopCode) {
+            int i = size;
+            timestampOffsets[i] = (char) (timestamp - baseTimestamp);
+            if (delaySeconds == null) {
+                delays[i] = NULL_DELAY;
+            } else if (delaySeconds > NULL_DELAY && delaySeconds < WIDE_DELAY) {
+                delays[i] = (short) (int) delaySeconds;
+            } else {
+                delays[i] = WIDE_DELAY;
+                wideDelays.put(i, delaySeconds);
+            }
+            routeCodes[i] = routeCode;
+            tripCodes[i] = tripCode;
+            stopCodes[i] = stopCode;
+            maxTimestamp = Math.max(maxTimestamp, timestamp);
+            size = i + 1;
+        }
+
+        /**
+         * Called once nothing more is appended, dropping the lookups only needed to append
+         */
+        private void seal() {
+            trips.seal();
+            stops.seal();
+        }
+
+        private Integer delayAt(int i) {
+            short delay = delays[i];
+            if (delay == NULL_DELAY) {
+                return null;
+            }
+            return delay == WIDE_DELAY ? wideDelays.get(i) : Integer.valueOf(delay);
+        }
+    }
+
+    /**
+     * Assigns each value a code in the order first seen. Codes are added under the feed's lock, and published to
+     * readers by the chunk size written after them.
+     */
+    private static class Dictionary {
+        private Map<String, Integer> codes = new ConcurrentHashMap<>();
+        private int nullCode = -1;
+        private int size;
+        private volatile String[] values = new String[64];
+
+        private int codeOf(String value) {
+            Integer code = value == null ? (nullCode >= 0 ? Integer.valueOf(nullCode) : null) : codes.get(value);
+            if (code != null) {
+                return code;
+            }
+            code = size++;
+            String[] next = code < values.length ? values : Arrays.copyOf(values, values.length * 2);
+            next[code] = value;
+            values = next;
+            if (value == null) {
+                nullCode = code;
+            } else {
+                codes.put(value, code);
+            }
+            return code;
+        }
+
+        /**
+         * Drops the codes of values, once no more are added. Values can still be read by code
+         */
+        private void seal() {
+            codes = null;
+            values = Arrays.copyOf(values, size);
+        }
+
+        private int size() {
+            return size;
+        }
+
+        /**
+         * @return value's code, or -1 if it was never added
+         */
+        private int find(String value) {
+            return value == null ? -1 : codes.getOrDefault(value, -1);
+        }
+
+        private String valueOf(int code) {
+            return values[code];
+        }
+    }
+}
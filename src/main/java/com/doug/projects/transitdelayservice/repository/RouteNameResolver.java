@@ -0,0 +1,113 @@
+package com.doug.projects.transitdelayservice.repository;
+
+import com.doug.projects.transitdelayservice.entity.GtfsStaticDataLoadedEvent;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyRouteNameDto;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyRouteRepository;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyTripRepository;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyTripRouteDto;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves the route name of realtime trip updates without going to the db.
+ * <p>
+ * Each feed's routeId->routeName and tripId->routeName maps are loaded in bulk the first time the feed is resolved,
+ * and swapped out in one step whenever that feed's static data is reloaded.
+ */
+@Repository
+@Slf4j
+@RequiredArgsConstructor
+public class RouteNameResolver {
+    private final AgencyRouteRepository agencyRouteRepository;
+    private final AgencyTripRepository agencyTripRepository;
+    private final Map<String, FeedRouteNames> routeNamesByFeed = new ConcurrentHashMap<>();
+
+    /**
+     * Finds the route name for a trip update, preferring the routeId and falling back to the tripId.
+     *
+     * @param feedId  the feed the trip update was read from
+     * @param routeId the routeId of the trip update, may be blank
+     * @param tripId  the tripId of the trip update, may be blank
+     * @return the route name, or empty if neither id is in the static data for this feed
+     */
+    public Optional<String> getRouteName(String feedId, String routeId, String tripId) {
+        FeedRouteNames routeNames = getFeedRouteNames(feedId);
+        String routeName = null;
+        if (StringUtils.isNotBlank(routeId)) {
+            routeName = routeNames.byRouteId().get(routeId);
+        }
+        if (routeName == null && tripId != null) {
+            routeName = routeNames.byTripId().get(tripId);
+        }
+        return Optional.ofNullable(routeName);
+    }
+
+    /**
+     * Reloads the feed once its static data is committed, off the loading thread so a slow or failing reload can't
+     * hold up or roll back the static load. Runs straight away when the load wasn't transactional.
+     */
+    @Async
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT, fallbackExecution = true)
+    public void onStaticDataLoaded(GtfsStaticDataLoadedEvent event) {
+        reload(event.agencyId());
+    }
+
+    /**
+     * Rebuilds the maps for feedId from the db, replacing the previous maps once fully loaded.
+     */
+    public void reload(String feedId) {
+        routeNamesByFeed.put(feedId, load(feedId));
+    }
+
+    private FeedRouteNames getFeedRouteNames(String feedId) {
+        FeedRouteNames routeNames = routeNamesByFeed.get(feedId);
+        if (routeNames == null) {
+            //loaded outside computeIfAbsent, so a slow load doesn't block other feeds sharing the same bin
+            routeNames = load(feedId);
+            FeedRouteNames existing = routeNamesByFeed.putIfAbsent(feedId, routeNames);
+            if (existing != null) {
+                routeNames = existing;
+            }
+        }
+        return routeNames;
+    }
+
+    private FeedRouteNames load(String feedId) {
+        List<AgencyRouteNameDto> routes = agencyRouteRepository.findAllRouteNamesByAgencyId(feedId);
+        Map<String, String> byRouteId = new HashMap<>(capacityFor(routes.size()));
+        for (AgencyRouteNameDto route : routes) {
+            if (route.routeName() != null) {
+                byRouteId.put(route.routeId(), route.routeName());
+            }
+        }
+        List<AgencyTripRouteDto> trips = agencyTripRepository.findAllTripRoutesByAgencyId(feedId);
+        Map<String, String> byTripId = new HashMap<>(capacityFor(trips.size()));
+        for (AgencyTripRouteDto trip : trips) {
+            //share the route's name instance, rather than holding one copy per trip
+            String routeName = byRouteId.get(trip.routeId());
+            if (routeName != null) {
+                byTripId.put(trip.tripId(), routeName);
+            }
+        }
+        log.info("Loaded {} routes and {} trips for feed {}", byRouteId.size(), byTripId.size(), feedId);
+        return new FeedRouteNames(byRouteId, byTripId);
+    }
+
+    private static int capacityFor(int size) {
+        return (int) (size / 0.75f) + 1;
+    }
+
+    private record FeedRouteNames(Map<String, String> byRouteId, Map<String, String> byTripId) {
+    }
+}
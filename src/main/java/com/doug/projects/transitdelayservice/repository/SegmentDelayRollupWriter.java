@@ -0,0 +1,282 @@
+package com.doug.projects.transitdelayservice.repository;
+
+import com.doug.projects.transitdelayservice.entity.GtfsStaticDataLoadedEvent;
+import com.doug.projects.transitdelayservice.entity.jpa.AgencyFeed;
+import com.doug.projects.transitdelayservice.entity.jpa.AgencySegmentDelayRollup;
+import com.doug.projects.transitdelayservice.repository.AgencyDelayRollupWriter.RouteDelay;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyFeedRepository;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyStopTimeRepository;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyTripStopDto;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.sql.Types;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.stream.Collectors.groupingBy;
+
+/**
+ * Adds the segments each bus passed since the last poll to the segment delay rollups, with one upsert per (route,
+ * segment, shape, hour). The delay of each segment is interpolated between the bus's delay at its last stop and its
+ * delay now, as the delay map does when it replays trip delays. The segments are keyed by the hour of week of both
+ * polls, so the map can count only the pairs of polls that both fall in its selected hours, as the replay does.
+ * <p>
+ * The last stop of each trip and the stops of the trips seen are kept in memory per feed. Trip stops are dropped when
+ * the feed's static data reloads, but last stops are kept, so the pair of polls spanning the reload is still rolled
+ * up, as the replay counts it. Last stops not seen for a day are dropped then.
+ * <p>
+ * On PostgreSQL this is an <code>INSERT ... ON CONFLICT DO UPDATE</code>, elsewhere (H2) a <code>MERGE ... USING</code>.
+ */
+@Repository
+@Slf4j
+public class SegmentDelayRollupWriter {
+    private static final int QUERY_CHUNK_SIZE = 1000;
+    private static final long LAST_STOP_RETENTION_SECONDS = 24 * 3600;
+    private static final int[] TYPES = {Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR,
+            Types.BIGINT, Types.INTEGER, Types.INTEGER, Types.INTEGER, Types.INTEGER, Types.BIGINT, Types.DOUBLE};
+    private static final String POSTGRES_UPSERT = """
+            INSERT INTO MPT.gtfs_segment_delay_rollup (agency_id, route_name, from_stop_id, to_stop_id, shape_id, \
+            bucket_start, hour_of_week, previous_hour_of_week, from_stop_seq, to_stop_seq, sample_count, \
+            delay_sum_seconds) \
+            VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) \
+            ON CONFLICT (agency_id, route_name, from_stop_id, to_stop_id, shape_id, bucket_start, hour_of_week, \
+            previous_hour_of_week) \
+            DO UPDATE SET \
+            sample_count = gtfs_segment_delay_rollup.sample_count + EXCLUDED.sample_count, \
+            delay_sum_seconds = gtfs_segment_delay_rollup.delay_sum_seconds + EXCLUDED.delay_sum_seconds""";
+    private static final String MERGE_UPSERT = """
+            MERGE INTO MPT.gtfs_segment_delay_rollup r USING (VALUES (CAST(? AS VARCHAR), CAST(? AS VARCHAR), \
+            CAST(? AS VARCHAR), CAST(? AS VARCHAR), CAST(? AS VARCHAR), CAST(? AS BIGINT), CAST(? AS INTEGER), \
+            CAST(? AS INTEGER), CAST(? AS INTEGER), CAST(? AS INTEGER), CAST(? AS BIGINT), \
+            CAST(? AS DOUBLE PRECISION))) \
+            AS v(agency_id, route_name, from_stop_id, to_stop_id, shape_id, bucket_start, hour_of_week, \
+            previous_hour_of_week, from_stop_seq, to_stop_seq, sample_count, delay_sum_seconds) \
+            ON r.agency_id = v.agency_id AND r.route_name = v.route_name AND r.from_stop_id = v.from_stop_id \
+            AND r.to_stop_id = v.to_stop_id AND r.shape_id = v.shape_id AND r.bucket_start = v.bucket_start \
+            AND r.hour_of_week = v.hour_of_week AND r.previous_hour_of_week = v.previous_hour_of_week \
+            WHEN MATCHED THEN UPDATE SET \
+            sample_count = r.sample_count + v.sample_count, \
+            delay_sum_seconds = r.delay_sum_seconds + v.delay_sum_seconds \
+            WHEN NOT MATCHED THEN INSERT (agency_id, route_name, from_stop_id, to_stop_id, shape_id, bucket_start, \
+            hour_of_week, previous_hour_of_week, from_stop_seq, to_stop_seq, sample_count, delay_sum_seconds) \
+            VALUES (v.agency_id, v.route_name, v.from_stop_id, v.to_stop_id, v.shape_id, v.bucket_start, \
+            v.hour_of_week, v.previous_hour_of_week, v.from_stop_seq, v.to_stop_seq, v.sample_count, \
+            v.delay_sum_seconds)""";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final AgencyStopTimeRepository agencyStopTimeRepository;
+    private final AgencyFeedRepository agencyFeedRepository;
+    private final Map<String, FeedSegments> segmentsByFeed = new ConcurrentHashMap<>();
+    private volatile Boolean postgres;
+
+    public SegmentDelayRollupWriter(JdbcTemplate jdbcTemplate, AgencyStopTimeRepository agencyStopTimeRepository,
+                                    AgencyFeedRepository agencyFeedRepository) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.agencyStopTimeRepository = agencyStopTimeRepository;
+        this.agencyFeedRepository = agencyFeedRepository;
+    }
+
+    /**
+     * @return the hour of the week timestamp falls in, in zone, from 0 (Monday 00:00) to 167
+     */
+    public static int hourOfWeek(long timestamp, ZoneId zone) {
+        ZonedDateTime time = Instant.ofEpochSecond(timestamp).atZone(zone);
+        return (time.getDayOfWeek().getValue() - 1) * 24 + time.getHour();
+    }
+
+    /**
+     * Rolls up the segments driven since each trip's previous delay. Should be called once per poll, in order, as the
+     * delay rollups are. A delay no later than the trip's previous one only replaces it.
+     */
+    public void write(String agencyId, List<RouteDelay> delays) {
+        FeedSegments feed = segmentsByFeed.computeIfAbsent(agencyId, k -> new FeedSegments(findZone(agencyId)));
+        Map<SegmentHourKey, Cell> cells = new HashMap<>();
+        //polls of the same feed may be persisted concurrently, and each depends on the one before it
+        synchronized (feed) {
+            loadMissingTrips(agencyId, feed, delays);
+            for (RouteDelay delay : delays) {
+                if (delay.tripId() == null || delay.stopId() == null || delay.routeName() == null) {
+                    continue;
+                }
+                LastStop previous = feed.lastStopByTrip.put(delay.tripId(),
+                        new LastStop(delay.stopId(), delay.delaySeconds(), delay.timestamp()));
+                TripStops stops = feed.stopsByTrip.get(delay.tripId());
+                feed.lastTimestamp = Math.max(feed.lastTimestamp, delay.timestamp());
+                if (previous == null || stops == null || previous.timestamp() >= delay.timestamp()) {
+                    continue;
+                }
+                int from = stops.indexOf(previous.stopId());
+                int to = stops.indexOf(delay.stopId());
+                if (from < 0 || to <= from) {
+                    continue;
+                }
+                long bucketStart = Math.floorDiv(delay.timestamp(), 3600) * 3600;
+                int hourOfWeek = hourOfWeek(delay.timestamp(), feed.zone);
+                int previousHourOfWeek = hourOfWeek(previous.timestamp(), feed.zone);
+                double startDelay = previous.delaySeconds() != null ? previous.delaySeconds() : 0;
+                double endDelay = delay.delaySeconds() != null ? delay.delaySeconds() : 0;
+                int count = to - from;
+                for (int j = from; j < to; j++) {
+                    var key = new SegmentHourKey(delay.routeName(), stops.stopIds()[j], stops.stopIds()[j + 1],
+                            stops.shapeId(), bucketStart, hourOfWeek, previousHourOfWeek);
+                    int segmentStart = j;
+                    Cell cell = cells.computeIfAbsent(key, k -> new Cell(stops.stopSequences()[segmentStart],
+                            stops.stopSequences()[segmentStart + 1]));
+                    cell.sampleCount++;
+                    cell.delaySumSeconds += startDelay + (j - from) * (endDelay - startDelay) / count;
+                }
+            }
+        }
+        if (cells.isEmpty()) {
+            return;
+        }
+        List<Object[]> args = new ArrayList<>(cells.size());
+        cells.forEach((key, cell) -> args.add(new Object[]{agencyId, key.routeName(), key.fromStopId(), key.toStopId(),
+                key.shapeId(), key.bucketStart(), key.hourOfWeek(), key.previousHourOfWeek(), cell.fromStopSequence,
+                cell.toStopSequence, cell.sampleCount, cell.delaySumSeconds}));
+        try {
+            jdbcTemplate.batchUpdate(isPostgres() ? POSTGRES_UPSERT : MERGE_UPSERT, args, TYPES);
+        } catch (Exception e) {
+            log.error("Failed to write {} segment delay rollups for feed {}", args.size(), agencyId, e);
+        }
+    }
+
+    /**
+     * Drops the feed's trip stops once its new stop times are committed, so they are looked up again as trips are
+     * seen, and picks up a changed timezone.
+     */
+    @Async
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT, fallbackExecution = true)
+    public void onStaticDataLoaded(GtfsStaticDataLoadedEvent event) {
+        reload(event.agencyId());
+    }
+
+    /**
+     * Drops the trip stops of agencyId and reloads its timezone. Each trip's last stop is kept, unless it wasn't seen
+     * for a day.
+     */
+    public void reload(String agencyId) {
+        FeedSegments feed = segmentsByFeed.get(agencyId);
+        if (feed == null) {
+            return;
+        }
+        ZoneId zone = findZone(agencyId);
+        synchronized (feed) {
+            feed.zone = zone;
+            feed.stopsByTrip.clear();
+            long oldest = feed.lastTimestamp - LAST_STOP_RETENTION_SECONDS;
+            feed.lastStopByTrip.values().removeIf(lastStop -> lastStop.timestamp() < oldest);
+        }
+    }
+
+    private void loadMissingTrips(String agencyId, FeedSegments feed, List<RouteDelay> delays) {
+        List<String> missing = delays.stream()
+                .map(RouteDelay::tripId)
+                .filter(tripId -> tripId != null && !feed.stopsByTrip.containsKey(tripId))
+                .distinct()
+                .toList();
+        for (int i = 0; i < missing.size(); i += QUERY_CHUNK_SIZE) {
+            var chunk = missing.subList(i, Math.min(i + QUERY_CHUNK_SIZE, missing.size()));
+            Map<String, List<AgencyTripStopDto>> stopsByTrip;
+            try {
+                stopsByTrip = agencyStopTimeRepository.findTripStops(agencyId, chunk)
+                        .stream()
+                        .filter(stop -> stop.stopSequence() != null && stop.stopId() != null)
+                        .collect(groupingBy(AgencyTripStopDto::tripId));
+            } catch (Exception e) {
+                log.error("Failed to load the stops of {} trips for feed {}", chunk.size(), agencyId, e);
+                continue;
+            }
+            for (String tripId : chunk) {
+                //trips without stop times are kept too, so they aren't looked up every poll
+                feed.stopsByTrip.put(tripId, TripStops.of(stopsByTrip.getOrDefault(tripId, List.of())));
+            }
+        }
+    }
+
+    private ZoneId findZone(String agencyId) {
+        try {
+            return agencyFeedRepository.findById(agencyId)
+                    .map(AgencyFeed::getTimezone)
+                    //the delay map ignores the selected days and hours of feeds without one, so any zone will do
+                    .filter(timezone -> !timezone.isEmpty())
+                    .map(ZoneId::of)
+                    .orElse(ZoneOffset.UTC);
+        } catch (DateTimeException e) {
+            log.error("Invalid timezone for feed {}, rolling up segments in UTC", agencyId, e);
+            return ZoneOffset.UTC;
+        }
+    }
+
+    private boolean isPostgres() {
+        if (postgres == null) {
+            postgres = jdbcTemplate.execute((ConnectionCallback<Boolean>) connection ->
+                    "PostgreSQL".equalsIgnoreCase(connection.getMetaData().getDatabaseProductName()));
+        }
+        return Boolean.TRUE.equals(postgres);
+    }
+
+    private record LastStop(String stopId, Integer delaySeconds, long timestamp) {
+    }
+
+    /**
+     * A trip's stops in stop sequence order. A stop visited twice is looked up at its first visit
+     */
+    private record TripStops(String shapeId, String[] stopIds, int[] stopSequences, Map<String, Integer> indexByStopId) {
+        static TripStops of(List<AgencyTripStopDto> stops) {
+            String[] stopIds = new String[stops.size()];
+            int[] stopSequences = new int[stops.size()];
+            Map<String, Integer> indexByStopId = new HashMap<>();
+            for (int i = 0; i < stops.size(); i++) {
+                stopIds[i] = stops.get(i).stopId();
+                stopSequences[i] = stops.get(i).stopSequence();
+                indexByStopId.putIfAbsent(stopIds[i], i);
+            }
+            String shapeId = stops.isEmpty() || stops.get(0).shapeId() == null ? "" : stops.get(0).shapeId();
+            return new TripStops(shapeId, stopIds, stopSequences, indexByStopId);
+        }
+
+        int indexOf(String stopId) {
+            Integer index = indexByStopId.get(stopId);
+            return index == null ? -1 : index;
+        }
+    }
+
+    private record SegmentHourKey(String routeName, String fromStopId, String toStopId, String shapeId,
+                                  long bucketStart, int hourOfWeek, int previousHourOfWeek) {
+    }
+
+    private static class Cell {
+        private final int fromStopSequence;
+        private final int toStopSequence;
+        private long sampleCount;
+        private double delaySumSeconds;
+
+        Cell(int fromStopSequence, int toStopSequence) {
+            this.fromStopSequence = fromStopSequence;
+            this.toStopSequence = toStopSequence;
+        }
+    }
+
+    private static class FeedSegments {
+        private ZoneId zone;
+        private final Map<String, TripStops> stopsByTrip = new HashMap<>();
+        private final Map<String, LastStop> lastStopByTrip = new HashMap<>();
+        private long lastTimestamp;
+
+        FeedSegments(ZoneId zone) {
+            this.zone = zone;
+        }
+    }
+}
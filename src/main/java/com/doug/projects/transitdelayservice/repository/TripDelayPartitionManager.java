@@ -0,0 +1,256 @@
+package com.doug.projects.transitdelayservice.repository;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalAdjusters;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps gtfs_trip_delay range partitioned by timestamp on PostgreSQL, one partition per week or month (UTC).
+ * <p>
+ * Queries bound timestamp, so PostgreSQL only scans the partitions in range. Retention drops whole partitions, rather
+ * than deleting rows. The first run converts an existing unpartitioned table, copying its rows over.
+ * Rows outside every range partition (a clock far off, or an old snapshot replayed past retention) land in a default
+ * partition instead of failing the insert, and are moved out when a partition covering them is created.
+ * Partitioning is disabled by default, and is never applied to other databases.
+ */
+@Repository
+@Slf4j
+public class TripDelayPartitionManager {
+    private static final String SCHEMA = "mpt";
+    private static final String TABLE = "gtfs_trip_delay";
+    private static final String PARTITION_PREFIX = TABLE + "_p";
+    private static final String DEFAULT_PARTITION = TABLE + "_default";
+    private static final DateTimeFormatter PARTITION_DATE_FORMAT = DateTimeFormatter.BASIC_ISO_DATE;
+    private static final Pattern PARTITION_NAME = Pattern.compile(Pattern.quote(PARTITION_PREFIX) + "(\\d{8})");
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transaction;
+    @Value("${tripDelay.partitioning.enabled}")
+    private boolean enabled;
+    @Value("${tripDelay.partitioning.interval}")
+    private PartitionInterval interval;
+    @Value("${tripDelay.partitioning.partitionsAhead}")
+    private int partitionsAhead;
+    @Value("${tripDelay.partitioning.retentionDays}")
+    private int retentionDays;
+
+    public TripDelayPartitionManager(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transaction = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * Partitions the table if it isn't yet, creates partitions up to partitionsAhead intervals from now, and drops
+     * partitions which ended more than retentionDays ago (if retentionDays > 0).
+     */
+    public void maintain() {
+        if (!enabled || !isPostgres()) {
+            return;
+        }
+        try {
+            if (!isPartitioned()) {
+                transaction.executeWithoutResult(status -> convertToPartitioned());
+            }
+            createDefaultPartition();
+            var current = interval.startOf(LocalDate.now(ZoneOffset.UTC));
+            for (int i = 0; i <= partitionsAhead; i++) {
+                createPartition(interval.plus(current, i));
+            }
+            if (retentionDays > 0) {
+                var cutoff = LocalDate.now(ZoneOffset.UTC).minusDays(retentionDays);
+                dropPartitionsEndingBefore(cutoff);
+                deleteDefaultRowsBefore(cutoff);
+            }
+        } catch (Exception e) {
+            log.error("Failed to maintain {} partitions", TABLE, e);
+        }
+    }
+
+    private boolean isPostgres() {
+        return Boolean.TRUE.equals(jdbcTemplate.execute((ConnectionCallback<Boolean>) connection ->
+                "PostgreSQL".equalsIgnoreCase(connection.getMetaData().getDatabaseProductName())));
+    }
+
+    private boolean isPartitioned() {
+        Integer count = jdbcTemplate.queryForObject("""
+                SELECT count(*) FROM pg_partitioned_table pt \
+                JOIN pg_class c ON c.oid = pt.partrelid \
+                JOIN pg_namespace n ON n.oid = c.relnamespace \
+                WHERE n.nspname = ? AND c.relname = ?""", Integer.class, SCHEMA, TABLE);
+        return count != null && count > 0;
+    }
+
+    /**
+     * Replaces the table with a partitioned copy. The primary key has to include the partition key, so it becomes
+     * (id, timestamp). Foreign keys are carried over from the old table.
+     * <p>
+     * The old table is locked for the whole transaction, so ingest writes wait for the conversion and then land in the
+     * new table, rather than being dropped along with the old one.
+     */
+    private void convertToPartitioned() {
+        jdbcTemplate.execute("LOCK TABLE %s.%s IN ACCESS EXCLUSIVE MODE".formatted(SCHEMA, TABLE));
+        if (isPartitioned()) {
+            //another instance converted it while we waited for the lock
+            return;
+        }
+        log.info("Converting {} to a table partitioned by {}", TABLE, interval);
+        String partitioned = TABLE + "_partitioned";
+        jdbcTemplate.execute("""
+                CREATE TABLE %s.%s (
+                    id bigint GENERATED BY DEFAULT AS IDENTITY,
+                    trip_id varchar(255) NOT NULL,
+                    agency_id varchar(255) NOT NULL,
+                    timestamp bigint NOT NULL,
+                    stop_id varchar(255) NOT NULL,
+                    delay_seconds integer,
+                    last_seen_timestamp bigint,
+                    PRIMARY KEY (id, timestamp)
+                ) PARTITION BY RANGE (timestamp)""".formatted(SCHEMA, partitioned));
+
+        var range = jdbcTemplate.queryForMap("SELECT min(timestamp) AS min_ts, max(timestamp) AS max_ts, max(id) AS max_id FROM %s.%s"
+                .formatted(SCHEMA, TABLE));
+        if (range.get("min_ts") != null) {
+            var first = interval.startOf(toDate(((Number) range.get("min_ts")).longValue()));
+            var last = interval.startOf(toDate(((Number) range.get("max_ts")).longValue()));
+            for (var start = first; !start.isAfter(last); start = interval.plus(start, 1)) {
+                createPartition(partitioned, start);
+            }
+        }
+        jdbcTemplate.execute("""
+                INSERT INTO %1$s.%2$s (id, trip_id, agency_id, timestamp, stop_id, delay_seconds, last_seen_timestamp) \
+                SELECT id, trip_id, agency_id, timestamp, stop_id, delay_seconds, last_seen_timestamp FROM %1$s.%3$s"""
+                .formatted(SCHEMA, partitioned, TABLE));
+
+        List<String> foreignKeys = jdbcTemplate.queryForList("""
+                SELECT pg_get_constraintdef(con.oid) FROM pg_constraint con \
+                JOIN pg_class c ON c.oid = con.conrelid \
+                JOIN pg_namespace n ON n.oid = c.relnamespace \
+                WHERE n.nspname = ? AND c.relname = ? AND con.contype = 'f'""", String.class, SCHEMA, TABLE);
+        jdbcTemplate.execute("DROP TABLE %s.%s".formatted(SCHEMA, TABLE));
+        jdbcTemplate.execute("ALTER TABLE %s.%s RENAME TO %s".formatted(SCHEMA, partitioned, TABLE));
+        //partitions were named after the new table, rename them to match
+        for (String partition : findPartitions(partitioned.length())) {
+            jdbcTemplate.execute("ALTER TABLE %s.%s RENAME TO %s".formatted(SCHEMA, partition,
+                    PARTITION_PREFIX + partition.substring(partition.length() - 8)));
+        }
+        createDefaultPartition();
+        jdbcTemplate.execute("ALTER TABLE %s.%s ADD CONSTRAINT uk_trip_delay_trip_agency_stop_time UNIQUE (trip_id, agency_id, timestamp)"
+                .formatted(SCHEMA, TABLE));
+        jdbcTemplate.execute("CREATE INDEX idx_adr_agency_timestamp ON %s.%s (agency_id, timestamp)".formatted(SCHEMA, TABLE));
+        jdbcTemplate.execute("CREATE INDEX idx_adr_trip_id ON %s.%s (trip_id)".formatted(SCHEMA, TABLE));
+        for (String foreignKey : foreignKeys) {
+            jdbcTemplate.execute("ALTER TABLE %s.%s ADD %s".formatted(SCHEMA, TABLE, foreignKey));
+        }
+        if (range.get("max_id") != null) {
+            jdbcTemplate.execute("ALTER TABLE %s.%s ALTER COLUMN id RESTART WITH %d"
+                    .formatted(SCHEMA, TABLE, ((Number) range.get("max_id")).longValue() + 1));
+        }
+    }
+
+    /**
+     * Finds the partitions of the table, named with the parent's name followed by their start date.
+     *
+     * @param prefixLength the length of the partition names, minus the date
+     */
+    private List<String> findPartitions(int prefixLength) {
+        return jdbcTemplate.queryForList("""
+                SELECT c.relname FROM pg_inherits i \
+                JOIN pg_class c ON c.oid = i.inhrelid \
+                JOIN pg_class p ON p.oid = i.inhparent \
+                JOIN pg_namespace n ON n.oid = p.relnamespace \
+                WHERE n.nspname = ? AND p.relname = ?""", String.class, SCHEMA, TABLE).stream()
+                .filter(name -> name.length() == prefixLength + 2 + 8)
+                .toList();
+    }
+
+    private void createDefaultPartition() {
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS %1$s.%2$s PARTITION OF %1$s.%3$s DEFAULT"
+                .formatted(SCHEMA, DEFAULT_PARTITION, TABLE));
+    }
+
+    /**
+     * Creates the partition starting at start, if it doesn't exist yet. PostgreSQL refuses to create a partition
+     * whose range holds rows in the default partition, so the partition is created detached, those rows are moved
+     * into it, and it is then attached.
+     */
+    private void createPartition(LocalDate start) {
+        String partition = PARTITION_PREFIX + PARTITION_DATE_FORMAT.format(start);
+        if (jdbcTemplate.queryForObject("SELECT to_regclass(?) IS NOT NULL", Boolean.class, SCHEMA + "." + partition)) {
+            return;
+        }
+        long from = toEpochSecond(start);
+        long to = toEpochSecond(interval.plus(start, 1));
+        transaction.executeWithoutResult(status -> {
+            jdbcTemplate.execute("CREATE TABLE %1$s.%2$s (LIKE %1$s.%3$s INCLUDING DEFAULTS)"
+                    .formatted(SCHEMA, partition, TABLE));
+            int moved = jdbcTemplate.update("""
+                    WITH moved AS (DELETE FROM %1$s.%3$s WHERE timestamp >= ? AND timestamp < ? RETURNING *)                     INSERT INTO %1$s.%2$s SELECT * FROM moved""".formatted(SCHEMA, partition, DEFAULT_PARTITION), from, to);
+            if (moved > 0) {
+                log.info("Moved {} rows from {} to {}", moved, DEFAULT_PARTITION, partition);
+            }
+            jdbcTemplate.execute("ALTER TABLE %1$s.%2$s ATTACH PARTITION %1$s.%3$s FOR VALUES FROM (%4$d) TO (%5$d)"
+                    .formatted(SCHEMA, TABLE, partition, from, to));
+        });
+    }
+
+    private void createPartition(String table, LocalDate start) {
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS %1$s.%2$s_p%3$s PARTITION OF %1$s.%2$s FOR VALUES FROM (%4$d) TO (%5$d)"
+                .formatted(SCHEMA, table, PARTITION_DATE_FORMAT.format(start), toEpochSecond(start),
+                        toEpochSecond(interval.plus(start, 1))));
+    }
+
+    private void dropPartitionsEndingBefore(LocalDate cutoff) {
+        for (String partition : findPartitions(TABLE.length())) {
+            var matcher = PARTITION_NAME.matcher(partition);
+            if (!matcher.matches()) {
+                continue;
+            }
+            var start = LocalDate.parse(matcher.group(1), PARTITION_DATE_FORMAT);
+            if (!interval.plus(start, 1).isAfter(cutoff)) {
+                log.info("Dropping partition {}, past retention of {} days", partition, retentionDays);
+                jdbcTemplate.execute("DROP TABLE %s.%s".formatted(SCHEMA, partition));
+            }
+        }
+    }
+
+    private void deleteDefaultRowsBefore(LocalDate cutoff) {
+        int deleted = jdbcTemplate.update("DELETE FROM %s.%s WHERE timestamp < ?".formatted(SCHEMA, DEFAULT_PARTITION),
+                toEpochSecond(cutoff));
+        if (deleted > 0) {
+            log.info("Deleted {} rows from {}, past retention of {} days", deleted, DEFAULT_PARTITION, retentionDays);
+        }
+    }
+
+    static LocalDate toDate(long epochSecond) {
+        return LocalDate.ofInstant(Instant.ofEpochSecond(epochSecond), ZoneOffset.UTC);
+    }
+
+    static long toEpochSecond(LocalDate date) {
+        return date.atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+    }
+
+    public enum PartitionInterval {
+        WEEK,
+        MONTH;
+
+        LocalDate startOf(LocalDate date) {
+            return this == WEEK ?
+                    date.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY)) :
+                    date.withDayOfMonth(1);
+        }
+
+        LocalDate plus(LocalDate start, int intervals) {
+            return this == WEEK ? start.plusWeeks(intervals) : start.plusMonths(intervals);
+        }
+    }
+}
@@ -0,0 +1,4 @@
+package com.doug.projects.transitdelayservice.repository.jpa;
+
+public record AgencyDelayHistogramBinDto(String routeName, Long bucketStart, Integer bin, Long sampleCount) {
+}
@@ -0,0 +1,35 @@
+package com.doug.projects.transitdelayservice.repository.jpa;
+
+import com.doug.projects.transitdelayservice.entity.jpa.AgencyDelayHistogramBin;
+import com.doug.projects.transitdelayservice.entity.jpa.AgencyDelayHistogramBinId;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.List;
+
+public interface AgencyDelayHistogramBinRepository extends JpaRepository<AgencyDelayHistogramBin, AgencyDelayHistogramBinId> {
+    @Query("""
+            SELECT new com.doug.projects.transitdelayservice.repository.jpa.AgencyDelayHistogramBinDto(b.id.routeName, \
+            b.id.bucketStart, b.id.bin, b.sampleCount) FROM AgencyDelayHistogramBin b \
+            WHERE b.id.agencyId = :agencyId \
+            AND b.id.granularitySeconds = :granularitySeconds \
+            AND b.id.routeName IN :routeNames \
+            AND b.id.bucketStart >= :startTime \
+            AND b.id.bucketStart < :endTime""")
+    List<AgencyDelayHistogramBinDto> findBins(@Param("agencyId") String agencyId,
+                                              @Param("granularitySeconds") Integer granularitySeconds,
+                                              @Param("routeNames") List<String> routeNames,
+                                              @Param("startTime") Long startTime,
+                                              @Param("endTime") Long endTime);
+
+    /**
+     * @return the start of the first bucket with a histogram for the agency at this granularity, or null if there are none
+     */
+    @Query("""
+            SELECT min(b.id.bucketStart) FROM AgencyDelayHistogramBin b \
+            WHERE b.id.agencyId = :agencyId \
+            AND b.id.granularitySeconds = :granularitySeconds""")
+    Long findFirstBucketStart(@Param("agencyId") String agencyId,
+                              @Param("granularitySeconds") Integer granularitySeconds);
+}
@@ -0,0 +1,16 @@
+package com.doug.projects.transitdelayservice.repository.jpa;
+
+public record AgencyDelayRollupDto(String routeName, Long bucketStart, Long sampleCount, Long delaySumSeconds,
+                                   Integer minDelaySeconds, Integer maxDelaySeconds, Long onTimeCount) {
+    /**
+     * @return the rollup of both buckets' bus states, under this bucket's route and start
+     */
+    public AgencyDelayRollupDto combine(AgencyDelayRollupDto other) {
+        return new AgencyDelayRollupDto(routeName, bucketStart,
+                sampleCount + other.sampleCount,
+                delaySumSeconds + other.delaySumSeconds,
+                Math.min(minDelaySeconds, other.minDelaySeconds),
+                Math.max(maxDelaySeconds, other.maxDelaySeconds),
+                onTimeCount + other.onTimeCount);
+    }
+}
@@ -0,0 +1,35 @@
+package com.doug.projects.transitdelayservice.repository.jpa;
+
+import com.doug.projects.transitdelayservice.entity.jpa.AgencyDelayRollup;
+import com.doug.projects.transitdelayservice.entity.jpa.AgencyDelayRollupId;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.List;
+
+public interface AgencyDelayRollupRepository extends JpaRepository<AgencyDelayRollup, AgencyDelayRollupId> {
+    @Query("""
+            SELECT new com.doug.projects.transitdelayservice.repository.jpa.AgencyDelayRollupDto(r.id.routeName, r.id.bucketStart, \
+            r.sampleCount, r.delaySumSeconds, r.minDelaySeconds, r.maxDelaySeconds, r.onTimeCount) FROM AgencyDelayRollup r \
+            WHERE r.id.agencyId = :agencyId \
+            AND r.id.granularitySeconds = :granularitySeconds \
+            AND r.id.routeName IN :routeNames \
+            AND r.id.bucketStart >= :startTime \
+            AND r.id.bucketStart < :endTime""")
+    List<AgencyDelayRollupDto> findRollups(@Param("agencyId") String agencyId,
+                                           @Param("granularitySeconds") Integer granularitySeconds,
+                                           @Param("routeNames") List<String> routeNames,
+                                           @Param("startTime") Long startTime,
+                                           @Param("endTime") Long endTime);
+
+    /**
+     * @return the start of the first bucket rolled up for the agency at this granularity, or null if there are none
+     */
+    @Query("""
+            SELECT min(r.id.bucketStart) FROM AgencyDelayRollup r \
+            WHERE r.id.agencyId = :agencyId \
+            AND r.id.granularitySeconds = :granularitySeconds""")
+    Long findFirstBucketStart(@Param("agencyId") String agencyId,
+                              @Param("granularitySeconds") Integer granularitySeconds);
+}
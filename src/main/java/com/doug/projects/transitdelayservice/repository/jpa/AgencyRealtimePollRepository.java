@@ -0,0 +1,23 @@
+package com.doug.projects.transitdelayservice.repository.jpa;
+
+import com.doug.projects.transitdelayservice.entity.jpa.AgencyRealtimePoll;
+import com.doug.projects.transitdelayservice.entity.jpa.AgencyRealtimePollId;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.List;
+
+public interface AgencyRealtimePollRepository extends JpaRepository<AgencyRealtimePoll, AgencyRealtimePollId> {
+    @Query("""
+            select p.id.timestamp from AgencyRealtimePoll p \
+            where p.id.agencyId = :agencyId \
+            and p.id.timestamp between :startTime and :endTime \
+            order by p.id.timestamp""")
+    List<Long> findTimestampsByAgencyIdAndTimestampBetween(@Param("agencyId") String agencyId,
+                                                           @Param("startTime") Long startTime,
+                                                           @Param("endTime") Long endTime);
+
+    @Query("select max(p.id.timestamp) from AgencyRealtimePoll p where p.id.agencyId = :agencyId")
+    Long findMaxTimestampByAgencyId(@Param("agencyId") String agencyId);
+}
@@ -0,0 +1,4 @@
+package com.doug.projects.transitdelayservice.repository.jpa;
+
+public record AgencyRouteMetadataDto(String routeName, String routeColor, Integer routeSortOrder) {
+}
@@ -0,0 +1,4 @@
+package com.doug.projects.transitdelayservice.repository.jpa;
+
+public record AgencyRouteNameDto(String routeId, String routeName) {
+}
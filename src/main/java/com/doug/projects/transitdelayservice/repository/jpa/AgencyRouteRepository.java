@@ -6,14 +6,24 @@ import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
 
 import java.util.List;
-import java.util.Optional;
 
 public interface AgencyRouteRepository extends JpaRepository<AgencyRoute, AgencyRouteId> {
-    @Query("select routeName from AgencyRoute where id = :routeId")
-    Optional<String> findRouteNameById(AgencyRouteId routeId);
-
     List<AgencyRoute> findAllByAgency_Id(String agencyId);
 
+    @Query("""
+            select new com.doug.projects.transitdelayservice.repository.jpa.AgencyRouteNameDto(r.id.routeId, r.routeName)
+            from AgencyRoute r
+            where r.id.agencyId = :agencyId
+            """)
+    List<AgencyRouteNameDto> findAllRouteNamesByAgencyId(String agencyId);
+
+    @Query("""
+            select new com.doug.projects.transitdelayservice.repository.jpa.AgencyRouteMetadataDto(r.routeName, r.routeColor, r.routeSortOrder)
+            from AgencyRoute r
+            where r.id.agencyId = :agencyId
+            """)
+    List<AgencyRouteMetadataDto> findAllRouteMetadataByAgencyId(String agencyId);
+
     @Query("""
                 select r.routeName
                 from AgencyRoute r
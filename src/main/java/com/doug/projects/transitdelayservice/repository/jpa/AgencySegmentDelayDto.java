@@ -0,0 +1,8 @@
+package com.doug.projects.transitdelayservice.repository.jpa;
+
+/**
+ * The delays rolled up for a segment, summed over the hours read
+ */
+public record AgencySegmentDelayDto(String fromStopId, String toStopId, String shapeId, Integer fromStopSequence,
+                                    Integer toStopSequence, Long sampleCount, Double delaySumSeconds) {
+}
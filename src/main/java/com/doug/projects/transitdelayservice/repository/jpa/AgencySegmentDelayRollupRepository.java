@@ -0,0 +1,41 @@
+package com.doug.projects.transitdelayservice.repository.jpa;
+
+import com.doug.projects.transitdelayservice.entity.jpa.AgencySegmentDelayRollup;
+import com.doug.projects.transitdelayservice.entity.jpa.AgencySegmentDelayRollupId;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.Collection;
+import java.util.List;
+
+public interface AgencySegmentDelayRollupRepository extends JpaRepository<AgencySegmentDelayRollup, AgencySegmentDelayRollupId> {
+    /**
+     * Sums each segment's hours between startTime and endTime which fall in hoursOfWeek, counting only the segments
+     * driven since a poll which falls in hoursOfWeek too
+     */
+    @Query("""
+            SELECT new com.doug.projects.transitdelayservice.repository.jpa.AgencySegmentDelayDto(r.id.fromStopId, \
+            r.id.toStopId, r.id.shapeId, min(r.fromStopSequence), min(r.toStopSequence), sum(r.sampleCount), \
+            sum(r.delaySumSeconds)) FROM AgencySegmentDelayRollup r \
+            WHERE r.id.agencyId = :agencyId \
+            AND r.id.routeName IN :routeNames \
+            AND r.id.bucketStart >= :startTime \
+            AND r.id.bucketStart < :endTime \
+            AND r.id.hourOfWeek IN :hoursOfWeek \
+            AND r.id.previousHourOfWeek IN :hoursOfWeek \
+            GROUP BY r.id.fromStopId, r.id.toStopId, r.id.shapeId""")
+    List<AgencySegmentDelayDto> sumSegments(@Param("agencyId") String agencyId,
+                                            @Param("routeNames") List<String> routeNames,
+                                            @Param("startTime") Long startTime,
+                                            @Param("endTime") Long endTime,
+                                            @Param("hoursOfWeek") Collection<Integer> hoursOfWeek);
+
+    /**
+     * @return the start of the first hour rolled up for the agency, or null if there are none
+     */
+    @Query("""
+            SELECT min(r.id.bucketStart) FROM AgencySegmentDelayRollup r \
+            WHERE r.id.agencyId = :agencyId""")
+    Long findFirstBucketStart(@Param("agencyId") String agencyId);
+}
@@ -0,0 +1,4 @@
+package com.doug.projects.transitdelayservice.repository.jpa;
+
+public record AgencyShapePointDto(String shapeId, Double shapePtLat, Double shapePtLon) {
+}
@@ -2,8 +2,27 @@ package com.doug.projects.transitdelayservice.repository.jpa;
 
 import com.doug.projects.transitdelayservice.entity.jpa.AgencyShapePoint;
 import com.doug.projects.transitdelayservice.entity.jpa.AgencyShapePointId;
+import jakarta.persistence.QueryHint;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 
-public interface AgencyShapePointRepository extends JpaRepository<AgencyShapePoint, AgencyShapePointId> {
+import java.util.stream.Stream;
+
+import static org.hibernate.jpa.HibernateHints.HINT_FETCH_SIZE;
 
-}
\ No newline at end of file
+public interface AgencyShapePointRepository extends JpaRepository<AgencyShapePoint, AgencyShapePointId> {
+    /**
+     * Streams every shape point of an agency, grouped by shape and ordered by sequence.
+     * Must be consumed inside a transaction, and closed afterward.
+     */
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "5000"))
+    @Query("""
+            select new com.doug.projects.transitdelayservice.repository.jpa.AgencyShapePointDto(
+                p.id.shapeId, p.shapePtLat, p.shapePtLon)
+            from AgencyShapePoint p
+            where p.id.agencyId = :agencyId
+            order by p.id.shapeId, p.id.sequence
+            """)
+    Stream<AgencyShapePointDto> streamPointsByAgencyId(String agencyId);
+}
@@ -0,0 +1,7 @@
+package com.doug.projects.transitdelayservice.repository.jpa;
+
+/**
+ * A stop of the trips following a shape, at its stop sequence
+ */
+public record AgencyShapeStopDto(String shapeId, Integer stopSequence, String stopId, Double stopLat, Double stopLon) {
+}
@@ -3,15 +3,64 @@ package com.doug.projects.transitdelayservice.repository.jpa;
 import com.doug.projects.transitdelayservice.entity.jpa.AgencyStopTime;
 import com.doug.projects.transitdelayservice.entity.jpa.AgencyStopTimeId;
 import com.doug.projects.transitdelayservice.entity.jpa.AgencyTripId;
+import jakarta.persistence.QueryHint;
 import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.stream.Stream;
+
+import static org.hibernate.jpa.HibernateHints.HINT_FETCH_SIZE;
 
 public interface AgencyStopTimeRepository extends JpaRepository<AgencyStopTime, AgencyStopTimeId> {
     @EntityGraph(attributePaths = {"trip", "stop"})
     List<AgencyStopTime> findAllByTrip_IdIn(Collection<AgencyTripId> trip_id);
 
-    List<AgencyStopTime> findAllByIdInAndTripRouteAgencyId(Collection<AgencyStopTimeId> ids, String tripRouteAgencyId);
-}
\ No newline at end of file
+    /**
+     * Streams the whole schedule of an agency, grouped by trip and ordered by stop sequence.
+     * Must be consumed inside a transaction, and closed afterward.
+     */
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "5000"))
+    @Query("""
+            select new com.doug.projects.transitdelayservice.repository.jpa.AgencyStopTimeScheduleDto(
+                st.id.tripId, st.id.stopSequence, st.arrivalTimeSecs, st.departureTimeSecs)
+            from AgencyStopTime st
+            where st.id.agencyId = :agencyId
+            order by st.id.tripId, st.id.stopSequence
+            """)
+    Stream<AgencyStopTimeScheduleDto> streamScheduleByAgencyId(String agencyId);
+
+    /**
+     * Gets the stops of the trips, ordered by trip and stop sequence
+     */
+    @Query("""
+            select new com.doug.projects.transitdelayservice.repository.jpa.AgencyTripStopDto(
+                st.id.tripId, st.id.stopSequence, st.stopId, t.shapeId)
+            from AgencyStopTime st
+            join st.trip t
+            where st.id.agencyId = :agencyId
+            and st.id.tripId in :tripIds
+            order by st.id.tripId, st.id.stopSequence
+            """)
+    List<AgencyTripStopDto> findTripStops(String agencyId, Collection<String> tripIds);
+
+    /**
+     * Streams the distinct stops of the trips following each shape of an agency, grouped by shape and ordered by
+     * stop sequence. Must be consumed inside a transaction, and closed afterward.
+     */
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "5000"))
+    @Query("""
+            select distinct new com.doug.projects.transitdelayservice.repository.jpa.AgencyShapeStopDto(
+                t.shapeId, st.id.stopSequence, st.stopId, s.stopLat, s.stopLon)
+            from AgencyStopTime st
+            join st.trip t
+            join st.stop s
+            where st.id.agencyId = :agencyId
+            and t.shapeId is not null
+            order by t.shapeId, st.id.stopSequence
+            """)
+    Stream<AgencyShapeStopDto> streamShapeStopsByAgencyId(String agencyId);
+}
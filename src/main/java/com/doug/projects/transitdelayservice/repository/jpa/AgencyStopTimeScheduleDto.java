@@ -0,0 +1,5 @@
+package com.doug.projects.transitdelayservice.repository.jpa;
+
+public record AgencyStopTimeScheduleDto(String tripId, Integer stopSequence, Integer arrivalTimeSecs,
+                                        Integer departureTimeSecs) {
+}
@@ -2,25 +2,118 @@ package com.doug.projects.transitdelayservice.repository.jpa;
 
 import com.doug.projects.transitdelayservice.entity.jpa.AgencyTripDelay;
 import com.doug.projects.transitdelayservice.entity.jpa.AgencyTripDelayId;
+import jakarta.persistence.QueryHint;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.stream.Stream;
+
+import static org.hibernate.jpa.HibernateHints.HINT_FETCH_SIZE;
 
 public interface AgencyTripDelayRepository extends JpaRepository<AgencyTripDelay, AgencyTripDelayId> {
+    /**
+     * Finds delay rows which apply between startTime and endTime. A delta mode row applies from its timestamp until its
+     * lastSeenTimestamp, so rows starting up to lookbackSeconds before startTime are included if they are still seen
+     * in the range. Both bounds are on timestamp, so a partitioned table only scans partitions in range.
+     */
     @Query("""
-            SELECT new com.doug.projects.transitdelayservice.repository.jpa.AgencyTripDelayDto(r.routeName,adr.timestamp, adr.delaySeconds, adr.stopId, adr.tripId) FROM AgencyTripDelay adr \
+            SELECT new com.doug.projects.transitdelayservice.repository.jpa.AgencyTripDelayDto(r.routeName,adr.timestamp, adr.delaySeconds, adr.stopId, adr.tripId, adr.lastSeenTimestamp) FROM AgencyTripDelay adr \
             JOIN adr.trip t \
             JOIN t.route r \
             WHERE adr.agencyId = :agencyId \
             AND r.routeName IN :routeNames \
-            AND adr.timestamp BETWEEN :startTime AND :endTime \
+            AND adr.timestamp BETWEEN :lookbackStartTime AND :endTime \
+            AND COALESCE(adr.lastSeenTimestamp, adr.timestamp) >= :startTime \
             ORDER BY adr.timestamp ASC""")
     List<AgencyTripDelayDto> findDelayRecordsForRoutesAndTimeRange(
             @Param("agencyId") String agencyId,
             @Param("routeNames") List<String> routeNames,
+            @Param("lookbackStartTime") Long lookbackStartTime,
+            @Param("startTime") Long startTime,
+            @Param("endTime") Long endTime
+    );
+
+    /**
+     * Streams the same rows as {@link #findDelayRecordsForRoutesAndTimeRange}, unordered.
+     * Must be consumed inside a transaction, and closed afterward.
+     */
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "5000"))
+    @Query("""
+            SELECT new com.doug.projects.transitdelayservice.repository.jpa.AgencyTripDelayDto(r.routeName,adr.timestamp, adr.delaySeconds, adr.stopId, adr.tripId, adr.lastSeenTimestamp) FROM AgencyTripDelay adr \
+            JOIN adr.trip t \
+            JOIN t.route r \
+            WHERE adr.agencyId = :agencyId \
+            AND r.routeName IN :routeNames \
+            AND adr.timestamp BETWEEN :lookbackStartTime AND :endTime \
+            AND COALESCE(adr.lastSeenTimestamp, adr.timestamp) >= :startTime""")
+    Stream<AgencyTripDelayDto> streamDelayRecordsForRoutesAndTimeRange(
+            @Param("agencyId") String agencyId,
+            @Param("routeNames") List<String> routeNames,
+            @Param("lookbackStartTime") Long lookbackStartTime,
             @Param("startTime") Long startTime,
             @Param("endTime") Long endTime
     );
-}
\ No newline at end of file
+
+    /**
+     * Streams the rows of every route which apply between startTime and endTime, ordered by timestamp.
+     * Must be consumed inside a transaction, and closed afterward.
+     */
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "5000"))
+    @Query("""
+            SELECT new com.doug.projects.transitdelayservice.repository.jpa.AgencyTripDelayDto(r.routeName,adr.timestamp, adr.delaySeconds, adr.stopId, adr.tripId, adr.lastSeenTimestamp) FROM AgencyTripDelay adr \
+            JOIN adr.trip t \
+            JOIN t.route r \
+            WHERE adr.agencyId = :agencyId \
+            AND adr.timestamp BETWEEN :lookbackStartTime AND :endTime \
+            AND COALESCE(adr.lastSeenTimestamp, adr.timestamp) >= :startTime \
+            ORDER BY adr.timestamp ASC""")
+    Stream<AgencyTripDelayDto> streamDelayRecordsForTimeRange(
+            @Param("agencyId") String agencyId,
+            @Param("lookbackStartTime") Long lookbackStartTime,
+            @Param("startTime") Long startTime,
+            @Param("endTime") Long endTime
+    );
+
+    /**
+     * Closes the trips' open rows, as last seen at lastSeenTimestamp. Rows start no earlier than minTimestamp, which
+     * keeps the update to recent partitions if the table is partitioned.
+     *
+     * @return the number of rows closed
+     */
+    @Transactional
+    @Modifying
+    @Query("""
+            update AgencyTripDelay d set d.lastSeenTimestamp = :lastSeenTimestamp \
+            where d.agencyId = :agencyId \
+            and d.timestamp >= :minTimestamp \
+            and d.lastSeenTimestamp = com.doug.projects.transitdelayservice.entity.jpa.AgencyTripDelay.OPEN_LAST_SEEN_TIMESTAMP \
+            and d.tripId in :tripIds""")
+    int closeOpenRows(@Param("agencyId") String agencyId,
+                      @Param("tripIds") Collection<String> tripIds,
+                      @Param("minTimestamp") Long minTimestamp,
+                      @Param("lastSeenTimestamp") Long lastSeenTimestamp);
+
+    /**
+     * Closes every open row of agencyId, as last seen at lastSeenTimestamp. Used when the trips' states were lost, on
+     * restart.
+     *
+     * @return the number of rows closed
+     */
+    @Transactional
+    @Modifying
+    @Query("""
+            update AgencyTripDelay d set d.lastSeenTimestamp = :lastSeenTimestamp \
+            where d.agencyId = :agencyId \
+            and d.lastSeenTimestamp = com.doug.projects.transitdelayservice.entity.jpa.AgencyTripDelay.OPEN_LAST_SEEN_TIMESTAMP""")
+    int closeAllOpenRows(@Param("agencyId") String agencyId,
+                         @Param("lastSeenTimestamp") Long lastSeenTimestamp);
+
+    @Query("select max(d.timestamp) from AgencyTripDelay d where d.agencyId = :agencyId")
+    Long findMaxTimestampByAgencyId(@Param("agencyId") String agencyId);
+}
@@ -5,9 +5,9 @@ import com.doug.projects.transitdelayservice.entity.jpa.AgencyTripId;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
 
-import java.util.Optional;
+import java.util.List;
 
 public interface AgencyTripRepository extends JpaRepository<AgencyTrip, AgencyTripId> {
-    @Query("select r.routeName from AgencyTrip as t join AgencyRoute r on t.routeId = r.id.routeId and t.id.agencyId = r.id.agencyId where t.id = :tripId")
-    Optional<String> findRouteNameById(AgencyTripId tripId);
+    @Query("select new com.doug.projects.transitdelayservice.repository.jpa.AgencyTripRouteDto(t.id.tripId, t.routeId) from AgencyTrip t where t.id.agencyId = :agencyId")
+    List<AgencyTripRouteDto> findAllTripRoutesByAgencyId(String agencyId);
 }
\ No newline at end of file
@@ -0,0 +1,7 @@
+package com.doug.projects.transitdelayservice.repository.jpa;
+
+/**
+ * A stop of a trip, at its stop sequence
+ */
+public record AgencyTripStopDto(String tripId, Integer stopSequence, String stopId, String shapeId) {
+}
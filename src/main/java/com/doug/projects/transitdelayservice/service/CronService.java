@@ -1,33 +1,42 @@
 package com.doug.projects.transitdelayservice.service;
 
-import com.doug.projects.transitdelayservice.entity.AgencyRouteTimestamp;
 import com.doug.projects.transitdelayservice.entity.jpa.AgencyFeedDto;
 import com.doug.projects.transitdelayservice.repository.AgencyRouteTimestampRepository;
+import com.doug.projects.transitdelayservice.repository.RecentDelayStore;
+import com.doug.projects.transitdelayservice.repository.TripDelayPartitionManager;
 import jakarta.transaction.Transactional;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Async;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 @Service
 @RequiredArgsConstructor
 @Slf4j
 public class CronService {
     private final GtfsFeedAggregator gtfsFeedAggregator;
-    private final GtfsRealtimeParserService rtResponseService;
-    private final AgencyRouteTimestampRepository routeTimestampRepository;
-    private final GtfsRetryOnFailureService retryOnFailureService;
+    private final RealtimeIngestPipeline realtimeIngestPipeline;
     private final AgencyFeedService agencyFeedService;
     private final GtfsStaticParserService gtfsStaticParserService;
+    private final TripDelayPartitionManager tripDelayPartitionManager;
+    private final AgencyRouteTimestampRepository routeTimestampRepository;
+    private final RecentDelayStore recentDelayStore;
     @Value("${doesAgencyCronRun}")
     private Boolean doesAgencyCronRun;
     @Value("${doesRealtimeCronRun}")
     private Boolean doesRealtimeCronRun;
+    @Value("${realtime.feedTimeoutSeconds}")
+    private long feedTimeoutSeconds;
 
     @Scheduled(fixedRate = 30, timeUnit = TimeUnit.DAYS)
     @Transactional
@@ -59,6 +68,9 @@ public class CronService {
 
     /**
      * Attempts to poll all realtime feeds, except those which we are not authorized for. Writes realtime data to db, if it is available.
+     * <p>
+     * Feeds are handed to the realtime ingest pipeline, which fetches, decodes, resolves and writes them in separate
+     * stages. A failure or timeout in one feed does not affect the others.
      */
     @Scheduled(fixedRate = 5, timeUnit = TimeUnit.MINUTES)
     public void writeGtfsRealtimeData() {
@@ -67,16 +79,31 @@ public class CronService {
         log.info("Starting realtime data write");
 
         var feeds = agencyFeedService.getAllAgencyFeeds();
+        var polls = feeds.stream()
+                .map(this::writeGtfsRealtimeDataAsync)
+                .toArray(CompletableFuture[]::new);
+        CompletableFuture.allOf(polls).join();
+        log.info("Finished realtime data write. Pipeline stats: {}", realtimeIngestPipeline.getStats());
+    }
 
-        for (AgencyFeedDto feed : feeds) {
-            var rtResp = rtResponseService.pollFeed(feed);
-            if(rtResp != null) retryOnFailureService.pollStaticFeedIfNeeded(rtResp);
-            List<AgencyRouteTimestamp> routeTimestamps = rtResp != null && rtResp.getRouteTimestamps() != null ?
-                    rtResp.getRouteTimestamps() :
-                    Collections.emptyList();
-            routeTimestampRepository.saveAll(routeTimestamps, feed.getId());
-        }
-        log.info("Finished realtime data write");
+    /**
+     * Submits a single feed to the realtime ingest pipeline.
+     *
+     * @param feed the feed to poll
+     * @return a future which always completes normally, once the feed has been written, failed, or timed out
+     */
+    private CompletableFuture<Void> writeGtfsRealtimeDataAsync(AgencyFeedDto feed) {
+        return realtimeIngestPipeline.submit(feed)
+                .orTimeout(feedTimeoutSeconds, TimeUnit.SECONDS)
+                .exceptionally(e -> {
+                    Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                    if (cause instanceof TimeoutException) {
+                        log.error("Feed {} did not finish within {}s, no longer waiting on it for this poll", feed.getId(), feedTimeoutSeconds);
+                    } else {
+                        log.error("Feed {} failed to write realtime data", feed.getId(), cause);
+                    }
+                    return null;
+                });
     }
 
     @Scheduled(fixedRate = 1, timeUnit = TimeUnit.DAYS)
@@ -89,4 +116,30 @@ public class CronService {
             gtfsStaticParserService.writeGtfsStaticDataToDbFromDiskSync(feed);
         }
     }
+
+    /**
+     * Creates upcoming trip delay partitions and drops expired ones, if partitioning is enabled.
+     */
+    @Scheduled(fixedRate = 1, timeUnit = TimeUnit.DAYS)
+    public void maintainTripDelayPartitions() {
+        tripDelayPartitionManager.maintain();
+    }
+
+    /**
+     * Fills in each feed's recent delays from the db, in the background so startup isn't held up on it. Reads go to
+     * the db until a feed is loaded.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Async
+    public void loadRecentDelays() {
+        if (!recentDelayStore.isEnabled())
+            return;
+        for (AgencyFeedDto feed : agencyFeedService.getAllAgencyFeeds()) {
+            try {
+                routeTimestampRepository.loadRecentDelays(feed.getId());
+            } catch (Exception e) {
+                log.error("Failed to load recent delays of feed {}", feed.getId(), e);
+            }
+        }
+    }
 }
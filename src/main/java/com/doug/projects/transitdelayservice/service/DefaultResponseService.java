@@ -0,0 +1,197 @@
+package com.doug.projects.transitdelayservice.service;
+
+import com.doug.projects.transitdelayservice.entity.GraphOptions;
+import com.doug.projects.transitdelayservice.entity.GraphType;
+import com.doug.projects.transitdelayservice.entity.MapOptions;
+import com.doug.projects.transitdelayservice.entity.RealtimeDataSavedEvent;
+import com.doug.projects.transitdelayservice.repository.GtfsStaticService;
+import com.doug.projects.transitdelayservice.util.TransitDateUtil;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.interceptor.SimpleKey;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.stereotype.Service;
+import org.springframework.util.CollectionUtils;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.doug.projects.transitdelayservice.config.AsyncConfiguration.DEFAULT_RESPONSE_EXECUTOR;
+import static com.doug.projects.transitdelayservice.config.CachingConfiguration.DELAY_MAP_CACHE;
+import static com.doug.projects.transitdelayservice.entity.jpa.AgencyDelayRollup.ON_TIME_LOWER_MINUTES;
+import static com.doug.projects.transitdelayservice.entity.jpa.AgencyDelayRollup.ON_TIME_UPPER_MINUTES;
+
+/**
+ * Holds each feed's landing page responses, serialized: the default graphs (6 days ago to tonight, 7 units, every
+ * route) and the default delay map of every route. They are recomputed after each poll of the feed which wrote delays,
+ * so requests for them never wait on a recomputation. Polls which were skipped or failed don't recompute them.
+ * <p>
+ * Refreshes run on their own executor, one feed at a time. Polls saved while a feed's refresh is waiting or running
+ * queue at most one more refresh of that feed.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class DefaultResponseService {
+    static final List<GraphType> DEFAULT_GRAPH_TYPES = List.of(GraphType.AVERAGE, GraphType.MAX, GraphType.MEDIAN, GraphType.PERCENT);
+    private static final int DEFAULT_UNITS = 7;
+    private static final int IDLE = 0;
+    private static final int REFRESHING = 1;
+    /**
+     * Refreshing, and saved again since the refresh started
+     */
+    private static final int STALE = 2;
+
+    private final GetDelayService getDelayService;
+    private final MapperService mapperService;
+    private final GtfsStaticService gtfsStaticService;
+    private final CacheManager cacheManager;
+    private final ObjectMapper objectMapper;
+    @Qualifier(DEFAULT_RESPONSE_EXECUTOR)
+    private final TaskExecutor refreshExecutor;
+    private final Map<String, DefaultResponses> responsesByFeed = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> refreshStates = new ConcurrentHashMap<>();
+
+    /**
+     * Queues a refresh of the feed whose delays were just written, unless one is already queued.
+     */
+    @EventListener
+    public void onRealtimeDataSaved(RealtimeDataSavedEvent event) {
+        String feedId = event.agencyId();
+        AtomicInteger state = refreshStates.computeIfAbsent(feedId, k -> new AtomicInteger(IDLE));
+        if (state.getAndUpdate(current -> current == IDLE ? REFRESHING : STALE) == IDLE) {
+            submitRefresh(feedId, state);
+        }
+    }
+
+    private void submitRefresh(String feedId, AtomicInteger state) {
+        try {
+            refreshExecutor.execute(() -> {
+                //polls saved while this refresh waited are read by it
+                state.set(REFRESHING);
+                try {
+                    refresh(feedId);
+                } finally {
+                    //saved again while refreshing, so refresh once more, behind the other feeds
+                    if (state.getAndUpdate(current -> current == STALE ? REFRESHING : IDLE) == STALE) {
+                        submitRefresh(feedId, state);
+                    }
+                }
+            });
+        } catch (TaskRejectedException e) {
+            state.set(IDLE);
+            log.error("Too many default response refreshes waiting, skipping feed {}", feedId);
+        }
+    }
+
+    /**
+     * Recomputes feedId's default responses. A refresh which started before the one already held is discarded.
+     */
+    public void refresh(String feedId) {
+        long started = System.nanoTime();
+        try {
+            var responses = compute(feedId, started);
+            responsesByFeed.merge(feedId, responses, (held, computed) -> computed.started() - held.started() > 0 ? computed : held);
+            log.info("Refreshed default responses of feed {} in {}ms", feedId, (System.nanoTime() - started) / 1_000_000);
+        } catch (Exception e) {
+            log.error("Failed to refresh default responses of feed {}", feedId, e);
+        }
+    }
+
+    /**
+     * @param type the graph type, as named in the request path
+     * @return the serialized graph, if graphOptions are the defaults and it was computed for today's range
+     */
+    public Optional<byte[]> getGraph(String feedId, String type, GraphOptions graphOptions) {
+        DefaultResponses responses = responsesByFeed.get(feedId);
+        if (responses == null || !isDefault(graphOptions, responses)) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(responses.graphs().get(type));
+    }
+
+    /**
+     * @return the serialized delay map, if mapOptions are the defaults and it was computed for today's range
+     */
+    public Optional<byte[]> getMap(String feedId, MapOptions mapOptions) {
+        DefaultResponses responses = responsesByFeed.get(feedId);
+        if (responses == null || responses.map() == null || !isDefault(mapOptions, responses)) {
+            return Optional.empty();
+        }
+        return Optional.of(responses.map());
+    }
+
+    private DefaultResponses compute(String feedId, long started) throws Exception {
+        List<String> routes = gtfsStaticService.findAllRouteNamesSorted(feedId);
+        long startTime = TransitDateUtil.getMidnightSixDaysAgo();
+        long endTime = TransitDateUtil.getMidnightTonight();
+        var graphOptions = GraphOptions.builder()
+                .startTime(startTime)
+                .endTime(endTime)
+                .routes(routes)
+                .build();
+        Map<String, byte[]> graphs = new HashMap<>();
+        var graphsByType = getDelayService.getDelayGraphs(feedId, graphOptions, DEFAULT_GRAPH_TYPES);
+        for (var graph : graphsByType.entrySet()) {
+            graphs.put(graph.getKey().name().toLowerCase(), objectMapper.writeValueAsBytes(graph.getValue()));
+        }
+
+        byte[] map = null;
+        if (!routes.isEmpty()) {
+            var mapOptions = new MapOptions();
+            mapOptions.setRouteNames(routes);
+            //the cached map may predate this poll
+            Cache mapCache = cacheManager.getCache(DELAY_MAP_CACHE);
+            if (mapCache != null) {
+                mapCache.evict(new SimpleKey(feedId, mapOptions));
+            }
+            map = objectMapper.writeValueAsBytes(mapperService.getDelayLines(feedId, mapOptions));
+        }
+        return new DefaultResponses(started, normalize(routes), startTime, endTime, graphs, map);
+    }
+
+    private static boolean isDefault(GraphOptions graphOptions, DefaultResponses responses) {
+        long startTime = graphOptions.getStartTime() == null ? TransitDateUtil.getMidnightSixDaysAgo() : graphOptions.getStartTime();
+        long endTime = graphOptions.getEndTime() == null ? TransitDateUtil.getMidnightTonight() : graphOptions.getEndTime();
+        return startTime == responses.startTime() && endTime == responses.endTime() &&
+                endTime == TransitDateUtil.getMidnightTonight() &&
+                (graphOptions.getUnits() == null || graphOptions.getUnits() == DEFAULT_UNITS) &&
+                (graphOptions.getUseColor() == null || graphOptions.getUseColor()) &&
+                (graphOptions.getLowerOnTimeThreshold() == null || graphOptions.getLowerOnTimeThreshold() == ON_TIME_LOWER_MINUTES) &&
+                (graphOptions.getUpperOnTimeThreshold() == null || graphOptions.getUpperOnTimeThreshold() == ON_TIME_UPPER_MINUTES) &&
+                !CollectionUtils.isEmpty(graphOptions.getRoutes()) &&
+                normalize(graphOptions.getRoutes()).equals(responses.routes());
+    }
+
+    private static boolean isDefault(MapOptions mapOptions, DefaultResponses responses) {
+        var defaults = new MapOptions();
+        return responses.endTime() == TransitDateUtil.getMidnightTonight() &&
+                mapOptions.getSearchPeriod() == defaults.getSearchPeriod() &&
+                mapOptions.getHourStarted() == defaults.getHourStarted() &&
+                mapOptions.getHourEnded() == defaults.getHourEnded() &&
+                Objects.equals(mapOptions.getDaysSelected(), defaults.getDaysSelected()) &&
+                !CollectionUtils.isEmpty(mapOptions.getRouteNames()) &&
+                normalize(mapOptions.getRouteNames()).equals(responses.routes());
+    }
+
+    private static List<String> normalize(List<String> routes) {
+        return routes.stream().sorted().distinct().toList();
+    }
+
+    /**
+     * @param started when the refresh which computed these started, by {@link System#nanoTime()}
+     * @param routes  every route of the feed, sorted
+     * @param graphs  serialized graphs, by lowercase type name
+     * @param map     the serialized delay map, or null if the feed has no routes
+     */
+    private record DefaultResponses(long started, List<String> routes, long startTime, long endTime,
+                                    Map<String, byte[]> graphs, byte[] map) {
+    }
+}
@@ -1,83 +1,87 @@
 package com.doug.projects.transitdelayservice.service;
 
+import com.doug.projects.transitdelayservice.entity.GtfsStaticDataLoadedEvent;
 import com.doug.projects.transitdelayservice.entity.jpa.AgencyFeed;
-import com.doug.projects.transitdelayservice.entity.jpa.AgencyStopTime;
-import com.doug.projects.transitdelayservice.entity.jpa.AgencyStopTimeId;
 import com.doug.projects.transitdelayservice.entity.transit.ExpectedBusTimes;
 import com.doug.projects.transitdelayservice.repository.jpa.AgencyFeedRepository;
 import com.doug.projects.transitdelayservice.repository.jpa.AgencyStopTimeRepository;
-import com.google.transit.realtime.GtfsRealtime;
-import lombok.RequiredArgsConstructor;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyStopTimeScheduleDto;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang3.StringUtils;
+import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
 
-import java.util.List;
 import java.util.Map;
-import java.util.Optional;
-import java.util.stream.Collectors;
-
-import static com.doug.projects.transitdelayservice.service.GtfsRealtimeParserService.getFirstScheduled;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
 
+/**
+ * Holds the resident schedule (stop times) of each feed, used to diff realtime arrivals/departures against.
+ * A feed's schedule is read from the db the first time it is needed, then rebuilt only when its static data reloads,
+ * so realtime polling never queries stop times.
+ */
 @Slf4j
 @Service
-@RequiredArgsConstructor
 public class ExpectedBusTimesService {
     private final AgencyFeedRepository agencyRepository;
     private final AgencyStopTimeRepository agencyStopTimeRepository;
+    private final TransactionTemplate readOnlyTransaction;
+    private final Map<String, ExpectedBusTimes> schedulesByFeed = new ConcurrentHashMap<>();
 
-    public ExpectedBusTimes getTripMapFor(String feedId, Map<String, Integer> tripsWithoutDelayAttribute) {
-        if (tripsWithoutDelayAttribute.isEmpty()) {
-            return new ExpectedBusTimes();
-        }
-        List<AgencyStopTimeId> ids = tripsWithoutDelayAttribute.entrySet().stream()
-                .map(e -> new AgencyStopTimeId(e.getKey(), e.getValue(), feedId))
-                        .toList();
-        List<AgencyStopTime> agencyStopTimes = agencyStopTimeRepository.findAllByIdInAndTripRouteAgencyId(ids,feedId);
-        Optional<AgencyFeed> feed = agencyRepository.findById(feedId);
-        var busTimes = new ExpectedBusTimes();
-        for (AgencyStopTime i : agencyStopTimes) {
-            busTimes.putDeparture(i.getTripId(), i.getStopSeq(), i.getDepartureTimeSecs());
-            busTimes.putArrival(i.getTripId(), i.getStopSeq(), i.getArrivalTimeSecs());
-            busTimes.setTimezone(feed.map(AgencyFeed::getTimezone).orElse(null));
-        }
-        var foundIds = agencyStopTimes.stream().map(AgencyStopTime::getId).collect(Collectors.toSet());
-        var notFoundIds = ids.stream()
-                .filter(s -> !foundIds.contains(s))
-                .toList();
-        if (!notFoundIds.isEmpty()) {
-            log.error("Failed to find ids: {}", notFoundIds);
-        }
-        return busTimes;
+    public ExpectedBusTimesService(AgencyFeedRepository agencyRepository,
+                                   AgencyStopTimeRepository agencyStopTimeRepository,
+                                   PlatformTransactionManager transactionManager) {
+        this.agencyRepository = agencyRepository;
+        this.agencyStopTimeRepository = agencyStopTimeRepository;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
     }
 
-    public static Map<String, Integer> getTripsWithoutDelayAttribute(List<GtfsRealtime.TripUpdate> tripUpdates) {
-        return tripUpdates.stream()
-                .filter(tu -> getFirstScheduled(tu).isPresent())
-                .filter(tu -> StringUtils.isNotBlank(tu.getTrip().getTripId()))
-                .collect(Collectors.toMap(
-                        ExpectedBusTimesService::getTripId,
-                        tu -> getFirstScheduled(tu)
-                                .map(GtfsRealtime.TripUpdate.StopTimeUpdate::getStopSequence)
-                                .orElse(0),
-                        (a, b) -> a));
-    }
-
-    private static boolean hasTripIdAndStopSequence(GtfsRealtime.TripUpdate tripUpdate) {
-        return tripUpdate.getTrip().hasTripId() && tripUpdate.getStopTimeUpdateCount() > 0;
+    /**
+     * Gets the resident schedule of a feed, loading it from the db if this is the first time it is needed.
+     */
+    public ExpectedBusTimes getSchedule(String feedId) {
+        ExpectedBusTimes schedule = schedulesByFeed.get(feedId);
+        if (schedule == null) {
+            schedule = loadSchedule(feedId);
+            ExpectedBusTimes existing = schedulesByFeed.putIfAbsent(feedId, schedule);
+            if (existing != null) {
+                schedule = existing;
+            }
+        }
+        return schedule;
     }
 
-    private static boolean doesTripNotHaveDelayAttribute(GtfsRealtime.TripUpdate tripUpdate) {
-        return !(tripUpdate.hasDelay() ||
-                tripUpdate.getStopTimeUpdateList().stream().anyMatch(s -> s.getDeparture().hasDelay()) ||
-                tripUpdate.getStopTimeUpdateList().stream().anyMatch(s -> s.getArrival().hasDelay()));
+    /**
+     * Swaps in the schedule of the new stop times, read in the background once they are committed. Until then, trip
+     * updates are still diffed against the previous schedule, so a delay is never computed from a partial one.
+     */
+    @Async
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT, fallbackExecution = true)
+    public void onStaticDataLoaded(GtfsStaticDataLoadedEvent event) {
+        reload(event.agencyId());
     }
 
-    private static String getTripId(GtfsRealtime.TripUpdate tripUpdate) {
-        return tripUpdate.getTrip().getTripId();
+    /**
+     * Reads feedId's schedule from the db, replacing the held one once it is read.
+     */
+    public void reload(String feedId) {
+        schedulesByFeed.put(feedId, loadSchedule(feedId));
     }
 
-    public ExpectedBusTimes getTripMapFor(String feedId, List<GtfsRealtime.TripUpdate> tripUpdates) {
-        return getTripMapFor(feedId, getTripsWithoutDelayAttribute(tripUpdates));
+    private ExpectedBusTimes loadSchedule(String feedId) {
+        var builder = ExpectedBusTimes.builder()
+                .timezone(agencyRepository.findById(feedId).map(AgencyFeed::getTimezone).orElse(null));
+        readOnlyTransaction.executeWithoutResult(status -> {
+            try (Stream<AgencyStopTimeScheduleDto> stopTimes = agencyStopTimeRepository.streamScheduleByAgencyId(feedId)) {
+                stopTimes.forEach(st -> builder.add(st.tripId(), st.stopSequence(), st.arrivalTimeSecs(), st.departureTimeSecs()));
+            }
+        });
+        var schedule = builder.build();
+        log.info("Loaded schedule of {} trips for feed {}", schedule.getTripCount(), feedId);
+        return schedule;
     }
 }
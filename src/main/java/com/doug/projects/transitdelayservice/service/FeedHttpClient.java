@@ -0,0 +1,162 @@
+package com.doug.projects.transitdelayservice.service;
+
+import com.doug.projects.transitdelayservice.entity.FeedDownloadTiming;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Shared http client used to download realtime and static feeds.
+ * <p>
+ * Connections are pooled and kept alive between polls, and HTTP/2 is used where the server supports it. Responses are
+ * requested with gzip/deflate, and decoded before being handed back. Each download has a hard deadline covering the
+ * wait for a connection, the response and the whole body, so a hung socket can never hold a thread past it.
+ * The number of concurrent downloads from the same host is limited, so agencies sharing a host are not hammered.
+ */
+@Service
+@Slf4j
+public class FeedHttpClient {
+    private final HttpClient httpClient;
+    private final int maxConnectionsPerHost;
+    private final Map<String, Semaphore> permitsByHost = new ConcurrentHashMap<>();
+    private final Map<String, FeedDownloadTiming> timingsByFeed = new ConcurrentHashMap<>();
+
+    public FeedHttpClient(@Value("${feedHttp.connectTimeoutSeconds}") int connectTimeoutSeconds,
+                          @Value("${feedHttp.maxConnectionsPerHost}") int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                //feeds move around, sometimes from https to http. Follow them like URL.openStream did
+                .followRedirects(HttpClient.Redirect.ALWAYS)
+                .connectTimeout(Duration.ofSeconds(connectTimeoutSeconds))
+                .build();
+    }
+
+    /**
+     * Downloads url into memory.
+     *
+     * @param feedId   the feed being downloaded, used to report timing
+     * @param url      the url to download
+     * @param headers  extra request headers, such as conditional request headers
+     * @param deadline the max time to wait for a connection and the full response
+     * @return the response, with a decoded body
+     * @throws HttpTimeoutException if the deadline passed before the body was read
+     * @throws IOException          if the download failed
+     */
+    public HttpResponse<InputStream> get(String feedId, String url, Map<String, String> headers, Duration deadline) throws IOException {
+        return send(feedId, url, headers, deadline, info -> HttpResponse.BodySubscribers.mapping(
+                HttpResponse.BodySubscribers.ofByteArray(),
+                bytes -> decodeUnchecked(info.headers(), new ByteArrayInputStream(bytes))));
+    }
+
+    /**
+     * Downloads url to file. The file holds the body as sent, use {@link #decode} when reading it.
+     *
+     * @see #get(String, String, Map, Duration)
+     */
+    public HttpResponse<Path> download(String feedId, String url, Path file, Duration deadline) throws IOException {
+        return send(feedId, url, Collections.emptyMap(), deadline, HttpResponse.BodyHandlers.ofFile(file));
+    }
+
+    /**
+     * Wraps body to undo the Content-Encoding of a response.
+     */
+    public static InputStream decode(HttpHeaders headers, InputStream body) throws IOException {
+        String encoding = headers.firstValue("Content-Encoding").orElse("");
+        if (encoding.equalsIgnoreCase("gzip")) {
+            return new GZIPInputStream(body);
+        } else if (encoding.equalsIgnoreCase("deflate")) {
+            return new InflaterInputStream(body);
+        }
+        return body;
+    }
+
+    /**
+     * @return the last download timing of each feed, by feedId
+     */
+    public Map<String, FeedDownloadTiming> getTimings() {
+        return Collections.unmodifiableMap(timingsByFeed);
+    }
+
+    private static InputStream decodeUnchecked(HttpHeaders headers, InputStream body) {
+        try {
+            return decode(headers, body);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private <T> HttpResponse<T> send(String feedId, String url, Map<String, String> headers, Duration deadline,
+                                     HttpResponse.BodyHandler<T> bodyHandler) throws IOException {
+        URI uri = URI.create(url);
+        Semaphore permits = permitsByHost.computeIfAbsent(String.valueOf(uri.getHost()), h -> new Semaphore(maxConnectionsPerHost, true));
+        long start = System.nanoTime();
+        long deadlineNanos = start + deadline.toNanos();
+        int statusCode = -1;
+        long queuedNanos = 0;
+        try {
+            if (!permits.tryAcquire(deadline.toNanos(), TimeUnit.NANOSECONDS)) {
+                throw new HttpTimeoutException("Timed out waiting for a connection to " + uri.getHost());
+            }
+            queuedNanos = System.nanoTime() - start;
+            try {
+                var request = HttpRequest.newBuilder(uri)
+                        .timeout(deadline)
+                        .header("Accept-Encoding", "gzip, deflate");
+                headers.forEach(request::header);
+                CompletableFuture<HttpResponse<T>> response = httpClient.sendAsync(request.GET().build(), bodyHandler);
+                try {
+                    HttpResponse<T> result = response.get(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    statusCode = result.statusCode();
+                    return result;
+                } catch (TimeoutException e) {
+                    response.cancel(true);
+                    throw new HttpTimeoutException("Download of " + url + " did not finish within " + deadline);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException io) {
+                        throw io;
+                    }
+                    if (e.getCause() instanceof UncheckedIOException io) {
+                        throw io.getCause();
+                    }
+                    throw new IOException(e.getCause());
+                }
+            } finally {
+                permits.release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted downloading " + url);
+        } finally {
+            long queuedMillis = TimeUnit.NANOSECONDS.toMillis(queuedNanos);
+            long downloadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start - queuedNanos);
+            timingsByFeed.put(feedId, new FeedDownloadTiming(url, statusCode, queuedMillis, downloadMillis, Instant.now().getEpochSecond()));
+            log.info("Feed {} download finished with status {} in {}ms (queued {}ms)", feedId, statusCode, downloadMillis, queuedMillis);
+        }
+    }
+}
@@ -1,23 +1,40 @@
 package com.doug.projects.transitdelayservice.service;
 
 import com.doug.projects.transitdelayservice.entity.*;
+import com.doug.projects.transitdelayservice.entity.jpa.AgencyDelayHistogramBin;
 import com.doug.projects.transitdelayservice.repository.AgencyRouteTimestampRepository;
+import com.doug.projects.transitdelayservice.repository.DelayAggregationRepository;
+import com.doug.projects.transitdelayservice.repository.DelayAggregationRepository.Aggregate;
+import com.doug.projects.transitdelayservice.repository.DelayAggregationRepository.RouteBucketValues;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyDelayHistogramBinDto;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyDelayHistogramBinRepository;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyDelayRollupDto;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyDelayRollupRepository;
+import com.doug.projects.transitdelayservice.util.DelayAggregator;
+import com.doug.projects.transitdelayservice.util.DelayHistogram;
 import com.doug.projects.transitdelayservice.util.LineGraphUtil;
-import com.doug.projects.transitdelayservice.util.RouteTimestampUtil;
 import com.doug.projects.transitdelayservice.util.TransitDateUtil;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.caffeine.CaffeineCache;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
 import org.springframework.stereotype.Service;
 import org.springframework.util.CollectionUtils;
 
-import java.math.BigDecimal;
-import java.math.RoundingMode;
 import java.util.*;
-import java.util.stream.Collector;
-import java.util.stream.Collectors;
-import java.util.stream.LongStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
 
+import static com.doug.projects.transitdelayservice.config.CachingConfiguration.DELAY_CHART_CACHE;
+import static com.doug.projects.transitdelayservice.entity.jpa.AgencyDelayRollup.*;
+import static com.doug.projects.transitdelayservice.util.DelayKernels.threeDigitPrecision;
 import static com.doug.projects.transitdelayservice.util.LineGraphUtil.getColumnLabels;
 
 @Service
@@ -26,11 +43,18 @@ import static com.doug.projects.transitdelayservice.util.LineGraphUtil.getColumn
 public class GetDelayService {
     private final AgencyRouteTimestampRepository repository;
     private final LineGraphUtil lineGraphUtil;
-
-    private static double threeDigitPrecision(double initial) {
-        BigDecimal bd = new BigDecimal(initial).setScale(3, RoundingMode.HALF_UP);
-        return bd.doubleValue();
-    }
+    private final AgencyDelayRollupRepository rollupRepository;
+    private final DelayAggregationRepository delayAggregationRepository;
+    private final AgencyDelayHistogramBinRepository histogramBinRepository;
+    private final CacheManager cacheManager;
+    /**
+     * The first bucket rolled up for each feed and granularity. Only found ones are kept, it doesn't change after that
+     */
+    private final Map<String, Long> firstRollupBucketStarts = new ConcurrentHashMap<>();
+    /**
+     * The first bucket with a histogram for each feed and granularity, kept the same way
+     */
+    private final Map<String, Long> firstHistogramBucketStarts = new ConcurrentHashMap<>();
 
     /**
      * Gets the average delay of <code>routes</code> between <code>startTime</code> and <code>endTime</code>, returning
@@ -43,11 +67,22 @@ public class GetDelayService {
      * @throws IllegalArgumentException if startTime is >= endTime
      */
     public LineGraphDataResponse getAverageDelay(String feedId, GraphOptions graphOptions) throws IllegalArgumentException {
-        return genericLineGraphConverter(feedId, graphOptions, RouteTimestampUtil.toAvg());
+        return genericLineGraphConverter(feedId, graphOptions, List.of(averageMetric())).get(0);
     }
 
     public LineGraphDataResponse getMedianDelay(String feedId, GraphOptions graphOptions) throws IllegalArgumentException {
-        return genericLineGraphConverter(feedId, graphOptions, RouteTimestampUtil.toMedian());
+        return genericLineGraphConverter(feedId, graphOptions, List.of(medianMetric())).get(0);
+    }
+
+    /**
+     * Gets the delay at quantile of <code>routes</code> in each bucket, estimated from delay histograms. Unlike
+     * {@link #getMedianDelay}, memory is constant per bucket however many delays are in it, and the estimate is within
+     * ~3% of the exact value.
+     *
+     * @param quantile between 0 and 1, ie 0.9 for p90
+     */
+    public LineGraphDataResponse getDelayPercentile(String feedId, GraphOptions graphOptions, double quantile) {
+        return genericLineGraphConverter(feedId, graphOptions, List.of(percentileMetric(quantile))).get(0);
     }
 
     /**
@@ -61,32 +96,97 @@ public class GetDelayService {
      * @throws IllegalArgumentException if startTime is >= endTime
      */
     public LineGraphDataResponse getMaxDelayFor(String feedId, GraphOptions graphOptions) throws IllegalArgumentException {
-        return genericLineGraphConverter(feedId, graphOptions, RouteTimestampUtil.toMax());
+        return genericLineGraphConverter(feedId, graphOptions, List.of(maxMetric())).get(0);
     }
 
     public LineGraphDataResponse getPercentOnTimeFor(String feedId, GraphOptions graphOptions) {
+        return genericLineGraphConverter(feedId, graphOptions, List.of(percentOnTimeMetric(graphOptions))).get(0);
+    }
+
+    /**
+     * Gets several graphs of the same routes and range at once. Graphs which can't be read from rollups share one read
+     * of the trip delays (or one db aggregation), rather than one each.
+     *
+     * @param types the graphs to get, in the order they're returned
+     * @return each graph by its type
+     * @throws IllegalArgumentException if startTime is >= endTime
+     */
+    public Map<GraphType, LineGraphDataResponse> getDelayGraphs(String feedId, GraphOptions graphOptions,
+                                                                Collection<GraphType> types) {
+        List<GraphType> distinctTypes = types.stream().distinct().toList();
+        List<GraphMetric> metrics = distinctTypes.stream()
+                .map(type -> switch (type) {
+                    case AVERAGE -> averageMetric();
+                    case MAX -> maxMetric();
+                    case MEDIAN -> medianMetric();
+                    case PERCENT -> percentOnTimeMetric(graphOptions);
+                    case P50 -> percentileMetric(0.5);
+                    case P90 -> percentileMetric(0.9);
+                    case P95 -> percentileMetric(0.95);
+                })
+                .toList();
+        var responses = genericLineGraphConverter(feedId, graphOptions, metrics);
+        Map<GraphType, LineGraphDataResponse> graphs = new LinkedHashMap<>();
+        for (int i = 0; i < distinctTypes.size(); i++) {
+            graphs.put(distinctTypes.get(i), responses.get(i));
+        }
+        return graphs;
+    }
+
+    private GraphMetric averageMetric() {
+        return new GraphMetric("average", DelayAggregator.average(), Aggregate.AVERAGE,
+                new DelayRollupGraph(rollup -> (double) rollup.delaySumSeconds() / rollup.sampleCount() / 60d));
+    }
+
+    private GraphMetric medianMetric() {
+        return new GraphMetric("median", DelayAggregator.median(), Aggregate.MEDIAN, null);
+    }
+
+    private GraphMetric percentileMetric(double quantile) {
+        if (quantile < 0 || quantile > 1)
+            throw new IllegalArgumentException("Quantile must be between 0 and 1");
+        return new GraphMetric("quantile:" + quantile, DelayAggregator.quantile(quantile), null, new HistogramRollupGraph(quantile));
+    }
+
+    private GraphMetric maxMetric() {
+        return new GraphMetric("max", DelayAggregator.max(), Aggregate.MAX,
+                new DelayRollupGraph(rollup -> rollup.maxDelaySeconds() / 60d));
+    }
+
+    private GraphMetric percentOnTimeMetric(GraphOptions graphOptions) {
         if (graphOptions.getLowerOnTimeThreshold() == null) {
-            graphOptions.setLowerOnTimeThreshold(-5);
+            graphOptions.setLowerOnTimeThreshold(ON_TIME_LOWER_MINUTES);
         }
         if (graphOptions.getUpperOnTimeThreshold() == null) {
-            graphOptions.setUpperOnTimeThreshold(5);
+            graphOptions.setUpperOnTimeThreshold(ON_TIME_UPPER_MINUTES);
         }
-        return genericLineGraphConverter(feedId, graphOptions,
-                RouteTimestampUtil.toPercentWithin(
+        //rollups only count the default on time window
+        boolean defaultThresholds = graphOptions.getLowerOnTimeThreshold() == ON_TIME_LOWER_MINUTES &&
+                graphOptions.getUpperOnTimeThreshold() == ON_TIME_UPPER_MINUTES;
+        return new GraphMetric(
+                "percent:" + graphOptions.getLowerOnTimeThreshold() + ":" + graphOptions.getUpperOnTimeThreshold(),
+                DelayAggregator.percentWithin(
                         graphOptions.getLowerOnTimeThreshold(),
                         graphOptions.getUpperOnTimeThreshold()
-                )
+                ),
+                Aggregate.PERCENT_WITHIN,
+                defaultThresholds ? new DelayRollupGraph(rollup -> (double) rollup.onTimeCount() / rollup.sampleCount() * 100) : null
         );
     }
 
     /**
      * Generic wrapper function that iterates over a collection of routeTimeStamps gathered from the DB.
+     * <p>
+     * Graphs are cached until a poll of the feed falls in their range. Each metric which isn't cached is read from
+     * rollups if it can be. The rest are computed together, by the db where supported, or from one read of the trip
+     * delays otherwise.
      *
      * @param graphOptions the options used to create a graph
-     * @param collector    collects the list of delays to a double, which will appear on the graph. more memory efficient than previously
-     * @return a graph, beginning at startTime, ending at endTime, over the number of units
+     * @param metrics      the graphs to make
+     * @return a graph per metric, beginning at startTime, ending at endTime, over the number of units
      */
-    private LineGraphDataResponse genericLineGraphConverter(String feedId, GraphOptions graphOptions, Collector<Double, ?, Optional<Double>> collector) {
+    private List<LineGraphDataResponse> genericLineGraphConverter(String feedId, GraphOptions graphOptions,
+                                                                  List<GraphMetric> metrics) {
         final long startTime = graphOptions.getStartTime() == null ? TransitDateUtil.getMidnightSixDaysAgo() : graphOptions.getStartTime();
         final long endTime = graphOptions.getEndTime() == null ? TransitDateUtil.getMidnightTonight() : graphOptions.getEndTime();
         final int units = graphOptions.getUnits() == null ? 7 : graphOptions.getUnits();
@@ -96,62 +196,299 @@ public class GetDelayService {
         if (startTime >= endTime)
             throw new IllegalArgumentException("StartTime must be less than endTime");
         final long bucketSize = (endTime - startTime) / units;
+        final int bucketCount = (int) ((endTime - startTime) / bucketSize);
 
-        var rTsByRtName = repository.getRouteTimestampsBy(startTime, endTime, finalRoutes, finalFeedId)
-                .stream()
-                .collect(Collectors.groupingBy(AgencyRouteTimestamp::getRouteName));
-        var graphData = rTsByRtName.entrySet().stream()
-                .map((rTsEntry) -> groupAndGetLineGraphData(collector, rTsEntry, startTime, endTime, bucketSize))
-                .collect(Collectors.toList());
-        return getLineGraphDataResponse(graphData, finalFeedId, useGtfsColor, startTime, endTime, units, finalRoutes);
-    }
-
-    private @NotNull LineGraphData groupAndGetLineGraphData(
-            Collector<Double, ?, Optional<Double>> collector,
-            Map.Entry<String, List<AgencyRouteTimestamp>> routeNameGroup,
-            long startTime,
-            long endTime,
-            long bucketSize) {
-
-        // Use the list from the routeNameGroup entry (assuming this was the source of 'routeTimestamps')
-        List<AgencyRouteTimestamp> routeTimestamps = routeNameGroup.getValue();
-
-        // Total number of expected buckets (inclusive of startTime and endTime)
-        long bucketCount = ((endTime - startTime) / bucketSize);
-
-        Map<Long, List<AgencyRouteTimestamp>> grouped = routeTimestamps.stream()
-                .collect(Collectors.groupingBy(data -> {
-                    long bucketIndex = (data.getTimestamp() - startTime) / bucketSize;
-                    return startTime + (bucketIndex * bucketSize);
-                }));
-
-        List<Optional<Double>> bucketValues = LongStream.range(0, bucketCount)
-                .mapToObj(i -> startTime + (i * bucketSize))
-                .map(bucketStart -> {
-                    List<AgencyRouteTimestamp> bucketData = grouped.get(bucketStart);
-
-                    if (bucketData == null || bucketData.isEmpty()) {
-                        return Optional.<Double>empty();
-                    }
-
-                    Optional<Double> rawValue = bucketData.stream()
-                            .flatMap(data -> data.getBusStatesCopyList().stream())
-                            .map(BusState::getDelay)
-                            .filter(Objects::nonNull) // Filter out null delays
-                            .map(delay -> delay / 60d)
-                            .collect(collector);
-
-                    return rawValue.map(GetDelayService::threeDigitPrecision);
-                })
-                .toList();
+        //keyed on the range after defaults are applied, so default ranges (midnight to midnight) share keys
+        List<String> sortedRoutes = finalRoutes.stream().sorted().distinct().toList();
+        Cache cache = cacheManager.getCache(DELAY_CHART_CACHE);
+        List<LineGraphDataResponse> responses = new ArrayList<>(Collections.nCopies(metrics.size(), null));
+        List<DelayChartKey> keys = new ArrayList<>(metrics.size());
+        List<List<LineGraphData>> graphData = new ArrayList<>(Collections.nCopies(metrics.size(), null));
+        List<Integer> remaining = new ArrayList<>();
+        for (int i = 0; i < metrics.size(); i++) {
+            var key = new DelayChartKey(finalFeedId, metrics.get(i).name(), sortedRoutes, startTime, endTime, units, useGtfsColor);
+            keys.add(key);
+            var cached = cache == null ? null : cache.get(key, LineGraphDataResponse.class);
+            if (cached != null) {
+                responses.set(i, cached);
+                continue;
+            }
+            RollupGraph rollupGraph = metrics.get(i).rollupGraph();
+            Integer granularity = rollupGraph == null || finalRoutes.isEmpty() ? null :
+                    findRollupGranularity(rollupGraph, finalFeedId, startTime, bucketSize);
+            if (granularity != null) {
+                graphData.set(i, rollupGraph.read(finalFeedId, finalRoutes, granularity, startTime, bucketSize, bucketCount));
+            } else {
+                remaining.add(i);
+            }
+        }
+        if (!remaining.isEmpty()) {
+            List<GraphMetric> remainingMetrics = remaining.stream().map(metrics::get).toList();
+            //recent ranges are streamed from memory, which is cheaper than aggregating in the db
+            boolean aggregatedByDb = !finalRoutes.isEmpty() &&
+                    remainingMetrics.stream().allMatch(metric -> metric.aggregate() != null) &&
+                    delayAggregationRepository.isSupported() &&
+                    !repository.isServedFromMemory(finalFeedId, startTime);
+            var remainingData = aggregatedByDb ?
+                    getAggregatedLineGraphData(remainingMetrics.stream().map(GraphMetric::aggregate).toList(),
+                            graphOptions, finalFeedId, finalRoutes, startTime, bucketSize, bucketCount) :
+                    getStreamedLineGraphData(remainingMetrics.stream().map(GraphMetric::aggregator).toList(),
+                            finalFeedId, finalRoutes, startTime, endTime, bucketSize, bucketCount);
+            for (int i = 0; i < remaining.size(); i++) {
+                graphData.set(remaining.get(i), remainingData.get(i));
+            }
+        }
 
-        return lineGraphUtil.getLineGraphData(
-                routeNameGroup.getKey(),
-                bucketValues.stream()
-                        .map(o -> o.orElse(null))
-                        .collect(Collectors.toList()));
+        for (int i = 0; i < metrics.size(); i++) {
+            if (responses.get(i) != null) {
+                continue;
+            }
+            var response = getLineGraphDataResponse(graphData.get(i), finalFeedId, useGtfsColor, startTime, endTime, units, finalRoutes);
+            if (cache != null) {
+                cache.put(keys.get(i), response);
+            }
+            responses.set(i, response);
+        }
+        return responses;
     }
 
+    /**
+     * Drops the cached graphs of the feed which the poll falls in, or after. Graphs ending before it are unchanged.
+     * <p>
+     * Runs on the ingest worker which saved the poll, so it is kept cheap: a scan over the keys of a cache capped at
+     * 100 entries. It stays synchronous, and ordered first, so the stale graphs are gone before
+     * {@link DefaultResponseService} recomputes the feed's graphs for the poll.
+     */
+    @EventListener
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    public void onRealtimeDataSaved(RealtimeDataSavedEvent event) {
+        Cache cache = cacheManager.getCache(DELAY_CHART_CACHE);
+        if (cache == null) {
+            return;
+        }
+        if (cache instanceof CaffeineCache caffeineCache) {
+            caffeineCache.getNativeCache().asMap().keySet().removeIf(key -> key instanceof DelayChartKey chartKey &&
+                    chartKey.feedId().equals(event.agencyId()) &&
+                    chartKey.endTime() > event.timestamp());
+        } else {
+            cache.clear();
+        }
+    }
+
+    private record DelayChartKey(String feedId, String metric, List<String> routes, long startTime, long endTime,
+                                 int units, boolean useColor) {
+    }
+
+    /**
+     * A graph's value for each bucket, and how to get it.
+     *
+     * @param name        identifies the graph, and any options which change it, in cache keys
+     * @param aggregator  aggregates the delays of a bucket to the value which will appear on the graph
+     * @param aggregate   the same aggregate as aggregator, computed by the db where supported instead of reading each
+     *                    delay, or null if the db can't
+     * @param rollupGraph reads the same values as aggregator from rollups, or null if they can't be. If set, the graph
+     *                    is read from the coarsest rollups which line up with its buckets, when there are any
+     */
+    private record GraphMetric(String name,
+                               Supplier<DelayAggregator> aggregator,
+                               @Nullable Aggregate aggregate,
+                               @Nullable RollupGraph rollupGraph) {
+    }
+
+    /**
+     * Finds the coarsest rollup granularity which divides the graph's buckets evenly, and was already being rolled up
+     * by startTime.
+     *
+     * @return the granularity, or null if no rollups line up with the graph
+     */
+    private @Nullable Integer findRollupGranularity(RollupGraph rollupGraph, String feedId, long startTime, long bucketSize) {
+        int[] granularities = rollupGraph.granularities();
+        for (int i = granularities.length - 1; i >= 0; i--) {
+            int granularity = granularities[i];
+            if (startTime % granularity != 0 || bucketSize % granularity != 0) {
+                continue;
+            }
+            Long firstBucketStart = rollupGraph.findFirstBucketStart(feedId, granularity);
+            //the first bucket may have started being rolled up part way through, so only count from the next one
+            if (firstBucketStart != null && startTime >= firstBucketStart + granularity) {
+                return granularity;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads graph values from rollups, kept at a few granularities (finest first)
+     */
+    private interface RollupGraph {
+        int[] granularities();
+
+        /**
+         * @return the start of the first bucket rolled up at granularity, or null if nothing is
+         */
+        @Nullable Long findFirstBucketStart(String feedId, int granularity);
+
+        List<LineGraphData> read(String feedId, List<String> routes, int granularity, long startTime, long bucketSize,
+                                 int bucketCount);
+    }
+
+    /**
+     * Gets a value from the delay rollups in each bucket, combined
+     */
+    @RequiredArgsConstructor
+    private class DelayRollupGraph implements RollupGraph {
+        private final ToDoubleFunction<AgencyDelayRollupDto> rollupMetric;
+
+        @Override
+        public int[] granularities() {
+            return GRANULARITIES_SECONDS;
+        }
+
+        @Override
+        public @Nullable Long findFirstBucketStart(String feedId, int granularity) {
+            return firstRollupBucketStarts.computeIfAbsent(feedId + ":" + granularity,
+                    k -> rollupRepository.findFirstBucketStart(feedId, granularity));
+        }
+
+        @Override
+        public List<LineGraphData> read(String feedId, List<String> routes, int granularity, long startTime,
+                                        long bucketSize, int bucketCount) {
+            Map<String, AgencyDelayRollupDto[]> bucketsByRoute = new HashMap<>();
+            for (AgencyDelayRollupDto rollup : rollupRepository.findRollups(feedId, granularity, routes, startTime,
+                    startTime + bucketCount * bucketSize)) {
+                var buckets = bucketsByRoute.computeIfAbsent(rollup.routeName(), k -> new AgencyDelayRollupDto[bucketCount]);
+                int bucketIndex = (int) ((rollup.bucketStart() - startTime) / bucketSize);
+                buckets[bucketIndex] = buckets[bucketIndex] == null ? rollup : buckets[bucketIndex].combine(rollup);
+            }
+            List<LineGraphData> graphData = new ArrayList<>(bucketsByRoute.size());
+            bucketsByRoute.forEach((routeName, buckets) -> {
+                List<Double> values = new ArrayList<>(bucketCount);
+                for (AgencyDelayRollupDto bucket : buckets) {
+                    values.add(bucket == null ? null : threeDigitPrecision(rollupMetric.applyAsDouble(bucket)));
+                }
+                graphData.add(lineGraphUtil.getLineGraphData(routeName, values));
+            });
+            return graphData;
+        }
+    }
+
+    /**
+     * Gets the delay at quantile from the delay histograms in each bucket, summed bin by bin
+     */
+    @RequiredArgsConstructor
+    private class HistogramRollupGraph implements RollupGraph {
+        private final double quantile;
+
+        @Override
+        public int[] granularities() {
+            return AgencyDelayHistogramBin.GRANULARITIES_SECONDS;
+        }
+
+        @Override
+        public @Nullable Long findFirstBucketStart(String feedId, int granularity) {
+            return firstHistogramBucketStarts.computeIfAbsent(feedId + ":" + granularity,
+                    k -> histogramBinRepository.findFirstBucketStart(feedId, granularity));
+        }
+
+        @Override
+        public List<LineGraphData> read(String feedId, List<String> routes, int granularity, long startTime,
+                                        long bucketSize, int bucketCount) {
+            Map<String, DelayHistogram[]> bucketsByRoute = new HashMap<>();
+            for (AgencyDelayHistogramBinDto bin : histogramBinRepository.findBins(feedId, granularity, routes, startTime,
+                    startTime + bucketCount * bucketSize)) {
+                var buckets = bucketsByRoute.computeIfAbsent(bin.routeName(), k -> new DelayHistogram[bucketCount]);
+                int bucketIndex = (int) ((bin.bucketStart() - startTime) / bucketSize);
+                if (buckets[bucketIndex] == null) {
+                    buckets[bucketIndex] = new DelayHistogram();
+                }
+                buckets[bucketIndex].addBin(bin.bin(), bin.sampleCount());
+            }
+            List<LineGraphData> graphData = new ArrayList<>(bucketsByRoute.size());
+            bucketsByRoute.forEach((routeName, buckets) -> {
+                List<Double> values = new ArrayList<>(bucketCount);
+                for (DelayHistogram bucket : buckets) {
+                    var seconds = bucket == null ? OptionalDouble.empty() : bucket.getValueAt(quantile);
+                    values.add(seconds.isPresent() ? threeDigitPrecision(seconds.getAsDouble() / 60d) : null);
+                }
+                graphData.add(lineGraphUtil.getLineGraphData(routeName, values));
+            });
+            return graphData;
+        }
+    }
+
+    private List<List<LineGraphData>> getAggregatedLineGraphData(List<Aggregate> aggregates,
+                                                                 GraphOptions graphOptions,
+                                                                 String feedId,
+                                                                 List<String> routes,
+                                                                 long startTime,
+                                                                 long bucketSize,
+                                                                 int bucketCount) {
+        var values = delayAggregationRepository.aggregate(feedId, routes, startTime, bucketSize, bucketCount, aggregates,
+                Objects.requireNonNullElse(graphOptions.getLowerOnTimeThreshold(), 0),
+                Objects.requireNonNullElse(graphOptions.getUpperOnTimeThreshold(), 0));
+        Map<String, Double[][]> bucketsByRoute = new HashMap<>();
+        for (RouteBucketValues value : values) {
+            Double[][] buckets = bucketsByRoute.computeIfAbsent(value.routeName(), k -> new Double[aggregates.size()][bucketCount]);
+            for (int i = 0; i < aggregates.size(); i++) {
+                buckets[i][value.bucket()] = threeDigitPrecision(value.values()[i]);
+            }
+        }
+        List<List<LineGraphData>> graphData = new ArrayList<>(aggregates.size());
+        for (int i = 0; i < aggregates.size(); i++) {
+            int metric = i;
+            List<LineGraphData> metricData = new ArrayList<>(bucketsByRoute.size());
+            bucketsByRoute.forEach((routeName, buckets) ->
+                    metricData.add(lineGraphUtil.getLineGraphData(routeName, new ArrayList<>(Arrays.asList(buckets[metric])))));
+            graphData.add(metricData);
+        }
+        return graphData;
+    }
+
+    /**
+     * Streams the delays in range into one aggregator per metric, route and bucket, so memory is bound by the number of
+     * routes and buckets rather than the number of delays read (except for medians, which buffer each bucket's delays).
+     * The delays are read once for all metrics.
+     */
+    private List<List<LineGraphData>> getStreamedLineGraphData(List<Supplier<DelayAggregator>> aggregators,
+                                                               String feedId,
+                                                               List<String> routes,
+                                                               long startTime,
+                                                               long endTime,
+                                                               long bucketSize,
+                                                               int bucketCount) {
+        int metricCount = aggregators.size();
+        Map<String, DelayAggregator[][]> bucketsByRoute = new HashMap<>();
+        repository.streamDelaysBy(startTime, endTime, routes, feedId, (routeName, timestamp, delaySeconds) -> {
+            DelayAggregator[][] buckets = bucketsByRoute.computeIfAbsent(routeName, k -> new DelayAggregator[metricCount][bucketCount]);
+            long bucketIndex = (timestamp - startTime) / bucketSize;
+            if (delaySeconds == null || bucketIndex >= bucketCount) {
+                return;
+            }
+            for (int i = 0; i < metricCount; i++) {
+                DelayAggregator bucket = buckets[i][(int) bucketIndex];
+                if (bucket == null) {
+                    bucket = buckets[i][(int) bucketIndex] = aggregators.get(i).get();
+                }
+                bucket.add(delaySeconds);
+            }
+        });
+
+        List<List<LineGraphData>> graphData = new ArrayList<>(metricCount);
+        for (int i = 0; i < metricCount; i++) {
+            int metric = i;
+            List<LineGraphData> metricData = new ArrayList<>(bucketsByRoute.size());
+            bucketsByRoute.forEach((routeName, buckets) -> {
+                List<Double> values = new ArrayList<>(bucketCount);
+                for (DelayAggregator bucket : buckets[metric]) {
+                    var value = bucket == null ? OptionalDouble.empty() : bucket.getValue();
+                    values.add(value.isPresent() ? threeDigitPrecision(value.getAsDouble()) : null);
+                }
+                metricData.add(lineGraphUtil.getLineGraphData(routeName, values));
+            });
+            graphData.add(metricData);
+        }
+        return graphData;
+    }
 
     private @NotNull LineGraphDataResponse getLineGraphDataResponse(List<LineGraphData> lineGraphDataList, String finalFeedId, boolean useGtfsColor, long startTime, long endTime, int units, List<String> finalRoutes) {
         lineGraphUtil.sortByGTFSSortOrder(finalFeedId, lineGraphDataList);
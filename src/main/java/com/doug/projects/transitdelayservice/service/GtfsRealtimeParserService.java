@@ -5,28 +5,21 @@ import com.doug.projects.transitdelayservice.entity.AgencyRouteTimestamp;
 import com.doug.projects.transitdelayservice.entity.BusState;
 import com.doug.projects.transitdelayservice.entity.Status;
 import com.doug.projects.transitdelayservice.entity.jpa.AgencyFeedDto;
-import com.doug.projects.transitdelayservice.entity.jpa.AgencyRouteId;
-import com.doug.projects.transitdelayservice.entity.jpa.AgencyTripId;
 import com.doug.projects.transitdelayservice.entity.transit.ExpectedBusTimes;
-import com.doug.projects.transitdelayservice.repository.jpa.AgencyRouteRepository;
-import com.doug.projects.transitdelayservice.repository.jpa.AgencyTripRepository;
+import com.doug.projects.transitdelayservice.entity.transit.TripUpdateSummary;
+import com.doug.projects.transitdelayservice.repository.RouteNameResolver;
 import com.doug.projects.transitdelayservice.util.TransitDateUtil;
 import com.google.transit.realtime.GtfsRealtime;
-import io.micrometer.common.util.StringUtils;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.stereotype.Service;
-import org.springframework.web.client.ResourceAccessException;
-import org.springframework.web.client.RestTemplate;
 
 import java.io.IOException;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.time.format.DateTimeParseException;
+import java.net.http.HttpTimeoutException;
+import java.time.DateTimeException;
 import java.util.*;
 
-import static com.google.transit.realtime.GtfsRealtime.TripDescriptor.ScheduleRelationship.SCHEDULED;
 import static org.apache.commons.lang3.ObjectUtils.isNotEmpty;
 import static org.springframework.util.CollectionUtils.isEmpty;
 
@@ -35,123 +28,59 @@ import static org.springframework.util.CollectionUtils.isEmpty;
 @Slf4j
 public class GtfsRealtimeParserService {
     private final ExpectedBusTimesService expectedBusTimesService;
-    private final AgencyRouteRepository agencyRouteRepository;
-    private final AgencyTripRepository agencyTripRepository;
-    private final RestTemplate restTemplate;
+    private final RouteNameResolver routeNameResolver;
+    private final RealtimeFeedFetcher realtimeFeedFetcher;
 
     /**
-     * Validate the required fields for Entity mapping
+     * Resolves the delay of a trip. Note that it will first try the delay sent in the feed (trip delay, then
+     * departureDelay, then arrivalDelay), then departureTime (diffed with schedule), then arrivalTime (diffed with schedule).
      *
-     * @param entity the entity to check
-     * @return true if all required fields are not null
+     * @param summary  the summary of the tripUpdate
+     * @param schedule the scheduled arrival/departure times of the feed
+     * @return the delay of the trip, or {@link ExpectedBusTimes#NO_TIME} if the trip data was not found in schedule / the feed was invalid
      */
-    private static boolean validateRequiredFields(GtfsRealtime.TripUpdate entity) {
-        return entity.getTrip().getScheduleRelationship().equals(SCHEDULED) && getFirstScheduled(entity).isPresent() && entity.hasTrip() && entity.getTrip().hasTripId();
-    }
-
-    @NotNull
-    private Optional<BusState> adaptBusStateFrom(GtfsRealtime.TripUpdate tripUpdate, ExpectedBusTimes tripMap) {
-        if (getFirstScheduled(tripUpdate).isEmpty())
-            return Optional.empty();
-        OptionalInt delay = getDelay(tripUpdate, tripMap);
-        if (delay.isEmpty())
-            return Optional.empty();
-        BusState busState = new BusState();
-        busState.setTripId(tripUpdate.getTrip().getTripId());
-        busState.setDelay(delay.getAsInt());
-        busState.setClosestStopId(getFirstScheduled(tripUpdate).get().getStopId());
-        return Optional.of(busState);
-    }
-
-    /**
-     * This method extracts delay from a tripUpdate. Note that it will first try to get departureDelay,
-     * then arrivalDelay, then departureTime (diffed with schedule), then arrivalTime (diffed with schedule).
-     * Will return null in the case of not finding anything in the schedule, or if no details are passed.
-     *
-     * @param tu      the tripUpdate
-     * @param tripMap the tripIds and their associated arrival/departure times
-     * @return the delay of the trip, or null if the trip data was not found in tripMap / the feed was invalid
-     */
-    private OptionalInt getDelay(GtfsRealtime.TripUpdate tu, ExpectedBusTimes tripMap) {
-        if (tu.hasDelay()) {
-            return OptionalInt.of(tu.getDelay());
-        }
-        var departureDelay = getDepartureDelay(tu);
-        if (departureDelay.isPresent()) {
-            return OptionalInt.of(departureDelay.get());
-        }
-        var arrivalDelay = getArrivalDelay(tu);
-        if (arrivalDelay.isPresent()) {
-            return OptionalInt.of(arrivalDelay.get());
-        }
-        if (tripMap == null) {
-            log.error("TripMap was unexpectedly null!");
-            return OptionalInt.empty();
+    private static int resolveDelay(TripUpdateSummary summary, ExpectedBusTimes schedule) {
+        if (summary.isHasFeedDelay()) {
+            return summary.getFeedDelay();
         }
-        return extractDifferenceFromActualAndExpectedTime(tu, tripMap);
-    }
-
-    private static @NotNull Optional<Integer> getDepartureDelay(GtfsRealtime.TripUpdate tu) {
-        return tu.getStopTimeUpdateList()
-                .stream()
-                .map(GtfsRealtime.TripUpdate.StopTimeUpdate::getDeparture)
-                .filter(GtfsRealtime.TripUpdate.StopTimeEvent::hasDelay)
-                .map(GtfsRealtime.TripUpdate.StopTimeEvent::getDelay)
-                .findFirst();
-    }
-
-    private static @NotNull Optional<Integer> getArrivalDelay(GtfsRealtime.TripUpdate tu) {
-        return tu.getStopTimeUpdateList()
-                .stream()
-                .map(GtfsRealtime.TripUpdate.StopTimeUpdate::getArrival)
-                .filter(GtfsRealtime.TripUpdate.StopTimeEvent::hasDelay)
-                .map(GtfsRealtime.TripUpdate.StopTimeEvent::getDelay)
-                .findFirst();
+        return extractDifferenceFromActualAndExpectedTime(summary, schedule);
     }
 
     /**
      * Prefers diffing delay based on departureTime, but works with arrival too.
      *
-     * @param tu      the tripUpdate to extract the actual departure/arrival time from rt
-     * @param tripMap used to get the expected departure/arrival time from schedule
-     * @return empty if there are no SCHEDULED relationship tripUpdates, or if it has no departure/arrival time. Otherwise, parses the diff between scheduled and actual departure/arrival
+     * @param summary  the summary of the tripUpdate, holding the actual departure/arrival time from rt
+     * @param schedule used to get the expected departure/arrival time from schedule
+     * @return {@link ExpectedBusTimes#NO_TIME} if there are no SCHEDULED relationship stopTimeUpdates, or if it has no departure/arrival time. Otherwise, the diff between scheduled and actual departure/arrival
      */
-    private OptionalInt extractDifferenceFromActualAndExpectedTime(GtfsRealtime.TripUpdate tu, ExpectedBusTimes tripMap) {
-        var optionalStopTimeUpdate = getFirstScheduled(tu);
-        if (optionalStopTimeUpdate.isEmpty()) {
-            return OptionalInt.empty();
+    private static int extractDifferenceFromActualAndExpectedTime(TripUpdateSummary summary, ExpectedBusTimes schedule) {
+        var currStopTimeUpdate = summary.getFirstScheduled();
+        if (currStopTimeUpdate == null) {
+            return ExpectedBusTimes.NO_TIME;
         }
-        var currStopTimeUpdate = optionalStopTimeUpdate.get();
         var arrival = currStopTimeUpdate.getArrival();
         var departure = currStopTimeUpdate.getDeparture();
-        var timezone = tripMap.getTimezone();
+        var timezone = schedule.getTimezone();
+        if (!isNotEmpty(timezone)) {
+            return ExpectedBusTimes.NO_TIME;
+        }
         try {
-            var expectedDeparture = tripMap.getDepartureTime(tu.getTrip().getTripId(), currStopTimeUpdate.getStopSequence());
-            if (expectedDeparture.isEmpty()) {
-                log.error("TripMap did not contain dept {} trip sq {}", tu.getTrip().getTripId(), currStopTimeUpdate.getStopSequence());
+            if (currStopTimeUpdate.hasDeparture() && departure.hasTime()) {
+                int expectedDeparture = schedule.getDepartureSecs(summary.getTripId(), summary.getStopSequence());
+                if (expectedDeparture != ExpectedBusTimes.NO_TIME) {
+                    return TransitDateUtil.calculateTimeDifferenceInSeconds(expectedDeparture, departure.getTime(), timezone);
+                }
             }
-            var actualDeparture = departure.getTime();
-            var actualArrival = arrival.getTime();
-            var expectedArrival = tripMap.getArrivalTime(tu.getTrip().getTripId(), currStopTimeUpdate.getStopSequence());
-
-            if (currStopTimeUpdate.hasDeparture() && departure.hasTime() && isNotEmpty(expectedDeparture) && isNotEmpty(timezone) && expectedDeparture.isPresent()) {
-                return OptionalInt.of(TransitDateUtil.calculateTimeDifferenceInSeconds(expectedDeparture.get(), actualDeparture, timezone));
-            } else if (currStopTimeUpdate.hasArrival() && arrival.hasTime() && isNotEmpty(expectedArrival) && isNotEmpty(timezone) && expectedArrival.isPresent()) {
-                return OptionalInt.of(TransitDateUtil.calculateTimeDifferenceInSeconds(expectedArrival.get(), actualArrival, timezone));
+            if (currStopTimeUpdate.hasArrival() && arrival.hasTime()) {
+                int expectedArrival = schedule.getArrivalSecs(summary.getTripId(), summary.getStopSequence());
+                if (expectedArrival != ExpectedBusTimes.NO_TIME) {
+                    return TransitDateUtil.calculateTimeDifferenceInSeconds(expectedArrival, arrival.getTime(), timezone);
+                }
             }
-        } catch (DateTimeParseException parseException) {
-            log.error("Unable to parse date for tripUpdate: {}", tu);
+        } catch (DateTimeException dateTimeException) {
+            log.error("Unable to parse date for trip {} with timezone {}", summary.getTripId(), timezone);
         }
-        return OptionalInt.empty();
-    }
-
-    static Optional<GtfsRealtime.TripUpdate.StopTimeUpdate> getFirstScheduled(GtfsRealtime.TripUpdate tripUpdate) {
-        return tripUpdate.getStopTimeUpdateList()
-                .stream()
-                .filter(tu ->
-                        tu.getScheduleRelationship()
-                                .equals(GtfsRealtime.TripUpdate.StopTimeUpdate.ScheduleRelationship.SCHEDULED))
-                .findFirst();
+        return ExpectedBusTimes.NO_TIME;
     }
 
     private static AgencyRealtimeAnalysisResponse buildTimeoutFailureResponse(AgencyFeedDto feed) {
@@ -166,54 +95,82 @@ public class GtfsRealtimeParserService {
         return AgencyRealtimeAnalysisResponse.builder().feedStatus(Status.UNAVAILABLE).feed(feed).build();
     }
 
-    private Optional<String> getRouteName(GtfsRealtime.TripUpdate tripUpdate, String agencyId) {
-        return Optional.ofNullable(tripUpdate.getTrip().getRouteId())
-                .filter(StringUtils::isNotBlank)
-                .map(routeId -> new AgencyRouteId(routeId, agencyId))
-                .flatMap(agencyRouteRepository::findRouteNameById)
-                .or(()->Optional.ofNullable(tripUpdate.getTrip().getTripId())
-                        .map(tripId -> new AgencyTripId(tripId, agencyId))
-                        .flatMap(agencyTripRepository::findRouteNameById));
-    }
-
+    /**
+     * Downloads and parses the realtime feed. If the feed has not changed since it was last processed, it is not parsed
+     * and an ACTIVE response without routeTimestamps is returned.
+     */
     public AgencyRealtimeAnalysisResponse pollFeed(AgencyFeedDto feed) {
         try {
-            var url = new URL(feed.getRealTimeUrl());
-            var rtResp = GtfsRealtime.FeedMessage.parseFrom(url.openStream());
-            return getAgencyRealtimeResponse(feed, rtResp);
-        } catch (MalformedURLException ex) {
-            log.error("Feed {} unsupported",feed.getId(), ex);
+            return analyze(feed, realtimeFeedFetcher.fetch(feed));
+        } catch (RuntimeException | IOException ex) {
+            return buildFailureResponse(feed, ex);
+        }
+    }
+
+    /**
+     * Resolves the route and delay of every trip of a fetched feed.
+     *
+     * @param feed        the feed which was fetched
+     * @param fetchResult the result of fetching feed
+     * @return the delays by route, or an ACTIVE response without routeTimestamps if the feed is unchanged
+     */
+    public AgencyRealtimeAnalysisResponse analyze(AgencyFeedDto feed, RealtimeFeedFetcher.FetchResult fetchResult) {
+        if (fetchResult.isUnchanged()) {
+            return AgencyRealtimeAnalysisResponse.builder()
+                    .feed(feed)
+                    .feedStatus(Status.ACTIVE)
+                    .routeTimestamps(Collections.emptyList())
+                    .build();
+        }
+        var response = getAgencyRealtimeResponse(feed, fetchResult.message());
+        response.setFeedVersion(fetchResult.version());
+        return response;
+    }
+
+    /**
+     * Maps an exception thrown while fetching or decoding a feed to the matching failure status. Only a 401/403 from the
+     * feed marks it UNAUTHORIZED, anything else we can't make sense of (bad url, bad protobuf) is UNAVAILABLE.
+     */
+    public AgencyRealtimeAnalysisResponse buildFailureResponse(AgencyFeedDto feed, Exception ex) {
+        if (ex instanceof RealtimeFeedFetcher.UnauthorizedException) {
+            log.error("Feed {} unauthorized", feed.getId(), ex);
             return buildUnauthorizedFailureResponse(feed);
-        } catch (ResourceAccessException ex) {
+        } else if (ex instanceof HttpTimeoutException) {
             log.error("Feed {} timed out", feed.getId(), ex);
             return buildTimeoutFailureResponse(feed);
-        } catch (RuntimeException | IOException ex) {
-            log.error("Feed {} runtime issue", feed.getId(), ex);
-            return buildUnavailableFailureResponse(feed);
         }
+        log.error("Feed {} runtime issue", feed.getId(), ex);
+        return buildUnavailableFailureResponse(feed);
     }
 
-    private AgencyRealtimeAnalysisResponse getAgencyRealtimeResponse(AgencyFeedDto feed, GtfsRealtime.FeedMessage message) {
-        long timestamp = message.getHeader().getTimestamp();
-        String feedId = feed.getId();
-        List<GtfsRealtime.TripUpdate> tripUpdates = message.getEntityList().stream()
-                .map(GtfsRealtime.FeedEntity::getTripUpdate)
-                .toList();
-        return getAgencyRealtimeResponse(feed,message, expectedBusTimesService.getTripMapFor(feedId, tripUpdates), timestamp);
+    /**
+     * Remembers the feed version of an ACTIVE response once its routeTimestamps have been written, so the next poll
+     * skips the feed unless it has changed.
+     */
+    public void markProcessed(AgencyRealtimeAnalysisResponse response) {
+        if (response.getFeedStatus() == Status.ACTIVE && response.getFeedVersion() != null) {
+            realtimeFeedFetcher.markProcessed(response.getFeed().getId(), response.getFeedVersion());
+        }
     }
 
-    private AgencyRealtimeAnalysisResponse getAgencyRealtimeResponse(AgencyFeedDto feed,
-                                                                     GtfsRealtime.FeedMessage message,
-                                                                     ExpectedBusTimes expectedBusTimes,
-                                                                     long timestamp) {
+    /**
+     * Analyzes every TripUpdate of message in a single pass, grouping the resulting BusStates by route name.
+     * A route is kept even if none of its trips had a resolvable delay, so that it is reported as OUTDATED.
+     */
+    private AgencyRealtimeAnalysisResponse getAgencyRealtimeResponse(AgencyFeedDto feed, GtfsRealtime.FeedMessage message) {
+        long timestamp = message.getHeader().getTimestamp();
         String feedId = feed.getId();
-        Map<String, List<GtfsRealtime.TripUpdate>> routeNameToTripUpdateMap = new HashMap<>();
-        for (GtfsRealtime.FeedEntity e : message.getEntityList()) {
-            GtfsRealtime.TripUpdate tu = e.getTripUpdate();
-            if (!validateRequiredFields(tu)) {
+        ExpectedBusTimes schedule = expectedBusTimesService.getSchedule(feedId);
+        TripUpdateSummary summary = new TripUpdateSummary();
+        Map<String, List<BusState>> routeNameToBusStates = new HashMap<>();
+        List<String> notFoundIds = new ArrayList<>();
+        int entityCount = message.getEntityCount();
+        for (int i = 0; i < entityCount; i++) {
+            GtfsRealtime.TripUpdate tu = message.getEntity(i).getTripUpdate();
+            if (!summary.read(tu)) {
                 continue;
             }
-            Optional<String> routeName = getRouteName(tu, feedId);
+            Optional<String> routeName = routeNameResolver.getRouteName(feedId, tu.getTrip().getRouteId(), summary.getTripId());
             if (routeName.isEmpty()) {
                 log.error("Unable to get routeName! Returning as outdated for {}", feed.getId());
                 return AgencyRealtimeAnalysisResponse.builder()
@@ -221,13 +178,27 @@ public class GtfsRealtimeParserService {
                         .feedStatus(Status.OUTDATED)
                         .build();
             }
-            routeNameToTripUpdateMap.computeIfAbsent(routeName.get(), k -> new ArrayList<>()).add(tu);
+            List<BusState> busStates = routeNameToBusStates.computeIfAbsent(routeName.get(), k -> new ArrayList<>());
+            if (!schedule.containsStop(summary.getTripId(), summary.getStopSequence())) {
+                notFoundIds.add(summary.getTripId() + "#" + summary.getStopSequence());
+            }
+            int delay = resolveDelay(summary, schedule);
+            if (delay == ExpectedBusTimes.NO_TIME) {
+                continue;
+            }
+            BusState busState = new BusState();
+            busState.setTripId(summary.getTripId());
+            busState.setDelay(delay);
+            busState.setClosestStopId(summary.getStopId());
+            busStates.add(busState);
+        }
+        if (!notFoundIds.isEmpty()) {
+            log.error("Failed to find ids: {}", notFoundIds);
+        }
+        List<AgencyRouteTimestamp> routeTimestampList = new ArrayList<>(routeNameToBusStates.size());
+        for (Map.Entry<String, List<BusState>> entry : routeNameToBusStates.entrySet()) {
+            routeTimestampList.add(getAgencyRouteTimestamp(feedId, entry.getKey(), timestamp, entry.getValue()));
         }
-        List<AgencyRouteTimestamp> routeTimestampList = routeNameToTripUpdateMap
-                .entrySet()
-                .stream()
-                .map(entry -> getAgencyRouteTimestamp(feedId, entry, timestamp, expectedBusTimes))
-                .toList();
         if (containsNullDelay(routeTimestampList)) {
             log.error("Feed {} had null delay!", feedId);
             return AgencyRealtimeAnalysisResponse.builder()
@@ -244,26 +215,15 @@ public class GtfsRealtimeParserService {
     }
 
     @NotNull
-    private AgencyRouteTimestamp getAgencyRouteTimestamp(String agencyId,
-                                                         Map.Entry<String, List<GtfsRealtime.TripUpdate>> routeNameToTripUpdate,
-                                                         long timeStamp, ExpectedBusTimes tripMap) {
-        String routeName = routeNameToTripUpdate.getKey();
-        List<GtfsRealtime.TripUpdate> tripUpdates = routeNameToTripUpdate.getValue();
+    private static AgencyRouteTimestamp getAgencyRouteTimestamp(String agencyId, String routeName, long timeStamp,
+                                                                List<BusState> busStates) {
         AgencyRouteTimestamp agencyRouteTimestamp = new AgencyRouteTimestamp();
         agencyRouteTimestamp.setAgencyRoute(agencyId, routeName.replace(":", ""));
         agencyRouteTimestamp.setTimestamp(timeStamp);
-        agencyRouteTimestamp.setBusStates(adaptBusStatesFrom(tripUpdates, tripMap));
+        agencyRouteTimestamp.setBusStates(busStates);
         return agencyRouteTimestamp;
     }
 
-    private List<BusState> adaptBusStatesFrom(List<GtfsRealtime.TripUpdate> tripUpdates, ExpectedBusTimes tripMap) {
-        return tripUpdates.stream()
-                .map(tripUpdate -> adaptBusStateFrom(tripUpdate, tripMap))
-                .filter(Optional::isPresent)
-                .map(Optional::get)
-                .toList();
-    }
-
     private boolean containsNullDelay(List<AgencyRouteTimestamp> routeTimestampList) {
         return routeTimestampList.stream()
                 .anyMatch(r -> isEmpty(r.getBusStatesCopyList()) || r.getBusStatesCopyList().stream().map(BusState::getDelay).anyMatch(Objects::isNull));
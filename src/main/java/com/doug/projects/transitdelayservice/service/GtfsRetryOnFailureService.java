@@ -4,14 +4,22 @@ import com.doug.projects.transitdelayservice.entity.AgencyRealtimeAnalysisRespon
 import com.doug.projects.transitdelayservice.entity.AgencyRouteTimestamp;
 import com.doug.projects.transitdelayservice.entity.Status;
 import com.doug.projects.transitdelayservice.entity.jpa.AgencyFeedDto;
+import com.doug.projects.transitdelayservice.repository.RouteNameResolver;
 import com.doug.projects.transitdelayservice.repository.jpa.AgencyFeedRepository;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.stereotype.Service;
 import org.springframework.util.CollectionUtils;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.doug.projects.transitdelayservice.config.AsyncConfiguration.FEED_RECHECK_EXECUTOR;
 
 import static com.doug.projects.transitdelayservice.entity.Status.*;
 
@@ -26,15 +34,41 @@ public class GtfsRetryOnFailureService {
     private final GtfsStaticParserService staticParserService;
     private final GtfsRealtimeParserService realtimeParserService;
     private final AgencyFeedRepository agencyFeedRepository;
+    private final RouteNameResolver routeNameResolver;
+    private final ExpectedBusTimesService expectedBusTimesService;
+    @Qualifier(FEED_RECHECK_EXECUTOR)
+    private final TaskExecutor feedRecheckExecutor;
+    /**
+     * Feeds with a recheck queued or running
+     */
+    private final Set<String> recheckingFeedIds = ConcurrentHashMap.newKeySet();
 
-    public List<AgencyRouteTimestamp> pollStaticFeedIfNeeded(AgencyRealtimeAnalysisResponse realtimeResponse) {
+    /**
+     * Updates the feed's status, retrying it first if it failed or was outdated. Runs on the feed recheck executor,
+     * since a retry can reload static data and re-poll the feed. Skipped if the feed is still being rechecked from an
+     * earlier poll, or if the executor is full.
+     */
+    public void recheckFeedInBackground(AgencyRealtimeAnalysisResponse realtimeResponse) {
         Status feedStatus = realtimeResponse.getFeedStatus();
         AgencyFeedDto feed = realtimeResponse.getFeed();
-        recheckFeedByStatus(feedStatus, feed);
-        if (CollectionUtils.isEmpty(realtimeResponse.getRouteTimestamps())) {
-            return Collections.emptyList();
+        if (!recheckingFeedIds.add(feed.getId())) {
+            log.info("Feed {} is still being rechecked, skipping its {} recheck", feed.getId(), feedStatus);
+            return;
+        }
+        try {
+            feedRecheckExecutor.execute(() -> {
+                try {
+                    recheckFeedByStatus(feedStatus, feed);
+                } catch (RuntimeException e) {
+                    log.error("Failed to recheck feed {} with status {}", feed.getId(), feedStatus, e);
+                } finally {
+                    recheckingFeedIds.remove(feed.getId());
+                }
+            });
+        } catch (TaskRejectedException e) {
+            recheckingFeedIds.remove(feed.getId());
+            log.error("Too many feeds waiting on a recheck, skipping feed {} with status {}", feed.getId(), feedStatus);
         }
-        return realtimeResponse.getRouteTimestamps();
     }
 
     public List<AgencyRouteTimestamp> updateFeedStatus(AgencyRealtimeAnalysisResponse realtimeResponse) {
@@ -77,6 +111,9 @@ public class GtfsRetryOnFailureService {
                     updateFeedToStatus(feed, UNAVAILABLE);
                 }
                 staticParserService.writeGtfsStaticDataToDbFromDiskSync(feed);
+                //the reloads the static load triggers run in the background, and may not be done before the re-poll
+                routeNameResolver.reload(feed.getId());
+                expectedBusTimesService.reload(feed.getId());
                 sleepFor(5);
                 var realtimeResult = realtimeParserService.pollFeed(feed);
                 if (realtimeResult.getFeedStatus() != ACTIVE) {
@@ -1,6 +1,7 @@
 package com.doug.projects.transitdelayservice.service;
 
 import com.doug.projects.transitdelayservice.entity.AgencyStaticStatus;
+import com.doug.projects.transitdelayservice.entity.GtfsStaticDataLoadedEvent;
 import com.doug.projects.transitdelayservice.entity.GtfsStaticDataType;
 import com.doug.projects.transitdelayservice.entity.gtfs.csv.*;
 import com.doug.projects.transitdelayservice.entity.jpa.*;
@@ -13,6 +14,8 @@ import com.fasterxml.jackson.dataformat.csv.CsvSchema;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 import org.zeroturnaround.zip.ZipUtil;
 
@@ -20,13 +23,14 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 import static com.doug.projects.transitdelayservice.entity.GtfsStaticDataType.*;
-import static com.doug.projects.transitdelayservice.util.UrlRedirectUtil.handleRedirect;
 import static io.micrometer.common.util.StringUtils.isBlank;
 
 @Service
@@ -41,6 +45,10 @@ public class GtfsStaticParserService {
     private final AgencyStopRepository agencyStopRepository;
     private final AgencyStopTimeRepository agencyStopTimeRepository;
     private final AgencyShapeRepository agencyShapeRepository;
+    private final ApplicationEventPublisher eventPublisher;
+    private final FeedHttpClient feedHttpClient;
+    @Value("${feedHttp.staticTimeoutSeconds}")
+    private long staticDownloadTimeoutSeconds;
 
     /**
      * Gets the associated type with this filename by checking whether the filename ENDS with type.getFileName.
@@ -138,6 +146,7 @@ public class GtfsStaticParserService {
         saveStopTimes(agencyTripMap,agencyStopMap,agencyId, agency.get().getTimezone());
         new File("files" + File.separator + agencyId).delete();
         log.info("All file read finished for id: {}", agencyId);
+        eventPublisher.publishEvent(new GtfsStaticDataLoadedEvent(agencyId));
     }
 
     private void saveStopTimes(Map<String, AgencyTrip> agencyTripMap, Map<String, AgencyStop> agencyStopMap, String agencyId, String timezone) {
@@ -345,7 +354,7 @@ public class GtfsStaticParserService {
                 if (!writeGtfsRoutesToDiskSync(feed.getStaticUrl(), feed.getId())) {
                     return AgencyStaticStatus.builder().message("Failed to write to disk").success(false).feed(feed).build();
                 }
-            } catch (IOException e) {
+            } catch (IOException | IllegalArgumentException e) {
                 return AgencyStaticStatus.builder().message(e.getMessage()).success(false).feed(feed).build();
             }
             return AgencyStaticStatus.builder().message("Success-ish :)").success(true).feed(feed).build();
@@ -356,7 +365,7 @@ public class GtfsStaticParserService {
      * Writes gtfs static data as .csv files to disk under /files/{id}/{type}.csv.
      * It is up to the callee to determine successful completion time & handle errors.
      * <p>
-     * This method may never complete. The callee _must_ set a timeout.
+     * The download is abandoned once feedHttp.staticTimeoutSeconds pass, but the callee should still set a timeout.
      * Files will only be written if they are in TYPES.
      * This does not mean that all TYPES will be written, since sometimes people put up bad GTFS feeds.
      *
@@ -364,25 +373,27 @@ public class GtfsStaticParserService {
      * @param feedId    the id to use when writing data to disk
      */
     private boolean writeGtfsRoutesToDiskSync(String staticUrl, String feedId) throws IOException {
-        var conn = ((HttpURLConnection) new URL(staticUrl).openConnection());
-        if (conn.getResponseCode() == HttpURLConnection.HTTP_MOVED_PERM || conn.getResponseCode() == HttpURLConnection.HTTP_MOVED_TEMP || conn.getResponseCode() == 308) {
-            log.info("Redirected id \"{}\" to \"{}\"", feedId, staticUrl);
-            //call with new url, don't write the old one.
-            return writeGtfsRoutesToDiskSync(handleRedirect(conn), feedId);
-        } else if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
-            log.error("Failed to download static data from \"{}\", resCode \"{}\"", staticUrl, conn.getResponseCode());
-            return false;
-        }
-        try (BufferedInputStream agencyGtfsZipStream = new BufferedInputStream(new URL(staticUrl).openStream())) {
-            //all hail zt-zip. The code before this was hard to read and difficult to maintain
-            var outputDir = new File("files" + File.separator + feedId);
-            ZipUtil.unpack(agencyGtfsZipStream, outputDir, fileName -> {
-                //only write files that we have a valid GtfsStaticDataType to parse for.
-                GtfsStaticDataType gtfsStaticDataType = getTypeEndsWith(fileName.replace(".txt", ".csv"));
-                if (gtfsStaticDataType == null) return null;
-                return gtfsStaticDataType.getFileName();
-            });
-            return true;
+        Path zipFile = Files.createTempFile("gtfs-" + feedId, ".zip");
+        try {
+            var response = feedHttpClient.download(feedId, staticUrl, zipFile, Duration.ofSeconds(staticDownloadTimeoutSeconds));
+            if (response.statusCode() != HttpURLConnection.HTTP_OK) {
+                log.error("Failed to download static data from \"{}\", resCode \"{}\"", staticUrl, response.statusCode());
+                return false;
+            }
+            try (BufferedInputStream agencyGtfsZipStream = new BufferedInputStream(
+                    FeedHttpClient.decode(response.headers(), Files.newInputStream(zipFile)))) {
+                //all hail zt-zip. The code before this was hard to read and difficult to maintain
+                var outputDir = new File("files" + File.separator + feedId);
+                ZipUtil.unpack(agencyGtfsZipStream, outputDir, fileName -> {
+                    //only write files that we have a valid GtfsStaticDataType to parse for.
+                    GtfsStaticDataType gtfsStaticDataType = getTypeEndsWith(fileName.replace(".txt", ".csv"));
+                    if (gtfsStaticDataType == null) return null;
+                    return gtfsStaticDataType.getFileName();
+                });
+                return true;
+            }
+        } finally {
+            Files.deleteIfExists(zipFile);
         }
     }
 }
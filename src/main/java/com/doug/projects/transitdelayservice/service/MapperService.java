@@ -5,10 +5,16 @@ import com.doug.projects.transitdelayservice.entity.BusState;
 import com.doug.projects.transitdelayservice.entity.GtfsShape;
 import com.doug.projects.transitdelayservice.entity.MapOptions;
 import com.doug.projects.transitdelayservice.entity.jpa.*;
+import com.doug.projects.transitdelayservice.entity.transit.ShapeCoordinates;
+import com.doug.projects.transitdelayservice.entity.transit.ShapeIndex;
 import com.doug.projects.transitdelayservice.entity.transit.ShapeProperties;
 import com.doug.projects.transitdelayservice.repository.AgencyRouteTimestampRepository;
-import com.doug.projects.transitdelayservice.repository.jpa.AgencyShapeRepository;
+import com.doug.projects.transitdelayservice.repository.SegmentDelayRollupWriter;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencySegmentDelayDto;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencySegmentDelayRollupRepository;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyStopRepository;
 import com.doug.projects.transitdelayservice.repository.jpa.AgencyStopTimeRepository;
+import com.doug.projects.transitdelayservice.util.LongIntHashMap;
 import io.micrometer.common.util.StringUtils;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -17,7 +23,6 @@ import org.geojson.FeatureCollection;
 import org.geojson.LineString;
 import org.geojson.LngLatAlt;
 import org.springframework.cache.annotation.Cacheable;
-import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.CollectionUtils;
@@ -25,6 +30,7 @@ import org.springframework.util.CollectionUtils;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static com.doug.projects.transitdelayservice.config.CachingConfiguration.DELAY_MAP_CACHE;
 import static com.doug.projects.transitdelayservice.util.TransitDateUtil.getMidnightDaysAgo;
@@ -32,7 +38,6 @@ import static com.doug.projects.transitdelayservice.util.TransitDateUtil.getMidn
 import static java.util.Collections.emptyList;
 import static java.util.Comparator.comparing;
 import static java.util.stream.Collectors.groupingBy;
-import static java.util.stream.Collectors.toMap;
 
 @Service
 @RequiredArgsConstructor
@@ -41,8 +46,18 @@ public class MapperService {
     private final AgencyRouteTimestampRepository routeTimestampRepository;
     private final AgencyFeedService agencyFeedService;
     private final AgencyStopTimeRepository agencyStopTimeRepository;
-    private final AgencyShapeRepository agencyShapeRepository;
+    private final ShapeIndexService shapeIndexService;
+    private final AgencySegmentDelayRollupRepository segmentDelayRollupRepository;
+    private final AgencyStopRepository agencyStopRepository;
+    /**
+     * The first hour rolled up for each feed's segments, once there is one
+     */
+    private final Map<String, Long> firstSegmentRollupStarts = new ConcurrentHashMap<>();
 
+    /**
+     * Slices the shape between the points closest to from and to, scanning the whole shape for each. Used for
+     * segments the {@link ShapeIndex} can't slice.
+     */
     public static List<LngLatAlt> divideShape(List<LngLatAlt> lngLatAlts, LngLatAlt from, LngLatAlt to) {
 
         // Find the closest shape points for 'from' and 'to'
@@ -132,19 +147,16 @@ public class MapperService {
     }
 
     public GtfsShape getRandomGtfsShape(String feedId) {
-        long count = agencyShapeRepository.countById_AgencyId(feedId);
-        if (count == 0) return new GtfsShape();
-        int selected = (int) (Math.random() * count);
-        var points = agencyShapeRepository.findAllById_AgencyId(feedId, PageRequest.of(selected, 1))
-                .stream()
-                .findAny()
-                .map(AgencyShape::getAgencyShapePoints)
-                .stream()
-                .flatMap(Collection::stream)
-                .map(s->List.of(s.getShapePtLat(),s.getShapePtLon()))
-                .toList();
+        ShapeIndex shapeIndex = shapeIndexService.getIndex(feedId);
+        List<String> shapeIds = shapeIndex.getShapeIds();
+        if (shapeIds.isEmpty()) return new GtfsShape();
+        String shapeId = shapeIds.get((int) (Math.random() * shapeIds.size()));
+        var points = shapeIndex.getCoordinates(shapeId)
+                .map(ShapeCoordinates::toLatLonPairs)
+                .orElse(emptyList());
         return GtfsShape.builder()
                 .shape(points)
+                .shapeId(shapeId)
                 .build();
     }
 
@@ -156,13 +168,18 @@ public class MapperService {
             return new FeatureCollection();
         }
 
+        long startTime = getMidnightDaysAgo(mapOptions.getSearchPeriod());
+        long endTime = getMidnightTonight();
         String agencyTimezone = agencyFeedService.getAgencyFeedById(feedId)
                 .map(AgencyFeedDto::getTimezone)
                 .orElse("UTC");
+        if (isRolledUp(feedId, startTime)) {
+            return getFeatureCollection(getRolledUpSegments(feedId, agencyTimezone, mapOptions, startTime, endTime));
+        }
 
         var routeTimestamps = routeTimestampRepository.getRouteTimestampsBy(
-                getMidnightDaysAgo(mapOptions.getSearchPeriod()),
-                getMidnightTonight(),
+                startTime,
+                endTime,
                 mapOptions.getRouteNames(),
                 feedId);
 
@@ -170,8 +187,85 @@ public class MapperService {
                 .filter(rt -> isWithinTimeWindow(rt, agencyTimezone, mapOptions))
                 .toList();
 
-        Map<String, ShapeProperties> segmentDelayMapping = getSegmentDelayMapping(filteredRouteTimestamps, feedId);
-        return getFeatureCollection(segmentDelayMapping);
+        Collection<ShapeProperties> segments = getSegmentDelayMapping(filteredRouteTimestamps, feedId);
+        return getFeatureCollection(segments);
+    }
+
+    /**
+     * @return true if every hour from startTime on was rolled up by {@link SegmentDelayRollupWriter}
+     */
+    private boolean isRolledUp(String feedId, long startTime) {
+        Long firstBucketStart = firstSegmentRollupStarts.computeIfAbsent(feedId,
+                segmentDelayRollupRepository::findFirstBucketStart);
+        //the first hour may have started being rolled up part way through, so only count from the next one
+        return firstBucketStart != null && startTime >= firstBucketStart + 3600;
+    }
+
+    /**
+     * Sums each segment's rolled up hours which fall in the selected days and hours, rather than replaying delays. As
+     * in {@link #isWithinTimeWindow}, every hour is selected for agencies without a timezone.
+     */
+    private Collection<ShapeProperties> getRolledUpSegments(String feedId, String agencyTimezone, MapOptions mapOptions,
+                                                            long startTime, long endTime) {
+        List<Integer> hoursOfWeek = getSelectedHoursOfWeek(agencyTimezone, mapOptions);
+        if (hoursOfWeek.isEmpty()) {
+            return emptyList();
+        }
+        var sums = segmentDelayRollupRepository.sumSegments(feedId, mapOptions.getRouteNames(), startTime, endTime,
+                hoursOfWeek);
+        Set<AgencyStopId> stopIds = new HashSet<>();
+        for (AgencySegmentDelayDto sum : sums) {
+            stopIds.add(new AgencyStopId(sum.fromStopId(), feedId));
+            stopIds.add(new AgencyStopId(sum.toStopId(), feedId));
+        }
+        Map<String, AgencyStop> stops = new HashMap<>();
+        agencyStopRepository.findAllByIdIn(stopIds).forEach(stop -> stops.put(stop.getId().getStopId(), stop));
+
+        ShapeIndex shapeIndex = shapeIndexService.getIndex(feedId);
+        //segments driven on several shapes are drawn along the first
+        Map<StopPair, ShapeProperties> segments = new HashMap<>();
+        for (AgencySegmentDelayDto sum : sums) {
+            AgencyStop fromStop = stops.get(sum.fromStopId());
+            AgencyStop toStop = stops.get(sum.toStopId());
+            if (fromStop == null || toStop == null || fromStop.getStopLat() == null || toStop.getStopLat() == null) {
+                continue;
+            }
+            ShapeProperties props = segments.computeIfAbsent(new StopPair(sum.fromStopId(), sum.toStopId()), k -> {
+                var from = new LngLatAlt(fromStop.getStopLon(), fromStop.getStopLat());
+                var to = new LngLatAlt(toStop.getStopLon(), toStop.getStopLat());
+                return ShapeProperties.builder()
+                        .coordinates(shapeIndex.slice(sum.shapeId(), sum.fromStopSequence(), sum.toStopSequence())
+                                .or(() -> shapeIndex.getCoordinates(sum.shapeId())
+                                        .map(coordinates -> divideShape(coordinates.toLngLatAlts(), from, to)))
+                                .orElseGet(() -> List.of(from, to)))
+                        .fromStop(from)
+                        .toStop(to)
+                        .delay(0.0)
+                        .count(0)
+                        .build();
+            });
+            //the sum is held in delay until all shapes are added
+            props.setDelay(props.getDelay() + sum.delaySumSeconds());
+            props.setCount(props.getCount() + sum.sampleCount().intValue());
+        }
+        segments.values().forEach(props -> props.setDelay(props.getDelay() / props.getCount()));
+        return segments.values();
+    }
+
+    /**
+     * @return the hours of the week, from 0 (Monday 00:00) to 167, which {@link #isWithinTimeWindow} keeps
+     */
+    private static List<Integer> getSelectedHoursOfWeek(String agencyTimezone, MapOptions mapOptions) {
+        List<Integer> hoursOfWeek = new ArrayList<>();
+        for (int day = 1; day <= 7; day++) {
+            for (int hour = 0; hour < 24; hour++) {
+                if (StringUtils.isEmpty(agencyTimezone) || (mapOptions.getDaysSelected().contains(day)
+                        && hour >= mapOptions.getHourStarted() && hour <= mapOptions.getHourEnded())) {
+                    hoursOfWeek.add((day - 1) * 24 + hour);
+                }
+            }
+        }
+        return hoursOfWeek;
     }
 
     private boolean isWithinTimeWindow(AgencyRouteTimestamp rt, String agencyTimezone, MapOptions mapOptions) {
@@ -187,75 +281,95 @@ public class MapperService {
                 mapOptions.getDaysSelected().contains(sampledDay.getValue());
     }
 
-    protected Map<String, ShapeProperties> getSegmentDelayMapping(List<AgencyRouteTimestamp> routeTimestamps, String feedId) {
+    protected Collection<ShapeProperties> getSegmentDelayMapping(List<AgencyRouteTimestamp> routeTimestamps, String feedId) {
         // 1. Group snapshots by Trip ID and sort by time to track bus progress correctly
         Map<AgencyTripId, List<BusState>> busHistory = routeTimestamps.stream()
                 .sorted(comparing(AgencyRouteTimestamp::getTimestamp))
                 .flatMap(rt -> rt.getBusStatesCopyList().stream())
                 .collect(groupingBy(s -> new AgencyTripId(s.getTripId(), feedId)));
 
-        // 2. Fetch all stop times for these trips
-        Map<AgencyTrip, List<AgencyStopTime>> tripStopData = agencyStopTimeRepository.findAllByTrip_IdIn(busHistory.keySet())
+        // 2. Fetch all stop times for these trips, grouped by id. AgencyTrip hashes every trip alike, so it is never a key
+        Map<AgencyTripId, List<AgencyStopTime>> tripStopData = agencyStopTimeRepository.findAllByTrip_IdIn(busHistory.keySet())
                 .stream()
-                .collect(groupingBy(AgencyStopTime::getTrip));
-
-        Map<String, ShapeProperties> aggregationMap = new HashMap<>();
+                .collect(groupingBy(st -> new AgencyTripId(st.getTripId(), feedId)));
 
-        for (Map.Entry<AgencyTrip, List<AgencyStopTime>> entry : tripStopData.entrySet()) {
-            AgencyTrip trip = entry.getKey();
-            List<AgencyStopTime> stops = entry.getValue();
+        ShapeIndex shapeIndex = shapeIndexService.getIndex(feedId);
+        // Segments are keyed by the codes of their two stops, packed into a long
+        Map<String, Integer> stopCodes = new HashMap<>();
+        LongIntHashMap segmentIndexes = new LongIntHashMap();
+        List<ShapeProperties> segments = new ArrayList<>();
+        double[] delaySums = new double[64];
+        int[] counts = new int[64];
 
-            // Map by Sequence ID to fix the indexing bug
-            Map<Integer, AgencyStopTime> seqToStop = stops.stream()
-                    .collect(toMap(AgencyStopTime::getStopSeq, s -> s, (a, b) -> a));
-            List<Integer> sortedSeqs = seqToStop.keySet().stream().sorted().toList();
+        for (Map.Entry<AgencyTripId, List<AgencyStopTime>> entry : tripStopData.entrySet()) {
+            AgencyTrip trip = entry.getValue().get(0).getTrip();
+            TripStops tripStops = TripStops.of(entry.getValue(), stopCodes);
 
-            List<BusState> states = busHistory.getOrDefault(trip.getId(), emptyList());
+            List<BusState> states = busHistory.getOrDefault(entry.getKey(), emptyList());
 
             for (int i = 0; i < states.size() - 1; i++) {
                 BusState startState = states.get(i);
                 BusState endState = states.get(i + 1);
 
-                Integer fromSeq = findSequenceForStop(startState.getClosestStopId(), stops);
-                Integer toSeq = findSequenceForStop(endState.getClosestStopId(), stops);
+                int from = tripStops.indexOf(startState.getClosestStopId());
+                int to = tripStops.indexOf(endState.getClosestStopId());
 
-                if (fromSeq == null || toSeq == null || toSeq <= fromSeq) continue;
-
-                // Identify all segments between these two snapshots
-                List<Integer> segmentsInInterval = sortedSeqs.stream()
-                        .filter(s -> s >= fromSeq && s <= toSeq)
-                        .toList();
+                if (from < 0 || to <= from) continue;
 
+                // Every segment between these two snapshots is a run of consecutive stops
                 double[] interpolatedDelays = interpolate(
                         startState.getDelay() != null ? startState.getDelay() : 0,
                         endState.getDelay() != null ? endState.getDelay() : 0,
-                        segmentsInInterval.size() - 1
+                        to - from
                 );
 
-                for (int j = 0; j < segmentsInInterval.size() - 1; j++) {
-                    AgencyStopTime s1 = seqToStop.get(segmentsInInterval.get(j));
-                    AgencyStopTime s2 = seqToStop.get(segmentsInInterval.get(j + 1));
-
-                    String segmentId = s1.getStopId() + "->" + s2.getStopId();
-                    double segmentDelay = interpolatedDelays[j];
-
-                    ShapeProperties props = aggregationMap.computeIfAbsent(segmentId, k -> ShapeProperties.builder()
-                            .shapeId(extractShapePoints(trip))
-                            .fromStop(new LngLatAlt(s1.getStop().getStopLon(), s1.getStop().getStopLat()))
-                            .toStop(new LngLatAlt(s2.getStop().getStopLon(), s2.getStop().getStopLat()))
-                            .delay(0.0)
-                            .count(0)
-                            .build());
-
-                    props.setDelay(props.getDelay() + segmentDelay);
-                    props.setCount(props.getCount() + 1);
+                for (int j = from; j < to; j++) {
+                    long segmentKey = tripStops.segmentKey(j);
+                    int segment = segmentIndexes.get(segmentKey);
+                    if (segment == LongIntHashMap.MISSING) {
+                        segment = segments.size();
+                        segments.add(newSegment(trip, tripStops.stopTimes()[j], tripStops.stopTimes()[j + 1], shapeIndex));
+                        segmentIndexes.put(segmentKey, segment);
+                        if (segment == counts.length) {
+                            delaySums = Arrays.copyOf(delaySums, segment * 2);
+                            counts = Arrays.copyOf(counts, segment * 2);
+                        }
+                    }
+                    delaySums[segment] += interpolatedDelays[j - from];
+                    counts[segment]++;
                 }
             }
         }
 
         // Final Average
-        aggregationMap.values().forEach(p -> p.setDelay(p.getDelay() / p.getCount()));
-        return aggregationMap;
+        for (int i = 0; i < segments.size(); i++) {
+            segments.get(i).setDelay(delaySums[i] / counts[i]);
+            segments.get(i).setCount(counts[i]);
+        }
+        return segments;
+    }
+
+    private ShapeProperties newSegment(AgencyTrip trip, AgencyStopTime s1, AgencyStopTime s2, ShapeIndex shapeIndex) {
+        var fromStop = new LngLatAlt(s1.getStop().getStopLon(), s1.getStop().getStopLat());
+        var toStop = new LngLatAlt(s2.getStop().getStopLon(), s2.getStop().getStopLat());
+        return ShapeProperties.builder()
+                .coordinates(shapeIndex.slice(trip.getShapeId(), s1.getStopSeq(), s2.getStopSeq())
+                        //shapes or stops not indexed yet fall back to scanning the shape
+                        .orElseGet(() -> divideShape(getShapePoints(trip, shapeIndex), fromStop, toStop)))
+                .fromStop(fromStop)
+                .toStop(toStop)
+                .delay(0.0)
+                .count(0)
+                .build();
+    }
+
+    /**
+     * @return the points of the trip's shape, from the index if it has them, or else loaded from the trip
+     */
+    private List<LngLatAlt> getShapePoints(AgencyTrip trip, ShapeIndex shapeIndex) {
+        return shapeIndex.getCoordinates(trip.getShapeId())
+                .map(ShapeCoordinates::toLngLatAlts)
+                .orElseGet(() -> extractShapePoints(trip));
     }
 
     private List<LngLatAlt> extractShapePoints(AgencyTrip trip) {
@@ -264,22 +378,14 @@ public class MapperService {
                 .toList();
     }
 
-    private Integer findSequenceForStop(String stopId, List<AgencyStopTime> stops) {
-        return stops.stream()
-                .filter(s -> s.getStopId().equals(stopId))
-                .map(AgencyStopTime::getStopSeq)
-                .findFirst()
-                .orElse(null);
-    }
-
-    private FeatureCollection getFeatureCollection(Map<String, ShapeProperties> segmentMapping) {
+    private FeatureCollection getFeatureCollection(Collection<ShapeProperties> segments) {
         FeatureCollection collection = new FeatureCollection();
         List<Feature> features = new ArrayList<>();
 
-        segmentMapping.forEach((id, props) -> {
+        segments.forEach(props -> {
             Feature f = new Feature();
             LineString ls = new LineString();
-            ls.setCoordinates(divideShape(props.getShapeId(), props.getFromStop(), props.getToStop()));
+            ls.setCoordinates(props.getCoordinates());
             f.setGeometry(ls);
             f.setProperty("averageDelay", props.getDelay() / 60.0);
             features.add(f);
@@ -288,4 +394,50 @@ public class MapperService {
         collection.setFeatures(features);
         return collection;
     }
+
+    /**
+     * A trip's stop times in stop sequence order, with the index of each stop and the code of its stop id. Stops
+     * visited twice are looked up at their first visit.
+     */
+    private record TripStops(AgencyStopTime[] stopTimes, int[] stopCodes, Map<String, Integer> indexByStopId) {
+        static TripStops of(List<AgencyStopTime> stopTimes, Map<String, Integer> stopCodes) {
+            AgencyStopTime[] sorted = stopTimes.stream()
+                    .filter(st -> st.getStopSeq() != null)
+                    .sorted(comparing(AgencyStopTime::getStopSeq))
+                    .toArray(AgencyStopTime[]::new);
+            int size = 0;
+            for (AgencyStopTime stopTime : sorted) {
+                //a repeated stop sequence keeps its first stop time
+                if (size == 0 || !sorted[size - 1].getStopSeq().equals(stopTime.getStopSeq())) {
+                    sorted[size++] = stopTime;
+                }
+            }
+            sorted = Arrays.copyOf(sorted, size);
+            int[] codes = new int[size];
+            Map<String, Integer> indexByStopId = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                codes[i] = stopCodes.computeIfAbsent(sorted[i].getStopId(), k -> stopCodes.size());
+                indexByStopId.putIfAbsent(sorted[i].getStopId(), i);
+            }
+            return new TripStops(sorted, codes, indexByStopId);
+        }
+
+        /**
+         * @return the index of stopId in the trip, or -1
+         */
+        int indexOf(String stopId) {
+            Integer index = indexByStopId.get(stopId);
+            return index == null ? -1 : index;
+        }
+
+        /**
+         * @return the key of the segment from stop i to stop i + 1
+         */
+        long segmentKey(int i) {
+            return ((long) stopCodes[i] << 32) | (stopCodes[i + 1] & 0xFFFFFFFFL);
+        }
+    }
+
+    private record StopPair(String fromStopId, String toStopId) {
+    }
 }
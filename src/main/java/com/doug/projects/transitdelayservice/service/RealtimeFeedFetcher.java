@@ -0,0 +1,149 @@
+package com.doug.projects.transitdelayservice.service;
+
+import com.doug.projects.transitdelayservice.entity.RealtimeFeedVersion;
+import com.doug.projects.transitdelayservice.entity.jpa.AgencyFeedDto;
+import com.google.transit.realtime.GtfsRealtime;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Downloads realtime feeds, skipping those which have not changed since the last version we processed.
+ * <p>
+ * A feed is unchanged if the server answers our ETag/If-Modified-Since with a 304, or if its FeedHeader.timestamp is
+ * the one we last processed. The processed version is only remembered once {@link #markProcessed} is called, so a poll
+ * that fails part way through is downloaded again next time.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class RealtimeFeedFetcher {
+    private final FeedHttpClient feedHttpClient;
+    @Value("${feedHttp.realtimeTimeoutSeconds}")
+    private long downloadTimeoutSeconds;
+    private final Map<String, RealtimeFeedVersion> processedVersions = new ConcurrentHashMap<>();
+
+    /**
+     * Downloads and decodes a feed.
+     *
+     * @param feed the feed to download
+     * @return the downloaded feed, or {@link FetchResult#unchanged()} if there is nothing new to process
+     * @throws IOException if the feed could not be downloaded or parsed
+     */
+    public FetchResult fetch(AgencyFeedDto feed) throws IOException {
+        return decode(feed, download(feed));
+    }
+
+    /**
+     * Downloads a feed, without parsing it.
+     *
+     * @param feed the feed to download
+     * @return the response body, or {@link Download#notModified()} if the server says the feed has not changed
+     * @throws UnauthorizedException if the server refused us access to the feed
+     * @throws IOException           if the feed could not be downloaded
+     */
+    public Download download(AgencyFeedDto feed) throws IOException {
+        RealtimeFeedVersion processed = processedVersions.get(feed.getId());
+        Map<String, String> headers = new HashMap<>();
+        if (processed != null) {
+            if (processed.etag() != null) {
+                headers.put("If-None-Match", processed.etag());
+            }
+            if (processed.lastModified() != null) {
+                headers.put("If-Modified-Since", processed.lastModified());
+            }
+        }
+        var response = feedHttpClient.get(feed.getId(), feed.getRealTimeUrl(), headers, Duration.ofSeconds(downloadTimeoutSeconds));
+        if (response.statusCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            log.info("Feed {} not modified, skipping", feed.getId());
+            return Download.notModified();
+        } else if (response.statusCode() == HttpURLConnection.HTTP_UNAUTHORIZED
+                || response.statusCode() == HttpURLConnection.HTTP_FORBIDDEN) {
+            throw new UnauthorizedException("Feed " + feed.getId() + " responded with status " + response.statusCode());
+        } else if (response.statusCode() != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Feed " + feed.getId() + " responded with status " + response.statusCode());
+        }
+        return new Download(response.body(),
+                response.headers().firstValue("ETag").orElse(null),
+                response.headers().firstValue("Last-Modified").orElse(null));
+    }
+
+    /**
+     * Parses a downloaded feed, skipping it if its FeedHeader.timestamp has already been processed.
+     *
+     * @param feed     the feed that was downloaded
+     * @param download the result of {@link #download}
+     * @return the parsed feed, or {@link FetchResult#unchanged()} if there is nothing new to process
+     * @throws IOException if the feed could not be parsed
+     */
+    public FetchResult decode(AgencyFeedDto feed, Download download) throws IOException {
+        if (download.isNotModified()) {
+            return FetchResult.unchanged();
+        }
+        GtfsRealtime.FeedMessage message;
+        try (InputStream in = download.body()) {
+            message = GtfsRealtime.FeedMessage.parseFrom(in);
+        }
+        long headerTimestamp = message.getHeader().getTimestamp();
+        RealtimeFeedVersion processed = processedVersions.get(feed.getId());
+        if (processed != null && headerTimestamp != 0 && headerTimestamp == processed.headerTimestamp()) {
+            log.info("Feed {} timestamp {} already processed, skipping", feed.getId(), headerTimestamp);
+            return FetchResult.unchanged();
+        }
+        return new FetchResult(message, new RealtimeFeedVersion(download.etag(), download.lastModified(), headerTimestamp));
+    }
+
+    /**
+     * Remembers version as the last one processed for feedId, so identical downloads are skipped from now on.
+     */
+    public void markProcessed(String feedId, RealtimeFeedVersion version) {
+        processedVersions.put(feedId, version);
+    }
+
+    /**
+     * @param body         the decoded response body, null if the feed was not modified
+     * @param etag         the ETag header of the response, may be null
+     * @param lastModified the Last-Modified header of the response, may be null
+     */
+    public record Download(InputStream body, String etag, String lastModified) {
+        static Download notModified() {
+            return new Download(null, null, null);
+        }
+
+        public boolean isNotModified() {
+            return body == null;
+        }
+    }
+
+    /**
+     * @param message the downloaded feed, null if the feed is unchanged
+     * @param version the version of message, null if the feed is unchanged
+     */
+    public record FetchResult(GtfsRealtime.FeedMessage message, RealtimeFeedVersion version) {
+        public static FetchResult unchanged() {
+            return new FetchResult(null, null);
+        }
+
+        public boolean isUnchanged() {
+            return message == null;
+        }
+    }
+
+    /**
+     * Thrown when a feed answers with 401 or 403, meaning it needs a token we don't have.
+     */
+    public static class UnauthorizedException extends IOException {
+        public UnauthorizedException(String message) {
+            super(message);
+        }
+    }
+}
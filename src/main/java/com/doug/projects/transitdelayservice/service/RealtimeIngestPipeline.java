@@ -0,0 +1,255 @@
+package com.doug.projects.transitdelayservice.service;
+
+import com.doug.projects.transitdelayservice.entity.AgencyRealtimeAnalysisResponse;
+import com.doug.projects.transitdelayservice.entity.AgencyRouteTimestamp;
+import com.doug.projects.transitdelayservice.entity.IngestStageStats;
+import com.doug.projects.transitdelayservice.entity.RealtimeDataSavedEvent;
+import com.doug.projects.transitdelayservice.entity.jpa.AgencyFeedDto;
+import com.doug.projects.transitdelayservice.repository.AgencyRouteTimestampRepository;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Realtime ingest, split into stages connected by bounded queues: fetch -> decode -> resolve -> persist.
+ * <p>
+ * Each stage has its own workers, so a slow db only backs up the persist stage rather than stalling downloads.
+ * When a queue is full, the upstream worker blocks until there is room. The fetch, decode and resolve queues hold at
+ * most one snapshot per feed: queuing a newer snapshot replaces the one waiting, since only the newest is worth
+ * processing. The persist queue never coalesces, so every resolved snapshot is written, and each feed is always persisted
+ * by the same worker, so its snapshots are written in the order they were resolved.
+ * <p>
+ * Persisting only writes the snapshot. Rechecking the feed's status, which may retry it, runs on its own executor.
+ */
+@Service
+@Slf4j
+public class RealtimeIngestPipeline {
+    private final RealtimeFeedFetcher realtimeFeedFetcher;
+    private final GtfsRealtimeParserService rtResponseService;
+    private final GtfsRetryOnFailureService retryOnFailureService;
+    private final AgencyRouteTimestampRepository routeTimestampRepository;
+    private final ApplicationEventPublisher eventPublisher;
+    private final Stage<Job> fetchStage;
+    private final Stage<DecodeJob> decodeStage;
+    private final Stage<ResolveJob> resolveStage;
+    private final Stage<PersistJob> persistStage;
+
+    public RealtimeIngestPipeline(RealtimeFeedFetcher realtimeFeedFetcher,
+                                  GtfsRealtimeParserService rtResponseService,
+                                  GtfsRetryOnFailureService retryOnFailureService,
+                                  AgencyRouteTimestampRepository routeTimestampRepository,
+                                  ApplicationEventPublisher eventPublisher,
+                                  @Value("${realtime.pipeline.fetchWorkers}") int fetchWorkers,
+                                  @Value("${realtime.pipeline.decodeWorkers}") int decodeWorkers,
+                                  @Value("${realtime.pipeline.resolveWorkers}") int resolveWorkers,
+                                  @Value("${realtime.pipeline.persistWorkers}") int persistWorkers,
+                                  @Value("${realtime.pipeline.queueCapacity}") int queueCapacity) {
+        this.realtimeFeedFetcher = realtimeFeedFetcher;
+        this.rtResponseService = rtResponseService;
+        this.retryOnFailureService = retryOnFailureService;
+        this.routeTimestampRepository = routeTimestampRepository;
+        this.eventPublisher = eventPublisher;
+        this.persistStage = new Stage<>("persist", persistWorkers, queueCapacity, false, this::persist);
+        this.resolveStage = new Stage<>("resolve", resolveWorkers, queueCapacity, true, this::resolve);
+        this.decodeStage = new Stage<>("decode", decodeWorkers, queueCapacity, true, this::decode);
+        this.fetchStage = new Stage<>("fetch", fetchWorkers, queueCapacity, true, this::fetch);
+    }
+
+    /**
+     * Queues a feed to be polled, blocking while the fetch queue is full.
+     *
+     * @param feed the feed to poll
+     * @return a future completed once the feed has been written, has failed, or was superseded by a newer snapshot
+     */
+    public CompletableFuture<Void> submit(AgencyFeedDto feed) {
+        var job = new Job(feed, new CompletableFuture<>());
+        fetchStage.put(job);
+        return job.done();
+    }
+
+    public List<IngestStageStats> getStats() {
+        return List.of(fetchStage.stats(), decodeStage.stats(), resolveStage.stats(), persistStage.stats());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        fetchStage.shutdown();
+        decodeStage.shutdown();
+        resolveStage.shutdown();
+        persistStage.shutdown();
+    }
+
+    private void fetch(Job job) {
+        try {
+            decodeStage.put(new DecodeJob(job.feed(), job.done(), realtimeFeedFetcher.download(job.feed())));
+        } catch (RuntimeException | IOException e) {
+            persistStage.put(new PersistJob(job.feed(), job.done(), rtResponseService.buildFailureResponse(job.feed(), e)));
+        }
+    }
+
+    private void decode(DecodeJob job) {
+        try {
+            resolveStage.put(new ResolveJob(job.feed(), job.done(), realtimeFeedFetcher.decode(job.feed(), job.download())));
+        } catch (RuntimeException | IOException e) {
+            persistStage.put(new PersistJob(job.feed(), job.done(), rtResponseService.buildFailureResponse(job.feed(), e)));
+        }
+    }
+
+    private void resolve(ResolveJob job) {
+        persistStage.put(new PersistJob(job.feed(), job.done(), rtResponseService.analyze(job.feed(), job.fetchResult())));
+    }
+
+    private void persist(PersistJob job) {
+        var rtResp = job.response();
+        retryOnFailureService.recheckFeedInBackground(rtResp);
+        List<AgencyRouteTimestamp> routeTimestamps = rtResp.getRouteTimestamps() != null ?
+                rtResp.getRouteTimestamps() :
+                Collections.emptyList();
+        routeTimestampRepository.saveAll(routeTimestamps, job.feed().getId());
+        if (!routeTimestamps.isEmpty() && routeTimestamps.get(0).getTimestamp() != null) {
+            eventPublisher.publishEvent(new RealtimeDataSavedEvent(job.feed().getId(), routeTimestamps.get(0).getTimestamp()));
+        }
+        rtResponseService.markProcessed(rtResp);
+        job.done().complete(null);
+    }
+
+    private interface FeedJob {
+        AgencyFeedDto feed();
+
+        CompletableFuture<Void> done();
+    }
+
+    private record Job(AgencyFeedDto feed, CompletableFuture<Void> done) implements FeedJob {
+    }
+
+    private record DecodeJob(AgencyFeedDto feed, CompletableFuture<Void> done,
+                             RealtimeFeedFetcher.Download download) implements FeedJob {
+    }
+
+    private record ResolveJob(AgencyFeedDto feed, CompletableFuture<Void> done,
+                              RealtimeFeedFetcher.FetchResult fetchResult) implements FeedJob {
+    }
+
+    private record PersistJob(AgencyFeedDto feed, CompletableFuture<Void> done,
+                              AgencyRealtimeAnalysisResponse response) implements FeedJob {
+    }
+
+    /**
+     * A bounded queue of jobs, worked by a fixed number of threads.
+     * If coalescing, the queue holds feedIds and the newest job of each queued feed is kept in pending. Otherwise each
+     * worker has its own queue, and each feed's jobs go to the same worker.
+     */
+    private static class Stage<T extends FeedJob> {
+        private final String name;
+        private final int queueCapacity;
+        private final boolean coalesce;
+        private final Consumer<T> handler;
+        private final List<BlockingQueue<Object>> queues = new ArrayList<>();
+        private final Map<String, T> pending = new ConcurrentHashMap<>();
+        private final ThreadPoolTaskExecutor workers = new ThreadPoolTaskExecutor();
+        private final AtomicLong processed = new AtomicLong();
+        private final AtomicLong coalesced = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong busyNanos = new AtomicLong();
+        private final long startNanos = System.nanoTime();
+
+        Stage(String name, int workerCount, int queueCapacity, boolean coalesce, Consumer<T> handler) {
+            this.name = name;
+            this.queueCapacity = queueCapacity;
+            this.coalesce = coalesce;
+            this.handler = handler;
+            BlockingQueue<Object> shared = coalesce ? new ArrayBlockingQueue<>(queueCapacity) : null;
+            for (int i = 0; i < workerCount; i++) {
+                queues.add(coalesce ? shared : new ArrayBlockingQueue<>(Math.max(1, queueCapacity / workerCount)));
+            }
+            workers.setCorePoolSize(workerCount);
+            workers.setMaxPoolSize(workerCount);
+            workers.setQueueCapacity(0);
+            workers.setThreadNamePrefix("Ingest-" + name + "-");
+            workers.setDaemon(true);
+            workers.initialize();
+            for (BlockingQueue<Object> queue : queues) {
+                workers.execute(() -> work(queue));
+            }
+        }
+
+        void put(T job) {
+            try {
+                if (!coalesce) {
+                    queues.get(Math.floorMod(job.feed().getId().hashCode(), queues.size())).put(job);
+                    return;
+                }
+                String feedId = job.feed().getId();
+                T replaced = pending.put(feedId, job);
+                if (replaced != null) {
+                    //the older snapshot was still waiting, and its feedId is still queued. Let it go
+                    coalesced.incrementAndGet();
+                    log.info("Feed {} superseded by a newer snapshot in {} stage", feedId, name);
+                    replaced.done().complete(null);
+                    return;
+                }
+                queues.get(0).put(feedId);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                job.done().completeExceptionally(e);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void work(BlockingQueue<Object> queue) {
+            while (!Thread.currentThread().isInterrupted()) {
+                T job;
+                try {
+                    Object queued = queue.take();
+                    job = coalesce ? pending.remove((String) queued) : (T) queued;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (job == null) {
+                    continue;
+                }
+                long start = System.nanoTime();
+                try {
+                    handler.accept(job);
+                } catch (RuntimeException e) {
+                    failed.incrementAndGet();
+                    job.done().completeExceptionally(e);
+                } finally {
+                    busyNanos.addAndGet(System.nanoTime() - start);
+                    processed.incrementAndGet();
+                }
+            }
+        }
+
+        IngestStageStats stats() {
+            long processedCount = processed.get();
+            double avgMillis = processedCount == 0 ? 0 : (double) TimeUnit.NANOSECONDS.toMillis(busyNanos.get()) / processedCount;
+            double minutes = (double) (System.nanoTime() - startNanos) / TimeUnit.MINUTES.toNanos(1);
+            int queued = coalesce ? queues.get(0).size() : queues.stream().mapToInt(BlockingQueue::size).sum();
+            return new IngestStageStats(name, queues.size(), queued, queueCapacity, processedCount,
+                    coalesced.get(), failed.get(), avgMillis, minutes == 0 ? 0 : processedCount / minutes);
+        }
+
+        void shutdown() {
+            //interrupts the workers, rather than waiting on them
+            workers.shutdown();
+        }
+    }
+}
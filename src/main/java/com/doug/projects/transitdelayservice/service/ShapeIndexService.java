@@ -0,0 +1,104 @@
+package com.doug.projects.transitdelayservice.service;
+
+import com.doug.projects.transitdelayservice.entity.GtfsStaticDataLoadedEvent;
+import com.doug.projects.transitdelayservice.entity.transit.ShapeIndex;
+import com.doug.projects.transitdelayservice.entity.transit.ShapeIndexStats;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyShapePointDto;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyShapePointRepository;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyShapeStopDto;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyStopTimeRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Holds the {@link ShapeIndex} of each feed, used to slice delay lines out of shapes and as the cache of shape points.
+ * A feed's index is built from the db the first time it is needed, then rebuilt only when its static data reloads.
+ */
+@Slf4j
+@Service
+public class ShapeIndexService {
+    private final AgencyShapePointRepository agencyShapePointRepository;
+    private final AgencyStopTimeRepository agencyStopTimeRepository;
+    private final TransactionTemplate readOnlyTransaction;
+    private final Map<String, ShapeIndex> indexesByFeed = new ConcurrentHashMap<>();
+
+    public ShapeIndexService(AgencyShapePointRepository agencyShapePointRepository,
+                             AgencyStopTimeRepository agencyStopTimeRepository,
+                             PlatformTransactionManager transactionManager) {
+        this.agencyShapePointRepository = agencyShapePointRepository;
+        this.agencyStopTimeRepository = agencyStopTimeRepository;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+    }
+
+    /**
+     * Gets the shape index of a feed, building it if this is the first time it is needed.
+     */
+    public ShapeIndex getIndex(String feedId) {
+        ShapeIndex index = indexesByFeed.get(feedId);
+        if (index == null) {
+            index = loadIndex(feedId);
+            ShapeIndex existing = indexesByFeed.putIfAbsent(feedId, index);
+            if (existing != null) {
+                index = existing;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @return the size of each loaded index, by feed id
+     */
+    public Map<String, ShapeIndexStats> getStats() {
+        Map<String, ShapeIndexStats> stats = new TreeMap<>();
+        indexesByFeed.forEach((feedId, index) -> stats.put(feedId, index.getStats()));
+        return stats;
+    }
+
+    /**
+     * Rebuilds the feed's index after its new shapes and stop times are committed. The rebuild streams every shape
+     * point of the feed, so it runs in the background, and a failure leaves the previous index in place instead of
+     * failing the static load. Maps drawn meanwhile are sliced from the previous index.
+     */
+    @Async
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT, fallbackExecution = true)
+    public void onStaticDataLoaded(GtfsStaticDataLoadedEvent event) {
+        reload(event.agencyId());
+    }
+
+    /**
+     * Rebuilds the index of feedId from the db, replacing the previous index once built.
+     */
+    public void reload(String feedId) {
+        indexesByFeed.put(feedId, loadIndex(feedId));
+    }
+
+    private ShapeIndex loadIndex(String feedId) {
+        var builder = ShapeIndex.builder();
+        readOnlyTransaction.executeWithoutResult(status -> {
+            try (Stream<AgencyShapePointDto> points = agencyShapePointRepository.streamPointsByAgencyId(feedId)) {
+                points.filter(p -> p.shapePtLat() != null && p.shapePtLon() != null)
+                        .forEach(p -> builder.addShapePoint(p.shapeId(), p.shapePtLat(), p.shapePtLon()));
+            }
+            try (Stream<AgencyShapeStopDto> stops = agencyStopTimeRepository.streamShapeStopsByAgencyId(feedId)) {
+                stops.filter(s -> s.stopSequence() != null && s.stopLat() != null && s.stopLon() != null)
+                        .forEach(s -> builder.addStop(s.shapeId(), s.stopSequence(), s.stopId(), s.stopLat(), s.stopLon()));
+            }
+        });
+        var index = builder.build();
+        var stats = index.getStats();
+        log.info("Indexed {} shapes ({} points, {} KB) for feed {}", stats.shapeCount(), stats.pointCount(),
+                stats.estimatedBytes() / 1024, feedId);
+        return index;
+    }
+}
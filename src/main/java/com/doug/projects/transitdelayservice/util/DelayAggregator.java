@@ -0,0 +1,142 @@
+package com.doug.projects.transitdelayservice.util;
+
+import java.util.Arrays;
+import java.util.OptionalDouble;
+import java.util.function.Supplier;
+
+/**
+ * Aggregates the delays of one graph bucket, as primitive delay seconds. Replaces the boxed collectors graphs used,
+ * which boxed every delay and divided it into minutes one by one.
+ */
+public interface DelayAggregator {
+    void add(int delaySeconds);
+
+    /**
+     * @return the aggregate, in the graph's unit (minutes, or percent), or empty if no delays were added
+     */
+    OptionalDouble getValue();
+
+    static Supplier<DelayAggregator> average() {
+        return Average::new;
+    }
+
+    static Supplier<DelayAggregator> max() {
+        return Max::new;
+    }
+
+    static Supplier<DelayAggregator> median() {
+        return Median::new;
+    }
+
+    /**
+     * Gets the percent of delays between lowerMinutes and upperMinutes, inclusive
+     */
+    static Supplier<DelayAggregator> percentWithin(int lowerMinutes, int upperMinutes) {
+        return () -> new PercentWithin(lowerMinutes * 60, upperMinutes * 60);
+    }
+
+    /**
+     * Estimates the delay at quantile with a {@link DelayHistogram}, in constant memory
+     */
+    static Supplier<DelayAggregator> quantile(double quantile) {
+        return () -> new Quantile(quantile);
+    }
+
+    final class Average implements DelayAggregator {
+        private long sum;
+        private long count;
+
+        @Override
+        public void add(int delaySeconds) {
+            sum += delaySeconds;
+            count++;
+        }
+
+        @Override
+        public OptionalDouble getValue() {
+            return count == 0 ? OptionalDouble.empty() : OptionalDouble.of((double) sum / count / 60d);
+        }
+    }
+
+    final class Max implements DelayAggregator {
+        private int max = Integer.MIN_VALUE;
+        private boolean empty = true;
+
+        @Override
+        public void add(int delaySeconds) {
+            max = Math.max(max, delaySeconds);
+            empty = false;
+        }
+
+        @Override
+        public OptionalDouble getValue() {
+            return empty ? OptionalDouble.empty() : OptionalDouble.of(max / 60d);
+        }
+    }
+
+    /**
+     * Buffers the bucket's delays in an int[], then quickselects the middle
+     */
+    final class Median implements DelayAggregator {
+        private int[] delays = new int[16];
+        private int length;
+
+        @Override
+        public void add(int delaySeconds) {
+            if (length == delays.length) {
+                delays = Arrays.copyOf(delays, length * 2);
+            }
+            delays[length++] = delaySeconds;
+        }
+
+        @Override
+        public OptionalDouble getValue() {
+            return length == 0 ? OptionalDouble.empty() : OptionalDouble.of(DelayKernels.median(delays, length) / 60d);
+        }
+    }
+
+    final class PercentWithin implements DelayAggregator {
+        private final int lowerSeconds;
+        private final int upperSeconds;
+        private long within;
+        private long count;
+
+        PercentWithin(int lowerSeconds, int upperSeconds) {
+            this.lowerSeconds = lowerSeconds;
+            this.upperSeconds = upperSeconds;
+        }
+
+        @Override
+        public void add(int delaySeconds) {
+            if (delaySeconds >= lowerSeconds && delaySeconds <= upperSeconds) {
+                within++;
+            }
+            count++;
+        }
+
+        @Override
+        public OptionalDouble getValue() {
+            return count == 0 ? OptionalDouble.empty() : OptionalDouble.of((double) within / count * 100);
+        }
+    }
+
+    final class Quantile implements DelayAggregator {
+        private final DelayHistogram histogram = new DelayHistogram();
+        private final double quantile;
+
+        Quantile(double quantile) {
+            this.quantile = quantile;
+        }
+
+        @Override
+        public void add(int delaySeconds) {
+            histogram.add(delaySeconds);
+        }
+
+        @Override
+        public OptionalDouble getValue() {
+            var seconds = histogram.getValueAt(quantile);
+            return seconds.isPresent() ? OptionalDouble.of(seconds.getAsDouble() / 60d) : OptionalDouble.empty();
+        }
+    }
+}
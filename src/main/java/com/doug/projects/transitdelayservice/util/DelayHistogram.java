@@ -0,0 +1,126 @@
+package com.doug.projects.transitdelayservice.util;
+
+import java.util.Arrays;
+import java.util.OptionalDouble;
+
+/**
+ * A mergeable histogram of delay seconds, used to estimate quantiles in constant memory.
+ * <p>
+ * Delays under {@value #LINEAR_LIMIT} seconds (either way) get a bin per second. Past that, each power of two is split
+ * into {@value #SUB_BINS} bins, so a quantile is off by at most 1/32 (~3%) of its value. Delays past
+ * {@value #MAX_MAGNITUDE} seconds are counted in the last bin.
+ * <p>
+ * Bins are signed, and ordered the same as the delays in them, so histograms can be stored and summed bin by bin.
+ */
+public final class DelayHistogram {
+    static final int LINEAR_LIMIT = 64;
+    static final int SUB_BINS = 16;
+    static final int MAX_MAGNITUDE = (1 << 17) - 1;
+    private static final int LINEAR_BITS = Integer.numberOfTrailingZeros(LINEAR_LIMIT);
+    private static final int SUB_BIN_BITS = Integer.numberOfTrailingZeros(SUB_BINS);
+    /**
+     * The largest bin, holding MAX_MAGNITUDE
+     */
+    public static final int MAX_BIN = magnitudeBin(MAX_MAGNITUDE);
+
+    private final long[] counts = new long[2 * MAX_BIN + 1];
+    private long count;
+
+    /**
+     * @return the bin which delaySeconds is counted in
+     */
+    public static int binOf(int delaySeconds) {
+        int magnitude = (int) Math.min(Math.abs((long) delaySeconds), MAX_MAGNITUDE);
+        int bin = magnitudeBin(magnitude);
+        return delaySeconds < 0 ? -bin : bin;
+    }
+
+    private static int magnitudeBin(int magnitude) {
+        if (magnitude < LINEAR_LIMIT) {
+            return magnitude;
+        }
+        int exponent = 31 - Integer.numberOfLeadingZeros(magnitude);
+        int subBin = (magnitude >>> (exponent - SUB_BIN_BITS)) - SUB_BINS;
+        return LINEAR_LIMIT + (exponent - LINEAR_BITS) * SUB_BINS + subBin;
+    }
+
+    /**
+     * @return the delay seconds a bin stands for, the middle of its range
+     */
+    public static double valueOf(int bin) {
+        int magnitudeBin = Math.abs(bin);
+        double value;
+        if (magnitudeBin < LINEAR_LIMIT) {
+            value = magnitudeBin;
+        } else {
+            int exponent = (magnitudeBin - LINEAR_LIMIT) / SUB_BINS + LINEAR_BITS;
+            int subBin = (magnitudeBin - LINEAR_LIMIT) % SUB_BINS;
+            int width = 1 << (exponent - SUB_BIN_BITS);
+            value = (SUB_BINS + subBin) * (double) width + (width - 1) / 2d;
+        }
+        return bin < 0 ? -value : value;
+    }
+
+    public void add(int delaySeconds) {
+        addBin(binOf(delaySeconds), 1);
+    }
+
+    public void addBin(int bin, long binCount) {
+        counts[bin + MAX_BIN] += binCount;
+        count += binCount;
+    }
+
+    public DelayHistogram merge(DelayHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        return this;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Estimates the delay at quantile, as the nearest rank.
+     *
+     * @param quantile between 0 and 1
+     * @return the delay seconds, or empty if nothing was added
+     */
+    public OptionalDouble getValueAt(double quantile) {
+        if (count == 0) {
+            return OptionalDouble.empty();
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return OptionalDouble.of(valueOf(i - MAX_BIN));
+            }
+        }
+        return OptionalDouble.of(valueOf(MAX_BIN));
+    }
+
+    /**
+     * Passes each bin with a count, in order.
+     */
+    public void forEachBin(BinConsumer consumer) {
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                consumer.accept(i - MAX_BIN, counts[i]);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DelayHistogram{count=" + count + ", nonEmptyBins=" + Arrays.stream(counts).filter(c -> c != 0).count() + "}";
+    }
+
+    @FunctionalInterface
+    public interface BinConsumer {
+        void accept(int bin, long count);
+    }
+}
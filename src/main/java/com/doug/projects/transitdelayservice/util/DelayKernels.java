@@ -0,0 +1,85 @@
+package com.doug.projects.transitdelayservice.util;
+
+/**
+ * Aggregation kernels over buffers of delay seconds. Each works on the first <code>length</code> values of the buffer,
+ * without boxing.
+ */
+public final class DelayKernels {
+    private DelayKernels() {
+    }
+
+    static int max(int[] values, int length) {
+        int max = Integer.MIN_VALUE;
+        for (int i = 0; i < length; i++) {
+            max = Math.max(max, values[i]);
+        }
+        return max;
+    }
+
+    /**
+     * Finds the median with quickselect, in linear time on average. Reorders the values.
+     *
+     * @return the middle value, or the average of the middle two for an even length
+     */
+    public static double median(int[] values, int length) {
+        if (length == 0) {
+            throw new IllegalArgumentException("Median of no values");
+        }
+        int upperMiddle = select(values, length, length / 2);
+        if (length % 2 == 1) {
+            return upperMiddle;
+        }
+        //select leaves the smaller values before upperMiddle, the largest of them is the lower middle
+        int lowerMiddle = max(values, length / 2);
+        return (lowerMiddle + (double) upperMiddle) / 2;
+    }
+
+    /**
+     * Moves the k-th smallest value to index k, with smaller values before it and larger ones after.
+     *
+     * @return the k-th smallest value
+     */
+    static int select(int[] values, int length, int k) {
+        int left = 0;
+        int right = length - 1;
+        while (left < right) {
+            //median of three pivot, so sorted or constant buckets don't go quadratic
+            int middle = (left + right) >>> 1;
+            if (values[middle] < values[left]) swap(values, middle, left);
+            if (values[right] < values[left]) swap(values, right, left);
+            if (values[right] < values[middle]) swap(values, right, middle);
+            int pivot = values[middle];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (values[i] < pivot) i++;
+                while (values[j] > pivot) j--;
+                if (i <= j) {
+                    swap(values, i++, j--);
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                break;
+            }
+        }
+        return values[k];
+    }
+
+    private static void swap(int[] values, int i, int j) {
+        int value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+    }
+
+    /**
+     * Rounds to the thousandths place, halves away from zero, without going through BigDecimal.
+     */
+    public static double threeDigitPrecision(double value) {
+        double rounded = Math.floor(Math.abs(value) * 1000 + 0.5) / 1000;
+        return value < 0 && rounded != 0 ? -rounded : rounded;
+    }
+}
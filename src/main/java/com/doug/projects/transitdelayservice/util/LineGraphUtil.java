@@ -81,12 +81,16 @@ public class LineGraphUtil {
 
     public void sortByGTFSSortOrder(String feedId, List<LineGraphData> lineGraphDataList) {
         Map<String, Integer> sortOrderMap = gtfsStaticService.getRouteNameToSortOrderMap(feedId);
-        lineGraphDataList.sort(
-                comparing((LineGraphData data) -> sortOrderMap.get(data.getLineLabel()), nullsLast(naturalOrder()))
-                        .thenComparing((LineGraphData d) -> parseFirstPartInt(d.getLineLabel()), nullsLast(naturalOrder()))
-                        .thenComparing((LineGraphData d) -> parseLastPartInt(d.getLineLabel()), nullsLast(naturalOrder()))
-                        .thenComparing(LineGraphData::getLineLabel, nullsLast(naturalOrder()))
-        );
+        //parse each label once up front, rather than on every comparison
+        List<SortableLine> lines = new ArrayList<>(lineGraphDataList.size());
+        for (LineGraphData data : lineGraphDataList) {
+            String label = data.getLineLabel();
+            lines.add(new SortableLine(sortOrderMap.get(label), parseFirstPartInt(label), parseLastPartInt(label), data));
+        }
+        lines.sort(SortableLine.ORDER);
+        for (int i = 0; i < lines.size(); i++) {
+            lineGraphDataList.set(i, lines.get(i).data());
+        }
     }
 
     public void populateColor(String feedId, List<LineGraphData> lineGraphDataList) {
@@ -100,4 +104,12 @@ public class LineGraphUtil {
             lineGraphData.setBorderColor(color);
         });
     }
+
+    private record SortableLine(Integer sortOrder, int firstPart, int lastPart, LineGraphData data) {
+        static final Comparator<SortableLine> ORDER =
+                comparing(SortableLine::sortOrder, nullsLast(naturalOrder()))
+                        .thenComparingInt(SortableLine::firstPart)
+                        .thenComparingInt(SortableLine::lastPart)
+                        .thenComparing(line -> line.data().getLineLabel(), nullsLast(naturalOrder()));
+    }
 }
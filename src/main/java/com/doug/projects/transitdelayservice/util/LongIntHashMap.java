@@ -0,0 +1,89 @@
+package com.doug.projects.transitdelayservice.util;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from long keys to int values, without boxing either. Values must not be negative, as
+ * negative values mark empty slots.
+ */
+public final class LongIntHashMap {
+    public static final int MISSING = -1;
+
+    private long[] keys;
+    private int[] values;
+    private int size;
+
+    public LongIntHashMap() {
+        this(16);
+    }
+
+    public LongIntHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, MISSING);
+    }
+
+    /**
+     * @return the value of key, or {@link #MISSING}
+     */
+    public int get(long key) {
+        int mask = keys.length - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            if (values[slot] == MISSING) {
+                return MISSING;
+            }
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+        }
+    }
+
+    public void put(long key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value " + value);
+        }
+        if ((size + 1) * 2 > keys.length) {
+            resize();
+        }
+        int mask = keys.length - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            if (values[slot] == MISSING) {
+                keys[slot] = key;
+                values[slot] = value;
+                size++;
+                return;
+            }
+            if (keys[slot] == key) {
+                values[slot] = value;
+                return;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        Arrays.fill(values, MISSING);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != MISSING) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    /**
+     * Mixes the high bits into the low ones, since keys are often two packed ints
+     */
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,149 @@
+package com.doug.projects.transitdelayservice.perf;
+
+import com.doug.projects.transitdelayservice.entity.jpa.AgencyRealtimePoll;
+import com.doug.projects.transitdelayservice.entity.jpa.AgencyRealtimePollId;
+import com.doug.projects.transitdelayservice.entity.jpa.AgencyTripDelay;
+import com.doug.projects.transitdelayservice.repository.AgencyRouteTimestampRepository;
+import com.doug.projects.transitdelayservice.repository.DelayAggregationRepository;
+import com.doug.projects.transitdelayservice.repository.DelayAggregationRepository.Aggregate;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyRealtimePollRepository;
+import com.doug.projects.transitdelayservice.util.DelayAggregator;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.offset;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Compares the graph aggregates computed by PostgreSQL against streaming the same delays through
+ * {@link DelayAggregator}s, for full rows and for delta mode rows expanded over their polls. Needs PostgreSQL, so is
+ * skipped on the H2 fallback.
+ */
+public class DelayAggregationPerfTest extends PerfTestBase {
+    private static final List<String> ROUTE_NAMES = List.of("Route-0", "Route-1", "Route-2");
+    private static final int TRIPS_PER_ROUTE = 4;
+    private static final long BUCKET_SIZE = 600;
+    private static final int LOWER_ON_TIME_MINUTES = -1;
+    private static final int UPPER_ON_TIME_MINUTES = 1;
+    private static final List<Aggregate> AGGREGATES =
+            List.of(Aggregate.AVERAGE, Aggregate.MAX, Aggregate.MEDIAN, Aggregate.PERCENT_WITHIN);
+    private static final List<Supplier<DelayAggregator>> AGGREGATORS = List.of(DelayAggregator.average(),
+            DelayAggregator.max(), DelayAggregator.median(),
+            DelayAggregator.percentWithin(LOWER_ON_TIME_MINUTES, UPPER_ON_TIME_MINUTES));
+
+    @Autowired
+    private DelayAggregationRepository delayAggregationRepository;
+    @Autowired
+    private AgencyRouteTimestampRepository agencyRouteTimestampRepository;
+    @Autowired
+    private AgencyRealtimePollRepository agencyRealtimePollRepository;
+
+    private long now;
+    private long firstPoll;
+
+    @BeforeEach
+    void localSetUp() {
+        assumeTrue(delayAggregationRepository.isSupported(), "Aggregating in the db needs PostgreSQL");
+        //full rows, one a minute over the last half hour
+        createTestData(ROUTE_NAMES.size(), TRIPS_PER_ROUTE, 30);
+        now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+
+        //delta mode rows, polled every minute from 3 hours ago until 1 hour ago
+        firstPoll = now - TimeUnit.HOURS.toSeconds(3);
+        List<AgencyRealtimePoll> polls = new ArrayList<>();
+        for (long poll = firstPoll; poll <= now - TimeUnit.HOURS.toSeconds(1); poll += 60) {
+            polls.add(new AgencyRealtimePoll(new AgencyRealtimePollId(feedId, poll)));
+        }
+        agencyRealtimePollRepository.saveAll(polls);
+        List<AgencyTripDelay> delays = new ArrayList<>();
+        for (int r = 0; r < ROUTE_NAMES.size(); r++) {
+            for (int t = 0; t < TRIPS_PER_ROUTE; t++) {
+                String tripId = "route-" + r + "-t-" + t;
+                //closed, starting before the graph
+                delays.add(delta(tripId, firstPoll, 60 * (r + t), firstPoll + 1800));
+                //still open, so expanded up to maxSpanSeconds
+                delays.add(delta(tripId, firstPoll + 1860, 30 * t - 60, AgencyTripDelay.OPEN_LAST_SEEN_TIMESTAMP));
+                //unknown delays are never counted
+                delays.add(delta(tripId, firstPoll + 6000, null, firstPoll + 6600));
+            }
+        }
+        agencyTripDelayRepository.saveAll(delays);
+    }
+
+    private AgencyTripDelay delta(String tripId, long timestamp, Integer delaySeconds, long lastSeenTimestamp) {
+        return AgencyTripDelay.builder()
+                .tripId(tripId)
+                .agencyId(feedId)
+                .timestamp(timestamp)
+                .stopId("stop-0")
+                .delaySeconds(delaySeconds)
+                .lastSeenTimestamp(lastSeenTimestamp)
+                .build();
+    }
+
+    @Test
+    void dbAggregatesMatchStreamedAggregates() {
+        //starts part way through the first delta rows, so they are found through the lookback
+        long startTime = firstPoll + 900;
+        int bucketCount = (int) ((now - startTime) / BUCKET_SIZE) + 1;
+
+        long t0 = System.nanoTime();
+        Map<String, double[]> aggregated = aggregate(startTime, bucketCount);
+        long t1 = System.nanoTime();
+        Map<String, double[]> streamed = stream(startTime, bucketCount);
+        long t2 = System.nanoTime();
+        System.out.println("DelayAggregationPerfTest: db " + TimeUnit.NANOSECONDS.toMillis(t1 - t0) + "ms, streamed " +
+                TimeUnit.NANOSECONDS.toMillis(t2 - t1) + "ms, buckets=" + streamed.size());
+
+        //delta rows before the start, open delta rows and full rows all land in buckets
+        assertThat(streamed).containsKeys("Route-0#0", "Route-0#5", "Route-0#" + (bucketCount - 1));
+        assertThat(aggregated.keySet()).isEqualTo(streamed.keySet());
+        streamed.forEach((key, values) -> {
+            for (int i = 0; i < values.length; i++) {
+                assertThat(aggregated.get(key)[i]).as("%s %s", key, AGGREGATES.get(i)).isCloseTo(values[i], offset(1e-9));
+            }
+        });
+    }
+
+    private Map<String, double[]> aggregate(long startTime, int bucketCount) {
+        Map<String, double[]> valuesByBucket = new HashMap<>();
+        for (var value : delayAggregationRepository.aggregate(feedId, ROUTE_NAMES, startTime, BUCKET_SIZE, bucketCount,
+                AGGREGATES, LOWER_ON_TIME_MINUTES, UPPER_ON_TIME_MINUTES)) {
+            valuesByBucket.put(value.routeName() + "#" + value.bucket(), value.values());
+        }
+        return valuesByBucket;
+    }
+
+    private Map<String, double[]> stream(long startTime, int bucketCount) {
+        Map<String, DelayAggregator[]> aggregatorsByBucket = new HashMap<>();
+        agencyRouteTimestampRepository.streamDelaysBy(startTime, startTime + bucketCount * BUCKET_SIZE, ROUTE_NAMES, feedId,
+                (routeName, timestamp, delaySeconds) -> {
+                    if (delaySeconds == null) {
+                        return;
+                    }
+                    var aggregators = aggregatorsByBucket.computeIfAbsent(routeName + "#" + (timestamp - startTime) / BUCKET_SIZE,
+                            k -> AGGREGATORS.stream().map(Supplier::get).toArray(DelayAggregator[]::new));
+                    for (DelayAggregator aggregator : aggregators) {
+                        aggregator.add(delaySeconds);
+                    }
+                });
+        Map<String, double[]> valuesByBucket = new HashMap<>();
+        aggregatorsByBucket.forEach((key, aggregators) -> {
+            double[] values = new double[aggregators.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = aggregators[i].getValue().orElseThrow();
+            }
+            valuesByBucket.put(key, values);
+        });
+        return valuesByBucket;
+    }
+}
@@ -0,0 +1,83 @@
+package com.doug.projects.transitdelayservice.perf;
+
+import com.doug.projects.transitdelayservice.util.DelayAggregator;
+import com.doug.projects.transitdelayservice.util.DelayKernels;
+import com.doug.projects.transitdelayservice.util.RouteTimestampUtil;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collector;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares the primitive delay aggregators against the boxed collectors graphs used before, on one bucket of 1M
+ * delays. Both are fed one delay at a time, as the graph's stream of delay rows does.
+ */
+public class DelayAggregatorPerfTest {
+    private static final int SAMPLES = 1_000_000;
+    private static final int RUNS = 7;
+
+    private static final int[] DELAYS = new Random(15).ints(SAMPLES, -600, 1800).toArray();
+
+    /**
+     * Copy of the rounding done before DelayKernels, for comparison.
+     */
+    private static double legacyThreeDigitPrecision(double initial) {
+        return new BigDecimal(initial).setScale(3, RoundingMode.HALF_UP).doubleValue();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <A> Double collect(Collector<Double, A, Optional<Double>> collector) {
+        A bucket = collector.supplier().get();
+        var accumulator = collector.accumulator();
+        for (int delay : DELAYS) {
+            Integer delaySeconds = delay; //delay rows are read as Integer
+            accumulator.accept(bucket, delaySeconds / 60d);
+        }
+        return collector.finisher().apply(bucket).map(DelayAggregatorPerfTest::legacyThreeDigitPrecision).orElse(null);
+    }
+
+    private static Double aggregate(Supplier<DelayAggregator> aggregator) {
+        DelayAggregator bucket = aggregator.get();
+        for (int delay : DELAYS) {
+            bucket.add(delay);
+        }
+        var value = bucket.getValue();
+        return value.isPresent() ? DelayKernels.threeDigitPrecision(value.getAsDouble()) : null;
+    }
+
+    private static long medianMillis(Supplier<Double> run) {
+        var times = new ArrayList<Long>();
+        for (int i = 0; i < RUNS; i++) {
+            long t0 = System.nanoTime();
+            run.get();
+            times.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0));
+        }
+        times.sort(Long::compare);
+        return times.get(times.size() / 2);
+    }
+
+    private static void compare(String name, Supplier<Collector<Double, ?, Optional<Double>>> collector,
+                                Supplier<DelayAggregator> aggregator) {
+        assertThat(aggregate(aggregator)).isEqualTo(collect(collector.get()));
+        long collectorMillis = medianMillis(() -> collect(collector.get()));
+        long aggregatorMillis = medianMillis(() -> aggregate(aggregator));
+        System.out.println("DelayAggregatorPerfTest: " + name + " collector median=" + collectorMillis +
+                "ms, aggregator median=" + aggregatorMillis + "ms");
+    }
+
+    @Test
+    void compareAggregatorsWithCollectors() {
+        compare("average", RouteTimestampUtil::toAvg, DelayAggregator.average());
+        compare("max", RouteTimestampUtil::toMax, DelayAggregator.max());
+        compare("percent", () -> RouteTimestampUtil.toPercentWithin(-5, 5), DelayAggregator.percentWithin(-5, 5));
+        compare("median", RouteTimestampUtil::toMedian, DelayAggregator.median());
+    }
+}
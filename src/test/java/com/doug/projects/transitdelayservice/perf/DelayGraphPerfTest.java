@@ -56,6 +56,7 @@ public class DelayGraphPerfTest extends PerfTestBase {
 
         var times = new ArrayList<Long>();
         for (int i = 0; i < 10; i++) {
+            clearDelayChartCache();
             long t0 = System.nanoTime();
             mockMvc.perform(get("/v1/graph/average/" + feedId)
                             .param("startTime", String.valueOf(start))
@@ -76,6 +77,60 @@ public class DelayGraphPerfTest extends PerfTestBase {
         // no strict assertion — just ensure it completes and prints timings
     }
 
+    @Test
+    void measureDashboardSeparateVsCombined() throws Exception {
+        String[] routeNames = IntStream.range(0, 10).mapToObj(i -> "Route-" + i).toArray(String[]::new);
+        long start = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(7);
+        long end = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+        List<String> types = List.of("average", "max", "median", "percent");
+
+        var separate = new ArrayList<Long>();
+        var combined = new ArrayList<Long>();
+        for (int i = 0; i < 13; i++) {
+            clearDelayChartCache();
+            long t0 = System.nanoTime();
+            for (String type : types) {
+                mockMvc.perform(get("/v1/graph/" + type + "/" + feedId)
+                                .param("startTime", String.valueOf(start))
+                                .param("endTime", String.valueOf(end))
+                                .param("units", "24")
+                                .param("routes", routeNames))
+                        .andExpect(status().isOk());
+            }
+            clearDelayChartCache();
+            long t1 = System.nanoTime();
+            mockMvc.perform(get("/v1/graphs/" + feedId)
+                            .param("types", String.join(",", types))
+                            .param("startTime", String.valueOf(start))
+                            .param("endTime", String.valueOf(end))
+                            .param("units", "24")
+                            .param("routes", routeNames))
+                    .andExpect(status().isOk());
+            long t2 = System.nanoTime();
+            if (i >= 3) { // first runs are warmup
+                separate.add(TimeUnit.NANOSECONDS.toMillis(t1 - t0));
+                combined.add(TimeUnit.NANOSECONDS.toMillis(t2 - t1));
+            }
+        }
+
+        var cached = new ArrayList<Long>();
+        for (int i = 0; i < 10; i++) {
+            long t0 = System.nanoTime();
+            mockMvc.perform(get("/v1/graphs/" + feedId)
+                            .param("types", String.join(",", types))
+                            .param("startTime", String.valueOf(start))
+                            .param("endTime", String.valueOf(end))
+                            .param("units", "24")
+                            .param("routes", routeNames))
+                    .andExpect(status().isOk());
+            cached.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0));
+        }
+
+        System.out.println("DelayGraphPerfTest: dashboard separate p50=" + percentile(separate, 50) +
+                "ms, combined p50=" + percentile(combined, 50) + "ms, cached p50=" + percentile(cached, 50) + "ms");
+        assertThat(combined).isNotEmpty();
+    }
+
     private long percentile(List<Long> values, int pct) {
         var sorted = values.stream().sorted().collect(Collectors.toList());
         int idx = (int) Math.ceil(pct / 100.0 * sorted.size()) - 1;
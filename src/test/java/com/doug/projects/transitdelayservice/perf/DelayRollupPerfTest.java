@@ -0,0 +1,117 @@
+package com.doug.projects.transitdelayservice.perf;
+
+import com.doug.projects.transitdelayservice.entity.AgencyRouteTimestamp;
+import com.doug.projects.transitdelayservice.entity.BusState;
+import com.doug.projects.transitdelayservice.entity.GraphOptions;
+import com.doug.projects.transitdelayservice.entity.LineGraphData;
+import com.doug.projects.transitdelayservice.entity.LineGraphDataResponse;
+import com.doug.projects.transitdelayservice.repository.AgencyRouteTimestampRepository;
+import com.doug.projects.transitdelayservice.service.GetDelayService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Ingests a day of polls, then compares an hourly graph read from the rollups against the same graph read from the
+ * trip delay rows. The trip delay graph is shifted by a second, which keeps every poll in the same bucket but stops it
+ * lining up with the rollups. Percentiles are compared the same way, against the stored histograms.
+ */
+public class DelayRollupPerfTest extends PerfTestBase {
+    private static final long HOUR = TimeUnit.HOURS.toSeconds(1);
+    private static final int ROUTES = 10;
+    private static final int TRIPS_PER_ROUTE = 10;
+
+    @Autowired
+    private AgencyRouteTimestampRepository agencyRouteTimestampRepository;
+    @Autowired
+    private GetDelayService getDelayService;
+    private long start;
+
+    @BeforeEach
+    void localSetUp() {
+        createTestData(ROUTES, TRIPS_PER_ROUTE, 0);
+        start = (TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) - TimeUnit.DAYS.toSeconds(3)) / HOUR * HOUR;
+        // rollups start part way through the hour before the graph, like a service started mid bucket
+        for (long timestamp = start - HOUR + 15; timestamp < start + 24 * HOUR; timestamp += 5 * 60) {
+            agencyRouteTimestampRepository.saveAll(createPoll(timestamp), feedId);
+        }
+    }
+
+    private List<AgencyRouteTimestamp> createPoll(long timestamp) {
+        var poll = new ArrayList<AgencyRouteTimestamp>();
+        for (int r = 0; r < ROUTES; r++) {
+            var busStates = new ArrayList<BusState>();
+            for (int t = 0; t < TRIPS_PER_ROUTE; t++) {
+                busStates.add(BusState.builder()
+                        .tripId("route-" + r + "-t-" + t)
+                        .closestStopId("stop-" + t)
+                        .delay((int) ((timestamp / 60 + r * 7L + t * 13L) % 900) - 300)
+                        .build());
+            }
+            var routeTimestamp = new AgencyRouteTimestamp();
+            routeTimestamp.setAgencyRoute(feedId, "Route-" + r);
+            routeTimestamp.setTimestamp(timestamp);
+            routeTimestamp.setBusStates(busStates);
+            poll.add(routeTimestamp);
+        }
+        return poll;
+    }
+
+    private GraphOptions getOptions(long offset) {
+        return GraphOptions.builder()
+                .startTime(start + offset)
+                .endTime(start + offset + 24 * HOUR)
+                .units(24)
+                .useColor(false)
+                .routes(IntStream.range(0, ROUTES).mapToObj(r -> "Route-" + r).toList())
+                .build();
+    }
+
+    private static List<List<Double>> getData(LineGraphDataResponse response) {
+        return response.getDatasets().stream()
+                .sorted((a, b) -> a.getLineLabel().compareTo(b.getLineLabel()))
+                .map(LineGraphData::getData)
+                .collect(Collectors.toList());
+    }
+
+    private long medianMillis(Supplier<LineGraphDataResponse> graph) {
+        var times = new ArrayList<Long>();
+        for (int i = 0; i < 10; i++) {
+            clearDelayChartCache();
+            long t0 = System.nanoTime();
+            graph.get();
+            times.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0));
+        }
+        times.sort(Long::compare);
+        return times.get(times.size() / 2);
+    }
+
+    @Test
+    void compareRollupGraphWithTripDelayGraph() {
+        assertThat(getData(getDelayService.getAverageDelay(feedId, getOptions(0))))
+                .isEqualTo(getData(getDelayService.getAverageDelay(feedId, getOptions(1))));
+        assertThat(getData(getDelayService.getMaxDelayFor(feedId, getOptions(0))))
+                .isEqualTo(getData(getDelayService.getMaxDelayFor(feedId, getOptions(1))));
+        assertThat(getData(getDelayService.getPercentOnTimeFor(feedId, getOptions(0))))
+                .isEqualTo(getData(getDelayService.getPercentOnTimeFor(feedId, getOptions(1))));
+        //streamed percentiles use the same bins as the stored histograms, so they match exactly
+        assertThat(getData(getDelayService.getDelayPercentile(feedId, getOptions(0), 0.9)))
+                .isEqualTo(getData(getDelayService.getDelayPercentile(feedId, getOptions(1), 0.9)));
+
+        long rollup = medianMillis(() -> getDelayService.getAverageDelay(feedId, getOptions(0)));
+        long tripDelays = medianMillis(() -> getDelayService.getAverageDelay(feedId, getOptions(1)));
+        System.out.println("DelayRollupPerfTest: rollup median=" + rollup + "ms, tripDelay median=" + tripDelays + "ms");
+        long histogram = medianMillis(() -> getDelayService.getDelayPercentile(feedId, getOptions(0), 0.9));
+        long streamedHistogram = medianMillis(() -> getDelayService.getDelayPercentile(feedId, getOptions(1), 0.9));
+        System.out.println("DelayRollupPerfTest: p90 histogram median=" + histogram + "ms, tripDelay median=" + streamedHistogram + "ms");
+    }
+}
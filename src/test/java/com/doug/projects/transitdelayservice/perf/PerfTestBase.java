@@ -2,6 +2,8 @@ package com.doug.projects.transitdelayservice.perf;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.CacheManager;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.jdbc.core.JdbcTemplate;
@@ -11,6 +13,7 @@ import org.testcontainers.containers.PostgreSQLContainer;
 import org.testcontainers.junit.jupiter.Container;
 import org.testcontainers.junit.jupiter.Testcontainers;
 
+import com.doug.projects.transitdelayservice.config.CachingConfiguration;
 import com.doug.projects.transitdelayservice.repository.jpa.*;
 import org.springframework.test.web.servlet.MockMvc;
 
@@ -51,6 +54,8 @@ public abstract class PerfTestBase {
         // disable background jobs in tests
         registry.add("doesAgencyCronRun", () -> "false");
         registry.add("doesRealtimeCronRun", () -> "false");
+        // test data is written straight to the db, bypassing ingest, so it must be read from there
+        registry.add("realtime.recentWindow.enabled", () -> "false");
     }
 
     @Autowired
@@ -74,16 +79,30 @@ public abstract class PerfTestBase {
     @Autowired
     protected JdbcTemplate jdbcTemplate;
 
+    @Autowired
+    protected CacheManager cacheManager;
+
+    @Autowired
+    protected ApplicationEventPublisher eventPublisher;
+
     protected final String feedId = "TEST_FEED";
 
     @BeforeEach
     void baseSetUp() {
         // ensure clean schema state (delete children first)
         jdbcTemplate.execute("DELETE FROM MPT.GTFS_TRIP_DELAY");
+        jdbcTemplate.execute("DELETE FROM MPT.GTFS_DELAY_ROLLUP");
+        jdbcTemplate.execute("DELETE FROM MPT.GTFS_DELAY_ROLLUP_HISTOGRAM");
+        jdbcTemplate.execute("DELETE FROM MPT.GTFS_SEGMENT_DELAY_ROLLUP");
+        jdbcTemplate.execute("DELETE FROM MPT.GTFS_REALTIME_POLL");
+        jdbcTemplate.execute("DELETE FROM MPT.GTFS_STOP_TIME");
         jdbcTemplate.execute("DELETE FROM MPT.GTFS_STOP");
         jdbcTemplate.execute("DELETE FROM MPT.GTFS_TRIP");
+        jdbcTemplate.execute("DELETE FROM MPT.GTFS_SHAPE_POINT");
+        jdbcTemplate.execute("DELETE FROM MPT.GTFS_SHAPE");
         jdbcTemplate.execute("DELETE FROM MPT.GTFS_ROUTE");
         jdbcTemplate.execute("DELETE FROM MPT.AGENCY_FEED");
+        clearDelayChartCache();
 
         // insert the test feed entry
         com.doug.projects.transitdelayservice.entity.Status status = com.doug.projects.transitdelayservice.entity.Status.ACTIVE;
@@ -95,6 +114,16 @@ public abstract class PerfTestBase {
         agencyFeedRepository.save(af);
     }
 
+    /**
+     * Clears cached graphs, so timings measure reading the delays rather than the cache.
+     */
+    protected void clearDelayChartCache() {
+        var cache = cacheManager.getCache(CachingConfiguration.DELAY_CHART_CACHE);
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
     protected void createTestData(int numRoutes, int tripsPerRoute, int delaysPerTrip) {
         var routes = new java.util.ArrayList<com.doug.projects.transitdelayservice.entity.jpa.AgencyRoute>();
         for (int r = 0; r < numRoutes; r++) {
@@ -122,6 +151,8 @@ public abstract class PerfTestBase {
             }
         }
         agencyTripRepository.saveAll(trips);
+        // in-memory views of the static data rebuild on this, as they would after a real static load
+        eventPublisher.publishEvent(new com.doug.projects.transitdelayservice.entity.GtfsStaticDataLoadedEvent(feedId));
 
         // create stops to satisfy FK constraint
         var stops = new java.util.ArrayList<com.doug.projects.transitdelayservice.entity.jpa.AgencyStop>();
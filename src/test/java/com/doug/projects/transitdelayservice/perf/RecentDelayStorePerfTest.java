@@ -0,0 +1,64 @@
+package com.doug.projects.transitdelayservice.perf;
+
+import com.doug.projects.transitdelayservice.repository.AgencyDelayRollupWriter.RouteDelay;
+import com.doug.projects.transitdelayservice.repository.RecentDelayStore;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Fills a {@link RecentDelayStore} with 8 days of a 500 trip feed polled every 5 minutes, then times a week long read
+ * of every route, as the default graph streams it.
+ */
+public class RecentDelayStorePerfTest {
+    private static final int TRIPS = 500;
+    private static final int ROUTES = 40;
+    private static final int POLL_SECONDS = 300;
+    private static final int DAYS = 8;
+    private static final int RUNS = 7;
+
+    @Test
+    void measureWeekRead() {
+        var store = new RecentDelayStore();
+        ReflectionTestUtils.setField(store, "enabled", true);
+        ReflectionTestUtils.setField(store, "windowDays", DAYS);
+        var random = new Random(19);
+        long start = 1_700_000_000L;
+        long end = start + DAYS * 86400L;
+
+        long t0 = System.nanoTime();
+        for (long timestamp = start; timestamp < end; timestamp += POLL_SECONDS) {
+            List<RouteDelay> poll = new ArrayList<>(TRIPS);
+            for (int trip = 0; trip < TRIPS; trip++) {
+                poll.add(new RouteDelay("R" + trip % ROUTES, timestamp, random.nextInt(2400) - 600,
+                        "t" + trip, "s" + random.nextInt(2000)));
+            }
+            store.add("1", poll);
+        }
+        long addMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+        long size = store.size("1");
+        assertThat(size).isEqualTo((long) TRIPS * DAYS * 86400 / POLL_SECONDS);
+
+        var routes = IntStream.range(0, ROUTES).mapToObj(i -> "R" + i).toList();
+        long weekStart = end - 7 * 86400L;
+        var times = new ArrayList<Long>();
+        long[] read = new long[1];
+        for (int i = 0; i < RUNS; i++) {
+            read[0] = 0;
+            long r0 = System.nanoTime();
+            store.forEach("1", weekStart, end, routes, (routeName, timestamp, delaySeconds, tripId, stopId) -> read[0]++);
+            times.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - r0));
+        }
+        times.sort(Long::compare);
+        assertThat(read[0]).isEqualTo((long) TRIPS * 7 * 86400 / POLL_SECONDS);
+        System.out.println("RecentDelayStorePerfTest: added " + size + " delays in " + addMillis +
+                "ms, week read of " + read[0] + " delays median=" + times.get(times.size() / 2) + "ms");
+    }
+}
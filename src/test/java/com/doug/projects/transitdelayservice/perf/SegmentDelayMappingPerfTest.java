@@ -0,0 +1,238 @@
+package com.doug.projects.transitdelayservice.perf;
+
+import com.doug.projects.transitdelayservice.entity.AgencyRouteTimestamp;
+import com.doug.projects.transitdelayservice.entity.BusState;
+import com.doug.projects.transitdelayservice.entity.MapOptions;
+import com.doug.projects.transitdelayservice.entity.jpa.*;
+import com.doug.projects.transitdelayservice.entity.transit.ShapeIndex;
+import com.doug.projects.transitdelayservice.repository.AgencyRouteTimestampRepository;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencySegmentDelayRollupRepository;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyStopRepository;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyStopTimeRepository;
+import com.doug.projects.transitdelayservice.service.AgencyFeedService;
+import com.doug.projects.transitdelayservice.service.MapperService;
+import com.doug.projects.transitdelayservice.service.ShapeIndexService;
+import org.geojson.FeatureCollection;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static com.doug.projects.transitdelayservice.service.MapperService.interpolate;
+import static java.util.Comparator.comparing;
+import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.toMap;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.offset;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Compares the segment delay aggregation of the delay map, using stop sequence lookup tables and packed segment keys,
+ * against the previous aggregation, which searched each trip's stops for every snapshot and keyed segments by
+ * concatenated stop ids. Trips run on 20 shapes of 60 stops.
+ */
+public class SegmentDelayMappingPerfTest {
+    private static final String FEED_ID = "1";
+    private static final int SHAPES = 20;
+    private static final int STOPS = 60;
+    private static final int RUNS = 7;
+
+    @Test
+    void compareLegacyWithLookupTables() {
+        var fixture = fixture(500, 360);
+        var actual = assertMatchesLegacy(fixture);
+
+        long legacyMillis = medianMillis(() -> legacyAverageDelays(fixture.routeTimestamps(), fixture.stopTimes()));
+        long tableMillis = medianMillis(fixture::getDelayLines);
+        System.out.println("SegmentDelayMappingPerfTest: " + actual.size() + " segments, legacy median=" + legacyMillis +
+                "ms, lookup table median=" + tableMillis + "ms");
+    }
+
+    /**
+     * Regression for grouping stop times by the AgencyTrip entity, which hashes every trip alike.
+     */
+    @Test
+    void groupsThousandsOfTrips() {
+        var fixture = fixture(5000, 60);
+        var actual = assertMatchesLegacy(fixture);
+
+        //grouping by entity is quadratic in trips, so only a fifth of them are grouped that way, once
+        var someStopTimes = fixture.stopTimes().subList(0, fixture.stopTimes().size() / 5);
+        long t0 = System.nanoTime();
+        var byEntity = someStopTimes.stream().collect(groupingBy(AgencyStopTime::getTrip));
+        long entityGroupingMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+        assertThat(byEntity).hasSize(1000);
+        long idGroupingMillis = medianMillis(() -> fixture.stopTimes().stream()
+                .collect(groupingBy(st -> new AgencyTripId(st.getTripId(), FEED_ID))));
+        long delayLinesMillis = medianMillis(fixture::getDelayLines);
+        System.out.println("SegmentDelayMappingPerfTest: grouping 1000 trips by entity=" + entityGroupingMillis +
+                "ms, 5000 trips by id median=" + idGroupingMillis + "ms, delay lines of 5000 trips (" + actual.size() +
+                " segments) median=" + delayLinesMillis + "ms");
+    }
+
+    private static List<Double> assertMatchesLegacy(Fixture fixture) {
+        List<Double> expected = legacyAverageDelays(fixture.routeTimestamps(), fixture.stopTimes());
+        List<Double> actual = fixture.getDelayLines().getFeatures().stream()
+                .map(f -> (Double) f.getProperty("averageDelay"))
+                .sorted()
+                .toList();
+        assertThat(actual).hasSize(expected.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertThat(actual.get(i)).isCloseTo(expected.get(i), offset(1e-9));
+        }
+        return actual;
+    }
+
+    /**
+     * Trips spread over the shapes, each reporting once per snapshot while travelling its whole shape.
+     */
+    private static Fixture fixture(int trips, int snapshots) {
+        var random = new Random(42);
+        var shapeIndexBuilder = ShapeIndex.builder();
+        for (int s = 0; s < SHAPES; s++) {
+            for (int p = 0; p < STOPS * 10; p++) {
+                shapeIndexBuilder.addShapePoint("sh" + s, 43 + s * 0.01 + p * 0.0001, -89.4);
+            }
+            for (int seq = 1; seq <= STOPS; seq++) {
+                shapeIndexBuilder.addStop("sh" + s, seq, stopId(s, seq), 43 + s * 0.01 + (seq - 1) * 0.001, -89.4);
+            }
+        }
+        List<AgencyStopTime> stopTimes = new ArrayList<>();
+        List<List<BusState>> statesBySnapshot = new ArrayList<>();
+        for (int k = 0; k < snapshots; k++) {
+            statesBySnapshot.add(new ArrayList<>());
+        }
+        for (int t = 0; t < trips; t++) {
+            int shape = t % SHAPES;
+            var trip = AgencyTrip.builder()
+                    .id(new AgencyTripId("t" + t, FEED_ID))
+                    .shapeId("sh" + shape)
+                    .build();
+            for (int seq = 1; seq <= STOPS; seq++) {
+                var stop = AgencyStop.builder()
+                        .stopLat(43 + shape * 0.01 + (seq - 1) * 0.001)
+                        .stopLon(-89.4)
+                        .build();
+                stopTimes.add(AgencyStopTime.builder()
+                        .id(new AgencyStopTimeId("t" + t, seq, FEED_ID))
+                        .trip(trip)
+                        .stopId(stopId(shape, seq))
+                        .stop(stop)
+                        .build());
+            }
+            for (int k = 0; k < snapshots; k++) {
+                //buses sit at a stop for a few snapshots, then move on
+                int seq = 1 + k * (STOPS - 1) / (snapshots - 1);
+                statesBySnapshot.get(k).add(new BusState(random.nextInt(600) - 120, stopId(shape, seq), "t" + t));
+            }
+        }
+        long start = 1_700_000_000L;
+        List<AgencyRouteTimestamp> routeTimestamps = new ArrayList<>();
+        for (int k = 0; k < snapshots; k++) {
+            var routeTimestamp = new AgencyRouteTimestamp();
+            routeTimestamp.setAgencyRoute(FEED_ID, "R");
+            routeTimestamp.setTimestamp(start + k * 60L);
+            routeTimestamp.setBusStates(statesBySnapshot.get(k));
+            routeTimestamps.add(routeTimestamp);
+        }
+
+        var routeTimestampRepository = mock(AgencyRouteTimestampRepository.class);
+        when(routeTimestampRepository.getRouteTimestampsBy(anyLong(), anyLong(), anyList(), eq(FEED_ID))).thenReturn(routeTimestamps);
+        var agencyFeedService = mock(AgencyFeedService.class);
+        when(agencyFeedService.getAgencyFeedById(FEED_ID)).thenReturn(Optional.empty());
+        var agencyStopTimeRepository = mock(AgencyStopTimeRepository.class);
+        when(agencyStopTimeRepository.findAllByTrip_IdIn(any())).thenReturn(stopTimes);
+        var shapeIndexService = mock(ShapeIndexService.class);
+        var shapeIndex = shapeIndexBuilder.build();
+        when(shapeIndexService.getIndex(FEED_ID)).thenReturn(shapeIndex);
+        //nothing is rolled up, so delays are replayed
+        var segmentDelayRollupRepository = mock(AgencySegmentDelayRollupRepository.class);
+        when(segmentDelayRollupRepository.findFirstBucketStart(FEED_ID)).thenReturn(null);
+        var mapperService = new MapperService(routeTimestampRepository, agencyFeedService, agencyStopTimeRepository,
+                shapeIndexService, segmentDelayRollupRepository, mock(AgencyStopRepository.class));
+        var mapOptions = new MapOptions();
+        mapOptions.setRouteNames(List.of("R"));
+        return new Fixture(mapperService, mapOptions, routeTimestamps, stopTimes);
+
+    }
+
+    private static String stopId(int shape, int seq) {
+        return "st" + shape + "-" + seq;
+    }
+
+    /**
+     * The aggregation as it was before lookup tables, without slicing shapes.
+     *
+     * @return the sorted average delay of each segment, in minutes
+     */
+    private static List<Double> legacyAverageDelays(List<AgencyRouteTimestamp> routeTimestamps,
+                                                    List<AgencyStopTime> allStopTimes) {
+        Map<AgencyTripId, List<BusState>> busHistory = routeTimestamps.stream()
+                .sorted(comparing(AgencyRouteTimestamp::getTimestamp))
+                .flatMap(rt -> rt.getBusStatesCopyList().stream())
+                .collect(groupingBy(s -> new AgencyTripId(s.getTripId(), FEED_ID)));
+        //grouped by id rather than entity, which is timed on its own
+        Map<AgencyTripId, List<AgencyStopTime>> tripStopData = allStopTimes.stream()
+                .collect(groupingBy(st -> new AgencyTripId(st.getTripId(), FEED_ID)));
+        Map<String, double[]> aggregationMap = new HashMap<>();
+        for (Map.Entry<AgencyTripId, List<AgencyStopTime>> entry : tripStopData.entrySet()) {
+            List<AgencyStopTime> stops = entry.getValue();
+            Map<Integer, AgencyStopTime> seqToStop = stops.stream()
+                    .collect(toMap(AgencyStopTime::getStopSeq, s -> s, (a, b) -> a));
+            List<Integer> sortedSeqs = seqToStop.keySet().stream().sorted().toList();
+            List<BusState> states = busHistory.getOrDefault(entry.getKey(), List.of());
+            for (int i = 0; i < states.size() - 1; i++) {
+                BusState startState = states.get(i);
+                BusState endState = states.get(i + 1);
+                Integer fromSeq = findSequenceForStop(startState.getClosestStopId(), stops);
+                Integer toSeq = findSequenceForStop(endState.getClosestStopId(), stops);
+                if (fromSeq == null || toSeq == null || toSeq <= fromSeq) continue;
+                List<Integer> segmentsInInterval = sortedSeqs.stream()
+                        .filter(s -> s >= fromSeq && s <= toSeq)
+                        .toList();
+                double[] interpolatedDelays = interpolate(startState.getDelay(), endState.getDelay(),
+                        segmentsInInterval.size() - 1);
+                for (int j = 0; j < segmentsInInterval.size() - 1; j++) {
+                    String segmentId = seqToStop.get(segmentsInInterval.get(j)).getStopId() + "->" +
+                            seqToStop.get(segmentsInInterval.get(j + 1)).getStopId();
+                    double[] sumAndCount = aggregationMap.computeIfAbsent(segmentId, k -> new double[2]);
+                    sumAndCount[0] += interpolatedDelays[j];
+                    sumAndCount[1]++;
+                }
+            }
+        }
+        return aggregationMap.values().stream()
+                .map(sumAndCount -> sumAndCount[0] / sumAndCount[1] / 60.0)
+                .sorted()
+                .toList();
+    }
+
+    private static Integer findSequenceForStop(String stopId, List<AgencyStopTime> stops) {
+        return stops.stream()
+                .filter(s -> s.getStopId().equals(stopId))
+                .map(AgencyStopTime::getStopSeq)
+                .findFirst()
+                .orElse(null);
+    }
+
+    private static long medianMillis(Supplier<?> run) {
+        var times = new ArrayList<Long>();
+        for (int i = 0; i < RUNS; i++) {
+            long t0 = System.nanoTime();
+            run.get();
+            times.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0));
+        }
+        times.sort(Long::compare);
+        return times.get(times.size() / 2);
+    }
+
+    private record Fixture(MapperService mapperService, MapOptions mapOptions,
+                           List<AgencyRouteTimestamp> routeTimestamps, List<AgencyStopTime> stopTimes) {
+        FeatureCollection getDelayLines() {
+            return mapperService.getDelayLines(FEED_ID, mapOptions);
+        }
+    }
+}
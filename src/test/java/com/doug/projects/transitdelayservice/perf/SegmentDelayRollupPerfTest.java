@@ -0,0 +1,239 @@
+package com.doug.projects.transitdelayservice.perf;
+
+import com.doug.projects.transitdelayservice.config.CachingConfiguration;
+import com.doug.projects.transitdelayservice.entity.MapOptions;
+import com.doug.projects.transitdelayservice.entity.jpa.*;
+import com.doug.projects.transitdelayservice.repository.AgencyDelayRollupWriter.RouteDelay;
+import com.doug.projects.transitdelayservice.repository.SegmentDelayRollupWriter;
+import com.doug.projects.transitdelayservice.service.MapperService;
+import com.doug.projects.transitdelayservice.service.ShapeIndexService;
+import com.doug.projects.transitdelayservice.util.TransitDateUtil;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.util.AopTestUtils;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.offset;
+
+/**
+ * Compares the delay map replayed from trip delays against the map summed from segment rollups, written as ingest
+ * would. 100 trips on one 20 stop shape, polled every 5 minutes for a day. The maps must match for a window of
+ * days and hours too, and for feeds without a timezone, which ignore the window.
+ */
+public class SegmentDelayRollupPerfTest extends PerfTestBase {
+    private static final String ROUTE_NAME = "Route-0";
+    private static final int TRIPS = 100;
+    private static final int STOPS = 20;
+    private static final int POLLS = 288;
+    private static final int SEARCH_DAYS = 7;
+    private static final int RUNS = 5;
+
+    @Autowired
+    private MapperService mapperService;
+    @Autowired
+    private SegmentDelayRollupWriter segmentDelayRollupWriter;
+    @Autowired
+    private ShapeIndexService shapeIndexService;
+
+    private final List<List<RouteDelay>> polls = new ArrayList<>();
+
+    @BeforeEach
+    void localSetUp() {
+        agencyRouteRepository.save(AgencyRoute.builder()
+                .id(new AgencyRouteId("route-0", feedId))
+                .routeName(ROUTE_NAME)
+                .routeColor("000000")
+                .routeSortOrder(0)
+                .build());
+        jdbcTemplate.update("INSERT INTO MPT.gtfs_shape (agency_id, shape_id) VALUES (?, ?)", feedId, "shape-0");
+        List<Object[]> shapePoints = new ArrayList<>();
+        for (int p = 0; p < STOPS * 4; p++) {
+            shapePoints.add(new Object[]{feedId, "shape-0", p, 43 + p * 0.00025, -89.4});
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO MPT.gtfs_shape_point (agency_id, shape_id, shape_sequence, shape_pt_lat, " +
+                "shape_pt_lon) VALUES (?, ?, ?, ?, ?)", shapePoints);
+        List<AgencyStop> stops = new ArrayList<>();
+        for (int s = 0; s < STOPS; s++) {
+            stops.add(AgencyStop.builder()
+                    .id(new AgencyStopId("stop-" + s, feedId))
+                    .stopName("Stop " + s)
+                    .stopLat(43 + s * 0.001)
+                    .stopLon(-89.4)
+                    .build());
+        }
+        agencyStopRepository.saveAll(stops);
+        List<AgencyTrip> trips = new ArrayList<>();
+        List<Object[]> stopTimes = new ArrayList<>();
+        for (int t = 0; t < TRIPS; t++) {
+            trips.add(AgencyTrip.builder()
+                    .id(new AgencyTripId("trip-" + t, feedId))
+                    .routeId("route-0")
+                    .shapeId("shape-0")
+                    .build());
+            for (int s = 0; s < STOPS; s++) {
+                stopTimes.add(new Object[]{"trip-" + t, s + 1, feedId, "stop-" + s, s * 120, s * 120});
+            }
+        }
+        agencyTripRepository.saveAll(trips);
+        jdbcTemplate.batchUpdate("INSERT INTO MPT.gtfs_stop_time (trip_id, stop_seq, agency_id, stop_id, " +
+                "arrival_time_secs, departure_time_secs) VALUES (?, ?, ?, ?, ?, ?)", stopTimes);
+        //reloaded here rather than through the event, so the static data of earlier tests is gone before this one reads
+        shapeIndexService.reload(feedId);
+
+        var random = new Random(42);
+        long start = TransitDateUtil.getMidnightDaysAgo(SEARCH_DAYS - 1);
+        List<AgencyTripDelay> delays = new ArrayList<>();
+        polls.clear();
+        for (int p = 0; p < POLLS; p++) {
+            long timestamp = start + p * 300L;
+            List<RouteDelay> poll = new ArrayList<>();
+            for (int t = 0; t < TRIPS; t++) {
+                //buses wait at each stop for 3 polls, then start the trip over
+                String stopId = "stop-" + ((p + t) / 3) % STOPS;
+                int delaySeconds = random.nextInt(600) - 120;
+                poll.add(new RouteDelay(ROUTE_NAME, timestamp, delaySeconds, "trip-" + t, stopId));
+                delays.add(AgencyTripDelay.builder()
+                        .tripId("trip-" + t)
+                        .agencyId(feedId)
+                        .timestamp(timestamp)
+                        .stopId(stopId)
+                        .delaySeconds(delaySeconds)
+                        .build());
+            }
+            polls.add(poll);
+        }
+        agencyTripDelayRepository.saveAll(delays);
+        //the first hour rolled up by an earlier test is remembered, but its rollups were deleted
+        ((Map<?, ?>) ReflectionTestUtils.getField(AopTestUtils.<Object>getTargetObject(mapperService),
+                "firstSegmentRollupStarts")).clear();
+    }
+
+    @Test
+    void compareReplayWithRollups() {
+        var mapOptions = new MapOptions();
+        mapOptions.setRouteNames(List.of(ROUTE_NAME));
+        mapOptions.setSearchPeriod(SEARCH_DAYS);
+
+        List<Double> replayed = averageDelays(mapOptions);
+        long replayMillis = medianMillis(mapOptions);
+
+        long writeMillis = writeRollups();
+
+        List<Double> rolledUp = averageDelays(mapOptions);
+        long rollupMillis = medianMillis(mapOptions);
+
+        assertThat(rolledUp).hasSize(STOPS - 1);
+        assertMatches(rolledUp, replayed);
+        System.out.println("SegmentDelayRollupPerfTest: " + POLLS + " polls rolled up in " + writeMillis +
+                "ms, replay median=" + replayMillis + "ms, rollup median=" + rollupMillis + "ms");
+    }
+
+    @Test
+    void compareReplayWithRollupsInAWindow() {
+        setTimezone("America/Chicago");
+        var mapOptions = new MapOptions();
+        mapOptions.setRouteNames(List.of(ROUTE_NAME));
+        mapOptions.setSearchPeriod(SEARCH_DAYS);
+        //the morning of the day polled, so pairs of polls straddle both ends of the window
+        long firstPoll = polls.get(0).get(0).timestamp();
+        mapOptions.setDaysSelected(Set.of(Instant.ofEpochSecond(firstPoll).atZone(ZoneId.of("America/Chicago"))
+                .getDayOfWeek().getValue()));
+        mapOptions.setHourStarted(7);
+        mapOptions.setHourEnded(9);
+
+        List<Double> replayed = averageDelays(mapOptions);
+        writeRollups();
+        List<Double> rolledUp = averageDelays(mapOptions);
+
+        assertThat(rolledUp).isNotEmpty();
+        assertMatches(rolledUp, replayed);
+    }
+
+    @Test
+    void compareReplayWithRollupsWithoutATimezone() {
+        setTimezone("");
+        var mapOptions = new MapOptions();
+        mapOptions.setRouteNames(List.of(ROUTE_NAME));
+        mapOptions.setSearchPeriod(SEARCH_DAYS);
+        mapOptions.setDaysSelected(Set.of(1));
+        mapOptions.setHourStarted(7);
+        mapOptions.setHourEnded(9);
+
+        List<Double> replayed = averageDelays(mapOptions);
+        writeRollups();
+        List<Double> rolledUp = averageDelays(mapOptions);
+
+        //without a timezone, the replay keeps every poll whatever the window
+        assertThat(rolledUp).hasSize(STOPS - 1);
+        assertMatches(rolledUp, replayed);
+    }
+
+    private void setTimezone(String timezone) {
+        var feed = agencyFeedRepository.findById(feedId).orElseThrow();
+        feed.setTimezone(timezone);
+        agencyFeedRepository.save(feed);
+    }
+
+    /**
+     * Rolls up every poll as ingest would, after an hour of another route before the search period, so the whole
+     * period counts as rolled up
+     *
+     * @return the time taken to roll up the polls
+     */
+    private long writeRollups() {
+        jdbcTemplate.update("INSERT INTO MPT.gtfs_segment_delay_rollup (agency_id, route_name, from_stop_id, " +
+                        "to_stop_id, shape_id, bucket_start, hour_of_week, previous_hour_of_week, from_stop_seq, " +
+                        "to_stop_seq, sample_count, delay_sum_seconds) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+                feedId, "Other", "stop-0", "stop-1", "", TransitDateUtil.getMidnightDaysAgo(SEARCH_DAYS) - 7200, 0, 0,
+                1, 2, 1, 0.0);
+        segmentDelayRollupWriter.reload(feedId);
+        long t0 = System.nanoTime();
+        polls.forEach(poll -> segmentDelayRollupWriter.write(feedId, poll));
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+    }
+
+    private static void assertMatches(List<Double> rolledUp, List<Double> replayed) {
+        assertThat(rolledUp).hasSize(replayed.size());
+        for (int i = 0; i < replayed.size(); i++) {
+            assertThat(rolledUp.get(i)).isCloseTo(replayed.get(i), offset(1e-6));
+        }
+    }
+
+    private List<Double> averageDelays(MapOptions mapOptions) {
+        clearDelayMapCache();
+        return mapperService.getDelayLines(feedId, mapOptions).getFeatures().stream()
+                .map(f -> (Double) f.getProperty("averageDelay"))
+                .sorted()
+                .toList();
+    }
+
+    private long medianMillis(MapOptions mapOptions) {
+        var times = new ArrayList<Long>();
+        for (int i = 0; i < RUNS; i++) {
+            clearDelayMapCache();
+            long t0 = System.nanoTime();
+            mapperService.getDelayLines(feedId, mapOptions);
+            times.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0));
+        }
+        times.sort(Long::compare);
+        return times.get(times.size() / 2);
+    }
+
+    private void clearDelayMapCache() {
+        var cache = cacheManager.getCache(CachingConfiguration.DELAY_MAP_CACHE);
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+}
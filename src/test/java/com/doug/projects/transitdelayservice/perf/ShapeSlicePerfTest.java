@@ -0,0 +1,83 @@
+package com.doug.projects.transitdelayservice.perf;
+
+import com.doug.projects.transitdelayservice.entity.transit.ShapeIndex;
+import com.doug.projects.transitdelayservice.service.MapperService;
+import org.geojson.LngLatAlt;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares slicing every segment of a route out of its shape by scanning the shape (divideShape) against the
+ * {@link ShapeIndex}, for a 2000 point shape with 80 stops.
+ */
+public class ShapeSlicePerfTest {
+    private static final int POINTS = 2000;
+    private static final int STOPS = 80;
+    private static final int RUNS = 7;
+    /**
+     * Segments rendered per run, as if each was seen on many trips' maps
+     */
+    private static final int REPEATS = 10;
+
+    @Test
+    void compareScanWithIndex() {
+        List<LngLatAlt> shape = new ArrayList<>();
+        var builder = ShapeIndex.builder();
+        for (int i = 0; i < POINTS; i++) {
+            //a winding line, so points aren't evenly spaced
+            double lat = 43 + i * 0.0001;
+            double lon = -89.4 + Math.sin(i / 50d) * 0.002;
+            shape.add(new LngLatAlt(lon, lat));
+            builder.addShapePoint("sh1", lat, lon);
+        }
+        List<LngLatAlt> stops = new ArrayList<>();
+        for (int s = 0; s < STOPS; s++) {
+            var point = shape.get(s * (POINTS - 1) / (STOPS - 1));
+            stops.add(point);
+            builder.addStop("sh1", s + 1, "s" + s, point.getLatitude(), point.getLongitude());
+        }
+        var index = builder.build();
+        for (int s = 0; s < STOPS - 1; s++) {
+            assertThat(index.slice("sh1", s + 1, s + 2).orElseThrow())
+                    .isEqualTo(MapperService.divideShape(shape, stops.get(s), stops.get(s + 1)));
+        }
+
+        long scanMillis = medianMillis(() -> {
+            int size = 0;
+            for (int r = 0; r < REPEATS; r++) {
+                for (int s = 0; s < STOPS - 1; s++) {
+                    size += MapperService.divideShape(shape, stops.get(s), stops.get(s + 1)).size();
+                }
+            }
+            return size;
+        });
+        long indexMillis = medianMillis(() -> {
+            int size = 0;
+            for (int r = 0; r < REPEATS; r++) {
+                for (int s = 0; s < STOPS - 1; s++) {
+                    size += index.slice("sh1", s + 1, s + 2).orElseThrow().size();
+                }
+            }
+            return size;
+        });
+        System.out.println("ShapeSlicePerfTest: " + REPEATS * (STOPS - 1) + " slices, scan median=" + scanMillis +
+                "ms, index median=" + indexMillis + "ms");
+    }
+
+    private static long medianMillis(IntSupplier run) {
+        var times = new ArrayList<Long>();
+        for (int i = 0; i < RUNS; i++) {
+            long t0 = System.nanoTime();
+            run.getAsInt();
+            times.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0));
+        }
+        times.sort(Long::compare);
+        return times.get(times.size() / 2);
+    }
+}
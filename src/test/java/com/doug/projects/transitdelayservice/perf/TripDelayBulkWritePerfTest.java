@@ -0,0 +1,90 @@
+package com.doug.projects.transitdelayservice.perf;
+
+import com.doug.projects.transitdelayservice.entity.jpa.AgencyTripDelay;
+import com.doug.projects.transitdelayservice.repository.AgencyTripDelayBulkWriter;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares writing a poll's delays with the bulk writer against saving each entity, as was done before.
+ */
+public class TripDelayBulkWritePerfTest extends PerfTestBase {
+    private static final int ROUTES = 10;
+    private static final int TRIPS_PER_ROUTE = 50;
+
+    @Autowired
+    private AgencyTripDelayBulkWriter agencyTripDelayBulkWriter;
+
+    @BeforeEach
+    void localSetUp() {
+        createTestData(ROUTES, TRIPS_PER_ROUTE, 0);
+    }
+
+    private List<AgencyTripDelay> createPoll(long timestamp) {
+        var delays = new ArrayList<AgencyTripDelay>();
+        for (int r = 0; r < ROUTES; r++) {
+            for (int t = 0; t < TRIPS_PER_ROUTE; t++) {
+                delays.add(AgencyTripDelay.builder()
+                        .tripId("route-" + r + "-t-" + t)
+                        .agencyId(feedId)
+                        .timestamp(timestamp)
+                        .stopId("stop-" + (t % 10))
+                        .delaySeconds(t * 10)
+                        .build());
+            }
+        }
+        return delays;
+    }
+
+    @Test
+    void compareBulkWriteWithPerEntitySave() {
+        long timestamp = 1_700_000_000L;
+        // warmup
+        agencyTripDelayBulkWriter.insertIgnoringDuplicates(createPoll(timestamp++));
+        createPoll(timestamp++).forEach(agencyTripDelayRepository::save);
+
+        var bulkTimes = new ArrayList<Long>();
+        var saveTimes = new ArrayList<Long>();
+        for (int i = 0; i < 5; i++) {
+            var bulkPoll = createPoll(timestamp++);
+            var savePoll = createPoll(timestamp++);
+            long t0 = System.nanoTime();
+            var failed = agencyTripDelayBulkWriter.insertIgnoringDuplicates(bulkPoll);
+            long t1 = System.nanoTime();
+            savePoll.forEach(agencyTripDelayRepository::save);
+            long t2 = System.nanoTime();
+            assertThat(failed.isEmpty()).isTrue();
+            bulkTimes.add(TimeUnit.NANOSECONDS.toMillis(t1 - t0));
+            saveTimes.add(TimeUnit.NANOSECONDS.toMillis(t2 - t1));
+        }
+        System.out.println("TripDelayBulkWritePerfTest[" + ROUTES * TRIPS_PER_ROUTE + " rows/poll]: bulk=" + bulkTimes
+                + "ms, save=" + saveTimes + "ms");
+
+        // writing the same poll again is not an error, writes nothing and reports every row as not written
+        long rows = agencyTripDelayRepository.count();
+        var rewritten = createPoll(timestamp - 2);
+        rewritten.forEach(delay -> delay.setDelaySeconds(-1));
+        var notWritten = agencyTripDelayBulkWriter.insertIgnoringDuplicates(rewritten);
+        assertThat(notWritten.cardinality()).isEqualTo(rewritten.size());
+        assertThat(agencyTripDelayRepository.count()).isEqualTo(rows);
+        assertThat(jdbcTemplate.queryForObject("SELECT count(*) FROM MPT.gtfs_trip_delay WHERE delay_seconds = -1",
+                Long.class)).isZero();
+
+        // only the new rows of a partly re-polled snapshot are reported as written, including duplicates within it
+        var partial = new ArrayList<>(createPoll(timestamp - 2).subList(0, 10));
+        var fresh = createPoll(timestamp).subList(0, 10);
+        partial.addAll(fresh);
+        partial.add(fresh.get(0));
+        notWritten = agencyTripDelayBulkWriter.insertIgnoringDuplicates(partial);
+        assertThat(notWritten.stream().boxed().toList())
+                .containsExactly(0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 20);
+        assertThat(agencyTripDelayRepository.count()).isEqualTo(rows + 10);
+    }
+}
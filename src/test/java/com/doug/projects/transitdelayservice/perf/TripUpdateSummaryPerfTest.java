@@ -0,0 +1,145 @@
+package com.doug.projects.transitdelayservice.perf;
+
+import com.doug.projects.transitdelayservice.entity.transit.TripUpdateSummary;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.transit.realtime.GtfsRealtime;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.transit.realtime.GtfsRealtime.TripDescriptor.ScheduleRelationship.SCHEDULED;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares the single pass TripUpdateSummary against the previous stream based extraction, on synthetic feeds
+ * shaped like a real agency's: ~20 StopTimeUpdates per trip, a few skipped stops, and times rather than delays.
+ */
+public class TripUpdateSummaryPerfTest {
+
+    private static GtfsRealtime.FeedMessage createFeed(int entities) throws InvalidProtocolBufferException {
+        var feed = GtfsRealtime.FeedMessage.newBuilder()
+                .setHeader(GtfsRealtime.FeedHeader.newBuilder().setGtfsRealtimeVersion("2.0").setTimestamp(1714342166L));
+        for (int e = 0; e < entities; e++) {
+            var tripUpdate = GtfsRealtime.TripUpdate.newBuilder()
+                    .setTrip(GtfsRealtime.TripDescriptor.newBuilder()
+                            .setTripId("trip-" + e)
+                            .setRouteId("route-" + (e % 60))
+                            .setScheduleRelationship(SCHEDULED));
+            for (int s = 0; s < 20; s++) {
+                var stopTimeUpdate = GtfsRealtime.TripUpdate.StopTimeUpdate.newBuilder()
+                        .setStopSequence(s + 1)
+                        .setStopId("stop-" + s)
+                        .setScheduleRelationship(s < 2 && e % 5 == 0 ?
+                                GtfsRealtime.TripUpdate.StopTimeUpdate.ScheduleRelationship.SKIPPED :
+                                GtfsRealtime.TripUpdate.StopTimeUpdate.ScheduleRelationship.SCHEDULED)
+                        .setArrival(GtfsRealtime.TripUpdate.StopTimeEvent.newBuilder().setTime(1714342166L + s * 60L))
+                        .setDeparture(GtfsRealtime.TripUpdate.StopTimeEvent.newBuilder().setTime(1714342196L + s * 60L));
+                if (e % 10 == 0 && s == 19) {
+                    stopTimeUpdate.getArrivalBuilder().setDelay(120);
+                }
+                tripUpdate.addStopTimeUpdate(stopTimeUpdate);
+            }
+            feed.addEntity(GtfsRealtime.FeedEntity.newBuilder().setId(String.valueOf(e)).setTripUpdate(tripUpdate));
+        }
+        //round trip through bytes, so the message is laid out as if it had been downloaded
+        return GtfsRealtime.FeedMessage.parseFrom(feed.build().toByteArray());
+    }
+
+    /**
+     * Copy of the extraction done before TripUpdateSummary, for comparison.
+     */
+    private static long legacyExtract(GtfsRealtime.FeedMessage message) {
+        List<GtfsRealtime.TripUpdate> tripUpdates = message.getEntityList().stream()
+                .map(GtfsRealtime.FeedEntity::getTripUpdate)
+                .toList();
+        long checksum = tripUpdates.stream()
+                .filter(tu -> legacyFirstScheduled(tu).isPresent())
+                .count();
+        for (GtfsRealtime.FeedEntity entity : message.getEntityList()) {
+            var tu = entity.getTripUpdate();
+            if (!(tu.getTrip().getScheduleRelationship().equals(SCHEDULED) && legacyFirstScheduled(tu).isPresent() && tu.hasTrip() && tu.getTrip().hasTripId())) {
+                continue;
+            }
+            if (legacyFirstScheduled(tu).isEmpty()) {
+                continue;
+            }
+            Optional<Integer> delay = tu.hasDelay() ? Optional.of(tu.getDelay()) : tu.getStopTimeUpdateList().stream()
+                    .map(GtfsRealtime.TripUpdate.StopTimeUpdate::getDeparture)
+                    .filter(GtfsRealtime.TripUpdate.StopTimeEvent::hasDelay)
+                    .map(GtfsRealtime.TripUpdate.StopTimeEvent::getDelay)
+                    .findFirst();
+            if (delay.isEmpty()) {
+                delay = tu.getStopTimeUpdateList().stream()
+                        .map(GtfsRealtime.TripUpdate.StopTimeUpdate::getArrival)
+                        .filter(GtfsRealtime.TripUpdate.StopTimeEvent::hasDelay)
+                        .map(GtfsRealtime.TripUpdate.StopTimeEvent::getDelay)
+                        .findFirst();
+            }
+            checksum += delay.orElse(0) + legacyFirstScheduled(tu).get().getStopSequence();
+        }
+        return checksum;
+    }
+
+    private static Optional<GtfsRealtime.TripUpdate.StopTimeUpdate> legacyFirstScheduled(GtfsRealtime.TripUpdate tripUpdate) {
+        return tripUpdate.getStopTimeUpdateList()
+                .stream()
+                .filter(tu -> tu.getScheduleRelationship()
+                        .equals(GtfsRealtime.TripUpdate.StopTimeUpdate.ScheduleRelationship.SCHEDULED))
+                .findFirst();
+    }
+
+    private static long summaryExtract(GtfsRealtime.FeedMessage message, TripUpdateSummary summary) {
+        long checksum = 0;
+        int count = message.getEntityCount();
+        for (int i = 0; i < count; i++) {
+            boolean valid = summary.read(message.getEntity(i).getTripUpdate());
+            if (summary.getFirstScheduled() != null) {
+                checksum++;
+            }
+            if (!valid) {
+                continue;
+            }
+            checksum += (summary.isHasFeedDelay() ? summary.getFeedDelay() : 0) + summary.getStopSequence();
+        }
+        return checksum;
+    }
+
+    private static long medianMicros(List<Long> nanos) {
+        var sorted = new ArrayList<>(nanos);
+        sorted.sort(Long::compare);
+        return TimeUnit.NANOSECONDS.toMicros(sorted.get(sorted.size() / 2));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1_000, 10_000})
+    void compareWithLegacyExtraction(int entities) throws InvalidProtocolBufferException {
+        var message = createFeed(entities);
+        var summary = new TripUpdateSummary();
+        assertThat(summaryExtract(message, new TripUpdateSummary())).isEqualTo(legacyExtract(message));
+
+        // warmup
+        for (int i = 0; i < 20; i++) {
+            legacyExtract(message);
+            summaryExtract(message, summary);
+        }
+        var legacyTimes = new ArrayList<Long>();
+        var summaryTimes = new ArrayList<Long>();
+        for (int i = 0; i < 30; i++) {
+            long t0 = System.nanoTime();
+            legacyExtract(message);
+            long t1 = System.nanoTime();
+            summaryExtract(message, summary);
+            long t2 = System.nanoTime();
+            legacyTimes.add(t1 - t0);
+            summaryTimes.add(t2 - t1);
+        }
+        System.out.println("TripUpdateSummaryPerfTest[" + entities + " entities]: legacy median=" + medianMicros(legacyTimes)
+                + "us, summary median=" + medianMicros(summaryTimes) + "us");
+
+        assertThat(summaryTimes).isNotEmpty();
+    }
+}
@@ -0,0 +1,197 @@
+package com.doug.projects.transitdelayservice.repository;
+
+import com.doug.projects.transitdelayservice.entity.AgencyRouteTimestamp;
+import com.doug.projects.transitdelayservice.entity.BusState;
+import com.doug.projects.transitdelayservice.entity.jpa.AgencyTripDelay;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyRealtimePollRepository;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyStopRepository;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyTripDelayDto;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyTripDelayRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class AgencyRouteTimestampRepositoryTest {
+    @Mock
+    private AgencyStopRepository agencyStopRepository;
+    @Mock
+    private AgencyTripDelayRepository agencyTripDelayRepository;
+    @Mock
+    private AgencyTripDelayBulkWriter agencyTripDelayBulkWriter;
+    @Mock
+    private AgencyRealtimePollRepository agencyRealtimePollRepository;
+    @Mock
+    private AgencyDelayRollupWriter agencyDelayRollupWriter;
+    @Mock
+    private SegmentDelayRollupWriter segmentDelayRollupWriter;
+    private RecentDelayStore recentDelayStore;
+    private AgencyRouteTimestampRepository repository;
+
+    private static AgencyRouteTimestamp getRouteTimestamp(long timestamp, BusState... busStates) {
+        var routeTimestamp = new AgencyRouteTimestamp();
+        routeTimestamp.setAgencyRoute("1", "A");
+        routeTimestamp.setTimestamp(timestamp);
+        routeTimestamp.setBusStates(List.of(busStates));
+        return routeTimestamp;
+    }
+
+    private static BusState getBusState(String tripId, String stopId, int delay) {
+        return BusState.builder().tripId(tripId).closestStopId(stopId).delay(delay).build();
+    }
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        recentDelayStore = new RecentDelayStore();
+        ReflectionTestUtils.setField(recentDelayStore, "windowDays", 8);
+        repository = new AgencyRouteTimestampRepository(agencyStopRepository, agencyTripDelayRepository,
+                agencyTripDelayBulkWriter, agencyRealtimePollRepository, agencyDelayRollupWriter, recentDelayStore,
+                segmentDelayRollupWriter);
+        ReflectionTestUtils.setField(repository, "deltaMode", true);
+        ReflectionTestUtils.setField(repository, "delayToleranceSeconds", 30);
+        ReflectionTestUtils.setField(repository, "maxSpanSeconds", 3600L);
+        when(agencyStopRepository.findStopIdByIdIn(anyCollection())).thenReturn(Set.of("s1", "s2"));
+        when(agencyTripDelayBulkWriter.insertIgnoringDuplicates(any())).thenReturn(new BitSet());
+        when(agencyDelayRollupWriter.claim(eq("1"), anyLong())).thenReturn(true);
+        when(agencyRealtimePollRepository.findMaxTimestampByAgencyId("1")).thenReturn(null);
+    }
+
+    @Test
+    void deltaModeOnlyWritesChangedTrips() {
+        repository.saveAll(List.of(getRouteTimestamp(100, getBusState("t1", "s1", 60), getBusState("t2", "s1", 0))), "1");
+        repository.saveAll(List.of(getRouteTimestamp(130, getBusState("t1", "s1", 75), getBusState("t2", "s2", 0))), "1");
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<AgencyTripDelay>> saved = ArgumentCaptor.forClass(List.class);
+        verify(agencyTripDelayBulkWriter, times(2)).insertIgnoringDuplicates(saved.capture());
+        var secondPoll = saved.getAllValues().get(1);
+        assertEquals(1, secondPoll.size());
+        assertEquals("t2", secondPoll.get(0).getTripId());
+        assertEquals(130L, secondPoll.get(0).getTimestamp());
+        assertEquals(AgencyTripDelay.OPEN_LAST_SEEN_TIMESTAMP, secondPoll.get(0).getLastSeenTimestamp());
+        //only t2's previous row is closed, t1's row is left open rather than updated
+        verify(agencyTripDelayRepository).closeOpenRows("1", List.of("t2"), 100L - 3600L, 100L);
+        verify(agencyTripDelayRepository, times(1)).closeOpenRows(any(), any(), anyLong(), anyLong());
+        //t1 is rolled up with the delay of its open row
+        var secondPollDelays = List.of(
+                new AgencyDelayRollupWriter.RouteDelay("A", 130L, 60, "t1", "s1"),
+                new AgencyDelayRollupWriter.RouteDelay("A", 130L, 0, "t2", "s2"));
+        verify(agencyDelayRollupWriter).write("1", secondPollDelays);
+        verify(segmentDelayRollupWriter).write("1", secondPollDelays);
+    }
+
+    @Test
+    void deltaModeClosesRowsOfTripsWhichLeftTheFeed() {
+        repository.saveAll(List.of(getRouteTimestamp(100, getBusState("t1", "s1", 60), getBusState("t2", "s1", 0))), "1");
+        repository.saveAll(List.of(getRouteTimestamp(130, getBusState("t1", "s1", 60))), "1");
+        repository.saveAll(List.of(getRouteTimestamp(160, getBusState("t1", "s1", 60))), "1");
+
+        verify(agencyTripDelayRepository).closeOpenRows("1", List.of("t2"), 100L - 3600L, 100L);
+        verify(agencyTripDelayRepository, times(1)).closeOpenRows(any(), any(), anyLong(), anyLong());
+    }
+
+    @Test
+    void deltaModeRewritesRowsAfterMaxSpan() {
+        repository.saveAll(List.of(getRouteTimestamp(100, getBusState("t1", "s1", 60))), "1");
+        repository.saveAll(List.of(getRouteTimestamp(3000, getBusState("t1", "s1", 60))), "1");
+        repository.saveAll(List.of(getRouteTimestamp(3700, getBusState("t1", "s1", 60))), "1");
+
+        verify(agencyTripDelayRepository).closeOpenRows("1", List.of("t1"), 3000L - 3600L, 3000L);
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<AgencyTripDelay>> saved = ArgumentCaptor.forClass(List.class);
+        verify(agencyTripDelayBulkWriter, times(3)).insertIgnoringDuplicates(saved.capture());
+        assertEquals(List.of(1, 0, 1), saved.getAllValues().stream().map(List::size).toList());
+    }
+
+    @Test
+    void deltaModeKeepsReadingFromARowItCouldNotClose() {
+        repository.saveAll(List.of(getRouteTimestamp(100, getBusState("t1", "s1", 60))), "1");
+        doThrow(new RuntimeException("db down")).when(agencyTripDelayRepository)
+                .closeOpenRows(eq("1"), eq(List.of("t1")), anyLong(), anyLong());
+        repository.saveAll(List.of(getRouteTimestamp(130, getBusState("t1", "s2", 0))), "1");
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<AgencyTripDelay>> saved = ArgumentCaptor.forClass(List.class);
+        verify(agencyTripDelayBulkWriter, times(2)).insertIgnoringDuplicates(saved.capture());
+        assertTrue(saved.getAllValues().get(1).isEmpty());
+        verify(agencyDelayRollupWriter).write("1", List.of(new AgencyDelayRollupWriter.RouteDelay("A", 130L, 60, "t1", "s1")));
+    }
+
+    @Test
+    void deltaModeClosesRowsLeftOpenByThePreviousRun() {
+        when(agencyRealtimePollRepository.findMaxTimestampByAgencyId("1")).thenReturn(70L);
+        repository.saveAll(List.of(getRouteTimestamp(100, getBusState("t1", "s1", 60))), "1");
+        repository.saveAll(List.of(getRouteTimestamp(130, getBusState("t1", "s1", 60))), "1");
+
+        verify(agencyTripDelayRepository, times(1)).closeAllOpenRows("1", 70L);
+    }
+
+    @Test
+    void readExtendsOpenRowsToLaterPollsWithinMaxSpan() {
+        long open = AgencyTripDelay.OPEN_LAST_SEEN_TIMESTAMP;
+        when(agencyTripDelayRepository.findDelayRecordsForRoutesAndTimeRange(eq("1"), any(), anyLong(), anyLong(), anyLong()))
+                .thenReturn(List.of(
+                        new AgencyTripDelayDto("A", 100L, 60, "s1", "t1", open),
+                        new AgencyTripDelayDto("A", 130L, 0, "s2", "t2", open)));
+        when(agencyRealtimePollRepository.findTimestampsByAgencyIdAndTimestampBetween("1", 100L, 4000L))
+                .thenReturn(List.of(100L, 130L, 160L, 3699L, 3700L));
+
+        var routeTimestamps = repository.getRouteTimestampsBy(100L, 4000L, List.of("A"), "1").stream()
+                .sorted(Comparator.comparing(AgencyRouteTimestamp::getTimestamp))
+                .toList();
+
+        //t1's row stops at 3699, maxSpanSeconds after it was written
+        assertEquals(List.of(100L, 130L, 160L, 3699L, 3700L), routeTimestamps.stream().map(AgencyRouteTimestamp::getTimestamp).toList());
+        assertEquals(List.of(1, 2, 2, 2, 1), routeTimestamps.stream().map(rt -> rt.getBusStatesCopyList().size()).toList());
+    }
+
+    @Test
+    void readExpandsRowsOverPollsTheyWereSeenAt() {
+        when(agencyTripDelayRepository.findDelayRecordsForRoutesAndTimeRange(eq("1"), any(), anyLong(), anyLong(), anyLong()))
+                .thenReturn(List.of(
+                        new AgencyTripDelayDto("A", 100L, 60, "s1", "t1", 160L),
+                        new AgencyTripDelayDto("A", 130L, 0, "s2", "t2", 130L)));
+        when(agencyRealtimePollRepository.findTimestampsByAgencyIdAndTimestampBetween("1", 100L, 200L))
+                .thenReturn(List.of(100L, 130L, 160L));
+
+        var routeTimestamps = repository.getRouteTimestampsBy(100L, 200L, List.of("A"), "1").stream()
+                .sorted(Comparator.comparing(AgencyRouteTimestamp::getTimestamp))
+                .toList();
+
+        assertEquals(3, routeTimestamps.size());
+        assertEquals(List.of(1, 2, 1), routeTimestamps.stream().map(rt -> rt.getBusStatesCopyList().size()).toList());
+    }
+
+    @Test
+    void readsWithinTheRecentWindowComeFromMemory() {
+        ReflectionTestUtils.setField(recentDelayStore, "enabled", true);
+        repository.saveAll(List.of(getRouteTimestamp(100, getBusState("t1", "s1", 60), getBusState("t2", "s1", 0))), "1");
+        repository.saveAll(List.of(getRouteTimestamp(130, getBusState("t1", "s1", 75), getBusState("t2", "s2", 0))), "1");
+
+        var routeTimestamps = repository.getRouteTimestampsBy(100L, 200L, List.of("A"), "1").stream()
+                .sorted(Comparator.comparing(AgencyRouteTimestamp::getTimestamp))
+                .toList();
+
+        assertEquals(2, routeTimestamps.size());
+        //t1's row is still open, so it is read with the delay of its first row, as the db would return it
+        assertEquals(Set.of(60, 0), routeTimestamps.get(1).getBusStatesCopyList().stream()
+                .map(BusState::getDelay)
+                .collect(Collectors.toSet()));
+        assertTrue(repository.isServedFromMemory("1", 100L));
+        assertFalse(repository.isServedFromMemory("1", 99L));
+        verify(agencyTripDelayRepository, never()).findDelayRecordsForRoutesAndTimeRange(any(), any(), anyLong(), anyLong(), anyLong());
+    }
+}
@@ -0,0 +1,55 @@
+package com.doug.projects.transitdelayservice.repository;
+
+import com.doug.projects.transitdelayservice.entity.GtfsStaticDataLoadedEvent;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyRouteMetadataDto;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyRouteRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.*;
+
+class GtfsStaticServiceTest {
+    @Mock
+    private AgencyRouteRepository agencyRouteRepository;
+    private GtfsStaticService gtfsStaticService;
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        gtfsStaticService = new GtfsStaticService(agencyRouteRepository);
+    }
+
+    @Test
+    void routeMetadataIsLoadedOnceUntilStaticDataReloads() {
+        when(agencyRouteRepository.findAllRouteMetadataByAgencyId("1")).thenReturn(List.of(
+                        new AgencyRouteMetadataDto("A", "#FF0000", 2),
+                        new AgencyRouteMetadataDto("B", null, 1),
+                        new AgencyRouteMetadataDto(null, "#00FF00", 3)))
+                .thenReturn(List.of(new AgencyRouteMetadataDto("A", "#0000FF", 1)));
+
+        assertEquals(Map.of("A", "#FF0000"), gtfsStaticService.getRouteNameToColorMap("1"));
+        assertEquals(Map.of("A", 2, "B", 1), gtfsStaticService.getRouteNameToSortOrderMap("1"));
+        verify(agencyRouteRepository, times(1)).findAllRouteMetadataByAgencyId("1");
+
+        gtfsStaticService.onStaticDataLoaded(new GtfsStaticDataLoadedEvent("1"));
+
+        assertEquals(Map.of("A", "#0000FF"), gtfsStaticService.getRouteNameToColorMap("1"));
+        assertEquals(Map.of("A", 1), gtfsStaticService.getRouteNameToSortOrderMap("1"));
+        verify(agencyRouteRepository, times(2)).findAllRouteMetadataByAgencyId("1");
+    }
+
+    @Test
+    void feedWithoutRoutesIsLookedUpAgain() {
+        when(agencyRouteRepository.findAllRouteMetadataByAgencyId("1")).thenReturn(List.of())
+                .thenReturn(List.of(new AgencyRouteMetadataDto("A", "#FF0000", 1)));
+
+        assertEquals(Map.of(), gtfsStaticService.getRouteNameToColorMap("1"));
+        assertEquals(Map.of("A", "#FF0000"), gtfsStaticService.getRouteNameToColorMap("1"));
+    }
+}
@@ -0,0 +1,115 @@
+package com.doug.projects.transitdelayservice.repository;
+
+import com.doug.projects.transitdelayservice.repository.AgencyDelayRollupWriter.RouteDelay;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RecentDelayStoreTest {
+    private static final long DAY = 86400;
+    private RecentDelayStore store;
+
+    @BeforeEach
+    void setUp() {
+        store = new RecentDelayStore();
+        ReflectionTestUtils.setField(store, "enabled", true);
+        ReflectionTestUtils.setField(store, "windowDays", 8);
+    }
+
+    private List<RouteDelay> read(long startTime, long endTime, String... routeNames) {
+        List<RouteDelay> delays = new ArrayList<>();
+        store.forEach("1", startTime, endTime, Arrays.asList(routeNames), (routeName, timestamp, delaySeconds, tripId, stopId) ->
+                delays.add(new RouteDelay(routeName, timestamp, delaySeconds, tripId, stopId)));
+        return delays;
+    }
+
+    @Test
+    void readsBackWhatWasAddedWithinRangeAndRoutes() {
+        var delays = List.of(
+                new RouteDelay("A", 100, 60, "t1", "s1"),
+                new RouteDelay("B", 100, -30, "t2", "s2"),
+                new RouteDelay("A", 160, null, "t1", null),
+                new RouteDelay("A", 220, 100_000, "t1", "s3"),
+                new RouteDelay("A", 220, -100_000, "t3", "s3"));
+        store.add("1", delays);
+
+        assertEquals(delays, read(0, 1000, "A", "B"));
+        assertEquals(List.of(delays.get(1)), read(0, 1000, "B", "C"));
+        assertEquals(List.of(delays.get(2)), read(101, 219, "A"));
+        assertTrue(read(0, 1000).isEmpty());
+        assertTrue(read(0, 1000, "C").isEmpty());
+    }
+
+    @Test
+    void coversFromFirstPollUntilLoaded() {
+        long now = Instant.now().getEpochSecond();
+        assertFalse(store.covers("1", now));
+
+        store.add("1", List.of(new RouteDelay("A", now - 60, 0, "t1", "s1")));
+        assertTrue(store.covers("1", now - 60));
+        assertFalse(store.covers("1", now - DAY));
+
+        var load = store.startLoad("1");
+        load.add("A", now - DAY, 30, "t1", "s1");
+        //ingest already added this poll
+        load.add("A", now - 60, 0, "t1", "s1");
+        load.add("A", now - 9 * DAY, 0, "t1", "s1");
+        load.finish();
+
+        assertTrue(store.covers("1", now - 7 * DAY));
+        assertFalse(store.covers("1", now - 9 * DAY));
+        assertEquals(Set.of(new RouteDelay("A", now - DAY, 30, "t1", "s1"), new RouteDelay("A", now - 60, 0, "t1", "s1")),
+                Set.copyOf(read(0, now, "A")));
+    }
+
+    @Test
+    void dropsChunksWhichLeaveTheWindow() {
+        long start = 1_000_000;
+        for (int day = 0; day < 12; day++) {
+            List<RouteDelay> poll = new ArrayList<>();
+            for (int i = 0; i < RecentDelayStore.CHUNK_CAPACITY; i++) {
+                poll.add(new RouteDelay("A", start + day * DAY, i, "t" + i, "s1"));
+            }
+            store.add("1", poll);
+        }
+
+        assertFalse(store.covers("1", start + 3 * DAY - 1));
+        assertTrue(store.covers("1", start + 3 * DAY));
+        assertEquals(9L * RecentDelayStore.CHUNK_CAPACITY, store.size("1"));
+        assertEquals(9L * RecentDelayStore.CHUNK_CAPACITY, read(start + 3 * DAY, start + 12 * DAY, "A").size());
+    }
+
+    @Test
+    void dropsTripIdsWithTheChunksWhichHoldThem() {
+        long start = 1_000_000;
+        for (int day = 0; day < 12; day++) {
+            List<RouteDelay> poll = new ArrayList<>();
+            for (int i = 0; i < RecentDelayStore.CHUNK_CAPACITY; i++) {
+                poll.add(new RouteDelay("A", start + day * DAY, i, "v" + day + "-t" + i, "s1"));
+            }
+            store.add("1", poll);
+        }
+
+        assertEquals(9 * RecentDelayStore.CHUNK_CAPACITY, store.tripIdCount("1"));
+        List<String> tripIds = read(start, start + 12 * DAY, "A").stream().map(RouteDelay::tripId).toList();
+        assertTrue(tripIds.contains("v3-t0"));
+        assertFalse(tripIds.contains("v2-t0"));
+    }
+
+    @Test
+    void disabledStoreCoversNothing() {
+        ReflectionTestUtils.setField(store, "enabled", false);
+        store.add("1", List.of(new RouteDelay("A", 100, 0, "t1", "s1")));
+
+        assertFalse(store.covers("1", 100));
+        assertEquals(0, store.size("1"));
+    }
+}
@@ -0,0 +1,76 @@
+package com.doug.projects.transitdelayservice.repository;
+
+import com.doug.projects.transitdelayservice.entity.GtfsStaticDataLoadedEvent;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyRouteNameDto;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyRouteRepository;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyTripRepository;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyTripRouteDto;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.*;
+
+class RouteNameResolverTest {
+    @Mock
+    private AgencyRouteRepository agencyRouteRepository;
+    @Mock
+    private AgencyTripRepository agencyTripRepository;
+    private RouteNameResolver routeNameResolver;
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        routeNameResolver = new RouteNameResolver(agencyRouteRepository, agencyTripRepository);
+        when(agencyRouteRepository.findAllRouteNamesByAgencyId("1")).thenReturn(List.of(
+                new AgencyRouteNameDto("r1", "A"),
+                new AgencyRouteNameDto("r2", "B"),
+                new AgencyRouteNameDto("r3", null)));
+        when(agencyTripRepository.findAllTripRoutesByAgencyId("1")).thenReturn(List.of(
+                new AgencyTripRouteDto("t1", "r1"),
+                new AgencyTripRouteDto("t2", "r2"),
+                new AgencyTripRouteDto("t3", "missing")));
+    }
+
+    @Test
+    void feedIsLoadedOnFirstUse() {
+        verifyNoInteractions(agencyRouteRepository, agencyTripRepository);
+
+        assertEquals(Optional.of("A"), routeNameResolver.getRouteName("1", "r1", null));
+        assertEquals(Optional.of("B"), routeNameResolver.getRouteName("1", "r2", "t1"));
+
+        verify(agencyRouteRepository, times(1)).findAllRouteNamesByAgencyId("1");
+        verify(agencyTripRepository, times(1)).findAllTripRoutesByAgencyId("1");
+    }
+
+    @Test
+    void fallsBackToTheTripsRoute() {
+        //blank, unknown and unnamed routeIds all fall back to the tripId
+        assertEquals(Optional.of("A"), routeNameResolver.getRouteName("1", "", "t1"));
+        assertEquals(Optional.of("B"), routeNameResolver.getRouteName("1", "unknown", "t2"));
+        assertEquals(Optional.of("A"), routeNameResolver.getRouteName("1", "r3", "t1"));
+        //trips of a route missing from the static data resolve to nothing
+        assertEquals(Optional.empty(), routeNameResolver.getRouteName("1", null, "t3"));
+        assertEquals(Optional.empty(), routeNameResolver.getRouteName("1", "unknown", null));
+    }
+
+    @Test
+    void reloadSwapsInTheNewStaticData() {
+        assertEquals(Optional.of("A"), routeNameResolver.getRouteName("1", "r1", null));
+        when(agencyRouteRepository.findAllRouteNamesByAgencyId("1")).thenReturn(List.of(new AgencyRouteNameDto("r1", "A2")));
+        when(agencyTripRepository.findAllTripRoutesByAgencyId("1")).thenReturn(List.of(new AgencyTripRouteDto("t9", "r1")));
+
+        routeNameResolver.onStaticDataLoaded(new GtfsStaticDataLoadedEvent("1"));
+
+        assertEquals(Optional.of("A2"), routeNameResolver.getRouteName("1", "r1", "t1"));
+        assertEquals(Optional.of("A2"), routeNameResolver.getRouteName("1", null, "t9"));
+        //trips of the previous static data are gone with it
+        assertEquals(Optional.empty(), routeNameResolver.getRouteName("1", null, "t1"));
+        verify(agencyRouteRepository, times(2)).findAllRouteNamesByAgencyId("1");
+    }
+}
@@ -0,0 +1,117 @@
+package com.doug.projects.transitdelayservice.repository;
+
+import com.doug.projects.transitdelayservice.entity.GtfsStaticDataLoadedEvent;
+import com.doug.projects.transitdelayservice.entity.jpa.AgencyFeed;
+import com.doug.projects.transitdelayservice.repository.AgencyDelayRollupWriter.RouteDelay;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyFeedRepository;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyStopTimeRepository;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyTripStopDto;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class SegmentDelayRollupWriterTest {
+    private static final ZoneId CHICAGO = ZoneId.of("America/Chicago");
+    /**
+     * Monday 2024-01-08 09:10 in Chicago
+     */
+    private static final long MONDAY_MORNING = ZonedDateTime.of(2024, 1, 8, 9, 10, 0, 0, CHICAGO).toEpochSecond();
+    @Mock
+    private JdbcTemplate jdbcTemplate;
+    @Mock
+    private AgencyStopTimeRepository agencyStopTimeRepository;
+    @Mock
+    private AgencyFeedRepository agencyFeedRepository;
+    private SegmentDelayRollupWriter writer;
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        writer = new SegmentDelayRollupWriter(jdbcTemplate, agencyStopTimeRepository, agencyFeedRepository);
+        var feed = new AgencyFeed();
+        feed.setTimezone("America/Chicago");
+        when(agencyFeedRepository.findById("1")).thenReturn(Optional.of(feed));
+        when(agencyStopTimeRepository.findTripStops(eq("1"), anyCollection())).thenReturn(List.of(
+                new AgencyTripStopDto("t1", 1, "s1", "sh1"),
+                new AgencyTripStopDto("t1", 2, "s2", "sh1"),
+                new AgencyTripStopDto("t1", 3, "s3", "sh1"),
+                new AgencyTripStopDto("t1", 4, "s4", "sh1")));
+    }
+
+    @Test
+    void hourOfWeekStartsMondayInTheAgencyTimezone() {
+        assertEquals(9, SegmentDelayRollupWriter.hourOfWeek(MONDAY_MORNING, CHICAGO));
+        assertEquals(6 * 24 + 23, SegmentDelayRollupWriter.hourOfWeek(MONDAY_MORNING - (9 * 60 + 10) * 60 - 1, CHICAGO));
+    }
+
+    @Test
+    void interpolatesSegmentsPassedSinceTheLastPoll() {
+        writer.write("1", List.of(new RouteDelay("A", MONDAY_MORNING, 0, "t1", "s1")));
+        verify(jdbcTemplate, never()).batchUpdate(anyString(), anyList(), any(int[].class));
+
+        writer.write("1", List.of(new RouteDelay("A", MONDAY_MORNING + 300, 120, "t1", "s3")));
+        //still at s3, and moving backward, pass no segments
+        writer.write("1", List.of(new RouteDelay("A", MONDAY_MORNING + 600, 60, "t1", "s3")));
+        writer.write("1", List.of(new RouteDelay("A", MONDAY_MORNING + 900, 60, "t1", "s2")));
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<Object[]>> args = ArgumentCaptor.forClass(List.class);
+        verify(jdbcTemplate).batchUpdate(anyString(), args.capture(), any(int[].class));
+        var rows = args.getValue().stream().sorted(Comparator.comparing(row -> (String) row[2])).toList();
+        long bucketStart = MONDAY_MORNING - 10 * 60;
+        assertArrayEquals(new Object[]{"1", "A", "s1", "s2", "sh1", bucketStart, 9, 9, 1, 2, 1L, 0.0}, rows.get(0));
+        assertArrayEquals(new Object[]{"1", "A", "s2", "s3", "sh1", bucketStart, 9, 9, 2, 3, 1L, 60.0}, rows.get(1));
+        verify(agencyStopTimeRepository, times(1)).findTripStops(eq("1"), anyCollection());
+    }
+
+    @Test
+    void keysSegmentsByTheHoursOfBothPolls() {
+        writer.write("1", List.of(new RouteDelay("A", MONDAY_MORNING + 45 * 60, 0, "t1", "s1")));
+        writer.write("1", List.of(new RouteDelay("A", MONDAY_MORNING + 55 * 60, 0, "t1", "s2")));
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<Object[]>> args = ArgumentCaptor.forClass(List.class);
+        verify(jdbcTemplate).batchUpdate(anyString(), args.capture(), any(int[].class));
+        //driven from 9:55 to 10:05, so only counted when both hours are selected
+        assertArrayEquals(new Object[]{"1", "A", "s1", "s2", "sh1", MONDAY_MORNING + 50 * 60, 10, 9, 1, 2, 1L, 0.0},
+                args.getValue().get(0));
+    }
+
+    @Test
+    void tripStopsReloadWithStaticData() {
+        writer.write("1", List.of(new RouteDelay("A", MONDAY_MORNING, 0, "t1", "s1")));
+        writer.onStaticDataLoaded(new GtfsStaticDataLoadedEvent("1"));
+        writer.write("1", List.of(new RouteDelay("A", MONDAY_MORNING + 300, 0, "t1", "s2")));
+
+        verify(agencyStopTimeRepository, times(2)).findTripStops(eq("1"), anyCollection());
+        //the trip's last stop outlives the reload, so the pair of polls spanning it is rolled up, as the replay counts it
+        verify(jdbcTemplate).batchUpdate(anyString(), anyList(), any(int[].class));
+    }
+
+    @Test
+    void olderDelaysAreNotRolledUp() {
+        writer.write("1", List.of(new RouteDelay("A", MONDAY_MORNING, 0, "t1", "s3")));
+        writer.write("1", List.of(new RouteDelay("A", MONDAY_MORNING - 300, 0, "t1", "s1")));
+        writer.write("1", List.of(new RouteDelay("A", MONDAY_MORNING + 300, 0, "t1", "s2")));
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<Object[]>> args = ArgumentCaptor.forClass(List.class);
+        verify(jdbcTemplate).batchUpdate(anyString(), args.capture(), any(int[].class));
+        //the older delay at s1 replaced the trip's last stop, without rolling s1 to s3 up backwards
+        assertEquals(1, args.getValue().size());
+        assertEquals("s1", args.getValue().get(0)[2]);
+    }
+}
@@ -0,0 +1,192 @@
+package com.doug.projects.transitdelayservice.repository;
+
+import com.doug.projects.transitdelayservice.repository.TripDelayPartitionManager.PartitionInterval;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.sql.Connection;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs partition maintenance against a real PostgreSQL, since it converts and drops tables. Skipped without Docker.
+ */
+@Testcontainers(disabledWithoutDocker = true)
+class TripDelayPartitionManagerPostgresTest {
+    @Container
+    private static final PostgreSQLContainer<?> postgres = new PostgreSQLContainer<>("postgres:15-alpine");
+    private static final long JAN_2024 = LocalDate.of(2024, 1, 15).atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+    private static final long MAR_2024 = LocalDate.of(2024, 3, 10).atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+
+    private DriverManagerDataSource dataSource;
+    private JdbcTemplate jdbcTemplate;
+    private TripDelayPartitionManager partitionManager;
+    private long now;
+
+    private static String partitionOf(LocalDate start) {
+        return "gtfs_trip_delay_p" + DateTimeFormatter.BASIC_ISO_DATE.format(start);
+    }
+
+    @BeforeEach
+    void setUp() {
+        dataSource = new DriverManagerDataSource(postgres.getJdbcUrl(), postgres.getUsername(), postgres.getPassword());
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("DROP SCHEMA IF EXISTS mpt CASCADE");
+        jdbcTemplate.execute("CREATE SCHEMA mpt");
+        jdbcTemplate.execute("""
+                CREATE TABLE mpt.gtfs_trip (
+                    trip_id varchar(255) NOT NULL,
+                    agency_id varchar(255) NOT NULL,
+                    PRIMARY KEY (trip_id, agency_id)
+                )""");
+        //as hibernate creates it
+        jdbcTemplate.execute("""
+                CREATE TABLE mpt.gtfs_trip_delay (
+                    id bigint GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+                    trip_id varchar(255) NOT NULL,
+                    agency_id varchar(255) NOT NULL,
+                    timestamp bigint NOT NULL,
+                    stop_id varchar(255) NOT NULL,
+                    delay_seconds integer,
+                    last_seen_timestamp bigint,
+                    CONSTRAINT uk_trip_delay_trip_agency_stop_time UNIQUE (trip_id, agency_id, timestamp),
+                    FOREIGN KEY (trip_id, agency_id) REFERENCES mpt.gtfs_trip (trip_id, agency_id)
+                )""");
+        jdbcTemplate.update("INSERT INTO mpt.gtfs_trip VALUES ('t1', '1'), ('t2', '1')");
+        now = Instant.now().getEpochSecond();
+        for (long timestamp : List.of(JAN_2024, MAR_2024, now - 60, now)) {
+            insertDelay(jdbcTemplate, "t1", timestamp);
+        }
+
+        partitionManager = new TripDelayPartitionManager(jdbcTemplate, new DataSourceTransactionManager(dataSource));
+        ReflectionTestUtils.setField(partitionManager, "enabled", true);
+        ReflectionTestUtils.setField(partitionManager, "interval", PartitionInterval.MONTH);
+        ReflectionTestUtils.setField(partitionManager, "partitionsAhead", 2);
+        ReflectionTestUtils.setField(partitionManager, "retentionDays", 0);
+    }
+
+    private static void insertDelay(JdbcTemplate jdbcTemplate, String tripId, long timestamp) {
+        jdbcTemplate.update("INSERT INTO mpt.gtfs_trip_delay (trip_id, agency_id, timestamp, stop_id, delay_seconds) " +
+                "VALUES (?, '1', ?, 's1', 60)", tripId, timestamp);
+    }
+
+    private boolean isPartitioned() {
+        return jdbcTemplate.queryForObject("""
+                SELECT count(*) FROM pg_partitioned_table pt \
+                JOIN pg_class c ON c.oid = pt.partrelid \
+                JOIN pg_namespace n ON n.oid = c.relnamespace \
+                WHERE n.nspname = 'mpt' AND c.relname = 'gtfs_trip_delay'""", Integer.class) > 0;
+    }
+
+    private List<String> partitions() {
+        return jdbcTemplate.queryForList("""
+                SELECT c.relname FROM pg_inherits i \
+                JOIN pg_class c ON c.oid = i.inhrelid \
+                JOIN pg_class p ON p.oid = i.inhparent \
+                JOIN pg_namespace n ON n.oid = p.relnamespace \
+                WHERE n.nspname = 'mpt' AND p.relname = 'gtfs_trip_delay'""", String.class);
+    }
+
+    private long rowCount() {
+        return jdbcTemplate.queryForObject("SELECT count(*) FROM mpt.gtfs_trip_delay", Long.class);
+    }
+
+    @Test
+    void convertsTableKeepingRowsKeysAndIds() {
+        long maxId = jdbcTemplate.queryForObject("SELECT max(id) FROM mpt.gtfs_trip_delay", Long.class);
+
+        partitionManager.maintain();
+
+        assertTrue(isPartitioned());
+        assertEquals(4, rowCount());
+        var currentMonth = LocalDate.now(ZoneOffset.UTC).withDayOfMonth(1);
+        assertTrue(partitions().containsAll(List.of(partitionOf(LocalDate.of(2024, 1, 1)), partitionOf(LocalDate.of(2024, 2, 1)),
+                partitionOf(LocalDate.of(2024, 3, 1)), partitionOf(currentMonth), partitionOf(currentMonth.plusMonths(1)),
+                partitionOf(currentMonth.plusMonths(2)))), partitions().toString());
+        assertFalse(partitions().contains(partitionOf(currentMonth.plusMonths(3))));
+        //ids carry on past the copied rows
+        insertDelay(jdbcTemplate, "t2", now);
+        assertTrue(jdbcTemplate.queryForObject("SELECT id FROM mpt.gtfs_trip_delay WHERE trip_id = 't2'", Long.class) > maxId);
+        //the unique key the bulk writer relies on, and the foreign key, still hold
+        assertEquals(0, jdbcTemplate.update("INSERT INTO mpt.gtfs_trip_delay (trip_id, agency_id, timestamp, stop_id) " +
+                "VALUES ('t1', '1', ?, 's1') ON CONFLICT (trip_id, agency_id, timestamp) DO NOTHING", now));
+        assertThrows(Exception.class, () -> insertDelay(jdbcTemplate, "missing", now));
+
+        //running again changes nothing
+        var partitions = partitions();
+        partitionManager.maintain();
+        assertEquals(partitions.size(), partitions().size());
+        assertEquals(5, rowCount());
+    }
+
+    @Test
+    void dropsPartitionsPastRetention() {
+        partitionManager.maintain();
+        ReflectionTestUtils.setField(partitionManager, "retentionDays", 30);
+
+        partitionManager.maintain();
+
+        var partitions = partitions();
+        assertFalse(partitions.contains(partitionOf(LocalDate.of(2024, 1, 1))));
+        assertFalse(partitions.contains(partitionOf(LocalDate.of(2024, 3, 1))));
+        assertTrue(partitions.contains(partitionOf(LocalDate.now(ZoneOffset.UTC).withDayOfMonth(1))));
+        assertEquals(2, rowCount());
+    }
+
+    @Test
+    void rowsOutsideThePartitionsAreKeptInTheDefaultUntilCovered() {
+        partitionManager.maintain();
+        long ahead = LocalDate.now(ZoneOffset.UTC).withDayOfMonth(1).plusMonths(6).atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+        long old = LocalDate.of(2020, 6, 1).atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+
+        insertDelay(jdbcTemplate, "t2", ahead);
+        insertDelay(jdbcTemplate, "t2", old);
+
+        assertEquals(2, jdbcTemplate.queryForObject("SELECT count(*) FROM mpt.gtfs_trip_delay_default", Integer.class));
+        ReflectionTestUtils.setField(partitionManager, "partitionsAhead", 6);
+        ReflectionTestUtils.setField(partitionManager, "retentionDays", 30);
+        partitionManager.maintain();
+
+        assertTrue(partitions().contains(partitionOf(TripDelayPartitionManager.toDate(ahead))));
+        assertEquals(0, jdbcTemplate.queryForObject("SELECT count(*) FROM mpt.gtfs_trip_delay_default", Integer.class));
+        assertEquals(1, jdbcTemplate.queryForObject("SELECT count(*) FROM mpt.%s WHERE timestamp = ?"
+                .formatted(partitionOf(TripDelayPartitionManager.toDate(ahead))), Integer.class, ahead));
+        assertEquals(3, rowCount());
+    }
+
+    @Test
+    void writesInFlightDuringConversionAreKept() throws Exception {
+        try (Connection ingest = dataSource.getConnection()) {
+            ingest.setAutoCommit(false);
+            try (var statement = ingest.prepareStatement("INSERT INTO mpt.gtfs_trip_delay (trip_id, agency_id, timestamp, " +
+                    "stop_id, delay_seconds) VALUES ('t2', '1', ?, 's1', 30)")) {
+                statement.setLong(1, now);
+                statement.executeUpdate();
+            }
+            var conversion = CompletableFuture.runAsync(partitionManager::maintain);
+            //the conversion waits for the uncommitted write, instead of copying around it
+            Thread.sleep(1000);
+            assertFalse(conversion.isDone());
+            ingest.commit();
+            conversion.get(30, TimeUnit.SECONDS);
+        }
+
+        assertTrue(isPartitioned());
+        assertEquals(5, rowCount());
+        assertEquals(1, jdbcTemplate.queryForObject("SELECT count(*) FROM mpt.gtfs_trip_delay WHERE trip_id = 't2'", Integer.class));
+    }
+}
@@ -0,0 +1,42 @@
+package com.doug.projects.transitdelayservice.repository;
+
+import com.doug.projects.transitdelayservice.repository.TripDelayPartitionManager.PartitionInterval;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TripDelayPartitionManagerTest {
+
+    @Test
+    void weeksStartOnMondayUtc() {
+        //Monday itself, the following Sunday, and a week spanning the new year
+        assertEquals(LocalDate.of(2024, 4, 29), PartitionInterval.WEEK.startOf(LocalDate.of(2024, 4, 29)));
+        assertEquals(LocalDate.of(2024, 4, 29), PartitionInterval.WEEK.startOf(LocalDate.of(2024, 5, 5)));
+        assertEquals(LocalDate.of(2024, 12, 30), PartitionInterval.WEEK.startOf(LocalDate.of(2025, 1, 1)));
+        assertEquals(LocalDate.of(2025, 1, 6), PartitionInterval.WEEK.plus(LocalDate.of(2024, 12, 30), 1));
+    }
+
+    @Test
+    void monthsStartOnTheFirst() {
+        assertEquals(LocalDate.of(2024, 2, 1), PartitionInterval.MONTH.startOf(LocalDate.of(2024, 2, 29)));
+        assertEquals(LocalDate.of(2025, 1, 1), PartitionInterval.MONTH.plus(LocalDate.of(2024, 11, 1), 2));
+        assertEquals(LocalDate.of(2024, 3, 1), PartitionInterval.MONTH.plus(LocalDate.of(2024, 2, 1), 1));
+    }
+
+    @Test
+    void partitionsAreContiguousAndEndExclusive() {
+        for (PartitionInterval interval : PartitionInterval.values()) {
+            var start = interval.startOf(LocalDate.of(2024, 1, 1));
+            for (int i = 0; i < 60; i++) {
+                var next = interval.plus(start, 1);
+                long end = TripDelayPartitionManager.toEpochSecond(next);
+                //the last second of a partition belongs to it, its end belongs to the next one, as in FROM .. TO
+                assertEquals(start, interval.startOf(TripDelayPartitionManager.toDate(end - 1)), interval + " " + start);
+                assertEquals(next, interval.startOf(TripDelayPartitionManager.toDate(end)), interval + " " + start);
+                start = next;
+            }
+        }
+    }
+}
@@ -1,21 +1,24 @@
 package com.doug.projects.transitdelayservice.service;
 
-import com.doug.projects.transitdelayservice.entity.AgencyRealtimeAnalysisResponse;
-import com.doug.projects.transitdelayservice.entity.AgencyRouteTimestamp;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
 import com.doug.projects.transitdelayservice.entity.jpa.AgencyFeedDto;
-import com.doug.projects.transitdelayservice.repository.AgencyRouteTimestampRepository;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.slf4j.LoggerFactory;
 import org.springframework.test.util.ReflectionTestUtils;
 
 import java.util.List;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
 
 import static com.doug.projects.transitdelayservice.entity.Status.ACTIVE;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.*;
 
 
@@ -27,12 +30,8 @@ class CronServiceTest {
     @Mock
     private GtfsFeedAggregator gtfsFeedAggregator;
     @Mock
-    private GtfsRealtimeParserService rtResponseService;
-    @Mock
-    private AgencyRouteTimestampRepository routeTimestampRepository;
-    @Mock
-    private GtfsRetryOnFailureService retryOnFailureService;
-    private final Executor executor = Executors.newSingleThreadExecutor();
+    private RealtimeIngestPipeline realtimeIngestPipeline;
+    private ListAppender<ILoggingEvent> logs;
 
     private static List<AgencyFeedDto> getAgencyFeedList() {
         return List.of(getAgencyFeedActive());
@@ -46,14 +45,17 @@ class CronServiceTest {
         return "1";
     }
 
-    private static AgencyRealtimeAnalysisResponse getResponse() {
-        List<AgencyRouteTimestamp> routeTimestamps = List.of(new AgencyRouteTimestamp());
-        return AgencyRealtimeAnalysisResponse.builder().feed(getAgencyFeedActive()).routeTimestamps(routeTimestamps).build();
-    }
-
     @BeforeEach
     void setUp() {
         MockitoAnnotations.openMocks(this);
+        logs = new ListAppender<>();
+        logs.start();
+        ((Logger) LoggerFactory.getLogger(CronService.class)).addAppender(logs);
+    }
+
+    @AfterEach
+    void tearDown() {
+        ((Logger) LoggerFactory.getLogger(CronService.class)).detachAppender(logs);
     }
 
     @Test
@@ -65,30 +67,51 @@ class CronServiceTest {
     }
 
     @Test
-    void writeAllTypesDuringRealtimeCheck() {
+    void submitsAllFeedsDuringRealtimeCheck() {
         ReflectionTestUtils.setField(cronService, "doesRealtimeCronRun", true);
+        ReflectionTestUtils.setField(cronService, "feedTimeoutSeconds", 10L);
         when(agencyFeedService.getAllAgencyFeeds())
                 .thenReturn(getAgencyFeedList());
-        when(rtResponseService.pollFeed(eq(getAgencyFeedActive())))
-                .thenReturn(getResponse());
-        when(retryOnFailureService.updateFeedStatus(eq(getResponse()))).thenReturn(List.of(new AgencyRouteTimestamp()));
+        when(realtimeIngestPipeline.submit(eq(getAgencyFeedActive())))
+                .thenReturn(CompletableFuture.completedFuture(null));
         cronService.writeGtfsRealtimeData();
         verify(agencyFeedService, times(1)).getAllAgencyFeeds();
-        verify(rtResponseService, times(1)).pollFeed(eq(getAgencyFeedActive()));
-        verify(routeTimestampRepository, times(1)).saveAll(eq(List.of(new AgencyRouteTimestamp())), anyString());
+        verify(realtimeIngestPipeline, times(1)).submit(eq(getAgencyFeedActive()));
+    }
+
+    @Test
+    void failingFeedDoesNotBlockOtherFeeds() {
+        ReflectionTestUtils.setField(cronService, "doesRealtimeCronRun", true);
+        ReflectionTestUtils.setField(cronService, "feedTimeoutSeconds", 1L);
+        var failingFeed = AgencyFeedDto.builder().id("2").name("Failing Agency").state("WI").status(ACTIVE).build();
+        var hungFeed = AgencyFeedDto.builder().id("3").name("Hung Agency").state("WI").status(ACTIVE).build();
+        when(agencyFeedService.getAllAgencyFeeds())
+                .thenReturn(List.of(failingFeed, hungFeed, getAgencyFeedActive()));
+        when(realtimeIngestPipeline.submit(eq(failingFeed)))
+                .thenReturn(CompletableFuture.failedFuture(new RuntimeException("connection reset")));
+        when(realtimeIngestPipeline.submit(eq(hungFeed)))
+                .thenReturn(new CompletableFuture<>());
+        when(realtimeIngestPipeline.submit(eq(getAgencyFeedActive())))
+                .thenReturn(CompletableFuture.completedFuture(null));
+        cronService.writeGtfsRealtimeData();
+        verify(realtimeIngestPipeline, times(3)).submit(any());
+        var messages = logs.list.stream().map(ILoggingEvent::getFormattedMessage).toList();
+        assertTrue(messages.contains("Feed 2 failed to write realtime data"), messages.toString());
+        assertTrue(messages.contains("Feed 3 did not finish within 1s, no longer waiting on it for this poll"), messages.toString());
+        assertFalse(messages.contains("Feed 3 failed to write realtime data"), messages.toString());
     }
 
     @Test
     void doesNotWriteWhenBooleanFalse() {
         ReflectionTestUtils.setField(cronService, "doesAgencyCronRun", false);
         cronService.writeFeeds();
-        verifyNoInteractions(agencyFeedService, gtfsFeedAggregator, rtResponseService, routeTimestampRepository, retryOnFailureService);
+        verifyNoInteractions(agencyFeedService, gtfsFeedAggregator, realtimeIngestPipeline);
     }
 
     @Test
     void doesNotWriteRTWhenBooleanFalse() {
         ReflectionTestUtils.setField(cronService, "doesRealtimeCronRun", false);
         cronService.writeGtfsRealtimeData();
-        verifyNoInteractions(agencyFeedService, gtfsFeedAggregator, rtResponseService, routeTimestampRepository, retryOnFailureService);
+        verifyNoInteractions(agencyFeedService, gtfsFeedAggregator, realtimeIngestPipeline);
     }
 }
\ No newline at end of file
@@ -0,0 +1,145 @@
+package com.doug.projects.transitdelayservice.service;
+
+import com.doug.projects.transitdelayservice.entity.GraphOptions;
+import com.doug.projects.transitdelayservice.entity.GraphType;
+import com.doug.projects.transitdelayservice.entity.LineGraphDataResponse;
+import com.doug.projects.transitdelayservice.entity.MapOptions;
+import com.doug.projects.transitdelayservice.entity.RealtimeDataSavedEvent;
+import com.doug.projects.transitdelayservice.repository.GtfsStaticService;
+import com.doug.projects.transitdelayservice.util.TransitDateUtil;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.geojson.FeatureCollection;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.cache.caffeine.CaffeineCacheManager;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.doug.projects.transitdelayservice.config.CachingConfiguration.DELAY_MAP_CACHE;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+class DefaultResponseServiceTest {
+    private static final List<String> ROUTES = List.of("B", "A");
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    @Mock
+    private GetDelayService getDelayService;
+    @Mock
+    private MapperService mapperService;
+    @Mock
+    private GtfsStaticService gtfsStaticService;
+    private final List<Runnable> queuedRefreshes = new ArrayList<>();
+    private DefaultResponseService defaultResponseService;
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        defaultResponseService = new DefaultResponseService(getDelayService, mapperService, gtfsStaticService,
+                new CaffeineCacheManager(DELAY_MAP_CACHE), objectMapper, queuedRefreshes::add);
+        when(gtfsStaticService.findAllRouteNamesSorted("1")).thenReturn(ROUTES);
+        Map<GraphType, LineGraphDataResponse> graphs = new LinkedHashMap<>();
+        for (GraphType type : DefaultResponseService.DEFAULT_GRAPH_TYPES) {
+            var graph = new LineGraphDataResponse();
+            graph.setLabels(List.of(type.name()));
+            graphs.put(type, graph);
+        }
+        when(getDelayService.getDelayGraphs(eq("1"), any(), eq(DefaultResponseService.DEFAULT_GRAPH_TYPES))).thenReturn(graphs);
+        when(mapperService.getDelayLines(eq("1"), any())).thenReturn(new FeatureCollection());
+    }
+
+    @Test
+    void servesDefaultGraphsAfterRefresh() throws Exception {
+        var options = GraphOptions.builder().routes(List.of("A", "B")).build();
+        assertTrue(defaultResponseService.getGraph("1", "average", options).isEmpty());
+
+        defaultResponseService.refresh("1");
+
+        var graph = objectMapper.readValue(defaultResponseService.getGraph("1", "average", options).orElseThrow(),
+                LineGraphDataResponse.class);
+        assertEquals(List.of("AVERAGE"), graph.getLabels());
+        assertTrue(defaultResponseService.getGraph("1", "percent", options).isPresent());
+        assertTrue(defaultResponseService.getGraph("1", "p90", options).isEmpty());
+        assertTrue(defaultResponseService.getGraph("2", "average", options).isEmpty());
+
+        ArgumentCaptor<GraphOptions> computed = ArgumentCaptor.forClass(GraphOptions.class);
+        verify(getDelayService).getDelayGraphs(eq("1"), computed.capture(), any());
+        assertEquals(TransitDateUtil.getMidnightSixDaysAgo(), computed.getValue().getStartTime());
+        assertEquals(ROUTES, computed.getValue().getRoutes());
+    }
+
+    @Test
+    void otherGraphOptionsAreNotServed() {
+        defaultResponseService.refresh("1");
+
+        assertTrue(defaultResponseService.getGraph("1", "average", GraphOptions.builder().build()).isEmpty());
+        assertTrue(defaultResponseService.getGraph("1", "average", GraphOptions.builder().routes(List.of("A")).build()).isEmpty());
+        assertTrue(defaultResponseService.getGraph("1", "average", GraphOptions.builder().routes(ROUTES).units(24).build()).isEmpty());
+        assertTrue(defaultResponseService.getGraph("1", "average", GraphOptions.builder().routes(ROUTES)
+                .startTime(TransitDateUtil.getMidnightDaysAgo(30)).build()).isEmpty());
+        assertTrue(defaultResponseService.getGraph("1", "average", GraphOptions.builder().routes(ROUTES)
+                .startTime(TransitDateUtil.getMidnightSixDaysAgo()).endTime(TransitDateUtil.getMidnightTonight()).build()).isPresent());
+    }
+
+    @Test
+    void servesDefaultMapOnly() {
+        defaultResponseService.refresh("1");
+
+        var mapOptions = new MapOptions();
+        mapOptions.setRouteNames(List.of("A", "B"));
+        assertTrue(defaultResponseService.getMap("1", mapOptions).isPresent());
+        mapOptions.setHourStarted(6);
+        assertTrue(defaultResponseService.getMap("1", mapOptions).isEmpty());
+    }
+
+    @Test
+    void refreshesOnlyTheFeedWhoseDelaysWereSaved() {
+        var options = GraphOptions.builder().routes(ROUTES).build();
+
+        defaultResponseService.onRealtimeDataSaved(new RealtimeDataSavedEvent("1", 100L));
+        runQueuedRefreshes();
+
+        assertTrue(defaultResponseService.getGraph("1", "average", options).isPresent());
+        verify(getDelayService).getDelayGraphs(eq("1"), any(), any());
+        verifyNoMoreInteractions(getDelayService);
+    }
+
+    @Test
+    void queuesAtMostOneRefreshPerFeed() {
+        defaultResponseService.onRealtimeDataSaved(new RealtimeDataSavedEvent("1", 100L));
+        defaultResponseService.onRealtimeDataSaved(new RealtimeDataSavedEvent("1", 160L));
+        defaultResponseService.onRealtimeDataSaved(new RealtimeDataSavedEvent("1", 220L));
+        assertEquals(1, queuedRefreshes.size());
+
+        //the queued refresh reads every poll saved while it waited
+        runQueuedRefreshes();
+        verify(getDelayService, times(1)).getDelayGraphs(eq("1"), any(), any());
+
+        //polls saved during a refresh queue one more once it's done
+        when(mapperService.getDelayLines(eq("1"), any())).thenAnswer(invocation -> {
+            defaultResponseService.onRealtimeDataSaved(new RealtimeDataSavedEvent("1", 280L));
+            defaultResponseService.onRealtimeDataSaved(new RealtimeDataSavedEvent("1", 340L));
+            return new FeatureCollection();
+        }).thenReturn(new FeatureCollection());
+        defaultResponseService.onRealtimeDataSaved(new RealtimeDataSavedEvent("1", 280L));
+        assertEquals(1, queuedRefreshes.size());
+        runQueuedRefreshes();
+        verify(getDelayService, times(3)).getDelayGraphs(eq("1"), any(), any());
+    }
+
+    private void runQueuedRefreshes() {
+        while (!queuedRefreshes.isEmpty()) {
+            queuedRefreshes.remove(0).run();
+        }
+    }
+}
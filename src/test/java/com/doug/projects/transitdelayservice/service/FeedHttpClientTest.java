@@ -0,0 +1,174 @@
+package com.doug.projects.transitdelayservice.service;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs downloads against a local http server, one connection per host so a leaked permit blocks the next download.
+ */
+class FeedHttpClientTest {
+    private static final byte[] BODY = "feed body".repeat(100).getBytes(StandardCharsets.UTF_8);
+    private final CountDownLatch unstall = new CountDownLatch(1);
+    private final CountDownLatch stalled = new CountDownLatch(1);
+    private ExecutorService serverThreads;
+    private HttpServer server;
+    private FeedHttpClient feedHttpClient;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        serverThreads = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(serverThreads);
+        server.createContext("/plain", exchange -> respond(exchange, null, BODY));
+        server.createContext("/gzip", exchange -> respond(exchange, "gzip", gzip(BODY)));
+        server.createContext("/deflate", exchange -> respond(exchange, "deflate", deflate(BODY)));
+        server.createContext("/stalled-body", exchange -> {
+            //headers and part of the body arrive, then nothing more
+            exchange.sendResponseHeaders(200, BODY.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(BODY, 0, 10);
+                body.flush();
+                stall();
+            }
+        });
+        server.createContext("/stalled-headers", exchange -> {
+            stall();
+            respond(exchange, null, BODY);
+        });
+        server.start();
+        feedHttpClient = new FeedHttpClient(5, 1);
+    }
+
+    @AfterEach
+    void tearDown() {
+        unstall.countDown();
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+
+    private void stall() {
+        stalled.countDown();
+        try {
+            unstall.await(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, String encoding, byte[] body) throws IOException {
+        if (encoding != null) {
+            exchange.getResponseHeaders().set("Content-Encoding", encoding);
+        }
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        var out = new ByteArrayOutputStream();
+        try (var gzip = new GZIPOutputStream(out)) {
+            gzip.write(bytes);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] bytes) throws IOException {
+        var out = new ByteArrayOutputStream();
+        try (var deflate = new DeflaterOutputStream(out)) {
+            deflate.write(bytes);
+        }
+        return out.toByteArray();
+    }
+
+    private String url(String path) {
+        return "http://localhost:" + server.getAddress().getPort() + path;
+    }
+
+    private byte[] get(String path, Duration deadline) throws IOException {
+        try (InputStream body = feedHttpClient.get("1", url(path), Map.of(), deadline).body()) {
+            return body.readAllBytes();
+        }
+    }
+
+    @Test
+    void encodedBodiesAreDecoded() throws IOException {
+        assertArrayEquals(BODY, get("/plain", Duration.ofSeconds(5)));
+        assertArrayEquals(BODY, get("/gzip", Duration.ofSeconds(5)));
+        assertArrayEquals(BODY, get("/deflate", Duration.ofSeconds(5)));
+    }
+
+    @Test
+    void downloadsKeepTheBodyAsSent(@TempDir Path dir) throws IOException {
+        var response = feedHttpClient.download("1", url("/gzip"), dir.resolve("feed"), Duration.ofSeconds(5));
+
+        assertArrayEquals(gzip(BODY), Files.readAllBytes(response.body()));
+        try (InputStream body = FeedHttpClient.decode(response.headers(), Files.newInputStream(response.body()))) {
+            assertArrayEquals(BODY, body.readAllBytes());
+        }
+    }
+
+    @Test
+    void stalledBodyFailsAtTheDeadline() {
+        long start = System.nanoTime();
+
+        assertThrows(HttpTimeoutException.class, () -> get("/stalled-body", Duration.ofMillis(500)));
+
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    }
+
+    @Test
+    void permitIsReleasedAfterATimeout() throws IOException {
+        assertThrows(HttpTimeoutException.class, () -> get("/stalled-headers", Duration.ofMillis(500)));
+
+        assertArrayEquals(BODY, get("/plain", Duration.ofSeconds(2)));
+    }
+
+    @Test
+    void permitIsReleasedWhenTheDownloadIsCancelled() throws Exception {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread downloader = new Thread(() -> {
+            try {
+                get("/stalled-headers", Duration.ofSeconds(30));
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        downloader.start();
+        assertTrue(stalled.await(5, TimeUnit.SECONDS));
+
+        downloader.interrupt();
+        downloader.join(5000);
+
+        assertInstanceOf(InterruptedIOException.class, failure.get());
+
+        assertArrayEquals(BODY, get("/plain", Duration.ofSeconds(2)));
+    }
+}
@@ -0,0 +1,201 @@
+package com.doug.projects.transitdelayservice.service;
+
+import com.doug.projects.transitdelayservice.entity.GraphOptions;
+import com.doug.projects.transitdelayservice.entity.GraphType;
+import com.doug.projects.transitdelayservice.entity.RealtimeDataSavedEvent;
+import com.doug.projects.transitdelayservice.entity.LineGraphData;
+import com.doug.projects.transitdelayservice.repository.AgencyRouteTimestampRepository;
+import com.doug.projects.transitdelayservice.repository.DelayAggregationRepository;
+import com.doug.projects.transitdelayservice.repository.DelayAggregationRepository.Aggregate;
+import com.doug.projects.transitdelayservice.repository.DelayAggregationRepository.RouteBucketValues;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyDelayHistogramBinDto;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyDelayHistogramBinRepository;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyDelayRollupDto;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyDelayRollupRepository;
+import com.doug.projects.transitdelayservice.util.DelayHistogram;
+import com.doug.projects.transitdelayservice.util.LineGraphUtil;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.cache.caffeine.CaffeineCacheManager;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.doug.projects.transitdelayservice.config.CachingConfiguration.DELAY_CHART_CACHE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class GetDelayServiceTest {
+    private static final long HOUR = 60 * 60;
+    private static final long START = 1_700_000_000L / HOUR * HOUR;
+    @Mock
+    private AgencyRouteTimestampRepository repository;
+    @Mock
+    private LineGraphUtil lineGraphUtil;
+    @Mock
+    private AgencyDelayRollupRepository rollupRepository;
+    @Mock
+    private DelayAggregationRepository delayAggregationRepository;
+    @Mock
+    private AgencyDelayHistogramBinRepository histogramBinRepository;
+    private GetDelayService getDelayService;
+
+    private static GraphOptions getOptions(long startTime, long endTime, int units) {
+        return GraphOptions.builder()
+                .startTime(startTime)
+                .endTime(endTime)
+                .units(units)
+                .useColor(false)
+                .routes(List.of("A"))
+                .build();
+    }
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        getDelayService = new GetDelayService(repository, lineGraphUtil, rollupRepository, delayAggregationRepository,
+                histogramBinRepository, new CaffeineCacheManager(DELAY_CHART_CACHE));
+        when(lineGraphUtil.getLineGraphData(anyString(), anyList())).thenAnswer(invocation -> {
+            var data = new LineGraphData();
+            data.setLineLabel(invocation.getArgument(0));
+            data.setData(invocation.getArgument(1));
+            return data;
+        });
+        when(rollupRepository.findFirstBucketStart(eq("1"), anyInt())).thenReturn(START - 24 * HOUR);
+        when(histogramBinRepository.findFirstBucketStart(eq("1"), anyInt())).thenReturn(START - 24 * HOUR);
+    }
+
+    @Test
+    void alignedGraphIsReadFromRollups() {
+        when(rollupRepository.findRollups("1", (int) HOUR, List.of("A"), START, START + 2 * HOUR)).thenReturn(List.of(
+                new AgencyDelayRollupDto("A", START, 2L, 120L, 0, 120, 2L),
+                new AgencyDelayRollupDto("A", START + HOUR, 1L, 600L, 600, 600, 0L)));
+
+        var response = getDelayService.getAverageDelay("1", getOptions(START, START + 2 * HOUR, 2));
+
+        assertEquals(Arrays.asList(1.0, 10.0), response.getDatasets().get(0).getData());
+        verify(repository, never()).streamDelaysBy(anyLong(), anyLong(), any(), any(), any());
+    }
+
+    @Test
+    void unalignedGraphIsAggregatedByTheDbWhenSupported() {
+        when(delayAggregationRepository.isSupported()).thenReturn(true);
+        when(delayAggregationRepository.aggregate("1", List.of("A"), START + 60, HOUR, 2, List.of(Aggregate.MEDIAN), 0, 0))
+                .thenReturn(List.of(new RouteBucketValues("A", 1, new double[]{1.5})));
+
+        var response = getDelayService.getMedianDelay("1", getOptions(START + 60, START + 60 + 2 * HOUR, 2));
+
+        assertEquals(Arrays.asList(null, 1.5), response.getDatasets().get(0).getData());
+        verify(repository, never()).streamDelaysBy(anyLong(), anyLong(), any(), any(), any());
+    }
+
+    @Test
+    void unalignedGraphIsReadFromTripDelays() {
+        doAnswer(invocation -> {
+            AgencyRouteTimestampRepository.DelayConsumer consumer = invocation.getArgument(4);
+            consumer.accept("A", START + 90, 120);
+            consumer.accept("A", START + 120, null);
+            return null;
+        }).when(repository).streamDelaysBy(eq(START + 60), eq(START + 60 + 2 * HOUR), eq(List.of("A")), eq("1"), any());
+
+        var response = getDelayService.getAverageDelay("1", getOptions(START + 60, START + 60 + 2 * HOUR, 2));
+
+        assertEquals(Arrays.asList(2.0, null), response.getDatasets().get(0).getData());
+        verify(rollupRepository, never()).findRollups(any(), any(), any(), any(), any());
+    }
+
+    @Test
+    void alignedPercentileIsReadFromHistograms() {
+        //nine delays of a minute and one of ten minutes in the first hour, none in the second
+        when(histogramBinRepository.findBins("1", (int) HOUR, List.of("A"), START, START + 2 * HOUR)).thenReturn(List.of(
+                new AgencyDelayHistogramBinDto("A", START, DelayHistogram.binOf(60), 9L),
+                new AgencyDelayHistogramBinDto("A", START, DelayHistogram.binOf(600), 1L)));
+
+        var p90 = getDelayService.getDelayPercentile("1", getOptions(START, START + 2 * HOUR, 2), 0.9);
+        var p95 = getDelayService.getDelayPercentile("1", getOptions(START, START + 2 * HOUR, 2), 0.95);
+
+        assertEquals(1.0, p90.getDatasets().get(0).getData().get(0), 0.03);
+        assertNull(p90.getDatasets().get(0).getData().get(1));
+        assertEquals(10.0, p95.getDatasets().get(0).getData().get(0), 0.3);
+        verify(repository, never()).streamDelaysBy(anyLong(), anyLong(), any(), any(), any());
+    }
+
+    @Test
+    void unalignedPercentileIsStreamedEvenWhenTheDbCanAggregate() {
+        when(delayAggregationRepository.isSupported()).thenReturn(true);
+        doAnswer(invocation -> {
+            AgencyRouteTimestampRepository.DelayConsumer consumer = invocation.getArgument(4);
+            for (int i = 1; i <= 10; i++) {
+                consumer.accept("A", START + 90, i * 60);
+            }
+            return null;
+        }).when(repository).streamDelaysBy(eq(START + 60), eq(START + 60 + 2 * HOUR), eq(List.of("A")), eq("1"), any());
+
+        var response = getDelayService.getDelayPercentile("1", getOptions(START + 60, START + 60 + 2 * HOUR, 2), 0.5);
+
+        assertEquals(5.0, response.getDatasets().get(0).getData().get(0), 0.15);
+        verify(delayAggregationRepository, never()).aggregate(any(), any(), anyLong(), anyLong(), anyInt(), any(), anyInt(), anyInt());
+    }
+
+    @Test
+    void graphsNotReadFromRollupsShareOneRead() {
+        doAnswer(invocation -> {
+            AgencyRouteTimestampRepository.DelayConsumer consumer = invocation.getArgument(4);
+            consumer.accept("A", START + 90, 60);
+            consumer.accept("A", START + 100, 180);
+            consumer.accept("A", START + 110, 600);
+            return null;
+        }).when(repository).streamDelaysBy(eq(START + 60), eq(START + 60 + 2 * HOUR), eq(List.of("A")), eq("1"), any());
+
+        var graphs = getDelayService.getDelayGraphs("1", getOptions(START + 60, START + 60 + 2 * HOUR, 2),
+                List.of(GraphType.MAX, GraphType.AVERAGE, GraphType.MEDIAN, GraphType.PERCENT));
+
+        assertEquals(List.of(GraphType.MAX, GraphType.AVERAGE, GraphType.MEDIAN, GraphType.PERCENT), List.copyOf(graphs.keySet()));
+        assertEquals(Arrays.asList(10.0, null), graphs.get(GraphType.MAX).getDatasets().get(0).getData());
+        assertEquals(Arrays.asList(4.667, null), graphs.get(GraphType.AVERAGE).getDatasets().get(0).getData());
+        assertEquals(Arrays.asList(3.0, null), graphs.get(GraphType.MEDIAN).getDatasets().get(0).getData());
+        assertEquals(Arrays.asList(66.667, null), graphs.get(GraphType.PERCENT).getDatasets().get(0).getData());
+        verify(repository, times(1)).streamDelaysBy(anyLong(), anyLong(), any(), any(), any());
+    }
+
+    @Test
+    void alignedGraphsAreReadFromRollupsAndTheRestAggregatedTogether() {
+        when(delayAggregationRepository.isSupported()).thenReturn(true);
+        when(rollupRepository.findRollups("1", (int) HOUR, List.of("A"), START, START + 2 * HOUR)).thenReturn(List.of(
+                new AgencyDelayRollupDto("A", START, 2L, 120L, 0, 120, 2L)));
+        when(delayAggregationRepository.aggregate("1", List.of("A"), START, HOUR, 2, List.of(Aggregate.MEDIAN), -5, 5))
+                .thenReturn(List.of(new RouteBucketValues("A", 0, new double[]{1.0})));
+
+        var graphs = getDelayService.getDelayGraphs("1", getOptions(START, START + 2 * HOUR, 2),
+                List.of(GraphType.AVERAGE, GraphType.MEDIAN, GraphType.PERCENT));
+
+        assertEquals(Arrays.asList(1.0, null), graphs.get(GraphType.AVERAGE).getDatasets().get(0).getData());
+        assertEquals(Arrays.asList(1.0, null), graphs.get(GraphType.MEDIAN).getDatasets().get(0).getData());
+        assertEquals(Arrays.asList(100.0, null), graphs.get(GraphType.PERCENT).getDatasets().get(0).getData());
+        verify(rollupRepository, times(2)).findRollups(any(), any(), any(), any(), any());
+        verify(repository, never()).streamDelaysBy(anyLong(), anyLong(), any(), any(), any());
+    }
+
+    @Test
+    void repeatedGraphsAreCachedUntilAPollFallsInTheirRange() {
+        var options = getOptions(START + 60, START + 60 + 2 * HOUR, 2);
+        getDelayService.getAverageDelay("1", options);
+        getDelayService.getAverageDelay("1", getOptions(START + 60, START + 60 + 2 * HOUR, 2));
+        getDelayService.getDelayGraphs("1", options, List.of(GraphType.AVERAGE));
+        verify(repository, times(1)).streamDelaysBy(anyLong(), anyLong(), any(), any(), any());
+
+        //polls of other feeds, or after the graph, don't change it
+        getDelayService.onRealtimeDataSaved(new RealtimeDataSavedEvent("2", START + HOUR));
+        getDelayService.onRealtimeDataSaved(new RealtimeDataSavedEvent("1", START + 60 + 2 * HOUR));
+        getDelayService.getAverageDelay("1", options);
+        verify(repository, times(1)).streamDelaysBy(anyLong(), anyLong(), any(), any(), any());
+
+        getDelayService.onRealtimeDataSaved(new RealtimeDataSavedEvent("1", START + HOUR));
+        getDelayService.getAverageDelay("1", options);
+        verify(repository, times(2)).streamDelaysBy(anyLong(), anyLong(), any(), any(), any());
+    }
+}
@@ -0,0 +1,32 @@
+package com.doug.projects.transitdelayservice.service;
+
+import com.doug.projects.transitdelayservice.entity.Status;
+import com.doug.projects.transitdelayservice.entity.jpa.AgencyFeedDto;
+import com.doug.projects.transitdelayservice.repository.RouteNameResolver;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.http.HttpTimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+
+class GtfsRealtimeParserServiceTest {
+    private final GtfsRealtimeParserService parserService = new GtfsRealtimeParserService(
+            mock(ExpectedBusTimesService.class), mock(RouteNameResolver.class), mock(RealtimeFeedFetcher.class));
+    private final AgencyFeedDto feed = AgencyFeedDto.builder().id("1").build();
+
+    private Status statusFor(Exception ex) {
+        return parserService.buildFailureResponse(feed, ex).getFeedStatus();
+    }
+
+    @Test
+    void onlyRefusedFeedsAreUnauthorized() {
+        assertEquals(Status.UNAUTHORIZED, statusFor(new RealtimeFeedFetcher.UnauthorizedException("403")));
+        assertEquals(Status.TIMEOUT, statusFor(new HttpTimeoutException("timed out")));
+        assertEquals(Status.UNAVAILABLE, statusFor(new IllegalArgumentException("Illegal character in path")));
+        assertEquals(Status.UNAVAILABLE, statusFor(new InvalidProtocolBufferException("bad field")));
+        assertEquals(Status.UNAVAILABLE, statusFor(new IOException("500")));
+    }
+}
@@ -0,0 +1,90 @@
+package com.doug.projects.transitdelayservice.service;
+
+import com.doug.projects.transitdelayservice.entity.AgencyRealtimeAnalysisResponse;
+import com.doug.projects.transitdelayservice.entity.AgencyStaticStatus;
+import com.doug.projects.transitdelayservice.entity.Status;
+import com.doug.projects.transitdelayservice.entity.jpa.AgencyFeedDto;
+import com.doug.projects.transitdelayservice.repository.RouteNameResolver;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyFeedRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class GtfsRetryOnFailureServiceTest {
+    private final GtfsStaticParserService staticParserService = mock(GtfsStaticParserService.class);
+    private final GtfsRealtimeParserService realtimeParserService = mock(GtfsRealtimeParserService.class);
+    private final AgencyFeedRepository agencyFeedRepository = mock(AgencyFeedRepository.class);
+    private final RouteNameResolver routeNameResolver = mock(RouteNameResolver.class);
+    private final ExpectedBusTimesService expectedBusTimesService = mock(ExpectedBusTimesService.class);
+    private final ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    private GtfsRetryOnFailureService retryOnFailureService;
+
+    private static AgencyRealtimeAnalysisResponse getResponse(String feedId, Status status) {
+        return AgencyRealtimeAnalysisResponse.builder()
+                .feed(AgencyFeedDto.builder().id(feedId).build())
+                .feedStatus(status)
+                .build();
+    }
+
+    @BeforeEach
+    void setUp() {
+        executor.setCorePoolSize(2);
+        executor.setMaxPoolSize(2);
+        executor.initialize();
+        retryOnFailureService = new GtfsRetryOnFailureService(staticParserService, realtimeParserService,
+                agencyFeedRepository, routeNameResolver, expectedBusTimesService, executor);
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    void feedBeingRecheckedIsNotQueuedAgain() throws Exception {
+        var releaseRecheck = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            releaseRecheck.await(5, TimeUnit.SECONDS);
+            return null;
+        }).when(agencyFeedRepository).updateStatusById(Status.UNAUTHORIZED, "1");
+
+        retryOnFailureService.recheckFeedInBackground(getResponse("1", Status.UNAUTHORIZED));
+        verify(agencyFeedRepository, timeout(5000)).updateStatusById(Status.UNAUTHORIZED, "1");
+        retryOnFailureService.recheckFeedInBackground(getResponse("1", Status.UNAUTHORIZED));
+        //other feeds are rechecked meanwhile
+        retryOnFailureService.recheckFeedInBackground(getResponse("2", Status.ACTIVE));
+        verify(agencyFeedRepository, timeout(5000)).updateStatusById(Status.ACTIVE, "2");
+
+        releaseRecheck.countDown();
+        verify(agencyFeedRepository, after(500).times(1)).updateStatusById(Status.UNAUTHORIZED, "1");
+        //once done, the feed is rechecked again on its next poll
+        retryOnFailureService.recheckFeedInBackground(getResponse("1", Status.ACTIVE));
+        verify(agencyFeedRepository, timeout(5000)).updateStatusById(Status.ACTIVE, "1");
+    }
+
+    @Test
+    void outdatedFeedIsResolvedAgainstItsReloadedStaticData() {
+        var response = getResponse("1", Status.OUTDATED);
+        when(staticParserService.writeGtfsRoutesToDiskAsync(response.getFeed(), 240)).thenReturn(
+                CompletableFuture.completedFuture(AgencyStaticStatus.builder().success(true).build()));
+        when(realtimeParserService.pollFeed(response.getFeed())).thenReturn(getResponse("1", Status.ACTIVE));
+
+        retryOnFailureService.recheckFeedInBackground(response);
+
+        verify(realtimeParserService, timeout(10_000)).pollFeed(response.getFeed());
+        var inOrder = inOrder(staticParserService, routeNameResolver, expectedBusTimesService, realtimeParserService);
+        inOrder.verify(staticParserService).writeGtfsStaticDataToDbFromDiskSync(response.getFeed());
+        inOrder.verify(routeNameResolver).reload("1");
+        inOrder.verify(expectedBusTimesService).reload("1");
+        inOrder.verify(realtimeParserService).pollFeed(response.getFeed());
+        verify(agencyFeedRepository, never()).updateStatusById(any(), any());
+    }
+}
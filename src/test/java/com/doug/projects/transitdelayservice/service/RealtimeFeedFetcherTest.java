@@ -0,0 +1,124 @@
+package com.doug.projects.transitdelayservice.service;
+
+import com.doug.projects.transitdelayservice.entity.jpa.AgencyFeedDto;
+import com.google.transit.realtime.GtfsRealtime;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.http.HttpTimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RealtimeFeedFetcherTest {
+    private final AtomicLong headerTimestamp = new AtomicLong(1000L);
+    private final AtomicInteger notModifiedResponses = new AtomicInteger();
+    private HttpServer server;
+    private RealtimeFeedFetcher fetcher;
+    private AgencyFeedDto feed;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/feed", exchange -> {
+            String etag = "\"" + headerTimestamp.get() + "\"";
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                notModifiedResponses.incrementAndGet();
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+            var body = new ByteArrayOutputStream();
+            try (OutputStream gzip = new GZIPOutputStream(body)) {
+                GtfsRealtime.FeedMessage.newBuilder()
+                        .setHeader(GtfsRealtime.FeedHeader.newBuilder()
+                                .setGtfsRealtimeVersion("2.0")
+                                .setTimestamp(headerTimestamp.get()))
+                        .build()
+                        .writeTo(gzip);
+            }
+            exchange.getResponseHeaders().add("ETag", etag);
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(200, body.size());
+            exchange.getResponseBody().write(body.toByteArray());
+            exchange.close();
+        });
+        server.createContext("/hung", exchange -> {
+            try {
+                Thread.sleep(3000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.close();
+        });
+        server.createContext("/private", exchange -> {
+            exchange.sendResponseHeaders(403, -1);
+            exchange.close();
+        });
+        server.createContext("/broken", exchange -> {
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+        });
+        server.start();
+        fetcher = new RealtimeFeedFetcher(new FeedHttpClient(1, 2));
+        ReflectionTestUtils.setField(fetcher, "downloadTimeoutSeconds", 1L);
+        feed = AgencyFeedDto.builder().id("1").realTimeUrl(urlOf("/feed")).build();
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+    }
+
+    private String urlOf(String path) {
+        return "http://localhost:" + server.getAddress().getPort() + path;
+    }
+
+    @Test
+    void skipsNotModifiedFeed() throws IOException {
+        var first = fetcher.fetch(feed);
+        assertFalse(first.isUnchanged());
+        assertEquals(1000L, first.message().getHeader().getTimestamp());
+
+        fetcher.markProcessed(feed.getId(), first.version());
+        assertTrue(fetcher.fetch(feed).isUnchanged());
+        assertEquals(1, notModifiedResponses.get());
+
+        headerTimestamp.set(1300L);
+        var changed = fetcher.fetch(feed);
+        assertFalse(changed.isUnchanged());
+        assertEquals(1300L, changed.message().getHeader().getTimestamp());
+    }
+
+    @Test
+    void doesNotSkipUntilMarkedProcessed() throws IOException {
+        assertFalse(fetcher.fetch(feed).isUnchanged());
+        assertFalse(fetcher.fetch(feed).isUnchanged());
+        assertEquals(0, notModifiedResponses.get());
+    }
+
+    @Test
+    void hungFeedTimesOut() {
+        var hungFeed = AgencyFeedDto.builder().id("2").realTimeUrl(urlOf("/hung")).build();
+        assertThrows(HttpTimeoutException.class, () -> fetcher.fetch(hungFeed));
+    }
+
+    @Test
+    void forbiddenFeedIsUnauthorized() {
+        var privateFeed = AgencyFeedDto.builder().id("3").realTimeUrl(urlOf("/private")).build();
+        assertThrows(RealtimeFeedFetcher.UnauthorizedException.class, () -> fetcher.fetch(privateFeed));
+
+        var brokenFeed = AgencyFeedDto.builder().id("4").realTimeUrl(urlOf("/broken")).build();
+        var ex = assertThrows(IOException.class, () -> fetcher.fetch(brokenFeed));
+        assertFalse(ex instanceof RealtimeFeedFetcher.UnauthorizedException);
+    }
+}
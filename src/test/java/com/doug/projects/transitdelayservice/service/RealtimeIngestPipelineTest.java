@@ -0,0 +1,155 @@
+package com.doug.projects.transitdelayservice.service;
+
+import com.doug.projects.transitdelayservice.entity.AgencyRealtimeAnalysisResponse;
+import com.doug.projects.transitdelayservice.entity.AgencyRouteTimestamp;
+import com.doug.projects.transitdelayservice.entity.Status;
+import com.doug.projects.transitdelayservice.entity.jpa.AgencyFeedDto;
+import com.doug.projects.transitdelayservice.repository.AgencyRouteTimestampRepository;
+import com.google.transit.realtime.GtfsRealtime;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.context.ApplicationEventPublisher;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.doug.projects.transitdelayservice.entity.Status.ACTIVE;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.*;
+
+class RealtimeIngestPipelineTest {
+    @Mock
+    private RealtimeFeedFetcher realtimeFeedFetcher;
+    @Mock
+    private GtfsRealtimeParserService rtResponseService;
+    @Mock
+    private GtfsRetryOnFailureService retryOnFailureService;
+    @Mock
+    private AgencyRouteTimestampRepository routeTimestampRepository;
+    @Mock
+    private ApplicationEventPublisher eventPublisher;
+    private RealtimeIngestPipeline pipeline;
+
+    private static AgencyFeedDto getFeed(String id) {
+        return AgencyFeedDto.builder().id(id).name("Test Agency").state("WI").status(ACTIVE).build();
+    }
+
+    private static AgencyRealtimeAnalysisResponse getResponse(AgencyFeedDto feed, Status status) {
+        return AgencyRealtimeAnalysisResponse.builder()
+                .feed(feed)
+                .feedStatus(status)
+                .routeTimestamps(status == ACTIVE ? List.of(new AgencyRouteTimestamp()) : null)
+                .build();
+    }
+
+    private static RealtimeFeedFetcher.Download getDownload() {
+        return new RealtimeFeedFetcher.Download(new ByteArrayInputStream(new byte[0]), null, null);
+    }
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        pipeline = new RealtimeIngestPipeline(realtimeFeedFetcher, rtResponseService, retryOnFailureService,
+                routeTimestampRepository, eventPublisher, 1, 1, 1, 1, 4);
+    }
+
+    @AfterEach
+    void tearDown() {
+        pipeline.shutdown();
+    }
+
+    @Test
+    void writesPolledFeed() throws Exception {
+        var feed = getFeed("1");
+        var download = getDownload();
+        var fetchResult = new RealtimeFeedFetcher.FetchResult(GtfsRealtime.FeedMessage.getDefaultInstance(), null);
+        var response = getResponse(feed, ACTIVE);
+        when(realtimeFeedFetcher.download(feed)).thenReturn(download);
+        when(realtimeFeedFetcher.decode(feed, download)).thenReturn(fetchResult);
+        when(rtResponseService.analyze(feed, fetchResult)).thenReturn(response);
+
+        pipeline.submit(feed).get(5, TimeUnit.SECONDS);
+
+        verify(retryOnFailureService).recheckFeedInBackground(response);
+        verify(routeTimestampRepository).saveAll(eq(List.of(new AgencyRouteTimestamp())), eq("1"));
+        verify(rtResponseService).markProcessed(response);
+    }
+
+    @Test
+    void fetchFailureSkipsToPersist() throws Exception {
+        var feed = getFeed("1");
+        var exception = new IOException("connection reset");
+        var response = getResponse(feed, Status.UNAVAILABLE);
+        when(realtimeFeedFetcher.download(feed)).thenThrow(exception);
+        when(rtResponseService.buildFailureResponse(feed, exception)).thenReturn(response);
+
+        pipeline.submit(feed).get(5, TimeUnit.SECONDS);
+
+        verify(realtimeFeedFetcher, never()).decode(any(), any());
+        verify(retryOnFailureService).recheckFeedInBackground(response);
+        verify(routeTimestampRepository).saveAll(eq(List.of()), eq("1"));
+    }
+
+    @Test
+    void queuedSnapshotsOfTheSameFeedAreCoalesced() throws Exception {
+        var slowFeed = getFeed("1");
+        var feed = getFeed("2");
+        var releaseSlowFeed = new CountDownLatch(1);
+        when(realtimeFeedFetcher.download(slowFeed)).thenAnswer(invocation -> {
+            releaseSlowFeed.await(5, TimeUnit.SECONDS);
+            throw new IOException("slow");
+        });
+        when(realtimeFeedFetcher.download(feed)).thenThrow(new IOException("down"));
+        when(rtResponseService.buildFailureResponse(any(), any()))
+                .thenAnswer(invocation -> getResponse(invocation.getArgument(0), Status.UNAVAILABLE));
+
+        var slow = pipeline.submit(slowFeed);
+        //wait for the only fetch worker to be busy with slowFeed, so the next submits queue up
+        verify(realtimeFeedFetcher, timeout(5000)).download(slowFeed);
+        var older = pipeline.submit(feed);
+        var newer = pipeline.submit(feed);
+        older.get(5, TimeUnit.SECONDS);
+        assertTrue(older.isDone());
+
+        releaseSlowFeed.countDown();
+        slow.get(5, TimeUnit.SECONDS);
+        newer.get(5, TimeUnit.SECONDS);
+        verify(realtimeFeedFetcher, times(1)).download(feed);
+    }
+
+    @Test
+    void snapshotsOfAFeedArePersistedInOrder() throws Exception {
+        pipeline.shutdown();
+        pipeline = new RealtimeIngestPipeline(realtimeFeedFetcher, rtResponseService, retryOnFailureService,
+                routeTimestampRepository, eventPublisher, 1, 1, 1, 2, 4);
+        var feed = getFeed("1");
+        var exception = new IOException("down");
+        when(realtimeFeedFetcher.download(feed)).thenThrow(exception);
+        when(rtResponseService.buildFailureResponse(feed, exception)).thenReturn(getResponse(feed, Status.UNAVAILABLE));
+        var releaseFirst = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            releaseFirst.await(5, TimeUnit.SECONDS);
+            return null;
+        }).doNothing().when(routeTimestampRepository).saveAll(any(), eq("1"));
+
+        var first = pipeline.submit(feed);
+        verify(routeTimestampRepository, timeout(5000)).saveAll(any(), eq("1"));
+        var second = pipeline.submit(feed);
+        //the idle persist worker doesn't take the feed's next snapshot while the first is still being written
+        Thread.sleep(500);
+        verify(routeTimestampRepository, times(1)).saveAll(any(), eq("1"));
+        assertFalse(second.isDone());
+
+        releaseFirst.countDown();
+        first.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+        verify(routeTimestampRepository, times(2)).saveAll(any(), eq("1"));
+    }
+}
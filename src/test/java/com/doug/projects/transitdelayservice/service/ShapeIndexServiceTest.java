@@ -0,0 +1,161 @@
+package com.doug.projects.transitdelayservice.service;
+
+import com.doug.projects.transitdelayservice.entity.GtfsStaticDataLoadedEvent;
+import com.doug.projects.transitdelayservice.entity.transit.ShapeIndexStats;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyShapePointDto;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyShapePointRepository;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyShapeStopDto;
+import com.doug.projects.transitdelayservice.repository.jpa.AgencyStopTimeRepository;
+import org.geojson.LngLatAlt;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class ShapeIndexServiceTest {
+    @Mock
+    private AgencyShapePointRepository agencyShapePointRepository;
+    @Mock
+    private AgencyStopTimeRepository agencyStopTimeRepository;
+    @Mock
+    private PlatformTransactionManager transactionManager;
+    private ShapeIndexService shapeIndexService;
+
+    /**
+     * A shape heading north, 0.001 degrees between points
+     */
+    private static List<AgencyShapePointDto> straightShape(String shapeId, int size) {
+        List<AgencyShapePointDto> points = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            points.add(new AgencyShapePointDto(shapeId, 43 + i * 0.001, -89.4));
+        }
+        return points;
+    }
+
+    private static List<LngLatAlt> toLngLatAlts(List<AgencyShapePointDto> points) {
+        return points.stream().map(p -> new LngLatAlt(p.shapePtLon(), p.shapePtLat())).toList();
+    }
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        shapeIndexService = new ShapeIndexService(agencyShapePointRepository, agencyStopTimeRepository, transactionManager);
+    }
+
+    @Test
+    void slicesBetweenStopsLikeScanningTheShape() {
+        var points = straightShape("sh1", 11);
+        when(agencyShapePointRepository.streamPointsByAgencyId("1")).thenAnswer(i -> points.stream());
+        when(agencyStopTimeRepository.streamShapeStopsByAgencyId("1")).thenAnswer(i -> Stream.of(
+                new AgencyShapeStopDto("sh1", 1, "s1", 43.0021, -89.4001),
+                new AgencyShapeStopDto("sh1", 2, "s2", 43.0049, -89.3999),
+                new AgencyShapeStopDto("sh1", 3, "s3", 43.009, -89.4)));
+
+        var index = shapeIndexService.getIndex("1");
+        var shape = toLngLatAlts(points);
+
+        assertEquals(shape.subList(2, 6), index.slice("sh1", 1, 2).orElseThrow());
+        assertEquals(shape.subList(2, 6), index.slice("sh1", 2, 1).orElseThrow());
+        assertEquals(MapperService.divideShape(shape, new LngLatAlt(-89.3999, 43.0049), new LngLatAlt(-89.4, 43.009)),
+                index.slice("sh1", 2, 3).orElseThrow());
+        assertEquals(2 * 0.1112, index.getStopOffsetKm("sh1", 1).getAsDouble(), 0.001);
+        assertTrue(index.slice("sh1", 1, 4).isEmpty());
+        assertTrue(index.slice("sh2", 1, 2).isEmpty());
+    }
+
+    @Test
+    void stopsOfALoopAreMatchedInSequenceOrder() {
+        //out and back to the start
+        List<AgencyShapePointDto> points = new ArrayList<>(straightShape("loop", 6));
+        for (int i = 4; i >= 0; i--) {
+            points.add(new AgencyShapePointDto("loop", 43 + i * 0.001, -89.4));
+        }
+        when(agencyShapePointRepository.streamPointsByAgencyId("1")).thenAnswer(i -> points.stream());
+        when(agencyStopTimeRepository.streamShapeStopsByAgencyId("1")).thenAnswer(i -> Stream.of(
+                new AgencyShapeStopDto("loop", 1, "s1", 43.0, -89.4),
+                new AgencyShapeStopDto("loop", 2, "s2", 43.005, -89.4),
+                new AgencyShapeStopDto("loop", 3, "s1", 43.0, -89.4)));
+
+        var index = shapeIndexService.getIndex("1");
+        var shape = toLngLatAlts(points);
+
+        assertEquals(shape.subList(0, 6), index.slice("loop", 1, 2).orElseThrow());
+        assertEquals(shape.subList(5, 11), index.slice("loop", 2, 3).orElseThrow());
+    }
+
+    @Test
+    void stopsAreMatchedOnTheFirstLegWhichPassesThem() {
+        //up one street and back down a parallel one, which passes closer to the first stop
+        List<AgencyShapePointDto> points = new ArrayList<>(straightShape("loop", 11));
+        for (int i = 10; i >= 0; i--) {
+            points.add(new AgencyShapePointDto("loop", 43 + i * 0.001, -89.4005));
+        }
+        when(agencyShapePointRepository.streamPointsByAgencyId("1")).thenAnswer(i -> points.stream());
+        when(agencyStopTimeRepository.streamShapeStopsByAgencyId("1")).thenAnswer(i -> Stream.of(
+                new AgencyShapeStopDto("loop", 1, "s1", 43.002, -89.4003),
+                new AgencyShapeStopDto("loop", 2, "s2", 43.006, -89.4001),
+                new AgencyShapeStopDto("loop", 3, "far", 44.0, -89.4),
+                new AgencyShapeStopDto("loop", 4, "s4", 43.002, -89.4005)));
+
+        var index = shapeIndexService.getIndex("1");
+        var shape = toLngLatAlts(points);
+
+        assertEquals(shape.subList(2, 7), index.slice("loop", 1, 2).orElseThrow());
+        assertTrue(index.getStopOffsetKm("loop", 3).isEmpty());
+        assertTrue(index.slice("loop", 2, 3).isEmpty());
+        assertEquals(shape.subList(6, 20), index.slice("loop", 2, 4).orElseThrow());
+    }
+
+    @Test
+    void sequencesOfDifferentStopsOnOneShapeAreNotIndexed() {
+        when(agencyShapePointRepository.streamPointsByAgencyId("1")).thenAnswer(i -> straightShape("sh1", 11).stream());
+        when(agencyStopTimeRepository.streamShapeStopsByAgencyId("1")).thenAnswer(i -> Stream.of(
+                new AgencyShapeStopDto("sh1", 1, "s1", 43.002, -89.4),
+                new AgencyShapeStopDto("sh1", 2, "s2", 43.005, -89.4),
+                new AgencyShapeStopDto("sh1", 2, "s3", 43.006, -89.4)));
+
+        var index = shapeIndexService.getIndex("1");
+
+        assertTrue(index.slice("sh1", 1, 2).isEmpty());
+    }
+
+    @Test
+    void indexIsBuiltOnceUntilStaticDataReloads() {
+        when(agencyShapePointRepository.streamPointsByAgencyId("1")).thenAnswer(i -> straightShape("sh1", 3).stream());
+        when(agencyStopTimeRepository.streamShapeStopsByAgencyId("1")).thenAnswer(i -> Stream.empty());
+
+        shapeIndexService.getIndex("1");
+        shapeIndexService.getIndex("1");
+        verify(agencyShapePointRepository, times(1)).streamPointsByAgencyId("1");
+
+        shapeIndexService.onStaticDataLoaded(new GtfsStaticDataLoadedEvent("1"));
+        shapeIndexService.getIndex("1");
+        verify(agencyShapePointRepository, times(2)).streamPointsByAgencyId("1");
+    }
+
+    @Test
+    void shapePointsAreServedFromTheIndex() {
+        var points = straightShape("sh1", 5);
+        when(agencyShapePointRepository.streamPointsByAgencyId("1")).thenAnswer(i -> points.stream());
+        when(agencyStopTimeRepository.streamShapeStopsByAgencyId("1")).thenAnswer(i -> Stream.of(
+                new AgencyShapeStopDto("sh1", 1, "s1", 43.0, -89.4)));
+
+        var index = shapeIndexService.getIndex("1");
+
+        assertEquals(List.of("sh1"), index.getShapeIds());
+        var coordinates = index.getCoordinates("sh1").orElseThrow();
+        assertEquals(toLngLatAlts(points), coordinates.toLngLatAlts());
+        assertEquals(List.of(43 + 4 * 0.001, -89.4), coordinates.toLatLonPairs().get(4));
+        assertTrue(index.getCoordinates("sh2").isEmpty());
+        //lat, lon and distance per point, a sequence and offset per stop
+        assertEquals(new ShapeIndexStats(1, 5, 5 * 24 + 12), shapeIndexService.getStats().get("1"));
+    }
+}
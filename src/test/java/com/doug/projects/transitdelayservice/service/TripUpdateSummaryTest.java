@@ -0,0 +1,130 @@
+package com.doug.projects.transitdelayservice.service;
+
+import com.doug.projects.transitdelayservice.entity.BusState;
+import com.doug.projects.transitdelayservice.entity.RealtimeFeedVersion;
+import com.doug.projects.transitdelayservice.entity.jpa.AgencyFeedDto;
+import com.doug.projects.transitdelayservice.entity.transit.ExpectedBusTimes;
+import com.doug.projects.transitdelayservice.entity.transit.TripUpdateSummary;
+import com.doug.projects.transitdelayservice.repository.RouteNameResolver;
+import com.google.transit.realtime.GtfsRealtime;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
+import org.junit.jupiter.api.Test;
+
+import java.util.Optional;
+
+import static com.google.transit.realtime.GtfsRealtime.TripDescriptor.ScheduleRelationship.SCHEDULED;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class TripUpdateSummaryTest {
+
+    private static GtfsRealtime.TripUpdate.Builder tripUpdate(String tripId) {
+        return GtfsRealtime.TripUpdate.newBuilder()
+                .setTrip(GtfsRealtime.TripDescriptor.newBuilder()
+                        .setTripId(tripId)
+                        .setRouteId("route-1")
+                        .setScheduleRelationship(SCHEDULED));
+    }
+
+    private static StopTimeUpdate.Builder stopTimeUpdate(int stopSequence, StopTimeUpdate.ScheduleRelationship relationship) {
+        return StopTimeUpdate.newBuilder()
+                .setStopSequence(stopSequence)
+                .setStopId("stop-" + stopSequence)
+                .setScheduleRelationship(relationship);
+    }
+
+    private static GtfsRealtime.TripUpdate.StopTimeEvent delay(int delay) {
+        return GtfsRealtime.TripUpdate.StopTimeEvent.newBuilder().setDelay(delay).build();
+    }
+
+    @Test
+    void tripWithoutStopTimeUpdatesIsInvalid() {
+        var summary = new TripUpdateSummary();
+
+        assertFalse(summary.read(tripUpdate("trip-1").setDelay(60).build()));
+        assertNull(summary.getFirstScheduled());
+        assertEquals(0, summary.getStopSequence());
+        assertNull(summary.getStopId());
+        //the trip delay is still read, even though the trip can't be placed at a stop
+        assertTrue(summary.isHasFeedDelay());
+        assertEquals(60, summary.getFeedDelay());
+    }
+
+    @Test
+    void missingDelayIsNotAZeroDelay() {
+        var summary = new TripUpdateSummary();
+
+        assertTrue(summary.read(tripUpdate("trip-1")
+                .addStopTimeUpdate(stopTimeUpdate(1, StopTimeUpdate.ScheduleRelationship.SCHEDULED)
+                        .setArrival(GtfsRealtime.TripUpdate.StopTimeEvent.newBuilder().setTime(1714342166L)))
+                .build()));
+        assertFalse(summary.isHasFeedDelay());
+
+        assertTrue(summary.read(tripUpdate("trip-2")
+                .addStopTimeUpdate(stopTimeUpdate(1, StopTimeUpdate.ScheduleRelationship.SCHEDULED).setDeparture(delay(0)))
+                .build()));
+        assertTrue(summary.isHasFeedDelay());
+        assertEquals(0, summary.getFeedDelay());
+    }
+
+    @Test
+    void missingDelayWithoutScheduleResolvesToNoTime() {
+        var expectedBusTimesService = mock(ExpectedBusTimesService.class);
+        var routeNameResolver = mock(RouteNameResolver.class);
+        when(expectedBusTimesService.getSchedule("1")).thenReturn(ExpectedBusTimes.builder().timezone("America/Chicago").build());
+        when(routeNameResolver.getRouteName(any(), any(), any())).thenReturn(Optional.of("A"));
+        var parserService = new GtfsRealtimeParserService(expectedBusTimesService, routeNameResolver,
+                mock(RealtimeFeedFetcher.class));
+        var message = GtfsRealtime.FeedMessage.newBuilder()
+                .setHeader(GtfsRealtime.FeedHeader.newBuilder().setGtfsRealtimeVersion("2.0").setTimestamp(1714342166L))
+                .addEntity(GtfsRealtime.FeedEntity.newBuilder().setId("1").setTripUpdate(tripUpdate("on-time")
+                        .addStopTimeUpdate(stopTimeUpdate(1, StopTimeUpdate.ScheduleRelationship.SCHEDULED).setArrival(delay(0)))))
+                .addEntity(GtfsRealtime.FeedEntity.newBuilder().setId("2").setTripUpdate(tripUpdate("unscheduled")
+                        .addStopTimeUpdate(stopTimeUpdate(1, StopTimeUpdate.ScheduleRelationship.SCHEDULED)
+                                .setArrival(GtfsRealtime.TripUpdate.StopTimeEvent.newBuilder().setTime(1714342166L)))))
+                .build();
+
+        var response = parserService.analyze(AgencyFeedDto.builder().id("1").build(),
+                new RealtimeFeedFetcher.FetchResult(message, new RealtimeFeedVersion(null, null, 1714342166L)));
+
+        //the trip without a delay or a schedule to diff against is dropped, rather than reported with NO_TIME
+        assertEquals(1, response.getRouteTimestamps().size());
+        var busStates = response.getRouteTimestamps().get(0).getBusStatesCopyList();
+        assertEquals(1, busStates.size());
+        assertEquals("on-time", busStates.get(0).getTripId());
+        assertEquals(0, busStates.stream().mapToInt(BusState::getDelay).sum());
+    }
+
+    @Test
+    void reuseOverwritesThePreviousTrip() {
+        var summary = new TripUpdateSummary();
+
+        assertTrue(summary.read(tripUpdate("trip-1")
+                .addStopTimeUpdate(stopTimeUpdate(1, StopTimeUpdate.ScheduleRelationship.SKIPPED).setDeparture(delay(30)))
+                .addStopTimeUpdate(stopTimeUpdate(2, StopTimeUpdate.ScheduleRelationship.SCHEDULED).setArrival(delay(90)))
+                .build()));
+        assertEquals("trip-1", summary.getTripId());
+        assertEquals(2, summary.getStopSequence());
+        assertEquals("stop-2", summary.getStopId());
+        //departure delays are preferred, even from a skipped stop
+        assertEquals(30, summary.getFeedDelay());
+
+        assertFalse(summary.read(tripUpdate("trip-2")
+                .addStopTimeUpdate(stopTimeUpdate(1, StopTimeUpdate.ScheduleRelationship.NO_DATA))
+                .build()));
+        assertEquals("trip-2", summary.getTripId());
+        assertNull(summary.getFirstScheduled());
+        assertNull(summary.getStopId());
+        assertFalse(summary.isHasFeedDelay());
+
+        assertTrue(summary.read(tripUpdate("trip-3")
+                .setDelay(-45)
+                .addStopTimeUpdate(stopTimeUpdate(7, StopTimeUpdate.ScheduleRelationship.SCHEDULED).setArrival(delay(90)))
+                .build()));
+        assertEquals("trip-3", summary.getTripId());
+        assertEquals(7, summary.getStopSequence());
+        assertEquals(-45, summary.getFeedDelay());
+    }
+}
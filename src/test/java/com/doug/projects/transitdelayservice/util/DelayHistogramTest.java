@@ -0,0 +1,82 @@
+package com.doug.projects.transitdelayservice.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DelayHistogramTest {
+
+    @Test
+    void binsAreOrderedLikeDelays() {
+        int previous = DelayHistogram.binOf(-DelayHistogram.MAX_MAGNITUDE);
+        for (int delay = -DelayHistogram.MAX_MAGNITUDE + 1; delay <= DelayHistogram.MAX_MAGNITUDE; delay++) {
+            int bin = DelayHistogram.binOf(delay);
+            assertTrue(bin == previous || bin == previous + 1, "bin of " + delay);
+            previous = bin;
+        }
+        assertEquals(-DelayHistogram.MAX_BIN, DelayHistogram.binOf(Integer.MIN_VALUE));
+        assertEquals(DelayHistogram.MAX_BIN, DelayHistogram.binOf(Integer.MAX_VALUE));
+    }
+
+    @Test
+    void binValuesAreWithinThreePercent() {
+        for (int delay = -DelayHistogram.MAX_MAGNITUDE; delay <= DelayHistogram.MAX_MAGNITUDE; delay++) {
+            double value = DelayHistogram.valueOf(DelayHistogram.binOf(delay));
+            assertEquals(delay, value, Math.max(0, Math.abs(delay) / 32d), "value of " + delay);
+        }
+    }
+
+    @Test
+    void quantilesAreNearestRank() {
+        var histogram = new DelayHistogram();
+        for (int delay = 1; delay <= 10; delay++) {
+            histogram.add(delay);
+        }
+
+        assertEquals(1, histogram.getValueAt(0).getAsDouble());
+        assertEquals(5, histogram.getValueAt(0.5).getAsDouble());
+        assertEquals(9, histogram.getValueAt(0.9).getAsDouble());
+        assertEquals(10, histogram.getValueAt(1).getAsDouble());
+        assertTrue(new DelayHistogram().getValueAt(0.5).isEmpty());
+    }
+
+    @Test
+    void quantilesOfRandomDelaysAreWithinThreePercent() {
+        var random = new Random(14);
+        int[] delays = new int[100_000];
+        var histogram = new DelayHistogram();
+        for (int i = 0; i < delays.length; i++) {
+            delays[i] = (int) (random.nextGaussian() * 600) + 120;
+            histogram.add(delays[i]);
+        }
+        Arrays.sort(delays);
+
+        for (double quantile : new double[]{0.05, 0.5, 0.9, 0.95, 0.99}) {
+            int exact = delays[(int) Math.ceil(quantile * delays.length) - 1];
+            assertEquals(exact, histogram.getValueAt(quantile).getAsDouble(), Math.abs(exact) / 32d, "quantile " + quantile);
+        }
+    }
+
+    @Test
+    void mergedHistogramsMatchOneHistogram() {
+        var all = new DelayHistogram();
+        var first = new DelayHistogram();
+        var second = new DelayHistogram();
+        var copy = new DelayHistogram();
+        for (int delay = -1000; delay <= 5000; delay += 7) {
+            all.add(delay);
+            (delay % 2 == 0 ? first : second).add(delay);
+        }
+        first.merge(second);
+        all.forEachBin(copy::addBin);
+
+        assertEquals(all.getCount(), first.getCount());
+        for (double quantile = 0; quantile <= 1; quantile += 0.05) {
+            assertEquals(all.getValueAt(quantile), first.getValueAt(quantile));
+            assertEquals(all.getValueAt(quantile), copy.getValueAt(quantile));
+        }
+    }
+}
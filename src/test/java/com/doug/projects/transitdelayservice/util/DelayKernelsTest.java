@@ -0,0 +1,49 @@
+package com.doug.projects.transitdelayservice.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DelayKernelsTest {
+
+    @Test
+    void maxOnlyReadsLength() {
+        int[] values = {-300, 60, 120, 900, 5000};
+
+        assertEquals(900, DelayKernels.max(values, 4));
+    }
+
+    @Test
+    void medianOfOddAndEvenLengths() {
+        assertEquals(2, DelayKernels.median(new int[]{3, 1, 2}, 3));
+        assertEquals(2.5, DelayKernels.median(new int[]{4, 1, 3, 2}, 4));
+        assertEquals(-1.5, DelayKernels.median(new int[]{-1, -2}, 2));
+        assertEquals(7, DelayKernels.median(new int[]{7, 7, 7, 7, 7, 7}, 6));
+        assertThrows(IllegalArgumentException.class, () -> DelayKernels.median(new int[0], 0));
+    }
+
+    @Test
+    void medianMatchesSorting() {
+        var random = new Random(15);
+        for (int length = 1; length < 200; length++) {
+            int[] values = random.ints(length, -600, 600).toArray();
+            int[] sorted = values.clone();
+            Arrays.sort(sorted);
+            double expected = length % 2 == 1 ? sorted[length / 2] :
+                    (sorted[length / 2 - 1] + (double) sorted[length / 2]) / 2;
+
+            assertEquals(expected, DelayKernels.median(values, length), "length " + length);
+        }
+    }
+
+    @Test
+    void threeDigitPrecisionRoundsHalvesAwayFromZero() {
+        assertEquals(1.235, DelayKernels.threeDigitPrecision(1.2345001));
+        assertEquals(-1.235, DelayKernels.threeDigitPrecision(-1.2345001));
+        assertEquals(0.333, DelayKernels.threeDigitPrecision(1 / 3d));
+        assertEquals(0.0, DelayKernels.threeDigitPrecision(-0.0001));
+    }
+}
@@ -0,0 +1,42 @@
+package com.doug.projects.transitdelayservice.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LongIntHashMapTest {
+
+    @Test
+    void matchesHashMapThroughResizes() {
+        var map = new LongIntHashMap();
+        Map<Long, Integer> expected = new HashMap<>();
+        var random = new Random(7);
+        for (int i = 0; i < 10_000; i++) {
+            //packed pairs of small ints, as segment keys are
+            long key = ((long) random.nextInt(200) << 32) | random.nextInt(200);
+            map.put(key, i);
+            expected.put(key, i);
+        }
+
+        assertEquals(expected.size(), map.size());
+        expected.forEach((key, value) -> assertEquals(value, map.get(key)));
+        assertEquals(LongIntHashMap.MISSING, map.get(-1L));
+    }
+
+    @Test
+    void zeroKeyIsStored() {
+        var map = new LongIntHashMap(1);
+        assertEquals(LongIntHashMap.MISSING, map.get(0L));
+        map.put(0L, 3);
+        assertEquals(3, map.get(0L));
+    }
+
+    @Test
+    void negativeValuesAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new LongIntHashMap().put(1L, -1));
+    }
+}
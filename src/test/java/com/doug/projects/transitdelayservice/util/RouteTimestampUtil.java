@@ -3,6 +3,10 @@ package com.doug.projects.transitdelayservice.util;
 import java.util.*;
 import java.util.stream.Collector;
 
+/**
+ * The boxed collectors graphs were aggregated with before {@link DelayAggregator}. Kept as the baseline
+ * DelayAggregatorPerfTest measures against.
+ */
 public class RouteTimestampUtil {
     public static Collector<Double, DoubleSummaryStatistics, Optional<Double>> toAvg() {
         return Collector.of(